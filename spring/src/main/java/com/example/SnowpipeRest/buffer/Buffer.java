@@ -1,17 +1,24 @@
 package com.example.SnowpipeRest.buffer;
 
 import com.example.SnowpipeRest.utils.EnqueueResponse;
+import com.example.SnowpipeRest.utils.HotPathLog;
+import com.example.SnowpipeRest.utils.PriorityClass;
+import com.example.SnowpipeRest.utils.TableOverrides;
 import com.example.SnowpipeRest.utils.Utils;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Metrics;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
 import net.snowflake.ingest.utils.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** A buffer implementation. In-memory for now but may be backed by persistent, local storage. */
 public class Buffer {
@@ -20,17 +27,30 @@ public class Buffer {
 
   private static final ObjectMapper mapper = new ObjectMapper();
 
+  private static final HotPathLog ENQUEUED_LOG = HotPathLog.create(LOGGER, "rows_enqueued");
+  private static final HotPathLog REJECTED_LOG = HotPathLog.create(LOGGER, "rows_rejected");
+  private static final HotPathLog DROPPED_LOG = HotPathLog.create(LOGGER, "retained_rows_dropped");
+
   // Destination table attributes
   private final String database;
   private final String schema;
   private final String table;
 
-  // maximum number of rows allowed in the buffer
-  // TODO: measure bytes, but since we have an approximation of this use case we can sort of cheat
-  private final long maxRowCount;
+  // maximum number of rows allowed in the buffer, may be changed by a table override
+  private volatile long maxRowCount;
+
+  // Approximate maximum size of the buffer, 0 for no limit. Rows are not measured, their size is
+  // estimated from the size of the requests that carried them.
+  private volatile long maxByteCount;
+
+  // Moving average of the request bytes per row, 0 until a request of known size is enqueued
+  private volatile long averageRowBytes;
 
   // Our offset into the buffer if we need to replay events
-  private long offsetCounter;
+  private volatile long offsetCounter;
+
+  // Rows taken off of the in memory row buffer, used to derive its depth without walking it
+  private volatile long rowsTaken;
 
   // Effectively the partition Id
   private final long partitionIndex;
@@ -38,13 +58,78 @@ public class Buffer {
   // Our actual row buffer. Map of offset to data
   private final Queue<Pair<Long, Map<String, Object>>> rowBuffer;
 
+  // Rows that were handed to a channel but are not known to be committed yet, oldest first. These
+  // are kept so that they can be replayed if the channel is reopened before committing them. The
+  // WAL keeps every row around already, so this is only used in memory.
+  private final Deque<Pair<Long, Map<String, Object>>> retainedRows;
+
+  // Retained rows that have to be resent after a rewind, these are served ahead of new rows
+  private final Deque<Pair<Long, Map<String, Object>>> replayRows;
+
+  // Guards moving rows between the retained and replay windows, along with the count below
+  private final Object retainedLock = new Object();
+
+  // Rows in the retained and replay windows. Capped at the row cap of the buffer on their own, the
+  // oldest are dropped beyond it, so that a stalled commit watcher cannot block new rows. Written
+  // under the lock above, read without it.
+  private final AtomicLong retainedRowCount = new AtomicLong();
+
+  // Highest offset handed to a channel and highest offset known to be committed, -1 if none
+  private volatile long lastSentOffset = -1;
+  private volatile long committedOffset = -1;
+
+  // The channel that rows were last handed to, used to notice that the channel was reopened
+  private SnowflakeStreamingIngestChannel lastDrainedChannel;
+
   // Related to WAL if we use one
   private final boolean usePersistentWAL;
-  private long walLastOffsetWritten;
-  private long walLastOffsetRead;
+  private volatile long walLastOffsetWritten;
+  private volatile long walLastOffsetRead;
   // Shared reference
   private final RocksDBManager rocksDBManager;
 
+  private final PartitionMetrics metrics;
+
+  // Drops rows whose key was enqueued recently, shared by the partitions of the table. Null when
+  // the table is not deduplicated
+  private volatile RowDeduplicator deduplicator;
+
+  // Rows of the table's isolation group held in memory, null when the group has no budget. Set
+  // once when the buffer is created, as rows released must go back to the budget they came from
+  private volatile GroupRowBudget rowBudget;
+
+  private final TableLatencyMetrics latencyMetrics;
+
+  // `database.schema.table.partition`, identifies the partition in summarized log lines
+  private final String logKey;
+  private final HotPathLog.Tally enqueuedLog;
+  private final HotPathLog.Tally rejectedLog;
+  private final HotPathLog.Tally droppedLog;
+
+  /**
+   * The offsets enqueued by a single request, used to measure how long its rows spend in each stage
+   * on their way to being committed. Times are from {@link System#nanoTime()}.
+   */
+  private static final class OffsetRange {
+    final long firstOffset;
+    // Set once all rows of the request are enqueued, until then the range is still growing
+    volatile long lastOffset = Long.MAX_VALUE;
+    final long receivedAtNanos;
+    final long enqueuedAtNanos;
+    long firstSentAtNanos = -1;
+    long lastSentAtNanos = -1;
+
+    OffsetRange(long firstOffset, long receivedAtNanos, long enqueuedAtNanos) {
+      this.firstOffset = firstOffset;
+      this.receivedAtNanos = receivedAtNanos;
+      this.enqueuedAtNanos = enqueuedAtNanos;
+    }
+  }
+
+  // Ranges whose rows are not all sent yet, and ranges that are sent but not committed yet
+  private final Deque<OffsetRange> unsentRanges = new ConcurrentLinkedDeque<>();
+  private final Deque<OffsetRange> uncommittedRanges = new ConcurrentLinkedDeque<>();
+
   /**
    * Default constructor
    *
@@ -67,11 +152,19 @@ public class Buffer {
     this.offsetCounter = 0;
 
     this.rowBuffer = new ConcurrentLinkedQueue<>();
+    this.retainedRows = new ConcurrentLinkedDeque<>();
+    this.replayRows = new ConcurrentLinkedDeque<>();
 
     this.usePersistentWAL = usePersistentWAL;
     this.rocksDBManager = rocksDBManager;
     walLastOffsetRead = 0;
     walLastOffsetWritten = 0;
+    this.metrics = new PartitionMetrics(this, Metrics.globalRegistry);
+    this.latencyMetrics = TableLatencyMetrics.forTable(database, schema, table);
+    this.logKey = database + "." + schema + "." + table + "." + partitionIndex;
+    this.enqueuedLog = ENQUEUED_LOG.tally(logKey);
+    this.rejectedLog = REJECTED_LOG.tally(logKey);
+    this.droppedLog = DROPPED_LOG.tally(logKey);
   }
 
   /**
@@ -81,10 +174,142 @@ public class Buffer {
     if (usePersistentWAL) {
       return walLastOffsetRead < walLastOffsetWritten;
     }
-    return !this.rowBuffer.isEmpty();
+    return !this.rowBuffer.isEmpty() || !this.replayRows.isEmpty();
   }
 
+  /**
+   * @return the number of rows that have not been handed to a channel yet, excluding replays
+   */
+  public long getQueuedRowCount() {
+    if (usePersistentWAL) {
+      return walLastOffsetWritten - walLastOffsetRead;
+    }
+    return offsetCounter - rowsTaken;
+  }
 
+  /**
+   * @return the number of rows held for a possible replay, always 0 with a WAL
+   */
+  public long getRetainedRowCount() {
+    return retainedRowCount.get();
+  }
+
+  PartitionMetrics getMetrics() {
+    return metrics;
+  }
+
+  public TableLatencyMetrics getLatencyMetrics() {
+    return latencyMetrics;
+  }
+
+  /**
+   * Records that a row was inserted into a channel. Only called from the thread draining this
+   * buffer. Replayed rows are ignored, their range was already accounted for when first sent.
+   */
+  void recordRowSent(long offset, long nowNanos) {
+    if (offset > lastSentOffset) {
+      lastSentOffset = offset;
+    }
+    OffsetRange range = unsentRanges.peek();
+    while (range != null && range.lastOffset < offset) {
+      // Empty range (every row rejected) or one that we skipped past
+      unsentRanges.poll();
+      range = unsentRanges.peek();
+    }
+    if (range == null || offset < range.firstOffset) {
+      return;
+    }
+    if (range.firstSentAtNanos < 0) {
+      range.firstSentAtNanos = nowNanos;
+      latencyMetrics.record(
+          TableLatencyMetrics.Stage.BUFFERED, Math.max(0, nowNanos - range.enqueuedAtNanos));
+    }
+    if (offset == range.lastOffset) {
+      range.lastSentAtNanos = nowNanos;
+      latencyMetrics.record(TableLatencyMetrics.Stage.INSERT, nowNanos - range.firstSentAtNanos);
+      unsentRanges.poll();
+      uncommittedRanges.add(range);
+    }
+  }
+
+  /** Records the commit and end to end latency of every sent range up to the committed offset */
+  private void recordRangesCommitted(long committedOffset) {
+    long nowNanos = System.nanoTime();
+    OffsetRange range = uncommittedRanges.peek();
+    PriorityClass priorityClass = null;
+    while (range != null && range.lastOffset <= committedOffset) {
+      latencyMetrics.record(TableLatencyMetrics.Stage.COMMIT, nowNanos - range.lastSentAtNanos);
+      latencyMetrics.record(
+          TableLatencyMetrics.Stage.END_TO_END, nowNanos - range.receivedAtNanos);
+      if (priorityClass == null) {
+        priorityClass =
+            TableOverrides.getInstance().get(database, schema, table).priorityClassOrDefault();
+      }
+      TableLatencyMetrics.recordFreshness(priorityClass, nowNanos - range.receivedAtNanos);
+      uncommittedRanges.poll();
+      range = uncommittedRanges.peek();
+    }
+  }
+
+  /**
+   * @return the last offset written to the buffer, -1 if none
+   */
+  public long getLastWrittenOffset() {
+    return offsetCounter - 1;
+  }
+
+  /**
+   * @return the highest offset handed to a channel, -1 if none
+   */
+  public long getLastSentOffset() {
+    return lastSentOffset;
+  }
+
+  /**
+   * @return the highest offset known to be committed in the current epoch, -1 if none
+   */
+  public long getCommittedOffset() {
+    return committedOffset;
+  }
+
+  /**
+   * @return how long the oldest row that is not committed yet has been in the buffer, 0 if every
+   *     row is committed
+   */
+  public long getOldestUncommittedAgeMs() {
+    OffsetRange oldest = uncommittedRanges.peek();
+    if (oldest == null) {
+      for (OffsetRange range : unsentRanges) {
+        // Skip ranges whose rows were all rejected
+        if (range.lastOffset >= range.firstOffset) {
+          oldest = range;
+          break;
+        }
+      }
+    }
+    if (oldest == null) {
+      return 0;
+    }
+    return Math.max(0, (System.nanoTime() - oldest.enqueuedAtNanos) / 1_000_000);
+  }
+
+  /** Returns a point in time view of the offsets of this partition, reading only volatile fields */
+  public PartitionLag getLag() {
+    long written = getLastWrittenOffset();
+    long sent = lastSentOffset;
+    long committed = committedOffset;
+    return new PartitionLag(
+        database,
+        schema,
+        table,
+        partitionIndex,
+        written,
+        sent,
+        committed,
+        Math.max(0, written - sent),
+        Math.max(0, sent - committed),
+        getOldestUncommittedAgeMs());
+  }
 
   Optional<Map<String, Object>> getRowFromPersistedValue(String persistedRow) {
     Map<String, Object> row;
@@ -118,17 +343,187 @@ public class Buffer {
       }
       return Optional.empty();
     } else {
-      Pair<Long, Map<String, Object>> item = rowBuffer.poll();
-      return item == null ? Optional.empty() : Optional.of(item);
+      synchronized (retainedLock) {
+        Pair<Long, Map<String, Object>> item = replayRows.poll();
+        if (item == null) {
+          item = rowBuffer.poll();
+          if (item == null) {
+            return Optional.empty();
+          }
+          rowsTaken++;
+          retainedRowCount.incrementAndGet();
+        }
+        retainedRows.add(item);
+        if (retainedRowCount.get() > maxRowCount) {
+          dropOldestRetainedRow();
+        }
+        return Optional.of(item);
+      }
     }
   }
 
+  /**
+   * Releases retained rows up to and including the committed offset, they will never need to be
+   * replayed.
+   *
+   * @param committedOffset the latest offset committed by the channel in the current epoch
+   */
+  public void trimCommitted(long committedOffset) {
+    if (committedOffset > this.committedOffset) {
+      this.committedOffset = committedOffset;
+    }
+    recordRangesCommitted(committedOffset);
+    if (usePersistentWAL) {
+      return;
+    }
+    synchronized (retainedLock) {
+      long trimmed = trim(retainedRows, committedOffset) + trim(replayRows, committedOffset);
+      retainedRowCount.addAndGet(-trimmed);
+      if (rowBudget != null) {
+        rowBudget.release(trimmed);
+      }
+    }
+  }
+
+  /**
+   * Drops the oldest retained row once the window is full, it is then lost if the channel is
+   * reopened without having committed it. Commits are normally observed well before this, it only
+   * happens when they stop being observed. Called with the retained lock held.
+   */
+  private void dropOldestRetainedRow() {
+    Pair<Long, Map<String, Object>> dropped = retainedRows.pollFirst();
+    if (dropped == null) {
+      return;
+    }
+    retainedRowCount.decrementAndGet();
+    if (rowBudget != null) {
+      rowBudget.release(1);
+    }
+    metrics.retainedRowsDropped.increment();
+    droppedLog.record(1);
+    if (droppedLog.trySample()) {
+      LOGGER.warn(
+          "Retained rows full, dropping the oldest uncommitted row, it is lost if the channel is reopened. db={} schema={} table={} partition={} offset={} committedOffset={}",
+          database,
+          schema,
+          table,
+          partitionIndex,
+          dropped.getFirst(),
+          committedOffset);
+    }
+  }
+
+  private static long trim(Deque<Pair<Long, Map<String, Object>>> rows, long committedOffset) {
+    long trimmed = 0;
+    while (!rows.isEmpty() && rows.peekFirst().getFirst() <= committedOffset) {
+      rows.pollFirst();
+      trimmed++;
+    }
+    return trimmed;
+  }
+
+  /**
+   * Rewinds the buffer to just after the committed offset of a newly opened channel so that rows
+   * sent to the previous channel, but never committed, are sent again. Only the gap is replayed,
+   * rows that were committed are released.
+   *
+   * @param committedOffset the latest offset committed in the current epoch, -1 if none
+   * @return the number of rows that will be replayed
+   */
+  public long rewindTo(long committedOffset) {
+    if (usePersistentWAL) {
+      // Rows stay in the WAL until purged so we just move the read pointer back
+      long rewindTo = Math.max(committedOffset + 1, 0);
+      if (rewindTo >= walLastOffsetRead) {
+        return 0;
+      }
+      long replayed = walLastOffsetRead - rewindTo;
+      walLastOffsetRead = rewindTo;
+      return replayed;
+    }
+    synchronized (retainedLock) {
+      trimCommitted(committedOffset);
+      long replayed = retainedRows.size();
+      // Rows sent after the rewind point are resent first, in their original order
+      while (!retainedRows.isEmpty()) {
+        replayRows.addFirst(retainedRows.pollLast());
+      }
+      return replayed;
+    }
+  }
+
+  SnowflakeStreamingIngestChannel getLastDrainedChannel() {
+    return lastDrainedChannel;
+  }
+
+  void setLastDrainedChannel(SnowflakeStreamingIngestChannel channel) {
+    this.lastDrainedChannel = channel;
+  }
+
+  /**
+   * Changes the caps of the buffer. Rows already in the buffer are kept, a lower cap only rejects
+   * new rows until the buffer drains below it.
+   *
+   * @param maxRowCount the max number of rows that we will accept in this buffer
+   * @param maxByteCount the approximate max bytes that we will accept in this buffer, 0 for none
+   */
+  void setLimits(long maxRowCount, long maxByteCount) {
+    this.maxRowCount = maxRowCount;
+    this.maxByteCount = maxByteCount;
+  }
+
+  /** Sets the deduplicator of the table, null to stop deduplicating */
+  void setDeduplicator(RowDeduplicator deduplicator) {
+    this.deduplicator = deduplicator;
+  }
+
+  /** Sets the budget of the table's isolation group, only used in memory */
+  void setRowBudget(GroupRowBudget rowBudget) {
+    this.rowBudget = rowBudget;
+  }
+
+  long getMaxRowCount() {
+    return maxRowCount;
+  }
+
+  /** Returns the estimated size of the rows in the buffer, 0 until a request of known size */
+  public long getApproximateBytes() {
+    return (getQueuedRowCount() + retainedRowCount.get()) * averageRowBytes;
+  }
+
+  /** Folds the size of a request into the average row size, 1/8 weight per request */
+  private void recordRequestBytes(long requestBytes, int rowCount) {
+    if (requestBytes <= 0 || rowCount == 0) {
+      return;
+    }
+    long rowBytes = Math.max(1, requestBytes / rowCount);
+    long average = averageRowBytes;
+    averageRowBytes = average == 0 ? rowBytes : average + (rowBytes - average) / 8;
+  }
+
+  /** Returns the number of rows that fit in the buffer under both its row and byte caps */
+  private long getRowCapacity() {
+    long capacity = maxRowCount;
+    long byteCap = maxByteCount;
+    long rowBytes = averageRowBytes;
+    if (byteCap > 0 && rowBytes > 0) {
+      capacity = Math.min(capacity, byteCap / rowBytes);
+    }
+    return capacity;
+  }
+
   /** Adds a row to a buffer, checking size to ensure that we can accept it */
-  private synchronized boolean addRow(Map<String, Object> row) {
-    if (rowBuffer.size() >= maxRowCount) {
+  private synchronized boolean addRow(Map<String, Object> row, long rowCapacity) {
+    // Counted rather than rowBuffer.size(), which walks the whole queue. Retained rows have a cap
+    // of their own, counting them here would reject every row once commits stop being observed
+    if (getQueuedRowCount() >= rowCapacity) {
       LOGGER.trace("Rejecting row due to maximum size reached");
       return false;
     }
+    if (rowBudget != null && !rowBudget.tryAcquire()) {
+      LOGGER.trace("Rejecting row due to isolation group budget reached");
+      return false;
+    }
     rowBuffer.add(new Pair<>(offsetCounter, row));
     offsetCounter += 1;
     return true;
@@ -139,7 +534,8 @@ public class Buffer {
    *
    * @param requestBody user supplied string that represents one or more rows
    */
-  private EnqueueResponse expandRowsEnqueueDataInMem(Optional<List<Map<String, Object>>> rows) {
+  private EnqueueResponse expandRowsEnqueueDataInMem(
+      Optional<List<Map<String, Object>>> rows, long receivedAtNanos, long requestBytes) {
     if (rows.isEmpty()) {
       LOGGER.info(
           "Unable to expand rows - invalid payload sent db={} schema={} table={} partition={}",
@@ -153,43 +549,72 @@ public class Buffer {
     }
     int rowsEnqueued = 0;
     int rowsRejected = 0;
+    int rowsDeduplicated = 0;
     int rowsToInsert = rows.get().size();
-    for (int i = 0; i < rowsToInsert; i++) {
-      Map<String, Object> row = rows.get().get(i);
-      if (!addRow(row)) {
-        // Reject the batch outright as subsequent adds likely won't succeed
-        rowsRejected = rowsToInsert - i;
-        break;
+    recordRequestBytes(requestBytes, rowsToInsert);
+    long rowCapacity = getRowCapacity();
+    RowDeduplicator deduplicator = this.deduplicator;
+    // Rows of a request get contiguous offsets so that they can be tracked as a single range
+    synchronized (this) {
+      OffsetRange range = new OffsetRange(offsetCounter, receivedAtNanos, System.nanoTime());
+      unsentRanges.add(range);
+      for (int i = 0; i < rowsToInsert; i++) {
+        Map<String, Object> row = rows.get().get(i);
+        String key = deduplicator != null ? deduplicator.keyOf(row) : null;
+        if (key != null && !deduplicator.claim(key)) {
+          rowsDeduplicated++;
+          continue;
+        }
+        if (!addRow(row, rowCapacity)) {
+          if (key != null) {
+            deduplicator.release(key);
+          }
+          // Reject the batch outright as subsequent adds likely won't succeed
+          rowsRejected = rowsToInsert - i;
+          break;
+        }
+        rowsEnqueued++;
       }
-      rowsEnqueued++;
+      range.lastOffset = offsetCounter - 1;
     }
+    metrics.rowsEnqueued.increment(rowsEnqueued);
+    metrics.rowsRejected.increment(rowsRejected);
     if (rowsRejected > 0) {
-      LOGGER.info(
-          "Unable to enqueue rows due to rejected rows. db={} schema={} table={} partition={} rejected_count={} queue_size={} max_row_count={} queue_full={}",
-          database,
-          schema,
-          table,
-          partitionIndex,
-          rowsRejected,
-          rowBuffer.size(),
-          maxRowCount,
-          rowBuffer.size() == maxRowCount);
+      rejectedLog.record(rowsRejected);
+      // Rejections are worth seeing in full, but at most once per interval when the buffer is full
+      if (HotPathLog.isVerbose() || rejectedLog.trySample()) {
+        LOGGER.info(
+            "Unable to enqueue rows due to rejected rows. db={} schema={} table={} partition={} rejected_count={} queue_size={} max_row_count={} queue_full={}",
+            database,
+            schema,
+            table,
+            partitionIndex,
+            rowsRejected,
+            getQueuedRowCount(),
+            maxRowCount,
+            getQueuedRowCount() == maxRowCount);
+      }
     }
     if (rowsEnqueued > 0) {
-      LOGGER.info(
-          "Accepted rows to be inserted db={} schema={} table={} partition={} accepted_count={} queue_size={} max_row_count={} queue_full={}",
-          database,
-          schema,
-          table,
-          partitionIndex,
-          rowsEnqueued,
-          rowBuffer.size(),
-          maxRowCount,
-          rowBuffer.size() == maxRowCount);
+      enqueuedLog.record(rowsEnqueued);
+      if (HotPathLog.isVerbose()) {
+        LOGGER.info(
+            "Accepted rows to be inserted db={} schema={} table={} partition={} accepted_count={} queue_size={} max_row_count={} queue_full={}",
+            database,
+            schema,
+            table,
+            partitionIndex,
+            rowsEnqueued,
+            getQueuedRowCount(),
+            maxRowCount,
+            getQueuedRowCount() == maxRowCount);
+      }
     }
     return new EnqueueResponse.EnqueueResponseBuilder()
         .setRowsEnqueued(rowsEnqueued)
         .setRowsRejected(rowsRejected)
+        .setRowsDeduplicated(rowsDeduplicated)
+        .setRejectedRows(rows.get().subList(rowsToInsert - rowsRejected, rowsToInsert))
         .build();
   }
 
@@ -219,20 +644,46 @@ public class Buffer {
    * @param requestBody
    * @return
    */
-  private EnqueueResponse expandRowsEnqueueDataWAL(Optional<List<Map<String, Object>>> rows) {
+  private EnqueueResponse expandRowsEnqueueDataWAL(
+      Optional<List<Map<String, Object>>> rows, long receivedAtNanos) {
     if (rows.isEmpty()) {
       return new EnqueueResponse.EnqueueResponseBuilder()
           .setMessage("Unable to parse request body")
           .build();
     }
-    for (Map<String, Object> row : rows.get()) {
-      addRowToWAL(row);
+    int written = 0;
+    int rowsDeduplicated = 0;
+    RowDeduplicator deduplicator = this.deduplicator;
+    synchronized (this) {
+      OffsetRange range = new OffsetRange(offsetCounter, receivedAtNanos, System.nanoTime());
+      unsentRanges.add(range);
+      for (Map<String, Object> row : rows.get()) {
+        String key = deduplicator != null ? deduplicator.keyOf(row) : null;
+        if (key != null && !deduplicator.claim(key)) {
+          rowsDeduplicated++;
+          continue;
+        }
+        if (addRowToWAL(row)) {
+          written++;
+        } else if (key != null) {
+          deduplicator.release(key);
+        }
+      }
+      range.lastOffset = offsetCounter - 1;
+    }
+    int rowsToWrite = rows.get().size() - rowsDeduplicated;
+    metrics.rowsEnqueued.increment(written);
+    metrics.rowsRejected.increment(rowsToWrite - written);
+    enqueuedLog.record(written);
+    if (written < rowsToWrite) {
+      rejectedLog.record(rowsToWrite - written);
     }
-    int rowsEnqueued = rows.get().size();
+    int rowsEnqueued = rowsToWrite;
     int rowsRejected = 0;
     return new EnqueueResponse.EnqueueResponseBuilder()
         .setRowsEnqueued(rowsEnqueued)
         .setRowsRejected(rowsRejected)
+        .setRowsDeduplicated(rowsDeduplicated)
         .build();
   }
 
@@ -242,10 +693,9 @@ public class Buffer {
    * @param requestBody user supplied string that represents one or more rows
    */
   public EnqueueResponse expandRowsEnqueueData(String requestBody) {
+    long receivedAtNanos = System.nanoTime();
     Optional<List<Map<String, Object>>> rows = Utils.getRowsFromRequestBody(requestBody);
-    return usePersistentWAL
-        ? expandRowsEnqueueDataWAL(rows)
-        : expandRowsEnqueueDataInMem(rows);
+    return expandRowsEnqueueData(rows, receivedAtNanos, requestBody.length());
   }
 
   /**
@@ -254,9 +704,47 @@ public class Buffer {
    * @param rows user supplied string that represents one or more rows
    */
   public EnqueueResponse expandRowsEnqueueData(Optional<List<Map<String, Object>>> rows) {
-    return usePersistentWAL
-            ? expandRowsEnqueueDataWAL(rows)
-            : expandRowsEnqueueDataInMem(rows);
+    return expandRowsEnqueueData(rows, System.nanoTime());
+  }
+
+  /**
+   * Given a request body expand to rows and append to a queue
+   *
+   * @param rows user supplied string that represents one or more rows
+   * @param receivedAtNanos when the request carrying the rows arrived, from {@link
+   *     System#nanoTime()}, used to measure end to end latency
+   */
+  public EnqueueResponse expandRowsEnqueueData(
+      Optional<List<Map<String, Object>>> rows, long receivedAtNanos) {
+    return expandRowsEnqueueData(rows, receivedAtNanos, 0);
+  }
+
+  /**
+   * Given a request body expand to rows and append to a queue
+   *
+   * @param rows user supplied string that represents one or more rows
+   * @param receivedAtNanos when the request carrying the rows arrived, from {@link
+   *     System#nanoTime()}, used to measure end to end latency
+   * @param requestBytes size of the request body that carried the rows, used to estimate the size
+   *     of the buffer. 0 if unknown
+   */
+  public EnqueueResponse expandRowsEnqueueData(
+      Optional<List<Map<String, Object>>> rows, long receivedAtNanos, long requestBytes) {
+    EnqueueEvent event = new EnqueueEvent();
+    event.begin();
+    EnqueueResponse response =
+        usePersistentWAL
+            ? expandRowsEnqueueDataWAL(rows, receivedAtNanos)
+            : expandRowsEnqueueDataInMem(rows, receivedAtNanos, requestBytes);
+    event.end();
+    if (event.shouldCommit()) {
+      event.setPartition(this);
+      event.rowsEnqueued = response.getRowsEnqueued();
+      event.rowsRejected = response.getRowsRejected();
+      event.wal = usePersistentWAL;
+      event.commit();
+    }
+    return response;
   }
 
   public String getDatabase() {
@@ -271,6 +759,13 @@ public class Buffer {
     return table;
   }
 
+  /**
+   * @return `database.schema.table.partition`, used to key summarized log lines
+   */
+  public String getLogKey() {
+    return logKey;
+  }
+
   @Override
   public int hashCode() {
     return Objects.hash(database, schema, table, partitionIndex);
@@ -1,17 +1,31 @@
 package com.example.SnowpipeRest.buffer;
 
+import com.example.SnowpipeRest.utils.Clock;
+import com.example.SnowpipeRest.utils.IsolationGroup;
+import com.example.SnowpipeRest.utils.IsolationGroups;
 import com.example.SnowpipeRest.utils.TableKey;
+import com.example.SnowpipeRest.utils.TableOverride;
+import com.example.SnowpipeRest.utils.TableOverrides;
 import com.example.SnowpipeRest.utils.TablePartitionKey;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /** Manages buffers used to hold data for a destination table */
 @Component
 public class BufferManager {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(BufferManager.class);
+
+  // Tables sharded across maxShardsPerTable partitions unless a table override sets their shards
   static Set<String> highVolumeTables = new HashSet<>();
 
   static {
@@ -34,15 +48,39 @@ public class BufferManager {
 
   private RocksDBManager rocksDBManager;
 
-  private long getPartitionIndex(AtomicInteger atomicInteger, String tableName) {
+  // Deduplicator of each table with a dedup column, shared by its partitions. Keyed with tier 0
+  private final ConcurrentHashMap<TableKey, RowDeduplicator> deduplicators =
+      new ConcurrentHashMap<>();
+
+  // Row budget of each isolation group with a `max_buffer_rows`, keyed by group name. They lend
+  // each other unused rows. Empty with the WAL, whose rows are not held in memory
+  private final Map<String, GroupRowBudget> rowBudgets = new HashMap<>();
+
+  // Notified with the key of a buffer when it is first created, used to warm up its channel
+  private volatile Consumer<TablePartitionKey> bufferCreatedListener = tableKey -> {};
+
+  // Registered with the table overrides, kept to unregister it on shutdown
+  private final Runnable tableOverridesListener = this::applyTableOverrides;
 
-    if (highVolumeTables.contains(tableName.toUpperCase())) {
+  private long getPartitionIndex(AtomicInteger atomicInteger, long shards) {
+    if (shards > 1) {
       // Partition our higher volume tables
-      return atomicInteger.incrementAndGet() % maxShardsPerTable;
+      return Math.floorMod(atomicInteger.incrementAndGet(), shards);
     }
     return 0;
   }
 
+  /** Returns the number of partitions that rows of a table are spread across */
+  long getShardCount(String database, String schema, String tableName) {
+    long defaultShards = highVolumeTables.contains(tableName.toUpperCase()) ? maxShardsPerTable : 1;
+    return TableOverrides.getInstance().get(database, schema, tableName).shardsOr(defaultShards);
+  }
+
+  /** Returns the number of partitions that each lateness tier of a table is spread across */
+  long getLateArrivingShardCount(String database, String schema, String tableName) {
+    return TableOverrides.getInstance().get(database, schema, tableName).lateArrivingShardsOr(1);
+  }
+
   /** Default constructor */
   public BufferManager(
       long maxBufferRowCount, long maxShardsPerTable, boolean usePersistentWriteAheadLog) {
@@ -55,39 +93,226 @@ public class BufferManager {
       rocksDBManager = new RocksDBManager();
       rocksDBManager.initialize();
     }
+    Gauge.builder(PartitionMetrics.PREFIX + "buffers", tableToBuffer, Map::size)
+        .description("Partitions with a buffer")
+        .register(Metrics.globalRegistry);
+    if (!usePersistentWriteAheadLog) {
+      createRowBudgets();
+    }
+    TableOverrides.getInstance().addChangeListener(tableOverridesListener);
+    if (usePersistentWriteAheadLog) {
+      warnOfIgnoredBufferCaps();
+    }
+  }
+
+  private void createRowBudgets() {
+    GroupRowBudget.Pool pool = new GroupRowBudget.Pool();
+    for (IsolationGroup group : IsolationGroups.getInstance().getGroups()) {
+      if (group.maxBufferRowsOrNone() <= 0) {
+        continue;
+      }
+      GroupRowBudget budget =
+          new GroupRowBudget(group.name(), group.maxBufferRowsOrNone(), pool);
+      rowBudgets.put(group.name(), budget);
+      Tags tags = Tags.of("group", group.name());
+      Gauge.builder(PartitionMetrics.PREFIX + "group.buffer.rows", budget, GroupRowBudget::getUsedRows)
+          .description("Rows of an isolation group held in memory until committed")
+          .tags(tags)
+          .register(Metrics.globalRegistry);
+      Gauge.builder(
+              PartitionMetrics.PREFIX + "group.buffer.rows.borrowed",
+              budget,
+              GroupRowBudget::getBorrowedRows)
+          .description("Rows of an isolation group held beyond its budget")
+          .tags(tags)
+          .register(Metrics.globalRegistry);
+    }
+  }
+
+  /** Returns the row budget of each isolation group that has one, keyed by group name */
+  Map<String, GroupRowBudget> getRowBudgets() {
+    return rowBudgets;
+  }
+
+  /** Applies the current table overrides to the caps of existing buffers */
+  void applyTableOverrides() {
+    if (usePersistentWriteAheadLog) {
+      warnOfIgnoredBufferCaps();
+    }
+    for (Buffer buffer : tableToBuffer.values()) {
+      applyLimits(buffer);
+    }
+  }
+
+  /** Logs the tables whose buffer caps are overridden, the write ahead log has no cap */
+  private void warnOfIgnoredBufferCaps() {
+    List<String> tables =
+        TableOverrides.getInstance().getAll().entrySet().stream()
+            .filter(e -> e.getValue().hasBufferCaps())
+            .map(Map.Entry::getKey)
+            .toList();
+    if (!tables.isEmpty()) {
+      LOGGER.warn(
+          "Buffers are not capped with a write ahead log, ignoring max_buffer_row_count and"
+              + " max_buffer_bytes. tables={}",
+          tables);
+    }
+  }
+
+  private void applyLimits(Buffer buffer) {
+    TableOverride override =
+        TableOverrides.getInstance()
+            .get(buffer.getDatabase(), buffer.getSchema(), buffer.getTable());
+    buffer.setLimits(
+        override.maxBufferRowCountOr(maxBufferRowCount), override.maxBufferBytesOrNone());
+    buffer.setDeduplicator(
+        getDeduplicator(buffer.getDatabase(), buffer.getSchema(), buffer.getTable(), override));
+  }
+
+  /**
+   * Returns the deduplicator of a table, null if it has no dedup column. The keys remembered so
+   * far are kept on a reload unless the dedup settings of the table changed.
+   */
+  private RowDeduplicator getDeduplicator(
+      String database, String schema, String table, TableOverride override) {
+    TableKey key = new TableKey(database, schema, table, 0);
+    String column = override.dedupColumnOrNone();
+    if (column == null) {
+      deduplicators.remove(key);
+      return null;
+    }
+    long windowMs = override.dedupWindowOrDefault().toMillis();
+    int maxKeys = override.dedupMaxKeysOrDefault();
+    return deduplicators.compute(
+        key,
+        (k, existing) -> {
+          if (existing != null && existing.hasSettings(column, windowMs, maxKeys)) {
+            return existing;
+          }
+          if (existing == null) {
+            registerDedupGauges(k);
+          }
+          return new RowDeduplicator(
+              database, schema, table, column, windowMs, maxKeys, Clock.SYSTEM);
+        });
+  }
+
+  private void registerDedupGauges(TableKey key) {
+    Tags tags =
+        Tags.of("database", key.database(), "schema", key.schema(), "table", key.table());
+    // Read through the map, as the deduplicator is replaced when its settings change
+    Gauge.builder(
+            PartitionMetrics.PREFIX + "dedup.memory.bytes",
+            deduplicators,
+            m -> {
+              RowDeduplicator deduplicator = m.get(key);
+              return deduplicator != null ? deduplicator.getMemoryBytes() : 0;
+            })
+        .description("Estimated memory held to deduplicate the rows of a table")
+        .tags(tags)
+        .register(Metrics.globalRegistry);
+    Gauge.builder(
+            PartitionMetrics.PREFIX + "dedup.keys",
+            deduplicators,
+            m -> {
+              RowDeduplicator deduplicator = m.get(key);
+              return deduplicator != null ? deduplicator.getExactKeyCount() : 0;
+            })
+        .description("Keys of a table remembered exactly")
+        .tags(tags)
+        .register(Metrics.globalRegistry);
+  }
+
+  /** Sets the listener that is notified when a buffer is created for a new partition */
+  public void setBufferCreatedListener(Consumer<TablePartitionKey> bufferCreatedListener) {
+    this.bufferCreatedListener = bufferCreatedListener;
+  }
+
+  private Buffer createBuffer(TablePartitionKey pk) {
+    Buffer buffer =
+        new Buffer(
+            pk.getDatabase(),
+            pk.getSchema(),
+            pk.getTable(),
+            maxBufferRowCount,
+            pk.getPartitionIndex(),
+            usePersistentWriteAheadLog,
+            rocksDBManager);
+    applyLimits(buffer);
+    buffer.setRowBudget(
+        rowBudgets.get(
+            IsolationGroups.getInstance()
+                .groupOf(pk.getDatabase(), pk.getSchema(), pk.getTable())
+                .name()));
+    bufferCreatedListener.accept(pk);
+    return buffer;
   }
 
   public Buffer getLateArrivingRowsBuffer(final String database, final String schema, final String table) {
-    TablePartitionKey pk = new TablePartitionKey(database, schema, table, -1);
-    return tableToBuffer.computeIfAbsent(
-            pk,
-            k ->
-                    new Buffer(
-                            database,
-                            schema,
-                            table,
-                            maxBufferRowCount,
-                            -1, // we will reserve partition index -1 for late arriving rows
-                            usePersistentWriteAheadLog,
-                            rocksDBManager));
+    return getLateArrivingRowsBuffer(database, schema, table, 1);
+  }
+
+  /**
+   * Returns a buffer of a lateness tier of a table, from one of the tier's shards in turn
+   *
+   * @param latenessTier the tier, from 1 for the youngest
+   */
+  public Buffer getLateArrivingRowsBuffer(
+      final String database, final String schema, final String table, final int latenessTier) {
+    // Late arriving rows are spread across the shards of their tier like regular rows, with a
+    // counter per tier
+    final TableKey key = new TableKey(database, schema, table, latenessTier);
+    AtomicInteger counter = tableToPartitionIndex.computeIfAbsent(key, k -> new AtomicInteger(0));
+    long shard = getPartitionIndex(counter, getLateArrivingShardCount(database, schema, table));
+    TablePartitionKey pk =
+        TablePartitionKey.lateArriving(database, schema, table, latenessTier, shard);
+    return tableToBuffer.computeIfAbsent(pk, this::createBuffer);
   }
 
   public Buffer getBuffer(final String database, final String schema, final String table) {
-    final TableKey key = new TableKey(database, schema, table, false);
+    final TableKey key = new TableKey(database, schema, table, 0);
     AtomicInteger counter = tableToPartitionIndex.computeIfAbsent(key, k -> new AtomicInteger(0));
-    long partitionIndex = getPartitionIndex(counter, table);
+    long partitionIndex = getPartitionIndex(counter, getShardCount(database, schema, table));
     TablePartitionKey pk = new TablePartitionKey(database, schema, table, partitionIndex);
-    return tableToBuffer.computeIfAbsent(
-        pk,
-        k ->
-            new Buffer(
-                database,
-                schema,
-                table,
-                maxBufferRowCount,
-                partitionIndex,
-                usePersistentWriteAheadLog,
-                rocksDBManager));
+    return tableToBuffer.computeIfAbsent(pk, this::createBuffer);
+  }
+
+  /**
+   * Returns every partition that rows for a table can be routed to
+   *
+   * @param includeLateArriving whether to include the partitions reserved for late arriving rows,
+   *     the shards of every lateness tier
+   */
+  public List<TablePartitionKey> getPartitionKeys(
+      final String database, final String schema, final String table, boolean includeLateArriving) {
+    List<TablePartitionKey> keys = new ArrayList<>();
+    long shards = getShardCount(database, schema, table);
+    for (long i = 0; i < shards; i++) {
+      keys.add(new TablePartitionKey(database, schema, table, i));
+    }
+    if (includeLateArriving && RowSplitter.getTimestampColumn(database, schema, table) != null) {
+      int tiers = TableOverrides.getInstance().get(database, schema, table).latenessTierCount();
+      long lateShards = getLateArrivingShardCount(database, schema, table);
+      for (int tier = 1; tier <= tiers; tier++) {
+        for (long shard = 0; shard < lateShards; shard++) {
+          keys.add(TablePartitionKey.lateArriving(database, schema, table, tier, shard));
+        }
+      }
+    }
+    return keys;
+  }
+
+  /** Returns the partitions that still have rows persisted in the write ahead log, if we use one */
+  public Set<TablePartitionKey> getPersistedPartitions() {
+    if (!usePersistentWriteAheadLog) {
+      return Collections.emptySet();
+    }
+    return rocksDBManager.getPersistedPartitions();
+  }
+
+  /** Returns the write ahead log, null if we do not use one */
+  public RocksDBManager getRocksDBManager() {
+    return rocksDBManager;
   }
 
   public Buffer getBufferWithIndex(
@@ -101,6 +326,11 @@ public class BufferManager {
     return tableToBuffer;
   }
 
+  /** Stops applying table overrides to the buffers */
+  public void shutdown() {
+    TableOverrides.getInstance().removeChangeListener(tableOverridesListener);
+  }
+
   public void tearDown() {
     rocksDBManager.tearDown();
   }
@@ -0,0 +1,20 @@
+package com.example.SnowpipeRest.buffer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** JFR event covering a single drain task of a partition */
+@Name("com.example.SnowpipeRest.Drain")
+@Label("Drain")
+@Description("Rows of a partition handed to its channel by a single drain task")
+@Category({"Snowpipe REST", "Drain"})
+class DrainEvent extends PartitionEvent {
+
+  @Label("Rows Drained")
+  long rows;
+
+  @Label("Termination Reason")
+  String terminationReason;
+}
@@ -1,16 +1,33 @@
 package com.example.SnowpipeRest.buffer;
 
+import com.example.SnowpipeRest.snowflake.ChannelManager;
+import com.example.SnowpipeRest.utils.Clock;
+import com.example.SnowpipeRest.utils.IsolationGroup;
+import com.example.SnowpipeRest.utils.IsolationGroups;
+import com.example.SnowpipeRest.utils.PriorityClass;
+import com.example.SnowpipeRest.utils.TableOverride;
+import com.example.SnowpipeRest.utils.TableOverrides;
 import com.example.SnowpipeRest.utils.TablePartitionKey;
 import com.google.common.annotations.VisibleForTesting;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Manages draining across buffers */
 @Component
@@ -21,12 +38,55 @@ public class DrainManager implements Runnable {
   // The manager of the buffers that we wish to drain
   private final BufferManager bufferManager;
 
-  // The executor service that will invoke the `drain` methods on a particular buffer
-  ThreadPoolExecutor executor;
+  // The executor that will invoke the `drain` methods on a particular buffer. It rejects work
+  // when all of its threads are busy and its queue is full.
+  private final Executor executor;
+  private final AtomicInteger activeDrains = new AtomicInteger();
+  private final int numThreads;
+
+  /**
+   * Drain threads reserved for the partitions of an isolation group or of a priority class, along
+   * with the drains of those partitions submitted and not yet finished, running or waiting for a
+   * thread. A partition belongs to the lane of its group and to the lane of its class.
+   */
+  private static final class Lane {
+    final int reservedThreads;
+    final AtomicInteger drains = new AtomicInteger();
+
+    Lane(int reservedThreads) {
+      this.reservedThreads = reservedThreads;
+    }
+
+    boolean hasReservedThreadFree() {
+      return drains.get() < reservedThreads;
+    }
+
+    /** Returns the reserved threads that waiting partitions of the lane are owed */
+    int owedThreads(int waitingPartitions) {
+      return Math.min(waitingPartitions, Math.max(0, reservedThreads - drains.get()));
+    }
+  }
+
+  private final IsolationGroups isolationGroups;
+  private final Map<IsolationGroup, Lane> groupLanes = new ConcurrentHashMap<>();
+  private final Map<PriorityClass, Lane> priorityLanes = new EnumMap<>(PriorityClass.class);
+
+  // Whether any lane reserves threads, drains are only counted per lane when one does
+  private final boolean reservesThreads;
+
+  // Drains submitted and not yet finished, across lanes
+  private final AtomicInteger scheduledDrains = new AtomicInteger();
+
+  // Drains within the reservation of a lane waiting for a thread, drains on lent threads yield
+  // while there are any
+  private final AtomicInteger reservedDrainsWaiting = new AtomicInteger();
+
+  // Time source of scheduling passes and drains
+  private final Clock clock;
 
   // The current working set of tables that we are working on. These should be in sync
   private final Set<TablePartitionKey> tableWorkingSet;
-  private final Queue<TablePartitionKey> tableWorkQueue;
+  private final Deque<TablePartitionKey> tableWorkQueue;
 
   private final long maxDurationToDrainMs;
   private final long maxRecordsToDrain;
@@ -35,12 +95,24 @@ public class DrainManager implements Runnable {
 
   private final boolean useWAL;
 
+  // Keeps partitions with failing channels from being rescheduled in a tight loop
+  private final PartitionCircuitBreaker circuitBreaker;
+
+  static final long DEFAULT_BACKOFF_BASE_MS = 1000;
+  static final long DEFAULT_BACKOFF_MAX_MS = 300000;
+
+  // Pause between scheduling passes
+  static final long PASS_INTERVAL_MS = 1000;
+
+  // Drain tasks waiting for a thread, beyond which the default executor rejects new ones
+  static final int EXECUTOR_QUEUE_CAPACITY = 10;
+
   enum Action {
     ADD_TO_QUEUE,
     REMOVE_FROM_QUEUE
   }
 
-  /** Default constructor */
+  /** Default constructor, without threads reserved for high priority partitions */
   public DrainManager(
       long ingestEngineEpochTs,
       BufferManager bufferManager,
@@ -49,19 +121,139 @@ public class DrainManager implements Runnable {
       long maxRecordsToDrain,
       int maxSecondsToWaitToDrain,
       boolean useWAL) {
+    this(
+        ingestEngineEpochTs,
+        bufferManager,
+        numThreads,
+        maxDurationToDrainMs,
+        maxRecordsToDrain,
+        maxSecondsToWaitToDrain,
+        useWAL,
+        new PartitionCircuitBreaker(DEFAULT_BACKOFF_BASE_MS, DEFAULT_BACKOFF_MAX_MS));
+  }
+
+  public DrainManager(
+      long ingestEngineEpochTs,
+      BufferManager bufferManager,
+      int numThreads,
+      long maxDurationToDrainMs,
+      long maxRecordsToDrain,
+      int maxSecondsToWaitToDrain,
+      boolean useWAL,
+      PartitionCircuitBreaker circuitBreaker) {
+    this(
+        ingestEngineEpochTs,
+        bufferManager,
+        numThreads,
+        maxDurationToDrainMs,
+        maxRecordsToDrain,
+        maxSecondsToWaitToDrain,
+        useWAL,
+        circuitBreaker,
+        0);
+  }
+
+  /**
+   * @param highPriorityDrainThreads drain threads reserved for the partitions of `high` priority
+   *     tables, lent to other partitions while those have nothing to drain
+   */
+  public DrainManager(
+      long ingestEngineEpochTs,
+      BufferManager bufferManager,
+      int numThreads,
+      long maxDurationToDrainMs,
+      long maxRecordsToDrain,
+      int maxSecondsToWaitToDrain,
+      boolean useWAL,
+      PartitionCircuitBreaker circuitBreaker,
+      int highPriorityDrainThreads) {
+    this(
+        ingestEngineEpochTs,
+        bufferManager,
+        numThreads,
+        maxDurationToDrainMs,
+        maxRecordsToDrain,
+        maxSecondsToWaitToDrain,
+        useWAL,
+        circuitBreaker,
+        highPriorityDrainThreads,
+        new ThreadPoolExecutor(
+            numThreads,
+            numThreads,
+            10,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(EXECUTOR_QUEUE_CAPACITY)),
+        Clock.SYSTEM);
+  }
+
+  /**
+   * Builds a manager that runs drains on the given executor and takes time from the given clock,
+   * used to run scheduling in virtual time
+   *
+   * @param numThreads the number of threads of the executor, shared out between isolation groups
+   */
+  public DrainManager(
+      long ingestEngineEpochTs,
+      BufferManager bufferManager,
+      int numThreads,
+      long maxDurationToDrainMs,
+      long maxRecordsToDrain,
+      int maxSecondsToWaitToDrain,
+      boolean useWAL,
+      PartitionCircuitBreaker circuitBreaker,
+      int highPriorityDrainThreads,
+      Executor executor,
+      Clock clock) {
     this.ingestEngineEpochTs = ingestEngineEpochTs;
     this.bufferManager = bufferManager;
-    executor =
-        new ThreadPoolExecutor(
-            numThreads, numThreads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(10));
-    executor.setRejectedExecutionHandler(
-        (r, exec) -> LOGGER.info("Rejected work queue draining task"));
+    this.executor = executor;
+    this.numThreads = numThreads;
+    this.clock = clock;
+    this.isolationGroups = IsolationGroups.getInstance();
     tableWorkingSet = Collections.newSetFromMap(new ConcurrentHashMap<>());
-    tableWorkQueue = new ConcurrentLinkedQueue<>();
+    tableWorkQueue = new ConcurrentLinkedDeque<>();
     this.maxDurationToDrainMs = maxDurationToDrainMs;
     this.maxRecordsToDrain = maxRecordsToDrain;
     this.maxSecondsToWaitToDrain = maxSecondsToWaitToDrain;
     this.useWAL = useWAL;
+    this.circuitBreaker = circuitBreaker;
+
+    Gauge.builder(PartitionMetrics.PREFIX + "drain.queue.size", tableWorkingSet, Set::size)
+        .description("Partitions scheduled or being drained")
+        .register(Metrics.globalRegistry);
+    Gauge.builder(PartitionMetrics.PREFIX + "drain.active", activeDrains, AtomicInteger::get)
+        .description("Drain tasks currently running")
+        .register(Metrics.globalRegistry);
+    Gauge.builder(
+            PartitionMetrics.PREFIX + "drain.partitions.tripped",
+            circuitBreaker,
+            PartitionCircuitBreaker::getTrippedCount)
+        .description("Partitions backing off after a channel failure")
+        .register(Metrics.globalRegistry);
+
+    int reservedThreads = 0;
+    for (IsolationGroup group : isolationGroups.getGroups()) {
+      reservedThreads += group.drainThreadsOrNone();
+      registerLane(group, new Lane(group.drainThreadsOrNone()));
+    }
+    registerLane(IsolationGroup.DEFAULT, new Lane(0));
+    for (PriorityClass priorityClass : PriorityClass.values()) {
+      int threads = priorityClass == PriorityClass.HIGH ? highPriorityDrainThreads : 0;
+      reservedThreads += threads;
+      Lane lane = new Lane(threads);
+      priorityLanes.put(priorityClass, lane);
+      Gauge.builder(PartitionMetrics.PREFIX + "priority.drains", lane.drains, AtomicInteger::get)
+          .description("Drains of a priority class running or waiting for a thread")
+          .tags("priority", priorityClass.getName())
+          .register(Metrics.globalRegistry);
+    }
+    this.reservesThreads = reservedThreads > 0;
+    if (reservedThreads > numThreads) {
+      LOGGER.warn(
+          "More drain threads are reserved than there are, not every reservation will be met. numThreads={} reservedThreads={}",
+          numThreads,
+          reservedThreads);
+    }
 
     LOGGER.info(
         "Started DrainManager. numThreads={} maxDurationToDrainMs={} maxRecordsToDrain={} maxSecondsToWaitToDrain={} useWAL={}",
@@ -72,6 +264,25 @@ public class DrainManager implements Runnable {
         useWAL);
   }
 
+  private void registerLane(IsolationGroup group, Lane lane) {
+    groupLanes.put(group, lane);
+    Gauge.builder(PartitionMetrics.PREFIX + "group.drains", lane.drains, AtomicInteger::get)
+        .description("Drains of an isolation group running or waiting for a thread")
+        .tags("group", group.name())
+        .register(Metrics.globalRegistry);
+  }
+
+  /** Returns the drains of a group running or waiting for a thread */
+  int getGroupDrains(IsolationGroup group) {
+    Lane lane = groupLanes.get(group);
+    return lane != null ? lane.drains.get() : 0;
+  }
+
+  /** Returns the drains of a priority class running or waiting for a thread */
+  int getPriorityDrains(PriorityClass priorityClass) {
+    return priorityLanes.get(priorityClass).drains.get();
+  }
+
   @VisibleForTesting
   public Set<TablePartitionKey> getTableWorkSet() {
     return tableWorkingSet;
@@ -82,6 +293,11 @@ public class DrainManager implements Runnable {
     return tableWorkQueue;
   }
 
+  @VisibleForTesting
+  PartitionCircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
   // This is hella hacky but coordinate add/remove from the work set via an action
   private synchronized void modifyTableWorkSet(TablePartitionKey tableKey, Action action) {
     if (action == Action.ADD_TO_QUEUE) {
@@ -109,7 +325,14 @@ public class DrainManager implements Runnable {
     }
   }
 
-  public void processWorKQueueItem(TablePartitionKey tableKey) {
+  /**
+   * Starts a drain of the partition, or drops it from the working set when it cannot be drained
+   * right now
+   *
+   * @return false when the executor has no room for the drain, the partition is then still in the
+   *     working set and should be retried on a later pass
+   */
+  public boolean processWorKQueueItem(TablePartitionKey tableKey) {
     final Buffer buffer =
         bufferManager.getBufferWithIndex(
             tableKey.getDatabase(),
@@ -118,27 +341,145 @@ public class DrainManager implements Runnable {
             tableKey.getPartitionIndex());
     if (buffer == null) {
       LOGGER.error("Attempting to drain a buffer that no longer exists");
-      return;
+      return true;
+    }
+    if (!circuitBreaker.tryAcquire(tableKey)) {
+      // Still backing off from an earlier failure
+      modifyTableWorkSet(tableKey, Action.REMOVE_FROM_QUEUE);
+      return true;
+    }
+    CompletableFuture<SnowflakeStreamingIngestChannel> channelOpen =
+        ChannelManager.getInstance().openChannelAsync(tableKey);
+    if (!channelOpen.isDone() || channelOpen.isCompletedExceptionally()) {
+      // Don't tie up a drain thread while the channel opens, pick the partition up on a later pass
+      LOGGER.debug(
+          "Channel not ready, skipping partition. db={} schema={} table={} partition={}",
+          tableKey.getDatabase(),
+          tableKey.getSchema(),
+          tableKey.getTable(),
+          tableKey.getPartitionIndex());
+      circuitBreaker.release(tableKey);
+      circuitBreaker.watchChannelOpen(tableKey, channelOpen);
+      modifyTableWorkSet(tableKey, Action.REMOVE_FROM_QUEUE);
+      return true;
     }
 
+    TableOverride override =
+        TableOverrides.getInstance()
+            .get(tableKey.getDatabase(), tableKey.getSchema(), tableKey.getTable());
     Drainer drainer =
         new Drainer(
             ingestEngineEpochTs,
             buffer,
-            maxDurationToDrainMs,
-            maxRecordsToDrain,
-            maxSecondsToWaitToDrain);
-    CompletableFuture.supplyAsync(drainer::drain, executor)
-        .thenAccept(
-            result -> {
-              String message =
-                  result == Drainer.TerminationReason.SUCCESS
-                      ? "Able to successfully drain buffer for db={} schema={} table={}"
-                      : "Unable to successfully drain buffer for db={} schema={} table={}";
-              LOGGER.info(
-                  message, tableKey.getDatabase(), tableKey.getSchema(), tableKey.getTable());
-              modifyTableWorkSet(tableKey, Action.REMOVE_FROM_QUEUE);
-            });
+            override.maxDurationToDrainMsOr(maxDurationToDrainMs),
+            override.latenessTierMaxRecordsToDrainOr(
+                tableKey.getLatenessTier(), maxRecordsToDrain),
+            maxSecondsToWaitToDrain,
+            clock);
+    List<Lane> lanes = lanesOf(tableKey);
+    // Drains beyond the reservations of their lanes run on lent threads, given back on demand
+    boolean reserved = reservesThreads && lanes.stream().anyMatch(Lane::hasReservedThreadFree);
+    if (reservesThreads && !reserved) {
+      drainer.setYieldCondition(() -> reservedDrainsWaiting.get() > 0);
+    }
+    CompletableFuture<Drainer.TerminationReason> drain;
+    try {
+      onDrainScheduled(lanes, 1);
+      if (reserved) {
+        reservedDrainsWaiting.incrementAndGet();
+      }
+      drain =
+          CompletableFuture.supplyAsync(
+              () -> {
+                if (reserved) {
+                  reservedDrainsWaiting.decrementAndGet();
+                }
+                try {
+                  return runDrain(drainer);
+                } finally {
+                  onDrainScheduled(lanes, -1);
+                }
+              },
+              executor);
+    } catch (RejectedExecutionException e) {
+      onDrainScheduled(lanes, -1);
+      if (reserved) {
+        reservedDrainsWaiting.decrementAndGet();
+      }
+      // Every drain thread is busy and enough drains are already waiting for one
+      LOGGER.debug(
+          "Drain executor full, retrying partition on the next pass. db={} schema={} table={} partition={}",
+          tableKey.getDatabase(),
+          tableKey.getSchema(),
+          tableKey.getTable(),
+          tableKey.getPartitionIndex());
+      circuitBreaker.release(tableKey);
+      return false;
+    }
+    drain.thenAccept(
+        result -> {
+          String message =
+              result == Drainer.TerminationReason.SUCCESS
+                  ? "Able to successfully drain buffer for db={} schema={} table={}"
+                  : "Unable to successfully drain buffer for db={} schema={} table={}";
+          LOGGER.info(
+              message, tableKey.getDatabase(), tableKey.getSchema(), tableKey.getTable());
+          switch (result) {
+            case SUCCESS -> circuitBreaker.onSuccess(tableKey);
+            case CHANNEL_NOT_READY -> circuitBreaker.release(tableKey);
+            default -> circuitBreaker.onFailure(tableKey);
+          }
+          modifyTableWorkSet(tableKey, Action.REMOVE_FROM_QUEUE);
+        });
+    return true;
+  }
+
+  /** Returns the lanes of a partition, the lane of its isolation group and of its class */
+  private List<Lane> lanesOf(TablePartitionKey tableKey) {
+    IsolationGroup group =
+        isolationGroups.groupOf(tableKey.getDatabase(), tableKey.getSchema(), tableKey.getTable());
+    return List.of(groupLanes.get(group), priorityLanes.get(getPriorityClass(tableKey)));
+  }
+
+  private void onDrainScheduled(List<Lane> lanes, int delta) {
+    if (!reservesThreads) {
+      return;
+    }
+    for (Lane lane : lanes) {
+      lane.drains.addAndGet(delta);
+    }
+    scheduledDrains.addAndGet(delta);
+  }
+
+  /**
+   * Returns whether a partition may take a drain thread. It always may while one of its lanes has
+   * fewer drains than reserved threads. Beyond them it only takes a thread that is idle and not
+   * owed to another lane that has partitions waiting and is below its reservation, so threads
+   * reserved by idle lanes are lent out. Drains on lent threads never wait in the executor queue,
+   * which only holds drains within a reservation, and they return as soon as one is waiting.
+   *
+   * @param waiting partitions left in the work queue of the current pass, per lane
+   */
+  private boolean hasDrainThreadFor(List<Lane> lanes, Map<Lane, Integer> waiting) {
+    if (!reservesThreads || lanes.stream().anyMatch(Lane::hasReservedThreadFree)) {
+      return true;
+    }
+    int owed = 0;
+    for (Map.Entry<Lane, Integer> other : waiting.entrySet()) {
+      if (!lanes.contains(other.getKey())) {
+        owed += other.getKey().owedThreads(other.getValue());
+      }
+    }
+    return numThreads - scheduledDrains.get() > owed;
+  }
+
+  private Drainer.TerminationReason runDrain(Drainer drainer) {
+    activeDrains.incrementAndGet();
+    try {
+      return drainer.drain();
+    } finally {
+      activeDrains.decrementAndGet();
+    }
   }
 
   /**
@@ -161,34 +502,109 @@ public class DrainManager implements Runnable {
   public void run() {
     LOGGER.info("DrainManager started");
     while (true) {
-      LOGGER.trace("Starting iteration of the DrainManager");
-      for (Map.Entry<TablePartitionKey, Buffer> entry :
-          this.bufferManager.getTableToBuffer().entrySet()) {
-        final TablePartitionKey tableKey = entry.getKey();
-        final Buffer buffer = entry.getValue();
-        if (buffer.hasOutstandingRows()) {
-          enqueueWorkItemIfNeeded(tableKey);
-        }
+      runPass();
+      try {
+        clock.sleep(PASS_INTERVAL_MS);
+      } catch (InterruptedException e) {
       }
+    }
+  }
 
-      while (tableWorkQueue.iterator().hasNext()) {
-        TablePartitionKey tablePartitionKey = tableWorkQueue.poll();
-        if (tablePartitionKey == null) {
-          LOGGER.error("Received a null tableKey");
+  /** A single scheduling pass, see {@link #run()} */
+  void runPass() {
+    LOGGER.trace("Starting iteration of the DrainManager");
+    for (Map.Entry<TablePartitionKey, Buffer> entry :
+        this.bufferManager.getTableToBuffer().entrySet()) {
+      final TablePartitionKey tableKey = entry.getKey();
+      final Buffer buffer = entry.getValue();
+      if (buffer.hasOutstandingRows() && !circuitBreaker.isTripped(tableKey)) {
+        enqueueWorkItemIfNeeded(tableKey);
+      }
+    }
+    sortWorkQueueByDrainPriority();
+
+    Map<Lane, Integer> waiting = new HashMap<>();
+    if (reservesThreads) {
+      for (TablePartitionKey tableKey : tableWorkQueue) {
+        for (Lane lane : lanesOf(tableKey)) {
+          waiting.merge(lane, 1, Integer::sum);
+        }
+      }
+    }
+    List<TablePartitionKey> deferred = new ArrayList<>();
+    while (tableWorkQueue.iterator().hasNext()) {
+      TablePartitionKey tablePartitionKey = tableWorkQueue.poll();
+      if (tablePartitionKey == null) {
+        LOGGER.error("Received a null tableKey");
+        continue;
+      }
+      if (reservesThreads) {
+        List<Lane> lanes = lanesOf(tablePartitionKey);
+        for (Lane lane : lanes) {
+          waiting.computeIfPresent(lane, (l, count) -> count > 1 ? count - 1 : null);
+        }
+        if (!hasDrainThreadFor(lanes, waiting)) {
+          // Its lanes used up their share, let the partitions of other lanes go ahead
+          deferred.add(tablePartitionKey);
           continue;
         }
-        processWorKQueueItem(tablePartitionKey);
       }
-
-      try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) {
+      if (!processWorKQueueItem(tablePartitionKey)) {
+        // Keep the partition at the head of the queue so it goes first once a thread frees up
+        tableWorkQueue.addFirst(tablePartitionKey);
+        break;
       }
     }
+    // Deferred partitions stay in the working set and keep their place for the next pass
+    for (int i = deferred.size() - 1; i >= 0; i--) {
+      tableWorkQueue.addFirst(deferred.get(i));
+    }
+  }
+
+  /**
+   * Orders the work queue by the priority class of its partitions, then by their drain priority,
+   * keeping the order of partitions of the same class and priority, so that the higher priority
+   * ones get drain threads first when there are more partitions to drain than threads
+   */
+  @VisibleForTesting
+  synchronized void sortWorkQueueByDrainPriority() {
+    List<TablePartitionKey> queued = new ArrayList<>(tableWorkQueue);
+    Comparator<TablePartitionKey> order =
+        Comparator.comparing(DrainManager::getPriorityClass)
+            .thenComparing(Comparator.comparingInt(DrainManager::getDrainPriority).reversed());
+    boolean sorted = true;
+    for (int i = 1; i < queued.size() && sorted; i++) {
+      sorted = order.compare(queued.get(i - 1), queued.get(i)) <= 0;
+    }
+    if (sorted) {
+      return;
+    }
+    queued.sort(order);
+    tableWorkQueue.clear();
+    tableWorkQueue.addAll(queued);
+  }
+
+  /** Returns the priority class of a partition, that of its table */
+  static PriorityClass getPriorityClass(TablePartitionKey tableKey) {
+    return TableOverrides.getInstance()
+        .get(tableKey.getDatabase(), tableKey.getSchema(), tableKey.getTable())
+        .priorityClassOrDefault();
+  }
+
+  /** Returns the drain priority of a partition, 0 unless it belongs to a prioritized tier */
+  static int getDrainPriority(TablePartitionKey tableKey) {
+    if (!tableKey.isLateArrivingPartition()) {
+      return 0;
+    }
+    return TableOverrides.getInstance()
+        .get(tableKey.getDatabase(), tableKey.getSchema(), tableKey.getTable())
+        .latenessTierDrainPriority(tableKey.getLatenessTier());
   }
 
   /** Shuts down the manager. */
   public void shutdown() {
-    executor.shutdown();
+    if (executor instanceof ExecutorService executorService) {
+      executorService.shutdown();
+    }
   }
 }
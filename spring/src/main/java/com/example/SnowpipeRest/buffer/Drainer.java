@@ -1,6 +1,10 @@
 package com.example.SnowpipeRest.buffer;
 
 import com.example.SnowpipeRest.snowflake.ChannelManager;
+import com.example.SnowpipeRest.snowflake.CommitWatcher;
+import com.example.SnowpipeRest.utils.Clock;
+import com.example.SnowpipeRest.utils.HotPathLog;
+import com.example.SnowpipeRest.utils.TablePartitionKey;
 import com.example.SnowpipeRest.utils.Utils;
 import net.snowflake.ingest.streaming.InsertValidationResponse;
 import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
@@ -11,15 +15,20 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 /** Responsible for draining a buffer and sending it to Snowflake */
 public class Drainer {
 
   static final Logger LOGGER = LoggerFactory.getLogger(Drainer.class);
 
+  private static final HotPathLog DRAIN_LOG = HotPathLog.create(LOGGER, "drains");
+
   enum TerminationReason {
     SUCCESS,
     CHANNEL_ERROR,
+    CHANNEL_NOT_READY,
     UNEXPECTED_ERROR
   }
 
@@ -34,6 +43,14 @@ public class Drainer {
 
   int maxSecondsToWaitToDrain;
 
+  private final Clock clock;
+
+  // Rows accepted by the channel during this drain
+  private long rowsSent;
+
+  // Checked along with the limits, the drain gives its thread back early once it holds
+  private volatile BooleanSupplier yieldCondition = () -> false;
+
   /**
    * Default constructor. Takes in two parameters that dictate when the method should be returned,
    * barring errors originating from a Channel instance. The thread will return based on whatever
@@ -52,33 +69,74 @@ public class Drainer {
       long maxDurationToDrainMs,
       long maxRecordsToDrain,
       int maxSecondsToWaitToDrain) {
+    this(
+        ingestEngineEpochTs,
+        buffer,
+        maxDurationToDrainMs,
+        maxRecordsToDrain,
+        maxSecondsToWaitToDrain,
+        Clock.SYSTEM);
+  }
+
+  /** Same as above, timing the drain and waiting for rows with the given clock */
+  Drainer(
+      final long ingestEngineEpochTs,
+      Buffer buffer,
+      long maxDurationToDrainMs,
+      long maxRecordsToDrain,
+      int maxSecondsToWaitToDrain,
+      Clock clock) {
     this.ingestEngineEpochTs = ingestEngineEpochTs;
     this.buffer = buffer;
     this.maxRecordsToDrain = maxRecordsToDrain;
     this.maxDurationToDrainMs = maxDurationToDrainMs;
     this.maxSecondsToWaitToDrain = maxSecondsToWaitToDrain;
+    this.clock = clock;
+  }
+
+  /**
+   * Sets a condition under which the drain returns before its limits, used to give back a thread
+   * that is needed elsewhere
+   */
+  void setYieldCondition(BooleanSupplier yieldCondition) {
+    this.yieldCondition = yieldCondition;
   }
 
   private boolean abortDueToLimits(long drainStartTimeMs, long recordsDrained) {
-    long now = System.currentTimeMillis();
+    if (yieldCondition.getAsBoolean()) {
+      if (HotPathLog.isVerbose()) {
+        LOGGER.info(
+            "Thread needed elsewhere, returning to the thread pool. drained={} db={} schema={} table={}",
+            recordsDrained,
+            buffer.getDatabase(),
+            buffer.getSchema(),
+            buffer.getTable());
+      }
+      return true;
+    }
+    long now = clock.currentTimeMillis();
     if (now - drainStartTimeMs > maxDurationToDrainMs) {
-      LOGGER.info(
-          "Hit the elapsed time, returning to the thread pool. now={} elapsedMs={} maxDurationToDrainMs={} db={} schema={} table={}",
-          now,
-          now - drainStartTimeMs,
-          maxDurationToDrainMs,
-          buffer.getDatabase(),
-          buffer.getSchema(),
-          buffer.getTable());
+      if (HotPathLog.isVerbose()) {
+        LOGGER.info(
+            "Hit the elapsed time, returning to the thread pool. now={} elapsedMs={} maxDurationToDrainMs={} db={} schema={} table={}",
+            now,
+            now - drainStartTimeMs,
+            maxDurationToDrainMs,
+            buffer.getDatabase(),
+            buffer.getSchema(),
+            buffer.getTable());
+      }
       return true;
     }
     if (recordsDrained >= maxRecordsToDrain) {
-      LOGGER.info(
-          "Hit the max records, returning to the thread pool.... max/drained={} db={} schema={} table={}",
-          maxRecordsToDrain,
-          buffer.getDatabase(),
-          buffer.getSchema(),
-          buffer.getTable());
+      if (HotPathLog.isVerbose()) {
+        LOGGER.info(
+            "Hit the max records, returning to the thread pool.... max/drained={} db={} schema={} table={}",
+            maxRecordsToDrain,
+            buffer.getDatabase(),
+            buffer.getSchema(),
+            buffer.getTable());
+      }
       return true;
     }
     return false;
@@ -86,18 +144,21 @@ public class Drainer {
 
   private void waitForMoreData() {
     try {
-      Thread.sleep(10);
+      clock.sleep(10);
     } catch (InterruptedException e) {
     }
   }
 
   private void logDrainExitCriteriaReached(Buffer buffer, long recordsDrained) {
-    LOGGER.info(
-        "Drain exit criteria reached. db={} schema={} table={} recordsDrained={}",
-        buffer.getDatabase(),
-        buffer.getSchema(),
-        buffer.getTable(),
-        recordsDrained);
+    DRAIN_LOG.tally(buffer.getLogKey()).record(recordsDrained);
+    if (HotPathLog.isVerbose()) {
+      LOGGER.info(
+          "Drain exit criteria reached. db={} schema={} table={} recordsDrained={}",
+          buffer.getDatabase(),
+          buffer.getSchema(),
+          buffer.getTable(),
+          recordsDrained);
+    }
   }
 
   private void logOutstandingDataError(Buffer buffer, SFException e) {
@@ -125,6 +186,73 @@ public class Drainer {
     }
   }
 
+  /**
+   * Subscribes to the commit of the last offset sent during this drain. This does not block the
+   * drain thread, the outcome is logged once the commit watcher sees the offset committed or the
+   * wait times out.
+   */
+  private void watchForCommit(
+      TablePartitionKey tableKey, long lastSentOffset, long lastSentTimeMs) {
+    CommitWatcher.getInstance()
+        .awaitCommit(tableKey, ingestEngineEpochTs, lastSentOffset)
+        .orTimeout(maxSecondsToWaitToDrain, TimeUnit.SECONDS)
+        .whenComplete(
+            (committedOffset, e) -> {
+              if (e != null) {
+                LOGGER.warn(
+                    "Sent offset not committed in time. db={} schema={} table={} partition={} lastSentOffset={} maxSecondsToWaitToDrain={} msg={}",
+                    buffer.getDatabase(),
+                    buffer.getSchema(),
+                    buffer.getTable(),
+                    buffer.getPartitionIndex(),
+                    lastSentOffset,
+                    maxSecondsToWaitToDrain,
+                    e.getMessage());
+              } else {
+                ChannelManager.getInstance()
+                    .recordCommitLatency(tableKey, clock.currentTimeMillis() - lastSentTimeMs);
+                LOGGER.debug(
+                    "Sent offset committed. db={} schema={} table={} partition={} lastSentOffset={} committedOffset={}",
+                    buffer.getDatabase(),
+                    buffer.getSchema(),
+                    buffer.getTable(),
+                    buffer.getPartitionIndex(),
+                    lastSentOffset,
+                    committedOffset);
+              }
+            });
+  }
+
+  /**
+   * Rewinds the buffer to the committed offset of a channel that we have not drained to before.
+   * Rows handed to a previous channel that never got committed are then replayed to this one.
+   */
+  private void rewindToCommittedOffset(SnowflakeStreamingIngestChannel channel) {
+    long committedOffset = -1;
+    String offsetToken = channel.getLatestCommittedOffsetToken();
+    if (offsetToken != null && !offsetToken.isEmpty()) {
+      try {
+        if (Utils.getEpochTsFromOffsetToken(offsetToken) == ingestEngineEpochTs) {
+          committedOffset = Utils.getBufferIndexFromOffsetToken(offsetToken);
+        }
+      } catch (RuntimeException e) {
+        // Not one of our tokens, nothing of this epoch was committed
+      }
+    }
+    long replayed = buffer.rewindTo(committedOffset);
+    if (replayed > 0) {
+      buffer.getMetrics().rowsReplayed.increment(replayed);
+      LOGGER.info(
+          "Replaying uncommitted rows to reopened channel. db={} schema={} table={} partition={} committedOffset={} replayedRows={}",
+          buffer.getDatabase(),
+          buffer.getSchema(),
+          buffer.getTable(),
+          buffer.getPartitionIndex(),
+          committedOffset,
+          replayed);
+    }
+  }
+
   private void logInvalidChannel(Buffer buffer, SnowflakeStreamingIngestChannel channel) {
     LOGGER.info(
         "Attempting to re-open the channel due to being an invalid channel db={} schema={} table={} channel={}",
@@ -136,47 +264,73 @@ public class Drainer {
 
   /** Santa Cruz hardcore represent! */
   public TerminationReason drain() {
-    LOGGER.info(
-        "Invoking drain for a buffer. db={} schema={} table={}",
-        buffer.getDatabase(),
-        buffer.getSchema(),
-        buffer.getTable());
+    DrainEvent event = new DrainEvent();
+    event.begin();
+    long drainStartNanos = clock.nanoTime();
+    TerminationReason reason = drainBuffer();
+    PartitionMetrics metrics = buffer.getMetrics();
+    metrics.drainDuration.record(clock.nanoTime() - drainStartNanos, TimeUnit.NANOSECONDS);
+    metrics.recordDrainResult(reason);
+    event.end();
+    if (event.shouldCommit()) {
+      event.setPartition(buffer);
+      event.rows = rowsSent;
+      event.terminationReason = reason.name();
+      event.commit();
+    }
+    return reason;
+  }
 
+  private TerminationReason drainBuffer() {
+    if (HotPathLog.isVerbose()) {
+      LOGGER.info(
+          "Invoking drain for a buffer. db={} schema={} table={}",
+          buffer.getDatabase(),
+          buffer.getSchema(),
+          buffer.getTable());
+    }
+
+    final TablePartitionKey tableKey =
+        new TablePartitionKey(
+            buffer.getDatabase(),
+            buffer.getSchema(),
+            buffer.getTable(),
+            buffer.getPartitionIndex());
+    ChannelManager channelManager = ChannelManager.getInstance();
+    SnowflakeStreamingIngestChannel channel = null;
     try {
-      long drainStartTimeMs = System.currentTimeMillis();
+      long drainStartTimeMs = clock.currentTimeMillis();
       long recordsDrained = 0;
-      SnowflakeStreamingIngestChannel channel =
-          ChannelManager.getInstance()
-              .getChannelForTable(
-                  buffer.getDatabase(),
-                  buffer.getSchema(),
-                  buffer.getTable(),
-                  buffer.getPartitionIndex());
-      if (!channel.isValid()) {
-        logInvalidChannel(buffer, channel);
-        ChannelManager.getInstance()
-            .invalidateChannel(
-                buffer.getDatabase(),
-                buffer.getSchema(),
-                buffer.getTable(),
-                buffer.getPartitionIndex());
-        channel =
-            ChannelManager.getInstance()
-                .getChannelForTable(
-                    buffer.getDatabase(),
-                    buffer.getSchema(),
-                    buffer.getTable(),
-                    buffer.getPartitionIndex());
+      // Held until the drain returns so that the channel is not moved to another Client under it
+      Optional<SnowflakeStreamingIngestChannel> readyChannel =
+          channelManager.acquireChannel(tableKey);
+      if (readyChannel.isPresent() && !readyChannel.get().isValid()) {
+        logInvalidChannel(buffer, readyChannel.get());
+        buffer.getMetrics().channelInvalidations.increment();
+        channelManager.invalidateChannel(tableKey, readyChannel.get());
+        readyChannel = channelManager.getChannelIfReady(tableKey);
+      }
+      if (readyChannel.isEmpty()) {
+        // The channel is being (re)opened in the background, come back once it is ready
+        return TerminationReason.CHANNEL_NOT_READY;
       }
-      String lastSentOffsetToken = null;
+      channel = readyChannel.get();
+      if (channel != buffer.getLastDrainedChannel()) {
+        rewindToCommittedOffset(channel);
+        buffer.setLastDrainedChannel(channel);
+      }
+      long lastSentOffset = -1;
+      long lastSentTimeMs = 0;
+      long bytesSent = 0;
 
       while (true) {
-        if (abortDueToLimits(drainStartTimeMs, recordsDrained)) {
+        if (abortDueToLimits(drainStartTimeMs, recordsDrained)
+            || channelManager.isMoveRequested(tableKey)) {
           logDrainExitCriteriaReached(buffer, recordsDrained);
-          // Utils.DrainReason reason =
-          //    Utils.waitForChannelToDrain(
-          //        maxSecondsToWaitToDrain, channel, ingestEngineEpochTs, lastSentOffsetToken);
-          // LOGGER.info("Exiting drain loop drainReason={}", reason.name());
+          channelManager.recordBytes(tableKey, bytesSent);
+          if (lastSentOffset >= 0) {
+            watchForCommit(tableKey, lastSentOffset, lastSentTimeMs);
+          }
           return TerminationReason.SUCCESS;
         }
 
@@ -192,8 +346,16 @@ public class Drainer {
         Map<String, Object> rowData = row.get().getSecond();
 
         InsertValidationResponse response;
+        long insertStartNanos = clock.nanoTime();
         try {
           response = channel.insertRow(rowData, offsetToken);
+          buffer
+              .getMetrics()
+              .insertLatency
+              .record(clock.nanoTime() - insertStartNanos, TimeUnit.NANOSECONDS);
+          buffer.getMetrics().rowsDrained.increment();
+          rowsSent++;
+          buffer.recordRowSent(row.get().getFirst(), System.nanoTime());
         } catch (SFException e) {
           // This indicates that the channel has been closed or is now invalid. So we have to reopen
           // it and go from there. We do this by essentially removing it from the map and re-opening
@@ -201,16 +363,14 @@ public class Drainer {
           // on a per-table basis as managed in `DrainManager`, otherwise there may be concurrency
           // issues wherein someone attempts to use a channel that is being removed.
           logOutstandingDataError(buffer, e);
-          ChannelManager.getInstance()
-              .invalidateChannel(
-                  buffer.getDatabase(),
-                  buffer.getSchema(),
-                  buffer.getTable(),
-                  buffer.getPartitionIndex());
+          buffer.getMetrics().channelInvalidations.increment();
+          channelManager.invalidateChannel(tableKey, channel);
           return TerminationReason.CHANNEL_ERROR;
         }
 
-        lastSentOffsetToken = offsetToken;
+        lastSentOffset = row.get().getFirst();
+        lastSentTimeMs = clock.currentTimeMillis();
+        bytesSent += Utils.estimateRowSizeInBytes(rowData);
 
         if (response.hasErrors()) {
           logResponseErrors(response);
@@ -219,12 +379,18 @@ public class Drainer {
 
     } catch (Exception e) {
       LOGGER.error("Unexpected error. Invalidating channel as a get out of jail free card", e);
-      ChannelManager.getInstance()
-          .invalidateChannel(
-              buffer.getDatabase(),
-              buffer.getSchema(),
-              buffer.getTable(),
-              buffer.getPartitionIndex());
+      buffer.getMetrics().channelInvalidations.increment();
+      if (channel != null) {
+        channelManager.invalidateChannel(tableKey, channel);
+      } else {
+        channelManager.invalidateChannel(
+            buffer.getDatabase(),
+            buffer.getSchema(),
+            buffer.getTable(),
+            buffer.getPartitionIndex());
+      }
+    } finally {
+      channelManager.releaseChannel(tableKey);
     }
     return TerminationReason.UNEXPECTED_ERROR;
   }
@@ -0,0 +1,23 @@
+package com.example.SnowpipeRest.buffer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** JFR event covering the enqueue of a request body into the buffer of a partition */
+@Name("com.example.SnowpipeRest.Enqueue")
+@Label("Enqueue")
+@Description("Rows of a request appended to the buffer of a partition")
+@Category({"Snowpipe REST", "Buffer"})
+class EnqueueEvent extends PartitionEvent {
+
+  @Label("Rows Enqueued")
+  int rowsEnqueued;
+
+  @Label("Rows Rejected")
+  int rowsRejected;
+
+  @Label("Write Ahead Log")
+  boolean wal;
+}
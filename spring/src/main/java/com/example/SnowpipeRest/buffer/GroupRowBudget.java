@@ -0,0 +1,88 @@
+package com.example.SnowpipeRest.buffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rows that the in memory buffers of an isolation group hold together, counted from when a row is
+ * enqueued until it is committed, or dropped from a full retained window. A group is always
+ * admitted rows under its own budget. Over it, the group borrows rows while the groups sharing its
+ * {@link Pool} hold fewer rows than their budgets add up to, and is rejected once there is nothing
+ * left to borrow.
+ *
+ * <p>A group taking back rows it lent is admitted right away rather than waiting for the borrower
+ * to drain, so the rows held may exceed the sum of the budgets by what was lent until the borrowed
+ * rows are committed. The checks are not atomic across buffers: concurrent requests may overshoot a
+ * budget by a row each.
+ */
+public class GroupRowBudget {
+
+  /** Budgets that lend each other their unused rows */
+  public static final class Pool {
+    private final AtomicLong usedRows = new AtomicLong();
+    private volatile long limitRows;
+
+    /** Returns the rows held by every group of the pool */
+    public long getUsedRows() {
+      return usedRows.get();
+    }
+  }
+
+  private final String group;
+  private final long limitRows;
+  private final Pool pool;
+  private final AtomicLong usedRows = new AtomicLong();
+
+  /**
+   * @param group name of the isolation group
+   * @param limitRows rows guaranteed to the group
+   * @param pool budgets that the group lends to and borrows from
+   */
+  public GroupRowBudget(String group, long limitRows, Pool pool) {
+    this.group = group;
+    this.limitRows = limitRows;
+    this.pool = pool;
+    synchronized (pool) {
+      pool.limitRows += limitRows;
+    }
+  }
+
+  /**
+   * Takes a row from the budget, borrowing it if the group is over its budget
+   *
+   * @return false if the group is over its budget and no other group has rows to lend
+   */
+  boolean tryAcquire() {
+    if (usedRows.get() >= limitRows && pool.usedRows.get() >= pool.limitRows) {
+      return false;
+    }
+    usedRows.incrementAndGet();
+    pool.usedRows.incrementAndGet();
+    return true;
+  }
+
+  /** Gives back rows that were committed */
+  void release(long rows) {
+    if (rows > 0) {
+      usedRows.addAndGet(-rows);
+      pool.usedRows.addAndGet(-rows);
+    }
+  }
+
+  public String getGroup() {
+    return group;
+  }
+
+  public long getLimitRows() {
+    return limitRows;
+  }
+
+  /** Returns the rows held by the group */
+  public long getUsedRows() {
+    return usedRows.get();
+  }
+
+  /** Returns the rows held beyond the group's budget, borrowed from other groups */
+  public long getBorrowedRows() {
+    return Math.max(0, usedRows.get() - limitRows);
+  }
+}
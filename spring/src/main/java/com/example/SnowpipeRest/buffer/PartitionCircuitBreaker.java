@@ -0,0 +1,205 @@
+package com.example.SnowpipeRest.buffer;
+
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+/**
+ * Per partition circuit breaker guarding channel (re)opens. A partition whose channel fails is
+ * tripped and skipped by the drain scheduler for a jittered, exponentially growing backoff. Once the
+ * backoff elapses a single probe drain is let through: if it succeeds the breaker closes, if it
+ * fails the partition is tripped again with a longer backoff. This keeps a bad table or an auth
+ * problem from turning into a tight loop of `openChannel` calls on every drain thread.
+ */
+public class PartitionCircuitBreaker {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(PartitionCircuitBreaker.class);
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  /** Breaker state of a single partition. Partitions without state are closed. */
+  static class PartitionState {
+    State state = State.CLOSED;
+    int consecutiveFailures;
+    long retryAtMs;
+    boolean probeInFlight;
+    // The channel open whose outcome we are waiting on, so that we only subscribe to it once
+    CompletableFuture<?> watchedOpen;
+  }
+
+  private final long baseBackoffMs;
+  private final long maxBackoffMs;
+  private final LongSupplier clock;
+  private final ConcurrentHashMap<TablePartitionKey, PartitionState> partitions;
+
+  /**
+   * @param baseBackoffMs backoff after the first failure, in MS
+   * @param maxBackoffMs upper bound of the backoff, in MS
+   */
+  public PartitionCircuitBreaker(long baseBackoffMs, long maxBackoffMs) {
+    this(baseBackoffMs, maxBackoffMs, System::currentTimeMillis);
+  }
+
+  PartitionCircuitBreaker(long baseBackoffMs, long maxBackoffMs, LongSupplier clock) {
+    this.baseBackoffMs = baseBackoffMs;
+    this.maxBackoffMs = maxBackoffMs;
+    this.clock = clock;
+    this.partitions = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Whether the partition should be left alone by the scheduler, either because it is backing off
+   * or because its probe is still in flight.
+   */
+  public boolean isTripped(TablePartitionKey tableKey) {
+    PartitionState state = partitions.get(tableKey);
+    if (state == null) {
+      return false;
+    }
+    synchronized (state) {
+      return switch (state.state) {
+        case CLOSED -> false;
+        case OPEN -> clock.getAsLong() < state.retryAtMs;
+        case HALF_OPEN -> state.probeInFlight;
+      };
+    }
+  }
+
+  /**
+   * Attempts to start work on a partition. Once the backoff of a tripped partition has elapsed this
+   * lets through a single probe, further attempts are rejected until the probe is resolved.
+   *
+   * @return whether the caller may drain the partition
+   */
+  public boolean tryAcquire(TablePartitionKey tableKey) {
+    PartitionState state = partitions.get(tableKey);
+    if (state == null) {
+      return true;
+    }
+    synchronized (state) {
+      switch (state.state) {
+        case CLOSED:
+          return true;
+        case OPEN:
+          if (clock.getAsLong() < state.retryAtMs) {
+            return false;
+          }
+          state.state = State.HALF_OPEN;
+          state.probeInFlight = true;
+          LOGGER.info(
+              "Probing tripped partition. db={} schema={} table={} partition={} consecutiveFailures={}",
+              tableKey.getDatabase(),
+              tableKey.getSchema(),
+              tableKey.getTable(),
+              tableKey.getPartitionIndex(),
+              state.consecutiveFailures);
+          return true;
+        case HALF_OPEN:
+        default:
+          if (state.probeInFlight) {
+            return false;
+          }
+          state.probeInFlight = true;
+          return true;
+      }
+    }
+  }
+
+  /** Closes the breaker of a partition after a successful drain */
+  public void onSuccess(TablePartitionKey tableKey) {
+    PartitionState state = partitions.remove(tableKey);
+    if (state != null) {
+      LOGGER.info(
+          "Partition recovered, closing circuit breaker. db={} schema={} table={} partition={}",
+          tableKey.getDatabase(),
+          tableKey.getSchema(),
+          tableKey.getTable(),
+          tableKey.getPartitionIndex());
+    }
+  }
+
+  /** Trips the breaker of a partition, backing off exponentially on consecutive failures */
+  public void onFailure(TablePartitionKey tableKey) {
+    PartitionState state = partitions.computeIfAbsent(tableKey, k -> new PartitionState());
+    synchronized (state) {
+      state.consecutiveFailures++;
+      long backoffMs = getBackoffMs(state.consecutiveFailures);
+      state.state = State.OPEN;
+      state.probeInFlight = false;
+      state.retryAtMs = clock.getAsLong() + backoffMs;
+      LOGGER.warn(
+          "Tripped circuit breaker for partition. db={} schema={} table={} partition={} consecutiveFailures={} backoffMs={}",
+          tableKey.getDatabase(),
+          tableKey.getSchema(),
+          tableKey.getTable(),
+          tableKey.getPartitionIndex(),
+          state.consecutiveFailures,
+          backoffMs);
+    }
+  }
+
+  /**
+   * Releases a probe that could not tell whether the partition is healthy, for example because its
+   * channel was still opening. The next attempt is let through as a new probe.
+   */
+  public void release(TablePartitionKey tableKey) {
+    PartitionState state = partitions.get(tableKey);
+    if (state != null) {
+      synchronized (state) {
+        state.probeInFlight = false;
+      }
+    }
+  }
+
+  /**
+   * Trips the breaker if a channel open for the partition fails. Subscribing to the same open more
+   * than once has no effect.
+   */
+  public void watchChannelOpen(TablePartitionKey tableKey, CompletableFuture<?> channelOpen) {
+    PartitionState state = partitions.computeIfAbsent(tableKey, k -> new PartitionState());
+    synchronized (state) {
+      if (state.watchedOpen == channelOpen) {
+        return;
+      }
+      state.watchedOpen = channelOpen;
+    }
+    channelOpen.whenComplete(
+        (channel, e) -> {
+          if (e != null) {
+            onFailure(tableKey);
+          }
+        });
+  }
+
+  /** Returns the number of partitions that are currently tripped or probing */
+  public int getTrippedCount() {
+    int tripped = 0;
+    for (PartitionState state : partitions.values()) {
+      synchronized (state) {
+        if (state.state != State.CLOSED) {
+          tripped++;
+        }
+      }
+    }
+    return tripped;
+  }
+
+  /** Full backoff for the nth consecutive failure with up to half of it shaved off as jitter */
+  long getBackoffMs(int consecutiveFailures) {
+    long backoffMs = baseBackoffMs << Math.min(consecutiveFailures - 1, 30);
+    if (backoffMs <= 0 || backoffMs > maxBackoffMs) {
+      backoffMs = maxBackoffMs;
+    }
+    long half = backoffMs / 2;
+    return half + ThreadLocalRandom.current().nextLong(half + 1);
+  }
+}
@@ -0,0 +1,31 @@
+package com.example.SnowpipeRest.buffer;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Base of the JFR events emitted per partition, so that recordings can be filtered down to the
+ * table and partition that a GC pause, lock or I/O stall lined up with. Fields are only set once
+ * {@link #shouldCommit()} returns true, the event costs close to nothing when not recording.
+ */
+abstract class PartitionEvent extends Event {
+
+  @Label("Database")
+  String database;
+
+  @Label("Schema")
+  String schema;
+
+  @Label("Table")
+  String table;
+
+  @Label("Partition")
+  long partition;
+
+  void setPartition(Buffer buffer) {
+    this.database = buffer.getDatabase();
+    this.schema = buffer.getSchema();
+    this.table = buffer.getTable();
+    this.partition = buffer.getPartitionIndex();
+  }
+}
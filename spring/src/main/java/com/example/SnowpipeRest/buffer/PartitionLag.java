@@ -0,0 +1,23 @@
+package com.example.SnowpipeRest.buffer;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Offsets of a partition at a point in time. Offsets are -1 until the first row is written, sent or
+ * committed respectively.
+ *
+ * @param unsentRows rows written but not handed to a channel yet
+ * @param uncommittedRows rows handed to a channel but not known to be committed yet
+ * @param oldestUncommittedAgeMs how long the oldest uncommitted row has been buffered
+ */
+public record PartitionLag(
+    @JsonProperty("database") String database,
+    @JsonProperty("schema") String schema,
+    @JsonProperty("table") String table,
+    @JsonProperty("partition") long partition,
+    @JsonProperty("written_offset") long writtenOffset,
+    @JsonProperty("sent_offset") long sentOffset,
+    @JsonProperty("committed_offset") long committedOffset,
+    @JsonProperty("unsent_rows") long unsentRows,
+    @JsonProperty("uncommitted_rows") long uncommittedRows,
+    @JsonProperty("oldest_uncommitted_age_ms") long oldestUncommittedAgeMs) {}
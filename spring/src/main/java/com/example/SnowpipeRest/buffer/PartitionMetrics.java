@@ -0,0 +1,107 @@
+package com.example.SnowpipeRest.buffer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters of a single partition, tagged by database, schema, table and partition. All
+ * meters are registered up front when the buffer is created so that recording from the enqueue and
+ * drain paths does not allocate.
+ */
+class PartitionMetrics {
+
+  static final String PREFIX = "snowpipe.rest.";
+
+  final Counter rowsEnqueued;
+  final Counter rowsRejected;
+  final Counter rowsDrained;
+  final Counter rowsReplayed;
+  final Counter retainedRowsDropped;
+  final Counter channelInvalidations;
+  final Timer insertLatency;
+  final Timer drainDuration;
+  private final EnumMap<Drainer.TerminationReason, Counter> drainResults;
+
+  PartitionMetrics(Buffer buffer, MeterRegistry registry) {
+    Tags tags =
+        Tags.of(
+            "database", buffer.getDatabase(),
+            "schema", buffer.getSchema(),
+            "table", buffer.getTable(),
+            "partition", Long.toString(buffer.getPartitionIndex()));
+    Gauge.builder(PREFIX + "buffer.rows", buffer, Buffer::getQueuedRowCount)
+        .description("Rows waiting to be sent to a channel")
+        .tags(tags)
+        .register(registry);
+    Gauge.builder(PREFIX + "buffer.retained.rows", buffer, Buffer::getRetainedRowCount)
+        .description("Rows sent to a channel but not yet known to be committed")
+        .tags(tags)
+        .register(registry);
+    Gauge.builder(PREFIX + "offset.written", buffer, Buffer::getLastWrittenOffset)
+        .description("Last offset written to the buffer")
+        .tags(tags)
+        .register(registry);
+    Gauge.builder(PREFIX + "offset.sent", buffer, Buffer::getLastSentOffset)
+        .description("Highest offset handed to a channel")
+        .tags(tags)
+        .register(registry);
+    Gauge.builder(PREFIX + "offset.committed", buffer, Buffer::getCommittedOffset)
+        .description("Highest offset known to be committed")
+        .tags(tags)
+        .register(registry);
+    Gauge.builder(
+            PREFIX + "lag.unsent",
+            buffer,
+            b -> Math.max(0, b.getLastWrittenOffset() - b.getLastSentOffset()))
+        .description("Rows written but not handed to a channel yet")
+        .tags(tags)
+        .register(registry);
+    Gauge.builder(
+            PREFIX + "lag.uncommitted",
+            buffer,
+            b -> Math.max(0, b.getLastSentOffset() - b.getCommittedOffset()))
+        .description("Rows handed to a channel but not known to be committed yet")
+        .tags(tags)
+        .register(registry);
+    TimeGauge.builder(
+            PREFIX + "lag.oldest.uncommitted.age",
+            buffer,
+            TimeUnit.MILLISECONDS,
+            Buffer::getOldestUncommittedAgeMs)
+        .description("How long the oldest uncommitted row has been buffered")
+        .tags(tags)
+        .register(registry);
+    rowsEnqueued =
+        Counter.builder(PREFIX + "buffer.rows.enqueued").tags(tags).register(registry);
+    rowsRejected =
+        Counter.builder(PREFIX + "buffer.rows.rejected").tags(tags).register(registry);
+    rowsDrained = Counter.builder(PREFIX + "drain.rows").tags(tags).register(registry);
+    rowsReplayed = Counter.builder(PREFIX + "drain.rows.replayed").tags(tags).register(registry);
+    retainedRowsDropped =
+        Counter.builder(PREFIX + "buffer.retained.rows.dropped").tags(tags).register(registry);
+    channelInvalidations =
+        Counter.builder(PREFIX + "channel.invalidations").tags(tags).register(registry);
+    insertLatency = Timer.builder(PREFIX + "drain.insert").tags(tags).register(registry);
+    drainDuration = Timer.builder(PREFIX + "drain.duration").tags(tags).register(registry);
+    drainResults = new EnumMap<>(Drainer.TerminationReason.class);
+    for (Drainer.TerminationReason reason : Drainer.TerminationReason.values()) {
+      drainResults.put(
+          reason,
+          Counter.builder(PREFIX + "drain.results")
+              .tags(tags)
+              .tag("result", reason.name())
+              .register(registry));
+    }
+  }
+
+  void recordDrainResult(Drainer.TerminationReason reason) {
+    drainResults.get(reason).increment();
+  }
+}
@@ -4,11 +4,24 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+import com.google.common.annotations.VisibleForTesting;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import org.rocksdb.Options;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,14 +32,65 @@ public class RocksDBManager {
   private static final String rocksDbDir = "rocks-db";
   private static final String walPath = "rocks-wal";
 
+  /**
+   * Prefix of keys that hold metadata rather than rows. '~' sorts after the characters of table
+   * names, so metadata is never caught by the range deletes of {@link #purge(String)}
+   */
+  public static final String METADATA_PREFIX = "~";
+
   RocksDB db;
-  private File dbDir;
+  private final File dbDir;
+  private final String walDir;
+
+  private final Timer writeLatency;
+  private final Timer readLatency;
+  private final Counter writeFailures;
 
   public RocksDBManager() {
+    this(new File("/tmp/snowpiperest/", rocksDbDir), walPath);
+  }
+
+  /** Opens the database and its write ahead log in a directory of their own */
+  @VisibleForTesting
+  public RocksDBManager(Path directory) {
+    this(directory.resolve(rocksDbDir).toFile(), directory.resolve(walPath).toString());
+  }
+
+  private RocksDBManager(File dbDir, String walDir) {
+    this.dbDir = dbDir;
+    this.walDir = walDir;
     initialize();
+    writeLatency =
+        Timer.builder(PartitionMetrics.PREFIX + "wal.write").register(Metrics.globalRegistry);
+    readLatency =
+        Timer.builder(PartitionMetrics.PREFIX + "wal.read").register(Metrics.globalRegistry);
+    writeFailures =
+        Counter.builder(PartitionMetrics.PREFIX + "wal.write.failures")
+            .register(Metrics.globalRegistry);
+    Gauge.builder(
+            PartitionMetrics.PREFIX + "wal.size.bytes",
+            this,
+            m -> m.getLongProperty("rocksdb.estimate-live-data-size")
+                + m.getLongProperty("rocksdb.cur-size-all-mem-tables"))
+        .description("Estimated size of the write ahead log")
+        .register(Metrics.globalRegistry);
+    Gauge.builder(
+            PartitionMetrics.PREFIX + "wal.keys",
+            this,
+            m -> m.getLongProperty("rocksdb.estimate-num-keys"))
+        .description("Estimated number of rows in the write ahead log")
+        .register(Metrics.globalRegistry);
   }
 
-  void tearDown() {
+  private long getLongProperty(String property) {
+    try {
+      return db.getLongProperty(property);
+    } catch (RocksDBException e) {
+      return 0;
+    }
+  }
+
+  public void tearDown() {
     db.close();
   }
 
@@ -37,17 +101,10 @@ public class RocksDBManager {
     final Options options =
         new Options()
             .setCreateIfMissing(true)
-            .setWalDir(walPath)
+            .setWalDir(walDir)
             .setUseFsync(true)
             .setWalSizeLimitMB(walSizeMaxMb)
             .setTtl(ttlInSeconds);
-    try {
-      dbDir = new File("/tmp/snowpiperest/", rocksDbDir);
-    } catch (NullPointerException e) {
-      LOGGER.error("Unable to create file to RocksDB Dir");
-      LOGGER.error(e.getMessage());
-      return;
-    }
     try {
       Files.createDirectories(dbDir.getParentFile().toPath());
       Files.createDirectories(dbDir.getAbsoluteFile().toPath());
@@ -100,11 +157,29 @@ public class RocksDBManager {
         LOGGER.error("Empty byte array ");
         return false;
       }
-      db.put(keyBytes, bytes);
+      WalEvent event = new WalEvent();
+      event.begin();
+      long startNanos = System.nanoTime();
+      boolean written = false;
+      try {
+        db.put(keyBytes, bytes);
+        written = true;
+      } finally {
+        event.end();
+        if (event.shouldCommit()) {
+          event.operation = "write";
+          event.setKey(key);
+          event.bytes = bytes.length;
+          event.success = written;
+          event.commit();
+        }
+      }
+      writeLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
       return true;
     } catch (RocksDBException e) {
       LOGGER.error("Unable to write to RocksDB", e);
     }
+    writeFailures.increment();
     return false;
   }
 
@@ -119,8 +194,13 @@ public class RocksDBManager {
       LOGGER.error("Key is null or empty");
       return Optional.empty();
     }
+    WalEvent event = new WalEvent();
+    event.begin();
+    byte[] persistedVal = null;
     try {
-      byte[] persistedVal = db.get(key.getBytes(StandardCharsets.UTF_8));
+      long startNanos = System.nanoTime();
+      persistedVal = db.get(key.getBytes(StandardCharsets.UTF_8));
+      readLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
       if (persistedVal == null || persistedVal.length == 0) {
         return Optional.empty();
       }
@@ -128,6 +208,75 @@ public class RocksDBManager {
     } catch (RocksDBException e) {
       LOGGER.error("Unable to read from RocksDB. key={}", key, e);
       return Optional.empty();
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.operation = "read";
+        event.setKey(key);
+        event.bytes = persistedVal == null ? 0 : persistedVal.length;
+        event.success = persistedVal != null && persistedVal.length > 0;
+        event.commit();
+      }
+    }
+  }
+
+  /** Deletes a key from the database, see {@link #writeToDB(String, String)} */
+  public void deleteFromDB(String key) {
+    try {
+      db.delete(key.getBytes(StandardCharsets.UTF_8));
+    } catch (RocksDBException e) {
+      LOGGER.error("Unable to delete from RocksDB. key={}", key, e);
+    }
+  }
+
+  /** Reads every key that starts with a prefix, in key order */
+  public Map<String, String> readPrefix(String prefix) {
+    Map<String, String> values = new LinkedHashMap<>();
+    byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+    try (RocksIterator iterator = db.newIterator()) {
+      for (iterator.seek(prefixBytes); iterator.isValid(); iterator.next()) {
+        String key = new String(iterator.key(), StandardCharsets.UTF_8);
+        if (!key.startsWith(prefix)) {
+          break;
+        }
+        values.put(key, new String(iterator.value(), StandardCharsets.UTF_8));
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Returns the distinct partitions that have rows persisted. Keys take the form of
+   * `database.schema.table.partition.offset` so once a partition is found we seek past all of its
+   * offsets rather than visiting every row.
+   */
+  public Set<TablePartitionKey> getPersistedPartitions() {
+    Set<TablePartitionKey> partitions = new HashSet<>();
+    try (RocksIterator iterator = db.newIterator()) {
+      iterator.seekToFirst();
+      while (iterator.isValid()) {
+        String key = new String(iterator.key(), StandardCharsets.UTF_8);
+        if (key.startsWith(METADATA_PREFIX)) {
+          // Sorts after every row, nothing but metadata is left
+          break;
+        }
+        String[] parts = key.split("\\.");
+        if (parts.length != 5) {
+          iterator.next();
+          continue;
+        }
+        try {
+          partitions.add(
+              new TablePartitionKey(parts[0], parts[1], parts[2], Long.parseLong(parts[3])));
+        } catch (NumberFormatException e) {
+          iterator.next();
+          continue;
+        }
+        // '/' sorts right after '.', so this lands on the first key of the next partition
+        String partitionPrefix = key.substring(0, key.lastIndexOf('.'));
+        iterator.seek((partitionPrefix + "/").getBytes(StandardCharsets.UTF_8));
+      }
     }
+    return partitions;
   }
 }
@@ -0,0 +1,202 @@
+package com.example.SnowpipeRest.buffer;
+
+import com.example.SnowpipeRest.utils.Clock;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the values of a key column that were enqueued for a table within a sliding window, so
+ * that rows re-emitted by their source are dropped at enqueue time rather than ingested again. It
+ * is shared by every partition of the table.
+ *
+ * <p>The most recent keys, up to a maximum, are kept exactly. Older keys still in the window spill
+ * into Bloom filters, one per generation of a quarter of the window or of as many keys as a filter
+ * is sized for, whichever fills first, that are dropped whole once every key in them is out of the
+ * window. Memory is bounded by the exact keys and at most {@link #MAX_GENERATIONS} filters, at the
+ * cost of a small false positive rate once keys spill: a new key may then be taken for a duplicate.
+ * While every key of the window fits the exact tier no filter is consulted. When more keys arrive
+ * in a window than the filters hold the oldest filter is dropped early, shortening the window
+ * rather than raising the false positive rate.
+ */
+public class RowDeduplicator {
+
+  // Generations per window, keys are remembered for up to 1 / GENERATIONS longer than the window
+  static final int GENERATIONS = 4;
+
+  // Filters kept at most, whatever their age
+  static final int MAX_GENERATIONS = 32;
+
+  // False positive rate of each filter when full
+  static final double FALSE_POSITIVE_RATE = 1e-6;
+
+  // Keys that a filter is sized for at least, much smaller filters miss their false positive rate
+  static final int MIN_FILTER_KEYS = 10_000;
+
+  // Rough heap cost of an exact key: its entry in the map, the string and the boxed time
+  static final long BYTES_PER_EXACT_KEY = 120;
+
+  private static final class Generation {
+    final long startMs;
+    final BloomFilter<CharSequence> filter;
+    int keys;
+
+    Generation(long startMs, BloomFilter<CharSequence> filter) {
+      this.startMs = startMs;
+      this.filter = filter;
+    }
+  }
+
+  private final String column;
+  private final long windowMs;
+  private final int maxKeys;
+  private final int filterKeys;
+  private final Clock clock;
+  private final long generationMs;
+  private final long generationBytes;
+
+  // Key to when it was first enqueued, in that order
+  private final LinkedHashMap<String, Long> recentKeys = new LinkedHashMap<>();
+
+  // Newest first
+  private final Deque<Generation> generations = new ArrayDeque<>();
+
+  private final Counter checks;
+  private final Counter hits;
+
+  /**
+   * @param column the key column, rows without a value for it are never duplicates
+   * @param windowMs how long a key is remembered from when it is first enqueued
+   * @param maxKeys keys kept exactly, also the keys each filter holds unless fewer than {@link
+   *     #MIN_FILTER_KEYS}
+   */
+  public RowDeduplicator(
+      String database,
+      String schema,
+      String table,
+      String column,
+      long windowMs,
+      int maxKeys,
+      Clock clock) {
+    this.column = column;
+    this.windowMs = windowMs;
+    this.maxKeys = maxKeys;
+    this.clock = clock;
+    this.filterKeys = Math.max(maxKeys, MIN_FILTER_KEYS);
+    this.generationMs = Math.max(1, windowMs / GENERATIONS);
+    this.generationBytes =
+        (long) (-filterKeys * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2))) / 8;
+    Tags tags = Tags.of("database", database, "schema", schema, "table", table);
+    this.checks =
+        Counter.builder(PartitionMetrics.PREFIX + "dedup.checks")
+            .description("Rows checked for a duplicate key")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+    this.hits =
+        Counter.builder(PartitionMetrics.PREFIX + "dedup.hits")
+            .description("Rows dropped as duplicates")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+  }
+
+  /** Returns whether this deduplicates on the same terms, so that it can be kept on a reload */
+  boolean hasSettings(String column, long windowMs, int maxKeys) {
+    return this.column.equals(column) && this.windowMs == windowMs && this.maxKeys == maxKeys;
+  }
+
+  /** Returns the key of a row, null if it has none */
+  String keyOf(Map<String, Object> row) {
+    Object value = row.get(column);
+    return value == null ? null : value.toString();
+  }
+
+  /**
+   * Remembers a key unless it was seen within the window
+   *
+   * @return false if the key is a duplicate
+   */
+  synchronized boolean claim(String key) {
+    long nowMs = clock.currentTimeMillis();
+    expire(nowMs);
+    checks.increment();
+    if (recentKeys.containsKey(key) || mightHaveSpilled(key)) {
+      hits.increment();
+      return false;
+    }
+    recentKeys.put(key, nowMs);
+    spillOverflow(nowMs);
+    return true;
+  }
+
+  /** Forgets a claimed key whose row was not enqueued after all, so that a retry is not dropped */
+  synchronized void release(String key) {
+    recentKeys.remove(key);
+  }
+
+  /** Returns the keys kept exactly */
+  synchronized int getExactKeyCount() {
+    return recentKeys.size();
+  }
+
+  /** Returns the estimated memory held by the exact keys and the filters */
+  synchronized long getMemoryBytes() {
+    return recentKeys.size() * BYTES_PER_EXACT_KEY + generations.size() * generationBytes;
+  }
+
+  private boolean mightHaveSpilled(String key) {
+    for (Generation generation : generations) {
+      if (generation.filter.mightContain(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void expire(long nowMs) {
+    Iterator<Map.Entry<String, Long>> iterator = recentKeys.entrySet().iterator();
+    while (iterator.hasNext() && nowMs - iterator.next().getValue() >= windowMs) {
+      iterator.remove();
+    }
+    // Keys spilled into a generation were first seen before it ended
+    while (!generations.isEmpty()
+        && nowMs - generations.peekLast().startMs >= generationMs + windowMs) {
+      generations.removeLast();
+    }
+  }
+
+  private void spillOverflow(long nowMs) {
+    Iterator<String> iterator = recentKeys.keySet().iterator();
+    while (recentKeys.size() > maxKeys) {
+      String key = iterator.next();
+      iterator.remove();
+      Generation generation = currentGeneration(nowMs);
+      generation.filter.put(key);
+      generation.keys++;
+    }
+  }
+
+  private Generation currentGeneration(long nowMs) {
+    Generation newest = generations.peekFirst();
+    if (newest == null || nowMs - newest.startMs >= generationMs || newest.keys >= filterKeys) {
+      newest =
+          new Generation(
+              nowMs,
+              BloomFilter.create(
+                  Funnels.stringFunnel(StandardCharsets.UTF_8), filterKeys, FALSE_POSITIVE_RATE));
+      generations.addFirst(newest);
+      if (generations.size() > MAX_GENERATIONS) {
+        generations.removeLast();
+      }
+    }
+    return newest;
+  }
+}
@@ -1,25 +1,38 @@
 package com.example.SnowpipeRest.buffer;
 
+import com.example.SnowpipeRest.utils.HotPathLog;
+import com.example.SnowpipeRest.utils.TableOverride;
+import com.example.SnowpipeRest.utils.TableOverrides;
+import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.*;
-import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Utility class to split rows in a buffer into two lists:
+ * Utility class to split rows in a buffer into lists:
  * - one for rows older than LATE_THRESHOLD_DURATION and one for regular rows.
+ * - A table override can set several lateness tiers instead, with a list of late rows per tier.
  * - The timestamp column config is defined in the lateArrivingTableColumns map.
  * - Key is the table name and value is the timestamp column name.
  * - If there are parsing errors or the timestamp value is null, the row is treated as regular.
+ * - Timestamps are parsed by {@link TimestampParser}, which neither throws nor allocates.
  */
 public class RowSplitter {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(RowSplitter.class);
 
+  private static final HotPathLog NULL_TIMESTAMP_LOG =
+      HotPathLog.create(LOGGER, "null_timestamp");
+  private static final HotPathLog UNPARSEABLE_TIMESTAMP_LOG =
+      HotPathLog.create(LOGGER, "unparseable_timestamp");
+  private static final HotPathLog UNSUPPORTED_TIMESTAMP_LOG =
+      HotPathLog.create(LOGGER, "unsupported_timestamp_type");
 
-  static Map<String, String> lateArrivingTableColumns = new HashMap<>();
+  // Built in timestamp columns, a table override can change or clear the column of a table
+  static Map<String, String> lateArrivingTableColumns = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 
   static {
     lateArrivingTableColumns.put("EDR_DATA", "generatedTime");
@@ -27,107 +40,249 @@ public class RowSplitter {
     // Add other table/column mappings here
   }
 
-  // Define the threshold (e.g., 24 hours)
+  // Define the threshold (e.g., 24 hours), a table override can change it
   private static final Duration LATE_THRESHOLD_DURATION = Duration.ofHours(12);
 
-  // Result holder class
-  public record SplitResult(List<Map<String, Object>> lateRows, List<Map<String, Object>> regularRows) {
-    public SplitResult(List<Map<String, Object>> lateRows, List<Map<String, Object>> regularRows) {
-      this.lateRows = Objects.requireNonNull(lateRows);
-      this.regularRows = Objects.requireNonNull(regularRows);
+  /**
+   * How the late arriving rows of a table are told apart, resolved from the table's override and
+   * the built in defaults
+   *
+   * @param column the timestamp column, null if the table is not split
+   * @param tierMinAgeMillis the age from which rows belong to each lateness tier, ascending
+   */
+  private record LateArrivingRule(
+      String column, TimestampParser.Format format, long[] tierMinAgeMillis) {}
+
+  /**
+   * What a rule is resolved from: the table's override, compared by identity so that a reload
+   * resolves it again, and its built in column
+   */
+  private record RuleKey(TableOverride override, String builtInColumn) {
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof RuleKey other
+          && override == other.override
+          && Objects.equals(builtInColumn, other.builtInColumn);
     }
 
     @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(override) + Objects.hashCode(builtInColumn);
+    }
+  }
+
+  // Rules by what they are resolved from rather than by table name, so that tables without an
+  // override or a built in column share one rule however many names requests carry
+  private static final Map<RuleKey, LateArrivingRule> RULES = new ConcurrentHashMap<>();
+
+  private static LateArrivingRule getRule(String database, String schema, String tableName) {
+    TableOverrides overrides = TableOverrides.getInstance();
+    RuleKey key =
+        new RuleKey(
+            overrides.get(database, schema, tableName), lateArrivingTableColumns.get(tableName));
+    LateArrivingRule rule = RULES.get(key);
+    if (rule == null) {
+      // Overrides replaced by a reload are never looked up again
+      RULES.keySet().removeIf(k -> !isCurrent(overrides, k.override()));
+      rule = RULES.computeIfAbsent(key, RowSplitter::resolveRule);
+    }
+    return rule;
+  }
+
+  private static boolean isCurrent(TableOverrides overrides, TableOverride override) {
+    if (override == TableOverride.NONE) {
+      return true;
+    }
+    for (TableOverride current : overrides.getAll().values()) {
+      if (current == override) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static LateArrivingRule resolveRule(RuleKey key) {
+    TableOverride override = key.override();
+    long[] tierMinAgeMillis = new long[override.latenessTierCount()];
+    for (int i = 0; i < tierMinAgeMillis.length; i++) {
+      tierMinAgeMillis[i] = override.latenessTierMinAge(i + 1, LATE_THRESHOLD_DURATION).toMillis();
+    }
+    return new LateArrivingRule(
+        override.lateArrivingColumnOr(key.builtInColumn()),
+        TimestampParser.Format.fromSetting(override.lateArrivingFormat()),
+        tierMinAgeMillis);
+  }
+
+  @VisibleForTesting
+  static int getRuleCount() {
+    return RULES.size();
+  }
+
+  /** Returns the column used to split out late arriving rows of a table, null if none */
+  public static String getTimestampColumn(String database, String schema, String tableName) {
+    return getRule(database, schema, tableName).column();
+  }
+
+  /**
+   * Returns the column used to split out late arriving rows of a table, as set by an override of
+   * its bare name
+   */
+  public static String getTimestampColumn(String tableName) {
+    return getTimestampColumn(null, null, tableName);
+  }
+
+  /**
+   * Result holder class
+   *
+   * @param lateRowsByTier the late rows of each lateness tier, the youngest tier first
+   */
+  public record SplitResult(List<List<Map<String, Object>>> lateRowsByTier, List<Map<String, Object>> regularRows) {
+    public SplitResult(List<List<Map<String, Object>>> lateRowsByTier, List<Map<String, Object>> regularRows) {
+      this.lateRowsByTier = Objects.requireNonNull(lateRowsByTier);
+      this.regularRows = Objects.requireNonNull(regularRows);
+    }
+
+    /** Returns the late rows of every tier */
     public List<Map<String, Object>> lateRows() {
+      if (lateRowsByTier.size() == 1) {
+        return lateRowsByTier.get(0);
+      }
+      List<Map<String, Object>> lateRows = new ArrayList<>();
+      lateRowsByTier.forEach(lateRows::addAll);
       return lateRows;
     }
 
+    @Override
+    public List<List<Map<String, Object>>> lateRowsByTier() {
+      return lateRowsByTier;
+    }
+
     @Override
     public List<Map<String, Object>> regularRows() {
       return regularRows;
     }
   }
 
+  /** Splits rows of a table by their age, as set by an override of its bare name */
   public static SplitResult splitLateArrivingRows(Optional<List<Map<String, Object>>> rowsOptional, String tableName) {
+    return splitLateArrivingRows(rowsOptional, tableName, System.currentTimeMillis());
+  }
+
+  /** Splits rows of a table by their age at the given time, as set by an override of its bare name */
+  public static SplitResult splitLateArrivingRows(Optional<List<Map<String, Object>>> rowsOptional, String tableName, long nowMillis) {
+    return splitLateArrivingRows(rowsOptional, null, null, tableName, nowMillis);
+  }
+
+  public static SplitResult splitLateArrivingRows(
+      Optional<List<Map<String, Object>>> rowsOptional, String database, String schema, String tableName) {
+    return splitLateArrivingRows(rowsOptional, database, schema, tableName, System.currentTimeMillis());
+  }
+
+  /**
+   * Splits rows by their age at the given time
+   *
+   * @param nowMillis the time that ages are measured from, in epoch millis
+   */
+  public static SplitResult splitLateArrivingRows(
+      Optional<List<Map<String, Object>>> rowsOptional,
+      String database,
+      String schema,
+      String tableName,
+      long nowMillis) {
     List<Map<String, Object>> lateRows = new ArrayList<>();
     List<Map<String, Object>> regularRows = new ArrayList<>();
 
     // Handle empty Optional or empty list
     if (!rowsOptional.isPresent() || rowsOptional.get().isEmpty()) {
-      return new SplitResult(lateRows, regularRows);
+      return new SplitResult(List.of(lateRows), regularRows);
     }
 
     List<Map<String, Object>> allRows = rowsOptional.get();
-    String timestampColumnName = lateArrivingTableColumns.get(tableName.toUpperCase());
+    LateArrivingRule rule = getRule(database, schema, tableName);
+    String timestampColumnName = rule.column();
 
     // If table name not configured for late check, all rows are regular
     if (timestampColumnName == null) {
       regularRows.addAll(allRows);
-      return new SplitResult(lateRows, regularRows);
+      return new SplitResult(List.of(lateRows), regularRows);
     }
 
-    // Calculate the time threshold for lateness
-    Instant lateThreshold = Instant.now().minus(LATE_THRESHOLD_DURATION);
+    // Rows with an event time before lateBeforeMillis[i] belong to tier i + 1 or an older one
+    long[] lateBeforeMillis = new long[rule.tierMinAgeMillis().length];
+    List<List<Map<String, Object>>> lateRowsByTier = new ArrayList<>(lateBeforeMillis.length);
+    for (int i = 0; i < lateBeforeMillis.length; i++) {
+      lateBeforeMillis[i] = nowMillis - rule.tierMinAgeMillis()[i];
+      lateRowsByTier.add(i == 0 ? lateRows : new ArrayList<>());
+    }
+    TimestampParser.Format format = rule.format();
 
     for (Map<String, Object> row : allRows) {
       Object timestampObj = row.get(timestampColumnName);
-      Instant eventTime = null;
+      long eventMillis;
 
-      // Try to convert the timestamp object to Instant
+      // Try to convert the timestamp object to epoch millis
       try {
         if (timestampObj == null) {
           // Treat rows with null timestamp as regular
-          LOGGER.info("Timestamp column is null for table {} timestamp column {}.", tableName, timestampColumnName);
+          HotPathLog.Tally nullTally = NULL_TIMESTAMP_LOG.tally(tableName);
+          nullTally.record(1);
+          if (HotPathLog.isVerbose() || nullTally.trySample()) {
+            LOGGER.info("Timestamp column is null for table {} timestamp column {}.", tableName, timestampColumnName);
+          }
           regularRows.add(row);
           continue; // Move to next row
-        } else if (timestampObj instanceof Long) {
-          eventTime = Instant.ofEpochMilli((Long) timestampObj);
-        } else if (timestampObj instanceof java.sql.Timestamp) {
-          eventTime = ((java.sql.Timestamp) timestampObj).toInstant();
-        } else if (timestampObj instanceof java.util.Date) { // Handles java.util.Date
-          eventTime = ((java.util.Date) timestampObj).toInstant();
-        } else if (timestampObj instanceof Instant) {
-          eventTime = (Instant) timestampObj;
-        } else if (timestampObj instanceof String) {
-          String timestampStr = (String) timestampObj;
-          try {
-            // Attempt 1: Parse using Instant.parse (handles ISO with offset/zone like 'Z')
-            eventTime = Instant.parse(timestampStr);
-          } catch (DateTimeParseException exInstant) {
-            // Instant.parse failed, try parsing as LocalDateTime (no offset) and assume UTC
-            try {
-              // Attempt 2: Parse as LocalDateTime (e.g., "2025-03-21T16:59:55")
-              LocalDateTime localDateTime = LocalDateTime.parse(timestampStr);
-              // Assume UTC if no offset was provided
-              eventTime = localDateTime.toInstant(ZoneOffset.UTC);
-            } catch (DateTimeParseException exLocal) {
-              // All parsing attempts failed
-              LOGGER.info("Could not parse timestamp string: {}. Neither ISO with offset, nor LocalDateTime. Treating as regular row.", timestampStr, exLocal);
-              regularRows.add(row);
-              continue; // Move to the next row
+        } else if (timestampObj instanceof String timestampStr) {
+          eventMillis = TimestampParser.parse(timestampStr, format);
+          if (eventMillis == TimestampParser.INVALID) {
+            HotPathLog.Tally unparseableTally = UNPARSEABLE_TIMESTAMP_LOG.tally(tableName);
+            unparseableTally.record(1);
+            if (HotPathLog.isVerbose() || unparseableTally.trySample()) {
+              LOGGER.info("Could not parse timestamp string: {} for table {} as {}. Treating as regular row.", timestampStr, tableName, format);
             }
+            regularRows.add(row);
+            continue; // Move to the next row
           }
+        } else if (timestampObj instanceof Long epoch) {
+          eventMillis = epoch * format.unitMillis;
+        } else if (timestampObj instanceof Integer epoch && format != TimestampParser.Format.ISO) {
+          // Too small to be epoch millis of this century, only read when the table says so
+          eventMillis = epoch * format.unitMillis;
+        } else if (timestampObj instanceof java.util.Date date) { // Also handles java.sql.Timestamp
+          eventMillis = date.getTime();
+        } else if (timestampObj instanceof Instant instant) {
+          eventMillis = instant.toEpochMilli();
         } else {
           // Log or handle unsupported type - treat as regular for now
-          LOGGER.info("Unsupported timestamp type: {} for row: {}. Treating as regular.", timestampObj.getClass().getName(), row);
+          HotPathLog.Tally unsupportedTally = UNSUPPORTED_TIMESTAMP_LOG.tally(tableName);
+          unsupportedTally.record(1);
+          if (HotPathLog.isVerbose()) {
+            LOGGER.info("Unsupported timestamp type: {} for row: {}. Treating as regular.", timestampObj.getClass().getName(), row);
+          } else if (unsupportedTally.trySample()) {
+            // The row itself may be large, only its timestamp type is logged when sampling
+            LOGGER.info("Unsupported timestamp type: {} for table {}. Treating as regular.", timestampObj.getClass().getName(), tableName);
+          }
           regularRows.add(row);
           continue;
         }
 
-        // Perform the lateness check
-        if (eventTime != null && eventTime.isBefore(lateThreshold)) {
-          lateRows.add(row);
+        // Perform the lateness check, from the oldest tier down
+        int tier = lateBeforeMillis.length;
+        while (tier > 0 && eventMillis >= lateBeforeMillis[tier - 1]) {
+          tier--;
+        }
+        if (tier > 0) {
+          lateRowsByTier.get(tier - 1).add(row);
         } else {
           regularRows.add(row);
         }
 
       } catch (Exception e) { // Catch broader exceptions during conversion/casting
-        LOGGER.error("Unexpected error processing timestamp for row: {}. Error: {}. Treating as regular.", row, e.getMessage());
+        LOGGER.error("Unexpected error processing timestamp for table {}. Error: {}. Treating as regular.", tableName, e.getMessage());
         // Treat rows with conversion errors as regular
         regularRows.add(row);
       }
     }
 
-    return new SplitResult(lateRows, regularRows);
+    return new SplitResult(lateRowsByTier, regularRows);
   }
-}
\ No newline at end of file
+}
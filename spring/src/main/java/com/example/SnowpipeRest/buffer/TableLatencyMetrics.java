@@ -0,0 +1,84 @@
+package com.example.SnowpipeRest.buffer;
+
+import com.example.SnowpipeRest.utils.PriorityClass;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms of a table, one per stage that a row goes through between arriving in a
+ * request and being committed in Snowflake. Percentiles are computed client side over a sliding
+ * window (Micrometer keeps an HdrHistogram per timer) and published as p50, p99 and p999. The end
+ * to end latency is also published per priority class, as the freshness each class gets.
+ */
+public class TableLatencyMetrics {
+
+  public enum Stage {
+    // Deserializing (and splitting) the request body
+    PARSE,
+    // Appending the rows of a request to the buffer
+    ENQUEUE,
+    // From being enqueued until the first row of the request is taken by a drainer
+    BUFFERED,
+    // From the first to the last row of the request being inserted into a channel
+    INSERT,
+    // From the last row of the request being inserted until the commit is observed
+    COMMIT,
+    // From the request arriving until all of its rows are committed
+    END_TO_END
+  }
+
+  private static final ConcurrentHashMap<String, TableLatencyMetrics> TABLES =
+      new ConcurrentHashMap<>();
+
+  private static final EnumMap<PriorityClass, Timer> FRESHNESS = new EnumMap<>(PriorityClass.class);
+
+  static {
+    for (PriorityClass priorityClass : PriorityClass.values()) {
+      FRESHNESS.put(
+          priorityClass,
+          Timer.builder(PartitionMetrics.PREFIX + "priority.freshness")
+              .description("Time from request to commit of the rows of each priority class")
+              .tag("priority", priorityClass.getName())
+              .publishPercentiles(0.5, 0.99, 0.999)
+              .register(Metrics.globalRegistry));
+    }
+  }
+
+  private final EnumMap<Stage, Timer> timers;
+
+  private TableLatencyMetrics(String database, String schema, String table) {
+    timers = new EnumMap<>(Stage.class);
+    for (Stage stage : Stage.values()) {
+      timers.put(
+          stage,
+          Timer.builder(PartitionMetrics.PREFIX + "latency")
+              .description("Time spent by rows in each stage from request to commit")
+              .tag("database", database)
+              .tag("schema", schema)
+              .tag("table", table)
+              .tag("stage", stage.name().toLowerCase())
+              .publishPercentiles(0.5, 0.99, 0.999)
+              .register(Metrics.globalRegistry));
+    }
+  }
+
+  /** Returns the latency histograms of a table, registering them on first use */
+  public static TableLatencyMetrics forTable(String database, String schema, String table) {
+    return TABLES.computeIfAbsent(
+        database + "." + schema + "." + table,
+        k -> new TableLatencyMetrics(database, schema, table));
+  }
+
+  public void record(Stage stage, long elapsedNanos) {
+    timers.get(stage).record(elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Records the end to end latency of rows of a table of the priority class */
+  public static void recordFreshness(PriorityClass priorityClass, long elapsedNanos) {
+    FRESHNESS.get(priorityClass).record(elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+}
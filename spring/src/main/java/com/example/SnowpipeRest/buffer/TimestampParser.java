@@ -0,0 +1,219 @@
+package com.example.SnowpipeRest.buffer;
+
+/**
+ * Parses timestamps to epoch millis without allocating or throwing, for classifying rows as late
+ * arriving. Accepts ISO-8601 date times, i.e. `2025-03-21T16:59:55.123Z`, `...+02:00` or no offset
+ * at all (UTC), with optional seconds and up to nine fraction digits, plus plain epoch numbers. Like
+ * java.time, `T` and `Z` may be lowercase. It is not an exact match of {@link
+ * java.time.OffsetDateTime#parse} and {@link java.time.LocalDateTime#parse} though: the leap second
+ * `23:59:60` is accepted with or without an offset and folded into `23:59:59`, as only {@link
+ * java.time.Instant#parse} does. Malformed input returns {@link #INVALID} rather than throwing, so
+ * that a batch of bad timestamps costs no more than a batch of good ones.
+ */
+final class TimestampParser {
+
+  /** Returned for input that is not a timestamp */
+  static final long INVALID = Long.MIN_VALUE;
+
+  /** How the timestamps of a table are written, set per table as a hint of what to try first */
+  enum Format {
+    // ISO-8601 strings, and Long values as epoch millis
+    ISO(1),
+    // Whole numbers, or strings of digits, of millis since the epoch. ISO strings still parse
+    EPOCH_MILLIS(1),
+    // Whole numbers, or strings of digits, of seconds since the epoch. ISO strings still parse
+    EPOCH_SECONDS(1000);
+
+    final long unitMillis;
+
+    Format(long unitMillis) {
+      this.unitMillis = unitMillis;
+    }
+
+    /** Parses the `late_arriving_format` of a table override, ISO if not set */
+    static Format fromSetting(String setting) {
+      return setting == null ? ISO : valueOf(setting.toUpperCase());
+    }
+  }
+
+  /**
+   * Parses a timestamp string written in the given format
+   *
+   * @return epoch millis, or {@link #INVALID}
+   */
+  static long parse(String s, Format format) {
+    if (format == Format.ISO) {
+      return parseIso(s);
+    }
+    long millis = parseEpoch(s, format.unitMillis);
+    return millis != INVALID ? millis : parseIso(s);
+  }
+
+  private TimestampParser() {}
+
+  /**
+   * Parses an ISO-8601 date time, with an offset or in UTC, see the class comment
+   *
+   * @return epoch millis, fractions of a milli truncated, or {@link #INVALID}
+   */
+  static long parseIso(String s) {
+    int length = s.length();
+    // yyyy-MM-ddTHH:mm is the shortest accepted form
+    if (length < 16
+        || s.charAt(4) != '-'
+        || s.charAt(7) != '-'
+        || (s.charAt(10) != 'T' && s.charAt(10) != 't')
+        || s.charAt(13) != ':') {
+      return INVALID;
+    }
+    int year = digits(s, 0, 4);
+    int month = digits(s, 5, 2);
+    int day = digits(s, 8, 2);
+    int hour = digits(s, 11, 2);
+    int minute = digits(s, 14, 2);
+    if (year < 0
+        || month < 1
+        || month > 12
+        || day < 1
+        || day > daysInMonth(year, month)
+        || hour < 0
+        || hour > 23
+        || minute < 0
+        || minute > 59) {
+      return INVALID;
+    }
+    int pos = 16;
+    int second = 0;
+    int millis = 0;
+    if (pos < length && s.charAt(pos) == ':') {
+      second = digits(s, pos + 1, 2);
+      // 23:59:60 is a leap second, which Instant#parse folds into the second before
+      if (second < 0 || second > 60 || (second == 60 && (hour != 23 || minute != 59))) {
+        return INVALID;
+      }
+      second = Math.min(second, 59);
+      pos += 3;
+      if (pos < length && s.charAt(pos) == '.') {
+        pos++;
+        int fractionStart = pos;
+        while (pos < length && isDigit(s.charAt(pos))) {
+          if (pos - fractionStart < 3) {
+            millis = millis * 10 + (s.charAt(pos) - '0');
+          }
+          pos++;
+        }
+        int fractionDigits = pos - fractionStart;
+        if (fractionDigits == 0 || fractionDigits > 9) {
+          return INVALID;
+        }
+        for (int i = fractionDigits; i < 3; i++) {
+          millis *= 10;
+        }
+      }
+    }
+    int offsetSeconds = 0;
+    if (pos < length) {
+      char sign = s.charAt(pos);
+      if (sign == 'Z' || sign == 'z') {
+        pos++;
+      } else if (sign == '+' || sign == '-') {
+        // ±HH:mm, optionally followed by :ss
+        if (length - pos < 6 || s.charAt(pos + 3) != ':') {
+          return INVALID;
+        }
+        int offsetHours = digits(s, pos + 1, 2);
+        int offsetMinutes = digits(s, pos + 4, 2);
+        int offsetSecs = 0;
+        pos += 6;
+        if (pos < length && s.charAt(pos) == ':') {
+          offsetSecs = digits(s, pos + 1, 2);
+          pos += 3;
+        }
+        if (offsetHours < 0
+            || offsetHours > 18
+            || offsetMinutes < 0
+            || offsetMinutes > 59
+            || offsetSecs < 0
+            || offsetSecs > 59
+            || pos > length) {
+          return INVALID;
+        }
+        offsetSeconds = offsetHours * 3600 + offsetMinutes * 60 + offsetSecs;
+        if (sign == '-') {
+          offsetSeconds = -offsetSeconds;
+        }
+      } else {
+        return INVALID;
+      }
+    }
+    if (pos != length) {
+      return INVALID;
+    }
+    long epochSeconds =
+        epochDay(year, month, day) * 86400L + hour * 3600L + minute * 60L + second - offsetSeconds;
+    return epochSeconds * 1000L + millis;
+  }
+
+  /**
+   * Parses a whole number of time units since the epoch, e.g. `1742576395` seconds
+   *
+   * @param unitMillis millis per unit, 1 for epoch millis and 1000 for epoch seconds
+   * @return epoch millis, or {@link #INVALID}
+   */
+  static long parseEpoch(String s, long unitMillis) {
+    int length = s.length();
+    int pos = length > 0 && s.charAt(0) == '-' ? 1 : 0;
+    // 15 digits of millis reach year 33658, plenty while keeping clear of overflow
+    if (length == pos || length - pos > 15) {
+      return INVALID;
+    }
+    long value = 0;
+    for (; pos < length; pos++) {
+      char c = s.charAt(pos);
+      if (!isDigit(c)) {
+        return INVALID;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return (s.charAt(0) == '-' ? -value : value) * unitMillis;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /** Returns the value of `count` decimal digits starting at `start`, -1 if any is not a digit */
+  private static int digits(String s, int start, int count) {
+    if (start + count > s.length()) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = start; i < start + count; i++) {
+      char c = s.charAt(i);
+      if (!isDigit(c)) {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    return switch (month) {
+      case 2 -> (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+      case 4, 6, 9, 11 -> 30;
+      default -> 31;
+    };
+  }
+
+  /** Days since 1970-01-01 of a proleptic Gregorian date, see LocalDate#toEpochDay */
+  private static long epochDay(int year, int month, int day) {
+    // Count years from March so that the leap day is the last day of the year
+    long y = month <= 2 ? year - 1 : year;
+    long era = Math.floorDiv(y, 400);
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153L * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+}
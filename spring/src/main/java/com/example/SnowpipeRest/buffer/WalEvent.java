@@ -0,0 +1,50 @@
+package com.example.SnowpipeRest.buffer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event covering a single read or write of the write ahead log. There is one per row so only
+ * slow operations are recorded by default, set the threshold of the event to 0 ms to see all.
+ */
+@Name("com.example.SnowpipeRest.Wal")
+@Label("WAL Operation")
+@Description("A row read from or written to the RocksDB write ahead log")
+@Category({"Snowpipe REST", "WAL"})
+@Threshold("1 ms")
+class WalEvent extends PartitionEvent {
+
+  @Label("Operation")
+  String operation;
+
+  @Label("Offset")
+  long offset;
+
+  @Label("Size")
+  @DataAmount
+  long bytes;
+
+  @Label("Success")
+  boolean success;
+
+  /** Fills in the partition and offset from a key of the form `db.schema.table.partition.offset` */
+  void setKey(String key) {
+    String[] parts = key.split("\\.");
+    if (parts.length != 5) {
+      return;
+    }
+    database = parts[0];
+    schema = parts[1];
+    table = parts[2];
+    try {
+      partition = Long.parseLong(parts[3]);
+      offset = Long.parseLong(parts[4]);
+    } catch (NumberFormatException e) {
+      // Not one of our keys, keep what we have
+    }
+  }
+}
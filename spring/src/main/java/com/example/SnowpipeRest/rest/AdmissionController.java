@@ -0,0 +1,331 @@
+package com.example.SnowpipeRest.rest;
+
+import com.example.SnowpipeRest.buffer.PartitionLag;
+import com.example.SnowpipeRest.utils.Clock;
+import com.example.SnowpipeRest.utils.TableOverrides;
+import com.google.common.annotations.VisibleForTesting;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admits requests ahead of parsing them against quotas of request bytes per second, one token
+ * bucket per table and one per database, so that a noisy table cannot take the heap and the WAL
+ * from the others. A bucket holds up to a second of its quota. A request is admitted while its
+ * buckets are not in debt and then takes its size from them, possibly into debt, so that requests
+ * larger than a second of quota still get through and are paid back before the next one.
+ *
+ * <p>Rejected requests, and requests whose rows a full buffer rejected, are told when to retry: the
+ * time until their buckets are out of debt, or the time the table's recent drain throughput takes to
+ * clear its backlog.
+ *
+ * <p>Requests may name any table, so the state kept per table does not outlive its use: buckets that
+ * have refilled, the rejection counters of their tables and old throughput samples are swept every
+ * {@link #SWEEP_INTERVAL_SECONDS}.
+ */
+class AdmissionController {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionController.class);
+
+  // Bounds of the Retry-After handed to clients
+  static final long MIN_RETRY_AFTER_SECONDS = 1;
+  static final long MAX_RETRY_AFTER_SECONDS = 60;
+
+  // How often idle state is swept, a drain sample older than that no longer tells the throughput
+  static final long SWEEP_INTERVAL_SECONDS = 60;
+
+  /**
+   * Outcome of admitting a request
+   *
+   * @param reason why the request was rejected, `table_quota` or `database_quota`, null if admitted
+   * @param retryAfterSeconds when to retry a rejected request
+   */
+  record Decision(String reason, long retryAfterSeconds) {
+    static final Decision ADMITTED = new Decision(null, 0);
+
+    boolean admitted() {
+      return reason == null;
+    }
+  }
+
+  /** Token bucket of request bytes, refilled continuously */
+  private static final class TokenBucket {
+    private double bytesPerSecond;
+    private double tokens;
+    private long refilledAtNanos;
+
+    TokenBucket(double bytesPerSecond, long nowNanos) {
+      this.bytesPerSecond = bytesPerSecond;
+      this.tokens = bytesPerSecond;
+      this.refilledAtNanos = nowNanos;
+    }
+
+    private void refill(double bytesPerSecond, long nowNanos) {
+      this.bytesPerSecond = bytesPerSecond;
+      tokens =
+          Math.min(
+              bytesPerSecond, tokens + (nowNanos - refilledAtNanos) * bytesPerSecond / 1e9);
+      refilledAtNanos = nowNanos;
+    }
+
+    /** Returns the nanos until the bucket is out of debt, 0 if it has tokens */
+    synchronized long nanosUntilAvailable(double bytesPerSecond, long nowNanos) {
+      refill(bytesPerSecond, nowNanos);
+      return tokens > 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / bytesPerSecond) + 1;
+    }
+
+    synchronized void take(long bytes) {
+      tokens -= bytes;
+    }
+
+    synchronized void giveBack(long bytes) {
+      tokens = Math.min(bytesPerSecond, tokens + bytes);
+    }
+
+    /** Whether the bucket has refilled, it is then no different from a new one */
+    synchronized boolean isFull(long nowNanos) {
+      refill(bytesPerSecond, nowNanos);
+      return tokens >= bytesPerSecond;
+    }
+  }
+
+  /** Counter of the requests to a table rejected for being over the quota of a bucket */
+  private record RejectedCounter(
+      Map<String, TokenBucket> buckets, String bucketKey, Counter counter) {}
+
+  /** Offsets of the partitions of a single table */
+  @FunctionalInterface
+  interface TableLags {
+    List<PartitionLag> get(String database, String schema, String table);
+  }
+
+  /**
+   * Rows committed by a table at a point in time, to measure its drain throughput
+   *
+   * @param backlogRows unsent and uncommitted rows of the table at the time
+   * @param rowsPerSecond throughput since the previous sample, NaN for the first sample
+   */
+  private record DrainSample(
+      long atNanos, long committedRows, long backlogRows, double rowsPerSecond) {}
+
+  // Shortest time between two drain samples of a table, Retry-After is answered from the last
+  // sample in the meantime
+  private static final long DRAIN_SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final long defaultTableBytesPerSecond;
+  private final long databaseBytesPerSecond;
+  private final TableLags tableLags;
+  private final Clock clock;
+
+  private final Map<String, TokenBucket> tableBuckets = new ConcurrentHashMap<>();
+  private final Map<String, TokenBucket> databaseBuckets = new ConcurrentHashMap<>();
+  private final Map<String, DrainSample> drainSamples = new ConcurrentHashMap<>();
+  // Keyed by table as given, and reason
+  private final Map<String, RejectedCounter> rejectedCounters = new ConcurrentHashMap<>();
+  private final AtomicLong sweptAtNanos;
+
+  /**
+   * @param defaultTableBytesPerSecond quota of each table without a `max_bytes_per_second`
+   *     override, 0 for none
+   * @param databaseBytesPerSecond quota of each database, 0 for none
+   * @param tableLags offsets of the partitions of a table, used to measure its drain throughput and
+   *     backlog
+   */
+  AdmissionController(
+      long defaultTableBytesPerSecond,
+      long databaseBytesPerSecond,
+      TableLags tableLags,
+      Clock clock) {
+    this.defaultTableBytesPerSecond = defaultTableBytesPerSecond;
+    this.databaseBytesPerSecond = databaseBytesPerSecond;
+    this.tableLags = tableLags;
+    this.clock = clock;
+    this.sweptAtNanos = new AtomicLong(clock.nanoTime());
+    LOGGER.info(
+        "Admitting requests. defaultTableBytesPerSecond={} databaseBytesPerSecond={}",
+        defaultTableBytesPerSecond,
+        databaseBytesPerSecond);
+  }
+
+  /**
+   * Admits a request to a table, taking its size from the quotas of the table and its database
+   *
+   * @param bytes size of the request body
+   */
+  Decision admit(String database, String schema, String table, long bytes) {
+    long nowNanos = clock.nanoTime();
+    sweepIfDue(nowNanos);
+    long tableRate =
+        TableOverrides.getInstance()
+            .get(database, schema, table)
+            .maxBytesPerSecondOr(defaultTableBytesPerSecond);
+    String tableName = tableName(database, schema, table);
+    String databaseName = database.toUpperCase(Locale.ROOT);
+    TokenBucket tableBucket = tableRate > 0 ? bucket(tableBuckets, tableName, tableRate) : null;
+    TokenBucket databaseBucket =
+        databaseBytesPerSecond > 0
+            ? bucket(databaseBuckets, databaseName, databaseBytesPerSecond)
+            : null;
+    if (tableBucket != null) {
+      long waitNanos = tableBucket.nanosUntilAvailable(tableRate, nowNanos);
+      if (waitNanos > 0) {
+        return reject(
+            database, schema, table, "table_quota", tableBuckets, tableName, waitNanos);
+      }
+      tableBucket.take(bytes);
+    }
+    if (databaseBucket != null) {
+      long waitNanos = databaseBucket.nanosUntilAvailable(databaseBytesPerSecond, nowNanos);
+      if (waitNanos > 0) {
+        if (tableBucket != null) {
+          tableBucket.giveBack(bytes);
+        }
+        return reject(
+            database, schema, table, "database_quota", databaseBuckets, databaseName, waitNanos);
+      }
+      databaseBucket.take(bytes);
+    }
+    return Decision.ADMITTED;
+  }
+
+  /**
+   * Returns when to retry a request whose rows a full buffer rejected: the time that the table's
+   * drain throughput, measured since the previous sample, takes to clear its unsent and uncommitted
+   * rows. The table's partitions are read at most once per second, these requests come in bursts
+   * when the server is overloaded.
+   */
+  long getRetryAfterSeconds(String database, String schema, String table) {
+    String tableName = tableName(database, schema, table);
+    long nowNanos = clock.nanoTime();
+    DrainSample sample = drainSamples.get(tableName);
+    if (sample == null || nowNanos - sample.atNanos() >= DRAIN_SAMPLE_INTERVAL_NANOS) {
+      sample = sampleDrain(tableName, tableLags.get(database, schema, table), nowNanos);
+    }
+    if (Double.isNaN(sample.rowsPerSecond())) {
+      // Not measured yet
+      return MIN_RETRY_AFTER_SECONDS;
+    }
+    long backlogRows = sample.backlogRows();
+    if (Double.isNaN(sample.rowsPerSecond())) {
+      // Not measured yet
+      return MIN_RETRY_AFTER_SECONDS;
+    }
+    if (sample.rowsPerSecond() == 0) {
+      // Stalled, e.g. its channel cannot be opened
+      return backlogRows > 0 ? MAX_RETRY_AFTER_SECONDS : MIN_RETRY_AFTER_SECONDS;
+    }
+    return clampRetryAfter((long) Math.ceil(backlogRows / sample.rowsPerSecond()));
+  }
+
+  /** Records the drain progress of a table, unless another request just did */
+  private DrainSample sampleDrain(String tableName, List<PartitionLag> lags, long nowNanos) {
+    long backlogRows = 0;
+    long committedRows = 0;
+    for (PartitionLag lag : lags) {
+      backlogRows += lag.unsentRows() + lag.uncommittedRows();
+      committedRows += lag.committedOffset() + 1;
+    }
+    long sampledBacklogRows = backlogRows;
+    long sampledCommittedRows = committedRows;
+    return drainSamples.compute(
+        tableName,
+        (k, previous) -> {
+          if (previous == null) {
+            return new DrainSample(nowNanos, sampledCommittedRows, sampledBacklogRows, Double.NaN);
+          }
+          long elapsedNanos = nowNanos - previous.atNanos();
+          if (elapsedNanos < DRAIN_SAMPLE_INTERVAL_NANOS) {
+            return previous;
+          }
+          // A rewind or restart lowers the committed offsets, count that as no progress
+          long drained = Math.max(0, sampledCommittedRows - previous.committedRows());
+          return new DrainSample(
+              nowNanos, sampledCommittedRows, sampledBacklogRows, drained * 1e9 / elapsedNanos);
+        });
+  }
+
+  /**
+   * @param buckets the buckets holding the one that the request is over the quota of
+   * @param bucketKey the key of that bucket, the table's rejection counter lives as long as it
+   */
+  private Decision reject(
+      String database,
+      String schema,
+      String table,
+      String reason,
+      Map<String, TokenBucket> buckets,
+      String bucketKey,
+      long waitNanos) {
+    rejectedCounters
+        .computeIfAbsent(
+            database + "." + schema + "." + table + "/" + reason,
+            k ->
+                new RejectedCounter(
+                    buckets,
+                    bucketKey,
+                    Counter.builder("snowpipe.rest.admission.rejected")
+                        .description("Requests rejected ahead of parsing for being over a quota")
+                        .tags("database", database, "schema", schema, "table", table, "reason", reason)
+                        .register(Metrics.globalRegistry)))
+        .counter()
+        .increment();
+    long nanosPerSecond = TimeUnit.SECONDS.toNanos(1);
+    return new Decision(
+        reason, clampRetryAfter((waitNanos + nanosPerSecond - 1) / nanosPerSecond));
+  }
+
+  /**
+   * Drops buckets that have refilled, along with the rejection counters of their tables, and drain
+   * samples too old to measure throughput from. A request racing with the sweep may take from a
+   * bucket as it is dropped, which at worst lets a second of quota through again.
+   */
+  private void sweepIfDue(long nowNanos) {
+    long sweptAt = sweptAtNanos.get();
+    if (nowNanos - sweptAt < TimeUnit.SECONDS.toNanos(SWEEP_INTERVAL_SECONDS)
+        || !sweptAtNanos.compareAndSet(sweptAt, nowNanos)) {
+      return;
+    }
+    tableBuckets.values().removeIf(bucket -> bucket.isFull(nowNanos));
+    databaseBuckets.values().removeIf(bucket -> bucket.isFull(nowNanos));
+    rejectedCounters
+        .values()
+        .removeIf(
+            rejected -> {
+              if (rejected.buckets().containsKey(rejected.bucketKey())) {
+                return false;
+              }
+              Metrics.globalRegistry.remove(rejected.counter());
+              return true;
+            });
+    drainSamples
+        .values()
+        .removeIf(
+            sample ->
+                nowNanos - sample.atNanos() >= TimeUnit.SECONDS.toNanos(SWEEP_INTERVAL_SECONDS));
+  }
+
+  @VisibleForTesting
+  int getTrackedTableCount() {
+    return tableBuckets.size() + drainSamples.size();
+  }
+
+  private TokenBucket bucket(Map<String, TokenBucket> buckets, String key, long bytesPerSecond) {
+    return buckets.computeIfAbsent(key, k -> new TokenBucket(bytesPerSecond, clock.nanoTime()));
+  }
+
+  private static String tableName(String database, String schema, String table) {
+    return (database + "." + schema + "." + table).toUpperCase(Locale.ROOT);
+  }
+
+  private static long clampRetryAfter(long seconds) {
+    return Math.max(MIN_RETRY_AFTER_SECONDS, Math.min(MAX_RETRY_AFTER_SECONDS, seconds));
+  }
+}
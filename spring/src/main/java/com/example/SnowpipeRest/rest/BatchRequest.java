@@ -0,0 +1,103 @@
+package com.example.SnowpipeRest.rest;
+
+import com.example.SnowpipeRest.utils.InvalidPayloadResponse;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Utf8;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Body of a batch insert, rows for several tables keyed by `database.schema.table`:
+ *
+ * <pre>
+ * {"mydb.myschema.tbl_a": [{"a": 1}, {"a": 2}], "mydb.myschema.tbl_b": [{"b": "one"}]}
+ * </pre>
+ *
+ * The body is read token by token, each row is deserialized straight from the stream without an
+ * intermediate tree of the whole body. A body that is not valid as a whole is rejected before any
+ * of its rows are enqueued.
+ */
+class BatchRequest {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final TypeReference<Map<String, Object>> ROW = new TypeReference<>() {};
+
+  /**
+   * Rows for a single table of the batch
+   *
+   * @param bytes size of the part of the body that carried the rows, in UTF-8
+   */
+  record Target(String database, String schema, String table, List<Map<String, Object>> rows, long bytes) {
+
+    /** Returns the `database.schema.table` name of the target */
+    String name() {
+      return database + "." + schema + "." + table;
+    }
+  }
+
+  private BatchRequest() {}
+
+  /**
+   * Parses a batch body, rows given twice for the same table are merged in order
+   *
+   * @throws InvalidPayloadResponse if the body is not an object of arrays of rows keyed by
+   *     `database.schema.table`
+   */
+  static List<Target> parse(String body) {
+    Map<String, Target> targets = new LinkedHashMap<>();
+    try (JsonParser parser = mapper.getFactory().createParser(body)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new InvalidPayloadResponse("Batch body must be an object keyed by database.schema.table");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.currentName();
+        String[] parts = name.split("\\.");
+        if (parts.length != 3 || parts[0].isEmpty() || parts[1].isEmpty() || parts[2].isEmpty()) {
+          throw new InvalidPayloadResponse("Invalid batch target, expected database.schema.table: " + name);
+        }
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+          throw new InvalidPayloadResponse("Rows of a batch target must be an array: " + name);
+        }
+        long start = parser.currentLocation().getCharOffset();
+        List<Map<String, Object>> rows = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+          if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new InvalidPayloadResponse("Rows of a batch target must be objects: " + name);
+          }
+          rows.add(mapper.readValue(parser, ROW));
+        }
+        long bytes =
+            Utf8.encodedLength(
+                CharBuffer.wrap(body, (int) start, (int) parser.currentLocation().getCharOffset()));
+        targets.merge(
+            name,
+            new Target(parts[0], parts[1], parts[2], rows, bytes),
+            (previous, next) -> {
+              List<Map<String, Object>> merged = new ArrayList<>(previous.rows());
+              merged.addAll(next.rows());
+              return new Target(
+                  previous.database(),
+                  previous.schema(),
+                  previous.table(),
+                  merged,
+                  previous.bytes() + next.bytes());
+            });
+      }
+      if (parser.currentToken() != JsonToken.END_OBJECT) {
+        throw new InvalidPayloadResponse("Invalid batch body");
+      }
+    } catch (IOException e) {
+      throw new InvalidPayloadResponse("Invalid batch body: " + e.getMessage());
+    }
+    return new ArrayList<>(targets.values());
+  }
+}
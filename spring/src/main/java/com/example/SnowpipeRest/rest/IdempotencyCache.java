@@ -0,0 +1,367 @@
+package com.example.SnowpipeRest.rest;
+
+import com.example.SnowpipeRest.buffer.RocksDBManager;
+import com.example.SnowpipeRest.utils.Clock;
+import com.example.SnowpipeRest.utils.EnqueueResponse;
+import com.example.SnowpipeRest.utils.InvalidPayloadResponse;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Remembers the responses of recent requests by their `Idempotency-Key`, so that a retried request
+ * is answered with the response of the original without being parsed or enqueued again. Keys are
+ * scoped to their table and remembered for a window from when they were first seen, up to a
+ * maximum number of keys, the oldest forgotten first. A retry that arrives while the original is
+ * still being enqueued waits for it and shares its response.
+ *
+ * <p>A request with rejected rows is remembered along with which of its rows were rejected, and its
+ * retry only enqueues those, so that the rows accepted the first time are not ingested twice. A key
+ * is only forgotten when enqueueing its request failed outright. When there is a write ahead log
+ * the keys are persisted to it, and those still in their window are remembered across restarts.
+ * Writes to the log are queued under the lock of the cache, in the order keys are remembered and
+ * forgotten, and applied in that order after the lock is released.
+ */
+class IdempotencyCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IdempotencyCache.class);
+
+  static final String KEY_PREFIX = RocksDBManager.METADATA_PREFIX + "idempotency/";
+
+  static final int MAX_KEY_LENGTH = 255;
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  /**
+   * The outcome of enqueueing the rows of a request
+   *
+   * @param response the response to the request
+   * @param rejectedRows indexes of the rows of the request that were rejected
+   */
+  record Attempt(EnqueueResponse response, BitSet rejectedRows) {}
+
+  private record Entry(long firstSeenMs, CompletableFuture<Attempt> attempt) {}
+
+  /** A key to write to the write ahead log, or to delete from it when the value is null */
+  private record PendingWrite(String id, String value) {}
+
+  private final long windowMs;
+  private final int maxKeys;
+  private final RocksDBManager store;
+  private final Clock clock;
+
+  // In the order keys were first seen, which is also the order they expire in
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+  // Guarded by this, applied to the store by one thread at a time under storeLock
+  private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+  private final Object storeLock = new Object();
+
+  private final Counter hits;
+  private final Counter misses;
+
+  /**
+   * @param windowMs how long a key is remembered from when it is first seen
+   * @param maxKeys keys remembered at most, across tables
+   * @param store write ahead log that keys are persisted to, null for none
+   */
+  IdempotencyCache(long windowMs, int maxKeys, RocksDBManager store, Clock clock) {
+    this.windowMs = windowMs;
+    this.maxKeys = maxKeys;
+    this.store = store;
+    this.clock = clock;
+    this.hits =
+        Counter.builder("snowpipe.rest.idempotency.hits")
+            .description("Requests answered with the response of an earlier request of the same key")
+            .register(Metrics.globalRegistry);
+    this.misses =
+        Counter.builder("snowpipe.rest.idempotency.misses")
+            .description("Requests with a key that was not remembered")
+            .register(Metrics.globalRegistry);
+    Gauge.builder("snowpipe.rest.idempotency.keys", this, IdempotencyCache::size)
+        .description("Idempotency keys remembered")
+        .register(Metrics.globalRegistry);
+    load();
+    flushPendingWrites();
+    LOGGER.info(
+        "Remembering idempotency keys. windowMs={} maxKeys={} persisted={} loaded={}",
+        windowMs,
+        maxKeys,
+        store != null,
+        entries.size());
+  }
+
+  /**
+   * Enqueues a request once per key
+   *
+   * @param table the `database.schema.table` the request inserts into
+   * @param key the request's idempotency key
+   * @param enqueue enqueues the rows of the request at the given indexes, null for every row. Only
+   *     called when the key is not remembered, or to enqueue the rows rejected the last time
+   * @return the response of the first request of the key, or of the rows enqueued so far when
+   *     some were rejected
+   * @throws InvalidPayloadResponse if the key is empty or too long
+   */
+  EnqueueResponse enqueueOnce(String table, String key, Function<BitSet, Attempt> enqueue) {
+    if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+      throw new InvalidPayloadResponse(
+          "Idempotency-Key must be between 1 and " + MAX_KEY_LENGTH + " characters");
+    }
+    String id = table + "/" + key;
+    CompletableFuture<Attempt> attempt = new CompletableFuture<>();
+    Entry remembered;
+    // The last attempt of a key that had rows rejected, those are enqueued now
+    Attempt previous = null;
+    synchronized (this) {
+      long nowMs = clock.currentTimeMillis();
+      expire(nowMs);
+      remembered = entries.get(id);
+      if (remembered == null) {
+        entries.put(id, new Entry(nowMs, attempt));
+        evictOverflow();
+      } else if (remembered.attempt().isDone()
+          && !remembered.attempt().isCompletedExceptionally()
+          && !remembered.attempt().join().rejectedRows().isEmpty()) {
+        previous = remembered.attempt().join();
+        entries.put(id, new Entry(remembered.firstSeenMs(), attempt));
+      }
+    }
+    flushPendingWrites();
+    if (remembered != null && previous == null) {
+      hits.increment();
+      try {
+        return remembered.attempt().join().response();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException cause) {
+          throw cause;
+        }
+        throw e;
+      }
+    }
+    (previous == null ? misses : hits).increment();
+
+    Attempt enqueued;
+    try {
+      enqueued = enqueue.apply(previous == null ? null : previous.rejectedRows());
+    } catch (RuntimeException e) {
+      // Forget this attempt only, rows enqueued by earlier ones must not be enqueued again
+      restore(id, attempt, previous == null ? null : new Entry(remembered.firstSeenMs(),
+          CompletableFuture.completedFuture(previous)));
+      attempt.completeExceptionally(e);
+      throw e;
+    }
+    if (previous != null) {
+      enqueued = merge(previous, enqueued);
+    }
+    persist(id, enqueued);
+    attempt.complete(enqueued);
+    return enqueued.response();
+  }
+
+  /**
+   * Returns the response remembered for a key whose rows were all enqueued, without enqueueing
+   * anything, so that a retry of it can be answered ahead of admission
+   *
+   * @return null if the key is not remembered, is still being enqueued or had rows rejected
+   */
+  EnqueueResponse getIfEnqueued(String table, String key) {
+    if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+      return null;
+    }
+    Entry entry;
+    synchronized (this) {
+      expire(clock.currentTimeMillis());
+      entry = entries.get(table + "/" + key);
+    }
+    flushPendingWrites();
+    if (entry == null
+        || !entry.attempt().isDone()
+        || entry.attempt().isCompletedExceptionally()
+        || !entry.attempt().join().rejectedRows().isEmpty()) {
+      return null;
+    }
+    hits.increment();
+    return entry.attempt().join().response();
+  }
+
+  /** Folds a retry into the attempt that it retried, the response covers every row of the request */
+  private static Attempt merge(Attempt previous, Attempt retry) {
+    EnqueueResponse response =
+        new EnqueueResponse.EnqueueResponseBuilder()
+            .setMessage(retry.response().getMessage())
+            .setRowsEnqueued(
+                previous.response().getRowsEnqueued() + retry.response().getRowsEnqueued())
+            .setRowsRejected(retry.response().getRowsRejected())
+            .setRowsDeduplicated(
+                previous.response().getRowsDeduplicated()
+                    + retry.response().getRowsDeduplicated())
+            .setRejectedRows(retry.response().getRejectedRows())
+            .build();
+    return new Attempt(response, retry.rejectedRows());
+  }
+
+  /** Returns the number of keys remembered */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Puts back the entry a failed attempt replaced, if the attempt is still the one remembered
+   *
+   * @param previous the entry to put back, null to forget the key
+   */
+  private synchronized void restore(
+      String id, CompletableFuture<Attempt> attempt, Entry previous) {
+    Entry entry = entries.get(id);
+    if (entry == null || entry.attempt() != attempt) {
+      return;
+    }
+    if (previous == null) {
+      entries.remove(id);
+    } else {
+      entries.put(id, previous);
+    }
+  }
+
+  private synchronized void expire(long nowMs) {
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Entry> entry = iterator.next();
+      if (nowMs - entry.getValue().firstSeenMs() < windowMs) {
+        break;
+      }
+      iterator.remove();
+      unpersist(entry.getKey());
+    }
+  }
+
+  private synchronized void evictOverflow() {
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (entries.size() > maxKeys && iterator.hasNext()) {
+      String id = iterator.next().getKey();
+      iterator.remove();
+      unpersist(id);
+    }
+  }
+
+  /** Writes the attempt of a key to the write ahead log, unless the key was forgotten meanwhile */
+  private void persist(String id, Attempt attempt) {
+    if (store == null) {
+      return;
+    }
+    synchronized (this) {
+      Entry entry = entries.get(id);
+      if (entry == null) {
+        // Already evicted, its delete is queued or done
+        return;
+      }
+      EnqueueResponse response = attempt.response();
+      Map<String, Object> value = new LinkedHashMap<>();
+      value.put("first_seen_ms", entry.firstSeenMs());
+      value.put("message", response.getMessage());
+      value.put("rows_enqueued", response.getRowsEnqueued());
+      value.put("rows_rejected", response.getRowsRejected());
+      value.put("rows_deduplicated", response.getRowsDeduplicated());
+      value.put("rejected_rows", attempt.rejectedRows().toLongArray());
+      try {
+        pendingWrites.add(new PendingWrite(id, mapper.writeValueAsString(value)));
+      } catch (JsonProcessingException e) {
+        LOGGER.error("Unable to serialize idempotency key. id={}", id, e);
+      }
+    }
+    flushPendingWrites();
+  }
+
+  /** Queues the delete of a forgotten key, called under the lock of the cache */
+  private void unpersist(String id) {
+    if (store != null) {
+      pendingWrites.add(new PendingWrite(id, null));
+    }
+  }
+
+  /**
+   * Applies the queued writes to the write ahead log in the order they were queued. Called without
+   * the lock of the cache, so that other requests are not held up by the log. Returns once the
+   * writes queued before the call are applied, by this thread or another one.
+   */
+  private void flushPendingWrites() {
+    if (store == null) {
+      return;
+    }
+    synchronized (storeLock) {
+      while (true) {
+        PendingWrite write;
+        synchronized (this) {
+          write = pendingWrites.poll();
+        }
+        if (write == null) {
+          return;
+        }
+        if (write.value() == null) {
+          store.deleteFromDB(KEY_PREFIX + write.id());
+        } else {
+          store.writeToDB(KEY_PREFIX + write.id(), write.value());
+        }
+      }
+    }
+  }
+
+  /** Remembers the persisted keys that are still in their window */
+  private synchronized void load() {
+    if (store == null) {
+      return;
+    }
+    long nowMs = clock.currentTimeMillis();
+    List<Map.Entry<String, Entry>> loaded = new ArrayList<>();
+    for (Map.Entry<String, String> persisted : store.readPrefix(KEY_PREFIX).entrySet()) {
+      String id = persisted.getKey().substring(KEY_PREFIX.length());
+      try {
+        JsonNode value = mapper.readTree(persisted.getValue());
+        long firstSeenMs = value.path("first_seen_ms").asLong();
+        // Also drops values without a time, read as 0
+        if (nowMs - firstSeenMs >= windowMs) {
+          store.deleteFromDB(persisted.getKey());
+          continue;
+        }
+        EnqueueResponse response =
+            new EnqueueResponse.EnqueueResponseBuilder()
+                .setMessage(value.path("message").textValue())
+                .setRowsEnqueued(value.path("rows_enqueued").asInt())
+                .setRowsRejected(value.path("rows_rejected").asInt())
+                .setRowsDeduplicated(value.path("rows_deduplicated").asInt())
+                .build();
+        long[] rejectedWords = new long[value.path("rejected_rows").size()];
+        for (int i = 0; i < rejectedWords.length; i++) {
+          rejectedWords[i] = value.path("rejected_rows").get(i).asLong();
+        }
+        Attempt attempt = new Attempt(response, BitSet.valueOf(rejectedWords));
+        loaded.add(
+            Map.entry(id, new Entry(firstSeenMs, CompletableFuture.completedFuture(attempt))));
+      } catch (JsonProcessingException e) {
+        LOGGER.error("Dropping unreadable idempotency key. id={}", id, e);
+        store.deleteFromDB(persisted.getKey());
+      }
+    }
+    loaded.sort((a, b) -> Long.compare(a.getValue().firstSeenMs(), b.getValue().firstSeenMs()));
+    for (Map.Entry<String, Entry> entry : loaded) {
+      entries.put(entry.getKey(), entry.getValue());
+    }
+    evictOverflow();
+  }
+}
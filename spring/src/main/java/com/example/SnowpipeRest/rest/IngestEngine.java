@@ -1,17 +1,33 @@
 package com.example.SnowpipeRest.rest;
 
+import com.example.SnowpipeRest.buffer.Buffer;
 import com.example.SnowpipeRest.buffer.DrainManager;
+import com.example.SnowpipeRest.buffer.PartitionCircuitBreaker;
+import com.example.SnowpipeRest.buffer.PartitionLag;
 import com.example.SnowpipeRest.buffer.RowSplitter;
+import com.example.SnowpipeRest.buffer.TableLatencyMetrics;
 import com.example.SnowpipeRest.snowflake.ChannelManager;
+import com.example.SnowpipeRest.snowflake.CommitWatcher;
+import com.example.SnowpipeRest.utils.Clock;
 import com.example.SnowpipeRest.utils.EnqueueResponse;
+import com.example.SnowpipeRest.utils.IngestEngineConfig;
+import com.example.SnowpipeRest.utils.TablePartitionKey;
 import com.example.SnowpipeRest.buffer.BufferManager;
 import com.example.SnowpipeRest.utils.Utils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -45,35 +61,210 @@ public class IngestEngine {
 
   private final ScheduledExecutorService executorService;
 
-  /**
-   * Default constructor. Note that this MUST be empty due to how Spring does property to BEAN
-   * binding.
-   */
-  public IngestEngine(
-      long maxBufferRowCount,
-      long numThreads,
-      long maxDurationToDrainMs,
-      long maxRecordsToDrain,
-      int maxSecondsToWaitToDrain,
-      long maxShardsPerTable,
-      boolean persistentWAL,
-      boolean splitLateArrivingRows) {
+  // Parses large requests on several threads, null when disabled
+  private final ParallelRequestParser parallelParser;
+
+  // Quotas that requests are admitted against ahead of parsing
+  private final AdmissionController admissionController;
+
+  // Responses of recent requests by their idempotency key, null when keys are ignored
+  private final IdempotencyCache idempotencyCache;
+
+  // Trims the rows retained by buffers once the commit watcher sees them committed
+  private final CommitWatcher.CommitListener commitListener;
+
+  // Enqueues the tables of a batch request concurrently
+  private final ExecutorService batchExecutor =
+      Executors.newFixedThreadPool(
+          Runtime.getRuntime().availableProcessors(),
+          new ThreadFactoryBuilder().setNameFormat("batch-enqueue-%d").setDaemon(true).build());
+
+  /** Builds the engine, reading its settings from the application config */
+  public IngestEngine(IngestEngineConfig config) {
     LOGGER.info("Initializing Ingest Engine...");
-    this.bufferManager = new BufferManager(maxBufferRowCount, maxShardsPerTable, persistentWAL);
-    this.splitLateArrivingRows = splitLateArrivingRows;
+    boolean persistentWAL = config.getUseWAL();
+    this.bufferManager =
+        new BufferManager(
+            config.getMaxBufferRowCount(), config.getMaxShardsPerTable(), persistentWAL);
+    this.bufferManager.setBufferCreatedListener(
+        tableKey -> ChannelManager.getInstance().openChannelAsync(tableKey));
+    this.splitLateArrivingRows = config.getSplitLateArrivingRows();
+    long parallelParseThresholdBytes = config.getParallelParseThresholdBytes();
+    this.parallelParser =
+        parallelParseThresholdBytes > 0
+            ? new ParallelRequestParser(
+                parallelParseThresholdBytes, config.getParallelParseThreads())
+            : null;
+    long idempotencyWindowSeconds = config.getIdempotencyWindowSeconds();
+    this.idempotencyCache =
+        idempotencyWindowSeconds > 0
+            ? new IdempotencyCache(
+                TimeUnit.SECONDS.toMillis(idempotencyWindowSeconds),
+                config.getIdempotencyMaxKeys(),
+                bufferManager.getRocksDBManager(),
+                Clock.SYSTEM)
+            : null;
+    this.admissionController =
+        new AdmissionController(
+            config.getAdmissionTableBytesPerSecond(),
+            config.getAdmissionDatabaseBytesPerSecond(),
+            this::getTableLags,
+            Clock.SYSTEM);
     this.epochTs = System.currentTimeMillis();
     this.drainManager =
         new DrainManager(
             epochTs,
             bufferManager,
-            (int) numThreads,
-            maxDurationToDrainMs,
-            maxRecordsToDrain,
-            maxSecondsToWaitToDrain,
-            persistentWAL);
+            (int) config.getNumThreads(),
+            config.getMaxDurationToDrainMs(),
+            config.getMaxRecordsToDrain(),
+            config.getMaxSecondsToWaitToDrain(),
+            persistentWAL,
+            new PartitionCircuitBreaker(
+                config.getDrainBackoffBaseMs(), config.getDrainBackoffMaxMs()),
+            config.getHighPriorityDrainThreads());
     executorService = Executors.newSingleThreadScheduledExecutor();
     executorService.scheduleWithFixedDelay(drainManager::run, 1, 1, TimeUnit.SECONDS);
     LOGGER.info("Scheduled run of Drain Manager");
+    // Release rows retained for replay as soon as we see them committed
+    this.commitListener =
+        (tableKey, committedEpochTs, committedOffset) -> {
+          Buffer buffer = bufferManager.getTableToBuffer().get(tableKey);
+          if (buffer != null && committedEpochTs == epochTs) {
+            buffer.trimCommitted(committedOffset);
+          }
+        };
+    CommitWatcher.getInstance().addCommitListener(commitListener);
+    CommitWatcher.getInstance()
+        .setBufferedPartitions(tableKey -> bufferManager.getTableToBuffer().containsKey(tableKey));
+    CommitWatcher.getInstance().start(config.getCommitWatcherPollIntervalMs());
+    prewarmChannels(config.getPrewarmTables());
+  }
+
+  /**
+   * Opens channels ahead of the first drain for the partitions of the configured tables and for any
+   * partition that still has rows in the write ahead log. Opens run in parallel in the background,
+   * this does not wait on them.
+   *
+   * @param prewarmTables fully qualified `database.schema.table` names
+   */
+  private void prewarmChannels(List<String> prewarmTables) {
+    List<TablePartitionKey> tableKeys = new ArrayList<>(bufferManager.getPersistedPartitions());
+    for (String prewarmTable : prewarmTables) {
+      String[] parts = prewarmTable.split("\\.");
+      if (parts.length != 3) {
+        LOGGER.error("Invalid table to prewarm, expected database.schema.table: {}", prewarmTable);
+        continue;
+      }
+      tableKeys.addAll(
+          bufferManager.getPartitionKeys(parts[0], parts[1], parts[2], splitLateArrivingRows));
+    }
+    for (TablePartitionKey tableKey : tableKeys) {
+      ChannelManager.getInstance().openChannelAsync(tableKey);
+    }
+    LOGGER.info("Prewarming channels. partitionCount={}", tableKeys.size());
+  }
+
+  /**
+   * Admits a request to a table ahead of parsing it, see {@link AdmissionController}
+   *
+   * @param requestBytes size of the request body
+   */
+  public AdmissionController.Decision admit(
+      final String database, final String schema, final String table, final long requestBytes) {
+    return admissionController.admit(database, schema, table, requestBytes);
+  }
+
+  /** Returns when to retry a request whose rows were rejected by a full buffer of a table */
+  public long getRetryAfterSeconds(final String database, final String schema, final String table) {
+    return admissionController.getRetryAfterSeconds(database, schema, table);
+  }
+
+  /**
+   * Enqueues data to be inserted into a table once per idempotency key, a request with a key that
+   * was seen recently is answered with the response of the first request of the key. When rows of
+   * that request were rejected, only those rows are enqueued again.
+   *
+   * @param idempotencyKey the request's `Idempotency-Key`, null for none
+   * @see #enqueueData(String, String, String, String)
+   */
+  public EnqueueResponse enqueueData(
+      final String database,
+      final String schema,
+      final String table,
+      final String requestData,
+      final String idempotencyKey) {
+    if (idempotencyKey == null || idempotencyCache == null) {
+      return enqueueData(database, schema, table, requestData);
+    }
+    return idempotencyCache.enqueueOnce(
+        database + "." + schema + "." + table,
+        idempotencyKey,
+        rowsToEnqueue -> enqueueIndexedRows(database, schema, table, requestData, rowsToEnqueue));
+  }
+
+  /**
+   * Returns the response of an earlier request with the same idempotency key whose rows were all
+   * enqueued, so that its retry can be answered without being admitted again
+   *
+   * @return empty if there is none, the request is then enqueued with {@link #enqueueData(String,
+   *     String, String, String, String)}
+   */
+  public Optional<EnqueueResponse> getRememberedResponse(
+      final String database, final String schema, final String table, final String idempotencyKey) {
+    if (idempotencyKey == null || idempotencyCache == null) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(
+        idempotencyCache.getIfEnqueued(database + "." + schema + "." + table, idempotencyKey));
+  }
+
+  /**
+   * Enqueues rows of a request by their index in it
+   *
+   * @param rowsToEnqueue indexes of the rows to enqueue, null for every row
+   * @return the response, with the indexes of the rows that were rejected
+   */
+  private IdempotencyCache.Attempt enqueueIndexedRows(
+      final String database,
+      final String schema,
+      final String table,
+      final String requestData,
+      final BitSet rowsToEnqueue) {
+    long receivedAtNanos = System.nanoTime();
+    Optional<List<Map<String, Object>>> rows =
+        parallelParser != null && parallelParser.shouldParseInParallel(requestData)
+            ? parallelParser.parse(requestData)
+            : Utils.getRowsFromRequestBody(requestData);
+    if (rows.isEmpty()) {
+      return new IdempotencyCache.Attempt(
+          enqueueParsedRows(
+              database, schema, table, rows, receivedAtNanos, requestData.length()),
+          new BitSet());
+    }
+
+    // Rows are told apart by identity, equal rows of a request may be both accepted and rejected
+    Map<Map<String, Object>, Integer> indexOfRow = new IdentityHashMap<>();
+    List<Map<String, Object>> toEnqueue = new ArrayList<>();
+    for (int i = 0; i < rows.get().size(); i++) {
+      if (rowsToEnqueue == null || rowsToEnqueue.get(i)) {
+        indexOfRow.put(rows.get().get(i), i);
+        toEnqueue.add(rows.get().get(i));
+      }
+    }
+    long requestBytes =
+        rows.get().isEmpty()
+            ? requestData.length()
+            : (long) requestData.length() * toEnqueue.size() / rows.get().size();
+    EnqueueResponse response =
+        enqueueParsedRows(
+            database, schema, table, Optional.of(toEnqueue), receivedAtNanos, requestBytes);
+
+    BitSet rejectedRows = new BitSet();
+    for (Map<String, Object> row : response.getRejectedRows()) {
+      rejectedRows.set(indexOfRow.get(row));
+    }
+    return new IdempotencyCache.Attempt(response, rejectedRows);
   }
 
   /**
@@ -87,22 +278,173 @@ public class IngestEngine {
    */
   public EnqueueResponse enqueueData(
       final String database, final String schema, final String table, final String requestData) {
-    Optional<List<Map<String, Object>>> rows = Utils.getRowsFromRequestBody(requestData);
+    long receivedAtNanos = System.nanoTime();
+    boolean parseInParallel =
+        parallelParser != null && parallelParser.shouldParseInParallel(requestData);
+
+    if (splitLateArrivingRows) {
+      RowSplitter.SplitResult splitResult =
+          parseInParallel
+              ? parallelParser.parseAndSplit(requestData, database, schema, table)
+              : RowSplitter.splitLateArrivingRows(
+                  Utils.getRowsFromRequestBody(requestData), database, schema, table);
+      return enqueueSplitRows(
+          database, schema, table, splitResult, receivedAtNanos, requestData.length());
+    }
+
+    Optional<List<Map<String, Object>>> rows =
+        parseInParallel
+            ? parallelParser.parse(requestData)
+            : Utils.getRowsFromRequestBody(requestData);
+    return enqueueRows(database, schema, table, rows, receivedAtNanos, requestData.length());
+  }
+
+  /**
+   * Enqueues the rows of every table of a batch request, the tables concurrently. Each table is
+   * accepted or rejected on its own, a full buffer for one table does not hold back the others.
+   *
+   * @param receivedAtNanos when the request arrived, from {@link System#nanoTime()}
+   * @return the response of each table, keyed and ordered as the batch
+   */
+  public Map<String, EnqueueResponse> enqueueBatch(
+      final List<BatchRequest.Target> targets, final long receivedAtNanos) {
+    Map<String, CompletableFuture<EnqueueResponse>> futures = new LinkedHashMap<>();
+    for (BatchRequest.Target target : targets) {
+      futures.put(
+          target.name(),
+          CompletableFuture.supplyAsync(() -> enqueueTarget(target, receivedAtNanos), batchExecutor)
+              .exceptionally(
+                  e -> {
+                    // A table that fails to enqueue does not fail the rest of the batch
+                    LOGGER.error("Unable to enqueue batch target. target={}", target.name(), e);
+                    return new EnqueueResponse.EnqueueResponseBuilder()
+                        .setMessage("Unable to enqueue rows: " + e.getMessage())
+                        .setRowsEnqueued(0)
+                        .setRowsRejected(target.rows().size())
+                        .build();
+                  }));
+    }
+    Map<String, EnqueueResponse> responses = new LinkedHashMap<>();
+    futures.forEach((name, future) -> responses.put(name, future.join()));
+    return responses;
+  }
 
+  private EnqueueResponse enqueueTarget(BatchRequest.Target target, long receivedAtNanos) {
+    return enqueueParsedRows(
+        target.database(),
+        target.schema(),
+        target.table(),
+        Optional.of(target.rows()),
+        receivedAtNanos,
+        target.bytes());
+  }
+
+  /** Enqueues parsed rows, split into late arriving and regular rows when so configured */
+  private EnqueueResponse enqueueParsedRows(
+      final String database,
+      final String schema,
+      final String table,
+      final Optional<List<Map<String, Object>>> rows,
+      final long receivedAtNanos,
+      final long requestBytes) {
     if (splitLateArrivingRows) {
-      RowSplitter.SplitResult splitResult = RowSplitter.splitLateArrivingRows(rows, table);
+      return enqueueSplitRows(
+          database,
+          schema,
+          table,
+          RowSplitter.splitLateArrivingRows(rows, database, schema, table),
+          receivedAtNanos,
+          requestBytes);
+    }
+    return enqueueRows(database, schema, table, rows, receivedAtNanos, requestBytes);
+  }
+
+  /** Enqueues rows split into late arriving and regular rows into their buffers */
+  private EnqueueResponse enqueueSplitRows(
+      final String database,
+      final String schema,
+      final String table,
+      final RowSplitter.SplitResult splitResult,
+      final long receivedAtNanos,
+      final long requestBytes) {
+    Buffer buffer = bufferManager.getBuffer(database, schema, table);
+    long enqueueStartNanos = System.nanoTime();
+    buffer
+        .getLatencyMetrics()
+        .record(TableLatencyMetrics.Stage.PARSE, enqueueStartNanos - receivedAtNanos);
 
-      EnqueueResponse lateRowsResponse = null;
-      if (!splitResult.lateRows().isEmpty()){
-        lateRowsResponse = bufferManager.getLateArrivingRowsBuffer(database, schema, table).expandRowsEnqueueData(Optional.of(splitResult.lateRows()));
+    // Share the request size between the buffers by row count, to estimate their size
+    int rowCount = splitResult.regularRows().size();
+    for (List<Map<String, Object>> tierRows : splitResult.lateRowsByTier()) {
+      rowCount += tierRows.size();
+    }
+
+    List<EnqueueResponse> lateRowsResponses = new ArrayList<>();
+    long lateRowsBytes = 0;
+    for (int tier = 1; tier <= splitResult.lateRowsByTier().size(); tier++) {
+      List<Map<String, Object>> tierRows = splitResult.lateRowsByTier().get(tier - 1);
+      if (!tierRows.isEmpty()) {
+        long tierBytes = requestBytes * tierRows.size() / rowCount;
+        lateRowsBytes += tierBytes;
+        lateRowsResponses.add(bufferManager.getLateArrivingRowsBuffer(database, schema, table, tier).expandRowsEnqueueData(Optional.of(tierRows), receivedAtNanos, tierBytes));
       }
+    }
 
-      EnqueueResponse response = bufferManager.getBuffer(database, schema, table).expandRowsEnqueueData(Optional.of(splitResult.regularRows()));
+    EnqueueResponse response = buffer.expandRowsEnqueueData(Optional.of(splitResult.regularRows()), receivedAtNanos, requestBytes - lateRowsBytes);
+    buffer
+        .getLatencyMetrics()
+        .record(TableLatencyMetrics.Stage.ENQUEUE, System.nanoTime() - enqueueStartNanos);
+    for (EnqueueResponse lateRowsResponse : lateRowsResponses) {
       response.merge(lateRowsResponse);
-      return response;
     }
+    return response;
+  }
 
-    return bufferManager.getBuffer(database, schema, table).expandRowsEnqueueData(rows);
+  /** Enqueues rows into a regular buffer of their table */
+  private EnqueueResponse enqueueRows(
+      final String database,
+      final String schema,
+      final String table,
+      final Optional<List<Map<String, Object>>> rows,
+      final long receivedAtNanos,
+      final long requestBytes) {
+    Buffer buffer = bufferManager.getBuffer(database, schema, table);
+    long enqueueStartNanos = System.nanoTime();
+    buffer
+        .getLatencyMetrics()
+        .record(TableLatencyMetrics.Stage.PARSE, enqueueStartNanos - receivedAtNanos);
+    EnqueueResponse response = buffer.expandRowsEnqueueData(rows, receivedAtNanos, requestBytes);
+    buffer
+        .getLatencyMetrics()
+        .record(TableLatencyMetrics.Stage.ENQUEUE, System.nanoTime() - enqueueStartNanos);
+    return response;
+  }
+
+  @VisibleForTesting
+  BufferManager getBufferManager() {
+    return bufferManager;
+  }
+
+  /** Returns the offsets of every partition, cheap enough to be scraped every second */
+  /** Returns the offsets of the partitions of a table that have a buffer */
+  private List<PartitionLag> getTableLags(String database, String schema, String table) {
+    List<PartitionLag> lags = new ArrayList<>();
+    for (TablePartitionKey tableKey :
+        bufferManager.getPartitionKeys(database, schema, table, splitLateArrivingRows)) {
+      Buffer buffer = bufferManager.getTableToBuffer().get(tableKey);
+      if (buffer != null) {
+        lags.add(buffer.getLag());
+      }
+    }
+    return lags;
+  }
+
+  public List<PartitionLag> getPartitionLags() {
+    List<PartitionLag> lags = new ArrayList<>();
+    for (Buffer buffer : bufferManager.getTableToBuffer().values()) {
+      lags.add(buffer.getLag());
+    }
+    return lags;
   }
 
   /**
@@ -115,8 +457,17 @@ public class IngestEngine {
    * </ul>
    */
   public void shutDown() {
+    executorService.shutdown();
     drainManager.shutdown();
+    if (parallelParser != null) {
+      parallelParser.shutdown();
+    }
+    batchExecutor.shutdown();
+    CommitWatcher.getInstance().shutdown();
+    CommitWatcher.getInstance().removeCommitListener(commitListener);
+    bufferManager.shutdown();
     // bufferManager.tearDown();
     ChannelManager.getInstance().removeAllChannels();
+    ChannelManager.getInstance().shutdown();
   }
 }
@@ -0,0 +1,195 @@
+package com.example.SnowpipeRest.rest;
+
+import com.example.SnowpipeRest.buffer.RowSplitter;
+import com.example.SnowpipeRest.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Parses, and splits into late arriving and regular rows, request bodies above a size threshold on
+ * a bounded fork-join pool rather than on the request thread alone. The body's JSON array is cut
+ * into ranges of whole elements with a single scan that only tracks strings and nesting, each range
+ * is parsed and split as an array of its own, and the ranges are merged back in order. The rows,
+ * and so what is enqueued and rejected, are the same as when the body is processed sequentially: a
+ * body that would not parse as a whole fails in at least one of its ranges.
+ */
+class ParallelRequestParser {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(ParallelRequestParser.class);
+
+  // Ranges per pool thread, more than one so that a slow range does not leave the others idle
+  private static final int RANGES_PER_THREAD = 4;
+
+  private final long thresholdBytes;
+  private final ForkJoinPool pool;
+
+  /**
+   * @param thresholdBytes size of the request bodies from which they are parsed in parallel
+   * @param threads the parallelism of the pool, shared by every request
+   */
+  ParallelRequestParser(long thresholdBytes, int threads) {
+    this.thresholdBytes = thresholdBytes;
+    this.pool = new ForkJoinPool(threads);
+    LOGGER.info(
+        "Parsing large requests in parallel. thresholdBytes={} threads={}", thresholdBytes, threads);
+  }
+
+  /** Returns whether a request body is large enough to be parsed in parallel */
+  boolean shouldParseInParallel(String requestBody) {
+    return requestBody.length() >= thresholdBytes;
+  }
+
+  /** Parses a request body, see {@link Utils#getRowsFromRequestBody(String)} */
+  Optional<List<Map<String, Object>>> parse(String requestBody) {
+    List<String> ranges = cut(requestBody);
+    if (ranges == null) {
+      return Utils.getRowsFromRequestBody(requestBody);
+    }
+    List<Optional<List<Map<String, Object>>>> parsed =
+        invokeAll(ranges, range -> Utils.getRowsFromRequestBody(range));
+    List<Map<String, Object>> rows = new ArrayList<>();
+    for (Optional<List<Map<String, Object>>> rangeRows : parsed) {
+      if (rangeRows.isEmpty()) {
+        return Optional.empty();
+      }
+      rows.addAll(rangeRows.get());
+    }
+    return Optional.of(rows);
+  }
+
+  /**
+   * Parses a request body and splits its rows, see {@link RowSplitter#splitLateArrivingRows}
+   */
+  RowSplitter.SplitResult parseAndSplit(
+      String requestBody, String database, String schema, String table) {
+    // Every range is classified against the same time, as the whole body would be
+    long nowMillis = System.currentTimeMillis();
+    List<String> ranges = cut(requestBody);
+    if (ranges == null) {
+      return RowSplitter.splitLateArrivingRows(
+          Utils.getRowsFromRequestBody(requestBody), database, schema, table, nowMillis);
+    }
+    List<Optional<List<Map<String, Object>>>> parsed =
+        invokeAll(ranges, range -> Utils.getRowsFromRequestBody(range));
+    if (parsed.stream().anyMatch(Optional::isEmpty)) {
+      return RowSplitter.splitLateArrivingRows(
+          Optional.empty(), database, schema, table, nowMillis);
+    }
+    List<RowSplitter.SplitResult> splits =
+        invokeAll(
+            parsed,
+            rows -> RowSplitter.splitLateArrivingRows(rows, database, schema, table, nowMillis));
+
+    List<Map<String, Object>> regularRows = new ArrayList<>();
+    List<List<Map<String, Object>>> lateRowsByTier = new ArrayList<>();
+    for (RowSplitter.SplitResult split : splits) {
+      regularRows.addAll(split.regularRows());
+      for (int i = 0; i < split.lateRowsByTier().size(); i++) {
+        if (lateRowsByTier.size() == i) {
+          lateRowsByTier.add(new ArrayList<>());
+        }
+        lateRowsByTier.get(i).addAll(split.lateRowsByTier().get(i));
+      }
+    }
+    return new RowSplitter.SplitResult(lateRowsByTier, regularRows);
+  }
+
+  void shutdown() {
+    pool.shutdown();
+  }
+
+  /** Runs a task over every input on the pool, returning the results in input order */
+  private <T, R> List<R> invokeAll(List<T> inputs, Function<T, R> task) {
+    List<Callable<R>> callables = new ArrayList<>(inputs.size());
+    for (T input : inputs) {
+      callables.add(() -> task.apply(input));
+    }
+    List<R> results = new ArrayList<>(inputs.size());
+    try {
+      for (Future<R> future : pool.invokeAll(callables)) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while parsing request", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Unable to parse request", e.getCause());
+    }
+    return results;
+  }
+
+  /**
+   * Cuts the JSON array of a request body into arrays of whole elements of about equal size
+   *
+   * @return the arrays in order, null if the body is not a well-formed enough array to be cut, it
+   *     is then parsed as a whole
+   */
+  List<String> cut(String requestBody) {
+    int length = requestBody.length();
+    int start = 0;
+    while (start < length && Character.isWhitespace(requestBody.charAt(start))) {
+      start++;
+    }
+    if (start == length || requestBody.charAt(start) != '[') {
+      return null;
+    }
+    long targetChars = Math.max(1, length / ((long) pool.getParallelism() * RANGES_PER_THREAD));
+    List<String> ranges = new ArrayList<>();
+    // Offset of the '[' or ',' preceding the current range
+    int rangeStart = start;
+    int depth = 0;
+    boolean inString = false;
+    for (int i = start + 1; i < length; i++) {
+      char c = requestBody.charAt(i);
+      if (inString) {
+        if (c == '\\') {
+          i++;
+        } else if (c == '"') {
+          inString = false;
+        }
+      } else if (c == '"') {
+        inString = true;
+      } else if (c == '{' || c == '[') {
+        depth++;
+      } else if (c == '}' || c == ']') {
+        if (depth == 0) {
+          // The closing bracket of the array, whatever follows is ignored as in a sequential parse
+          return c == ']' && addRange(ranges, requestBody, rangeStart, i) ? ranges : null;
+        }
+        depth--;
+      } else if (c == ',' && depth == 0 && i - rangeStart >= targetChars) {
+        if (!addRange(ranges, requestBody, rangeStart, i)) {
+          return null;
+        }
+        rangeStart = i;
+      }
+    }
+    // Unterminated array
+    return null;
+  }
+
+  /**
+   * Adds the elements between two offsets as an array
+   *
+   * @return false if there are none, an empty array or a trailing comma is left to the sequential
+   *     parse
+   */
+  private static boolean addRange(List<String> ranges, String requestBody, int from, int to) {
+    String elements = requestBody.substring(from + 1, to);
+    if (elements.isBlank()) {
+      return false;
+    }
+    ranges.add("[" + elements + "]");
+    return true;
+  }
+}
@@ -0,0 +1,118 @@
+package com.example.SnowpipeRest.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records insert requests to a file, one JSON line per request with its arrival time relative to
+ * the first recorded request, so that real traffic can later be replayed by the load generator.
+ * Lines are written by a background thread; requests are dropped from the trace, never delayed,
+ * when the writer falls behind. Recording stops once the maximum number of requests is reached.
+ */
+class RequestTraceRecorder {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(RequestTraceRecorder.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final Path path;
+  private final long maxRequests;
+  private final BufferedWriter writer;
+  private final ThreadPoolExecutor executor;
+
+  private final AtomicLong recorded = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile long firstRequestNanos = -1;
+
+  RequestTraceRecorder(Path path, long maxRequests) throws IOException {
+    this.path = path;
+    this.maxRequests = maxRequests;
+    this.writer = Files.newBufferedWriter(path);
+    this.executor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1024),
+            r -> {
+              Thread t = new Thread(r, "request-trace-recorder");
+              t.setDaemon(true);
+              return t;
+            },
+            (r, e) -> dropped.incrementAndGet());
+    LOGGER.info("Recording request trace. path={} maxRequests={}", path, maxRequests);
+  }
+
+  void record(String database, String schema, String table, String body) {
+    record(database, schema, table, () -> body);
+  }
+
+  /**
+   * Records the rows of one table of a batch request as a request of its own, so that batches can
+   * be replayed through the single table endpoint. Rows are serialized on the writer thread.
+   */
+  void record(String database, String schema, String table, List<Map<String, Object>> rows) {
+    record(database, schema, table, () -> MAPPER.writeValueAsString(rows));
+  }
+
+  private interface Body {
+    String get() throws IOException;
+  }
+
+  private void record(String database, String schema, String table, Body body) {
+    if (recorded.get() >= maxRequests) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (firstRequestNanos < 0) {
+      synchronized (this) {
+        if (firstRequestNanos < 0) {
+          firstRequestNanos = now;
+        }
+      }
+    }
+    long atMs = TimeUnit.NANOSECONDS.toMillis(now - firstRequestNanos);
+    executor.execute(() -> write(atMs, database, schema, table, body));
+  }
+
+  private void write(long atMs, String database, String schema, String table, Body body) {
+    long count = recorded.incrementAndGet();
+    if (count > maxRequests) {
+      return;
+    }
+    try {
+      Map<String, Object> line = new LinkedHashMap<>();
+      line.put("at_ms", atMs);
+      line.put("database", database);
+      line.put("schema", schema);
+      line.put("table", table);
+      line.put("body", body.get());
+      writer.write(MAPPER.writeValueAsString(line));
+      writer.newLine();
+      if (count == maxRequests) {
+        writer.close();
+        LOGGER.info(
+            "Request trace complete. path={} requests={} dropped={}", path, count, dropped.get());
+      } else if (executor.getQueue().isEmpty()) {
+        writer.flush();
+      }
+    } catch (IOException e) {
+      LOGGER.error("Unable to write request trace, stopping. path={}", path, e);
+      recorded.set(maxRequests);
+    }
+  }
+}
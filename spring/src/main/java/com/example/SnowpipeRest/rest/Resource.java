@@ -1,15 +1,27 @@
 package com.example.SnowpipeRest.rest;
 
+import com.example.SnowpipeRest.buffer.PartitionLag;
 import com.example.SnowpipeRest.utils.EnqueueResponse;
+import com.example.SnowpipeRest.utils.HotPathLog;
 import com.example.SnowpipeRest.utils.IngestEngineConfig;
 import com.example.SnowpipeRest.utils.InvalidPayloadResponse;
 import com.example.SnowpipeRest.utils.TableNotFoundResponse;
+import com.google.common.base.Utf8;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
 import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 @RestController
 @RequestMapping("/snowpipe")
@@ -17,21 +29,26 @@ public class Resource {
 
   static IngestEngine ingestEngine;
 
+  // Set when `rest_api.trace_record_path` is configured
+  static volatile RequestTraceRecorder traceRecorder;
+
   private void lazyLoadIngestEngine() {
     if (ingestEngine == null) {
       synchronized (IngestEngine.class) {
         if (ingestEngine == null) {
           IngestEngineConfig config = new IngestEngineConfig();
-          ingestEngine =
-              new IngestEngine(
-                  config.getMaxBufferRowCount(),
-                  config.getNumThreads(),
-                  config.getMaxDurationToDrainMs(),
-                  config.getMaxRecordsToDrain(),
-                  config.getMaxSecondsToWaitToDrain(),
-                  config.getMaxShardsPerTable(),
-                  config.getUseWAL(),
-                  config.getSplitLateArrivingRows());
+          HotPathLog.configure(
+              config.getHotPathLogMode(), config.getHotPathLogIntervalSeconds());
+          if (config.getTraceRecordPath() != null) {
+            try {
+              traceRecorder =
+                  new RequestTraceRecorder(
+                      Path.of(config.getTraceRecordPath()), config.getTraceRecordMaxRequests());
+            } catch (IOException e) {
+              throw new RuntimeException("Unable to open request trace file", e);
+            }
+          }
+          ingestEngine = new IngestEngine(config);
         }
       }
     }
@@ -43,15 +60,122 @@ public class Resource {
       @PathVariable String database,
       @PathVariable String schema,
       @PathVariable String table,
+      @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
       @RequestBody String body) {
     lazyLoadIngestEngine();
-    EnqueueResponse response = ingestEngine.enqueueData(database, schema, table, body);
+    if (traceRecorder != null) {
+      traceRecorder.record(database, schema, table, body);
+    }
+    // A retry of a request that was enqueued in full is answered as is, without taking quota
+    Optional<EnqueueResponse> remembered =
+        ingestEngine.getRememberedResponse(database, schema, table, idempotencyKey);
+    if (remembered.isPresent()) {
+      return ResponseEntity.status(HttpStatus.OK).body(remembered.get());
+    }
+    AdmissionController.Decision decision =
+        ingestEngine.admit(database, schema, table, Utf8.encodedLength(body));
+    if (!decision.admitted()) {
+      return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+          .header(HttpHeaders.RETRY_AFTER, Long.toString(decision.retryAfterSeconds()))
+          .body(overQuotaResponse(decision, -1));
+    }
+    EnqueueResponse response =
+        ingestEngine.enqueueData(database, schema, table, body, idempotencyKey);
     if (response.getRowsRejected() > 0) {
-      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(response);
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+          .header(
+              HttpHeaders.RETRY_AFTER,
+              Long.toString(ingestEngine.getRetryAfterSeconds(database, schema, table)))
+          .body(response);
     }
     return ResponseEntity.status(HttpStatus.OK).body(response);
   }
 
+  /**
+   * Response to a request rejected ahead of parsing
+   *
+   * @param rows rows of the request, -1 if it was not parsed
+   */
+  private static EnqueueResponse overQuotaResponse(AdmissionController.Decision decision, int rows) {
+    return new EnqueueResponse.EnqueueResponseBuilder()
+        .setMessage("Over quota, retry later. reason=" + decision.reason())
+        .setRowsEnqueued(0)
+        .setRowsRejected(Math.max(0, rows))
+        .build();
+  }
+
+  /**
+   * Inserts rows for several tables at once, see {@link BatchRequest}. Each table is accepted or
+   * rejected on its own: 200 when every row was enqueued, 503 when none was, and 207 when some
+   * tables, or rows, were rejected. The body maps each table to its {@link EnqueueResponse}. A
+   * table over its quota is rejected without its rows being enqueued, and Retry-After is the
+   * longest wait of the rejected tables.
+   */
+  @PutMapping("/insert_batch")
+  @ResponseBody
+  public ResponseEntity<Map<String, EnqueueResponse>> insertBatch(@RequestBody String body) {
+    lazyLoadIngestEngine();
+    long receivedAtNanos = System.nanoTime();
+    List<BatchRequest.Target> targets = BatchRequest.parse(body);
+    if (traceRecorder != null) {
+      for (BatchRequest.Target target : targets) {
+        traceRecorder.record(target.database(), target.schema(), target.table(), target.rows());
+      }
+    }
+    // Tables over their quota are rejected on their own, the others are enqueued
+    Map<String, EnqueueResponse> overQuota = new HashMap<>();
+    List<BatchRequest.Target> admitted = new ArrayList<>();
+    long retryAfterSeconds = 0;
+    for (BatchRequest.Target target : targets) {
+      AdmissionController.Decision decision =
+          ingestEngine.admit(target.database(), target.schema(), target.table(), target.bytes());
+      if (decision.admitted()) {
+        admitted.add(target);
+      } else {
+        overQuota.put(target.name(), overQuotaResponse(decision, target.rows().size()));
+        retryAfterSeconds = Math.max(retryAfterSeconds, decision.retryAfterSeconds());
+      }
+    }
+    Map<String, EnqueueResponse> enqueuedResponses =
+        ingestEngine.enqueueBatch(admitted, receivedAtNanos);
+    Map<String, EnqueueResponse> responses = new LinkedHashMap<>();
+    long enqueued = 0;
+    long rejected = 0;
+    for (BatchRequest.Target target : targets) {
+      EnqueueResponse response = overQuota.get(target.name());
+      if (response == null) {
+        response = enqueuedResponses.get(target.name());
+        if (response.getRowsRejected() > 0) {
+          retryAfterSeconds =
+              Math.max(
+                  retryAfterSeconds,
+                  ingestEngine.getRetryAfterSeconds(
+                      target.database(), target.schema(), target.table()));
+        }
+      }
+      responses.put(target.name(), response);
+      enqueued += response.getRowsEnqueued();
+      rejected += response.getRowsRejected();
+    }
+    if (rejected == 0) {
+      return ResponseEntity.status(HttpStatus.OK).body(responses);
+    }
+    HttpStatus status = enqueued == 0 ? HttpStatus.SERVICE_UNAVAILABLE : HttpStatus.MULTI_STATUS;
+    return ResponseEntity.status(status)
+        .header(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds))
+        .body(responses);
+  }
+
+  /** Offsets and lag of every partition, empty until the first insert creates the engine */
+  @GetMapping("/admin/lag")
+  @ResponseBody
+  public ResponseEntity<List<PartitionLag>> lag() {
+    if (ingestEngine == null) {
+      return ResponseEntity.ok(List.of());
+    }
+    return ResponseEntity.ok(ingestEngine.getPartitionLags());
+  }
+
   @ExceptionHandler(TableNotFoundResponse.class)
   @ResponseStatus(HttpStatus.NOT_FOUND)
   public ResponseEntity<String> handleTableNotFound(TableNotFoundResponse e) {
@@ -1,18 +1,39 @@
 package com.example.SnowpipeRest.snowflake;
 
+import com.example.SnowpipeRest.utils.TableKey;
+import com.example.SnowpipeRest.utils.TableOverrides;
 import com.example.SnowpipeRest.utils.TablePartitionKey;
 import com.example.SnowpipeRest.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Metrics;
 import net.snowflake.ingest.streaming.DropChannelRequest;
 import net.snowflake.ingest.streaming.OpenChannelRequest;
 import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
 import net.snowflake.ingest.utils.SFException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
-/** Manages Channels across tables */
+/**
+ * Manages Channels across tables. Channels are opened in the background on a small thread pool so
+ * that a drain thread never waits on the network round-trip of an open, and so that channels can be
+ * opened ahead of time for partitions that we expect to see data for.
+ */
 public class ChannelManager {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ChannelManager.class);
@@ -22,9 +43,10 @@ public class ChannelManager {
   public static ChannelManager getInstance() {
     if (INSTANCE == null) {
       // Lazy load this to get around local testing and Spring Boot reflection insanity
+      ClientConfig config = new ClientConfig();
       ClientManager clientManager = new ClientManager();
-      clientManager.init(new ClientConfig());
-      INSTANCE = new ChannelManager(clientManager);
+      clientManager.init(config);
+      INSTANCE = new ChannelManager(clientManager, config.getChannelOpenThreads());
     }
     return INSTANCE;
   }
@@ -34,17 +56,47 @@ public class ChannelManager {
     INSTANCE = instance;
   }
 
+  static final int DEFAULT_CHANNEL_OPEN_THREADS = 4;
+
   private final ConcurrentHashMap<TablePartitionKey, SnowflakeStreamingIngestChannel>
       cachedChannels;
 
+  // Channels that are currently being opened in the background
+  private final ConcurrentHashMap<TablePartitionKey, CompletableFuture<SnowflakeStreamingIngestChannel>>
+      pendingChannels;
+
+  // Partitions whose channel a drain is using, their channel is only moved once the drain is done.
+  // Guards the check and the eviction of a moving channel so that a drain cannot pick it up.
+  private final Set<TablePartitionKey> drainingPartitions = new HashSet<>();
+
+  // Moves requested while the partition was draining, started when its drain releases the channel
+  private final ConcurrentHashMap<TablePartitionKey, CompletableFuture<SnowflakeStreamingIngestChannel>>
+      deferredMoves = new ConcurrentHashMap<>();
+
   // private final SnowflakeStreamingIngestClient client;
 
   private final ClientManager clientManager;
 
+  private final ExecutorService channelOpenExecutor;
+
+  // Registered with the table overrides, kept to unregister it on shutdown
+  private final Runnable clientLagOverridesListener = this::applyClientLagOverrides;
+
   public ChannelManager(ClientManager clientManager) {
+    this(clientManager, DEFAULT_CHANNEL_OPEN_THREADS);
+  }
+
+  public ChannelManager(ClientManager clientManager, int channelOpenThreads) {
     // this.client = client;
     this.clientManager = clientManager;
     this.cachedChannels = new ConcurrentHashMap<>();
+    this.pendingChannels = new ConcurrentHashMap<>();
+    this.channelOpenExecutor =
+        Executors.newFixedThreadPool(
+            channelOpenThreads,
+            new ThreadFactoryBuilder().setNameFormat("channel-open-%d").setDaemon(true).build());
+    this.clientManager.setReassignmentListener(this::reassignChannel);
+    TableOverrides.getInstance().addChangeListener(clientLagOverridesListener);
   }
 
   /** Returns whether the provided Client config credentials are valid */
@@ -52,27 +104,324 @@ public class ChannelManager {
     return clientManager.credentialsValid();
   }
 
-  /** Gets or computes a channel instance. */
+  /**
+   * Gets or computes a channel instance. This blocks until the channel is open, prefer {@link
+   * #getChannelIfReady} on latency sensitive paths.
+   */
   public SnowflakeStreamingIngestChannel getChannelForTable(
       String database, String schema, String table, long partitionIndex) {
+    final TablePartitionKey tableKey =
+        new TablePartitionKey(database, schema, table, partitionIndex);
+    try {
+      return openChannelAsync(tableKey).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the channel of a partition if it is already open. Otherwise the channel is opened in
+   * the background and an empty value is returned, the caller should skip the partition until the
+   * channel is ready.
+   */
+  public Optional<SnowflakeStreamingIngestChannel> getChannelIfReady(TablePartitionKey tableKey) {
+    SnowflakeStreamingIngestChannel channel = getOpenChannels().get(tableKey);
+    if (channel != null) {
+      return Optional.of(channel);
+    }
+    CompletableFuture<SnowflakeStreamingIngestChannel> future = openChannelAsync(tableKey);
+    if (future.isDone() && !future.isCompletedExceptionally()) {
+      return Optional.ofNullable(future.join());
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Returns the channel of a partition for a drain, see {@link #getChannelIfReady}. The channel is
+   * not moved to another Client until the drain gives it back with {@link #releaseChannel}, which
+   * it must do even if no channel was returned.
+   */
+  public Optional<SnowflakeStreamingIngestChannel> acquireChannel(TablePartitionKey tableKey) {
+    synchronized (drainingPartitions) {
+      drainingPartitions.add(tableKey);
+    }
+    return getChannelIfReady(tableKey);
+  }
+
+  /** Gives back the channel of a partition once its drain is done, starting any deferred move */
+  public void releaseChannel(TablePartitionKey tableKey) {
+    CompletableFuture<SnowflakeStreamingIngestChannel> deferred;
+    synchronized (drainingPartitions) {
+      drainingPartitions.remove(tableKey);
+      deferred = deferredMoves.remove(tableKey);
+    }
+    if (deferred != null) {
+      moveChannel(tableKey)
+          .whenComplete(
+              (channel, e) -> {
+                if (e != null) {
+                  deferred.completeExceptionally(e);
+                } else {
+                  deferred.complete(channel);
+                }
+              });
+    }
+  }
+
+  /** Returns whether the channel of a partition is waiting for its drain to end to be moved */
+  public boolean isMoveRequested(TablePartitionKey tableKey) {
+    return deferredMoves.containsKey(tableKey);
+  }
+
+  /** Returns whether the channel of a partition is open and can be used right away */
+  public boolean isChannelReady(TablePartitionKey tableKey) {
+    return getOpenChannels().containsKey(tableKey);
+  }
+
+  /**
+   * Opens the channel of a partition in the background. Concurrent callers for the same partition
+   * share a single open, and an already open channel is returned as a completed future.
+   */
+  public CompletableFuture<SnowflakeStreamingIngestChannel> openChannelAsync(
+      TablePartitionKey tableKey) {
+    SnowflakeStreamingIngestChannel channel = cachedChannels.get(tableKey);
+    if (channel != null) {
+      return CompletableFuture.completedFuture(channel);
+    }
+    CompletableFuture<SnowflakeStreamingIngestChannel> future = new CompletableFuture<>();
+    CompletableFuture<SnowflakeStreamingIngestChannel> existing =
+        pendingChannels.putIfAbsent(tableKey, future);
+    if (existing != null) {
+      return existing;
+    }
+    // An open may have completed between the cache lookup and registering ourselves
+    channel = cachedChannels.get(tableKey);
+    if (channel != null) {
+      pendingChannels.remove(tableKey, future);
+      future.complete(channel);
+      return future;
+    }
+    try {
+      channelOpenExecutor.execute(() -> openChannel(tableKey, future));
+    } catch (RejectedExecutionException e) {
+      pendingChannels.remove(tableKey, future);
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  private void openChannel(
+      TablePartitionKey tableKey, CompletableFuture<SnowflakeStreamingIngestChannel> future) {
     OpenChannelRequest request =
-        OpenChannelRequest.builder(Utils.getHostName() + "-" + partitionIndex)
-            .setDBName(database)
-            .setSchemaName(schema)
-            .setTableName(table)
+        OpenChannelRequest.builder(Utils.getHostName() + "-" + tableKey.getPartitionIndex())
+            .setDBName(tableKey.getDatabase())
+            .setSchemaName(tableKey.getSchema())
+            .setTableName(tableKey.getTable())
             .setOnErrorOption(OpenChannelRequest.OnErrorOption.CONTINUE)
             .build();
-    final TablePartitionKey tableKey =
-        new TablePartitionKey(database, schema, table, partitionIndex);
-    return cachedChannels.computeIfAbsent(
-        tableKey, t -> clientManager.getClient(tableKey).openChannel(request));
+    ChannelOpenEvent event = new ChannelOpenEvent();
+    event.begin();
+    try {
+      SnowflakeStreamingIngestChannel channel =
+          clientManager.getClient(tableKey).openChannel(request);
+      commitChannelOpenEvent(event, tableKey, request.getChannelName(), true);
+      // Publish the channel before clearing the pending open so that there's no window in which
+      // the partition appears to have neither
+      cachedChannels.put(tableKey, channel);
+      pendingChannels.remove(tableKey, future);
+      future.complete(channel);
+      countChannelOpen(tableKey, "success");
+      LOGGER.info(
+          "Channel opened: db={} schema={} table={} channel={}",
+          tableKey.getDatabase(),
+          tableKey.getSchema(),
+          tableKey.getTable(),
+          channel.getName());
+    } catch (Exception e) {
+      LOGGER.error(
+          "Unable to open channel: db={} schema={} table={} partition={} msg={}",
+          tableKey.getDatabase(),
+          tableKey.getSchema(),
+          tableKey.getTable(),
+          tableKey.getPartitionIndex(),
+          e.getMessage());
+      commitChannelOpenEvent(event, tableKey, request.getChannelName(), false);
+      pendingChannels.remove(tableKey, future);
+      future.completeExceptionally(e);
+      countChannelOpen(tableKey, "failure");
+    }
+  }
+
+  private static void commitChannelOpenEvent(
+      ChannelOpenEvent event, TablePartitionKey tableKey, String channelName, boolean success) {
+    event.end();
+    if (event.shouldCommit()) {
+      event.database = tableKey.getDatabase();
+      event.schema = tableKey.getSchema();
+      event.table = tableKey.getTable();
+      event.partition = tableKey.getPartitionIndex();
+      event.channel = channelName;
+      event.success = success;
+      event.commit();
+    }
+  }
+
+  private static void countChannelOpen(TablePartitionKey tableKey, String result) {
+    // Opens are rare enough that looking the counter up each time is fine
+    Metrics.counter(
+            "snowpipe.rest.channel.opens",
+            "database",
+            tableKey.getDatabase(),
+            "schema",
+            tableKey.getSchema(),
+            "table",
+            tableKey.getTable(),
+            "partition",
+            Long.toString(tableKey.getPartitionIndex()),
+            "result",
+            result)
+        .increment();
+  }
+
+  /**
+   * Moves the channel of a partition to the Client that it was reassigned to. The current channel is
+   * closed first, flushing any rows it still holds, since opening the channel on the new Client
+   * invalidates it. The partition is reported as opening until the new channel is ready. A channel
+   * that a drain is using is only moved once the drain releases it.
+   */
+  void reassignChannel(TablePartitionKey tableKey, SnowflakeStreamingIngestClient client) {
+    moveChannel(tableKey);
+  }
+
+  /**
+   * Reopens the channel of a partition on the Client that the Client manager currently returns for
+   * it, see {@link #reassignChannel}
+   *
+   * @return a future completing once the channel is reopened
+   */
+  private CompletableFuture<SnowflakeStreamingIngestChannel> moveChannel(
+      TablePartitionKey tableKey) {
+    CompletableFuture<SnowflakeStreamingIngestChannel> future = new CompletableFuture<>();
+    SnowflakeStreamingIngestChannel previous;
+    synchronized (drainingPartitions) {
+      if (drainingPartitions.contains(tableKey)) {
+        // Closing the channel under the drain would fail its inserts, the drain yields instead
+        return deferredMoves.computeIfAbsent(tableKey, k -> new CompletableFuture<>());
+      }
+      CompletableFuture<SnowflakeStreamingIngestChannel> existing =
+          pendingChannels.putIfAbsent(tableKey, future);
+      if (existing != null) {
+        // Already being opened, the open picks up the new assignment
+        return existing;
+      }
+      previous = cachedChannels.remove(tableKey);
+    }
+    try {
+      channelOpenExecutor.execute(
+          () -> {
+            if (previous != null) {
+              try {
+                previous.close().get();
+              } catch (Exception e) {
+                LOGGER.warn(
+                    "Unable to close channel before moving it to another client. db={} schema={} table={} partition={} msg={}",
+                    tableKey.getDatabase(),
+                    tableKey.getSchema(),
+                    tableKey.getTable(),
+                    tableKey.getPartitionIndex(),
+                    e.getMessage());
+              }
+            }
+            openChannel(tableKey, future);
+          });
+    } catch (RejectedExecutionException e) {
+      pendingChannels.remove(tableKey, future);
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Moves the open channels of tables whose Client was replaced to change its max client lag onto
+   * the new Client, then closes the replaced Client
+   */
+  private void applyClientLagOverrides() {
+    Map<TableKey, SnowflakeStreamingIngestClient> replaced =
+        clientManager.replaceClientsWithChangedLag();
+    for (Map.Entry<TableKey, SnowflakeStreamingIngestClient> entry : replaced.entrySet()) {
+      TableKey table = entry.getKey();
+      List<CompletableFuture<SnowflakeStreamingIngestChannel>> moves = new ArrayList<>();
+      for (TablePartitionKey tableKey : cachedChannels.keySet()) {
+        if (tableKey.getDatabase().equals(table.database())
+            && tableKey.getSchema().equals(table.schema())
+            && tableKey.getTable().equals(table.table())
+            && tableKey.getLatenessTier() == table.latenessTier()) {
+          moves.add(moveChannel(tableKey));
+        }
+      }
+      SnowflakeStreamingIngestClient previous = entry.getValue();
+      CompletableFuture.allOf(moves.toArray(new CompletableFuture[0]))
+          .whenComplete(
+              (result, e) -> {
+                try {
+                  previous.close();
+                } catch (Exception closeException) {
+                  LOGGER.warn(
+                      "Unable to close replaced client. db={} schema={} table={} msg={}",
+                      table.database(),
+                      table.schema(),
+                      table.table(),
+                      closeException.getMessage());
+                }
+              });
+    }
+  }
+
+  /** Records bytes sent to the channel of a partition */
+  public void recordBytes(TablePartitionKey tableKey, long bytes) {
+    clientManager.recordBytes(tableKey, bytes);
+  }
+
+  /** Records how long it took for an offset sent to the channel of a partition to be committed */
+  public void recordCommitLatency(TablePartitionKey tableKey, long latencyMs) {
+    clientManager.recordCommitLatency(tableKey, latencyMs);
   }
 
-  /** Invalidates a channel by removing it from the map */
+  /** Returns a read-only view of the channels that are currently open, keyed by partition */
+  public Map<TablePartitionKey, SnowflakeStreamingIngestChannel> getOpenChannels() {
+    return Collections.unmodifiableMap(cachedChannels);
+  }
+
+  /** Returns the Client that owns (or would own) the channel of a partition */
+  public SnowflakeStreamingIngestClient getClient(TablePartitionKey tableKey) {
+    return clientManager.getClient(tableKey);
+  }
+
+  /**
+   * Invalidates a channel by removing it from the map. The channel is reopened in the background the
+   * next time that the partition is scheduled to drain.
+   */
   public void invalidateChannel(String database, String schema, String table, long partitionIndex) {
     cachedChannels.remove(new TablePartitionKey(database, schema, table, partitionIndex));
   }
 
+  /**
+   * Invalidates the channel of a partition if it is still the given one, so that a channel that was
+   * reopened in the meantime is kept
+   */
+  public void invalidateChannel(TablePartitionKey tableKey, SnowflakeStreamingIngestChannel channel) {
+    cachedChannels.remove(tableKey, channel);
+  }
+
+  /** Stops rebalancing the Client pools and applying table overrides */
+  public void shutdown() {
+    TableOverrides.getInstance().removeChangeListener(clientLagOverridesListener);
+    clientManager.shutdown();
+  }
+
   /** Removes all channels */
   public void removeAllChannels() {
     for (SnowflakeStreamingIngestChannel channel : cachedChannels.values()) {
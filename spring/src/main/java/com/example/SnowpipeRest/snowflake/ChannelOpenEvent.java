@@ -0,0 +1,36 @@
+package com.example.SnowpipeRest.snowflake;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event covering the open of the channel of a partition, from the request to Snowflake until
+ * the channel is ready or the open fails.
+ */
+@Name("com.example.SnowpipeRest.ChannelOpen")
+@Label("Channel Open")
+@Description("Open of the channel of a partition")
+@Category({"Snowpipe REST", "Channel"})
+class ChannelOpenEvent extends Event {
+
+  @Label("Database")
+  String database;
+
+  @Label("Schema")
+  String schema;
+
+  @Label("Table")
+  String table;
+
+  @Label("Partition")
+  long partition;
+
+  @Label("Channel")
+  String channel;
+
+  @Label("Success")
+  boolean success;
+}
@@ -28,6 +28,12 @@ public class ClientConfig {
   @Value("${rest_api.late_arriving_max_client_lag}")
   private String lateArrivingMaxClientLag;
 
+  @Value("${rest_api.high_priority_max_client_lag}")
+  private String highPriorityMaxClientLag;
+
+  @Value("${rest_api.low_priority_max_client_lag}")
+  private String lowPriorityMaxClientLag;
+
   @Value("${rest_api.default_compression_algorithm}")
   private String defaultCompressionAlgorithm;
 
@@ -37,6 +43,42 @@ public class ClientConfig {
   @Value("${rest_api.drain_manager_max_chunk_size_in_bytes}")
   private int maxChunkSizeInBytes;
 
+  @Value("${rest_api.channel_open_threads:4}")
+  private int channelOpenThreads;
+
+  @Value("${rest_api.client_pool_size:0}")
+  private int clientPoolSize;
+
+  @Value("${rest_api.client_pool_rebalance_interval_ms:30000}")
+  private long clientPoolRebalanceIntervalMs;
+
+  @Value("${rest_api.client_pool_rebalance_latency_ratio:2.0}")
+  private double clientPoolRebalanceLatencyRatio;
+
+  @Value("${rest_api.client_mode:snowflake}")
+  private String clientMode;
+
+  @Value("${rest_api.simulated_insert_latency_us:0}")
+  private long simulatedInsertLatencyMicros;
+
+  @Value("${rest_api.simulated_flush_lag_ms:1000}")
+  private long simulatedFlushLagMs;
+
+  @Value("${rest_api.simulated_commit_mode:lag}")
+  private String simulatedCommitMode;
+
+  @Value("${rest_api.simulated_insert_error_rate:0}")
+  private double simulatedInsertErrorRate;
+
+  @Value("${rest_api.simulated_channel_error_rate:0}")
+  private double simulatedChannelErrorRate;
+
+  @Value("${rest_api.simulated_open_error_rate:0}")
+  private double simulatedOpenErrorRate;
+
+  @Value("${rest_api.simulated_max_bytes_per_second:0}")
+  private long simulatedMaxBytesPerSecond;
+
 
   private void checkEnv(String envName) {
     String val = System.getenv(envName);
@@ -54,6 +96,14 @@ public class ClientConfig {
     return Integer.parseInt(envVal);
   }
 
+  private double getEnvDouble(String envName) {
+    String envVal = System.getenv(envName);
+    if (envVal == null || envVal.isEmpty()) {
+      return 0;
+    }
+    return Double.parseDouble(envVal);
+  }
+
   public long getMaxChunkSizeInBytes() {
     if (maxChunkSizeInBytes <= 0) {
       String envName = "REST_API_DRAIN_MANAGER_MAX_CHUNK_SIZE_IN_BYTES";
@@ -75,6 +125,83 @@ public class ClientConfig {
     return maxChannelSizeInBytes;
   }
 
+  public int getChannelOpenThreads() {
+    if (channelOpenThreads <= 0) {
+      long envVal = getEnv("REST_API_CHANNEL_OPEN_THREADS");
+      return envVal > 0 ? (int) envVal : ChannelManager.DEFAULT_CHANNEL_OPEN_THREADS;
+    }
+    return channelOpenThreads;
+  }
+
+  /** Returns the number of Clients to spread channels across, 0 to disable the Client pool */
+  public int getClientPoolSize() {
+    if (clientPoolSize <= 0) {
+      return (int) getEnv("REST_API_CLIENT_POOL_SIZE");
+    }
+    return clientPoolSize;
+  }
+
+  public long getClientPoolRebalanceIntervalMs() {
+    if (clientPoolRebalanceIntervalMs <= 0) {
+      long envVal = getEnv("REST_API_CLIENT_POOL_REBALANCE_INTERVAL_MS");
+      return envVal > 0 ? envVal : 30000;
+    }
+    return clientPoolRebalanceIntervalMs;
+  }
+
+  public double getClientPoolRebalanceLatencyRatio() {
+    if (clientPoolRebalanceLatencyRatio <= 0) {
+      String envVal = System.getenv("REST_API_CLIENT_POOL_REBALANCE_LATENCY_RATIO");
+      return envVal == null || envVal.isEmpty() ? 2.0 : Double.parseDouble(envVal);
+    }
+    return clientPoolRebalanceLatencyRatio;
+  }
+
+  /**
+   * Returns true when Clients are {@link SimulatedIngestClient}s rather than real Snowflake
+   * Clients, i.e. `rest_api.client_mode` is `simulated`
+   */
+  public boolean isSimulatedClientMode() {
+    String mode = clientMode;
+    if (mode == null || mode.isEmpty()) {
+      mode = System.getenv("REST_API_CLIENT_MODE");
+    }
+    return "simulated".equalsIgnoreCase(mode);
+  }
+
+  /** Returns the behaviour of the simulated Snowflake, only used in simulated Client mode */
+  public SimulatedSnowflake.Settings getSimulatedSettings() {
+    long insertLatencyMicros =
+        simulatedInsertLatencyMicros > 0
+            ? simulatedInsertLatencyMicros
+            : getEnv("REST_API_SIMULATED_INSERT_LATENCY_US");
+    long flushLagMs = simulatedFlushLagMs;
+    if (flushLagMs <= 0) {
+      String envVal = System.getenv("REST_API_SIMULATED_FLUSH_LAG_MS");
+      flushLagMs = envVal == null || envVal.isEmpty() ? 1000 : Long.parseLong(envVal);
+    }
+    String commitMode = simulatedCommitMode;
+    if (commitMode == null || commitMode.isEmpty()) {
+      commitMode = System.getenv("REST_API_SIMULATED_COMMIT_MODE");
+    }
+    return new SimulatedSnowflake.Settings(
+        insertLatencyMicros,
+        flushLagMs,
+        !"never".equalsIgnoreCase(commitMode),
+        simulatedInsertErrorRate > 0
+            ? simulatedInsertErrorRate
+            : getEnvDouble("REST_API_SIMULATED_INSERT_ERROR_RATE"),
+        simulatedChannelErrorRate > 0
+            ? simulatedChannelErrorRate
+            : getEnvDouble("REST_API_SIMULATED_CHANNEL_ERROR_RATE"),
+        simulatedOpenErrorRate > 0
+            ? simulatedOpenErrorRate
+            : getEnvDouble("REST_API_SIMULATED_OPEN_ERROR_RATE"),
+        simulatedMaxBytesPerSecond > 0
+            ? simulatedMaxBytesPerSecond
+            : getEnv("REST_API_SIMULATED_MAX_BYTES_PER_SECOND"));
+  }
+
   public String getSnowflakeUrl() {
     if (snowflakeUrl == null) {
       LOGGER.info("Defaulting to SNOWFLAKE_URL environment variable");
@@ -123,6 +250,24 @@ public class ClientConfig {
     return maxClientLag;
   }
 
+  /** Returns the max client lag of high priority tables, null or empty to use the max client lag */
+  public String getHighPriorityMaxClientLag() {
+    if (highPriorityMaxClientLag == null) {
+      LOGGER.info("Defaulting to REST_API_HIGH_PRIORITY_MAX_CLIENT_LAG environment variable");
+      return System.getenv("REST_API_HIGH_PRIORITY_MAX_CLIENT_LAG");
+    }
+    return highPriorityMaxClientLag;
+  }
+
+  /** Returns the max client lag of low priority tables, null or empty to use the max client lag */
+  public String getLowPriorityMaxClientLag() {
+    if (lowPriorityMaxClientLag == null) {
+      LOGGER.info("Defaulting to REST_API_LOW_PRIORITY_MAX_CLIENT_LAG environment variable");
+      return System.getenv("REST_API_LOW_PRIORITY_MAX_CLIENT_LAG");
+    }
+    return lowPriorityMaxClientLag;
+  }
+
   public boolean shouldUseMultipleClients() {
     String isSet = System.getenv("REST_API_USE_MULTIPLE_CLIENTS");
     if (isSet == null || isSet.isEmpty()) {
@@ -1,6 +1,11 @@
 package com.example.SnowpipeRest.snowflake;
 
+import com.example.SnowpipeRest.utils.IsolationGroup;
+import com.example.SnowpipeRest.utils.IsolationGroups;
+import com.example.SnowpipeRest.utils.PriorityClass;
 import com.example.SnowpipeRest.utils.TableKey;
+import com.example.SnowpipeRest.utils.TableOverride;
+import com.example.SnowpipeRest.utils.TableOverrides;
 import com.example.SnowpipeRest.utils.TablePartitionKey;
 import com.example.SnowpipeRest.utils.Utils;
 import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
@@ -9,12 +14,23 @@ import net.snowflake.ingest.utils.ParameterProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
 /**
- * Snowpipe Streaming Client Manager. May return unique Clients or may share a Client. For now this
- * simply creates one Client per destination table as to not interleave.
+ * Snowpipe Streaming Client Manager. May return unique Clients or may share a Client. By default
+ * this creates one Client per destination table as to not interleave. When a Client pool size is
+ * configured, channels are instead spread across a bounded {@link ClientPool} by observed load.
+ * Tables of an isolation group with a `client_pool_size` get pools of their own whatever the mode,
+ * so that their channels never share a Client with other tables. Tables of the `high` and `low`
+ * priority classes flush through Clients built with the max client lag of their class.
  */
 public class ClientManager {
 
@@ -24,11 +40,36 @@ public class ClientManager {
 
   private ConcurrentHashMap<TableKey, SnowflakeStreamingIngestClient> clientsPerTable;
 
+  // Max client lag that each per table Client was built with, empty for the SDK default
+  private final ConcurrentHashMap<TableKey, String> clientLagsPerTable = new ConcurrentHashMap<>();
+
   private boolean useMultipleClients;
   private boolean useSecondClientForLateArrivingPartitions;
   private SnowflakeStreamingIngestClient singletonClientInstance;
   private SnowflakeStreamingIngestClient singletonLateArrivingClientInstance;
 
+  // Pools used when a Client pool size is configured. Late arriving partitions get their own pool
+  // since their Clients are built with a different max client lag.
+  private ClientPool clientPool;
+  private ClientPool lateArrivingClientPool;
+
+  // Pools dedicated to the isolation groups that have a Client pool size, keyed by group name
+  private final Map<String, ClientPool> groupClientPools = new HashMap<>();
+  private final Map<String, ClientPool> groupLateArrivingClientPools = new HashMap<>();
+
+  // Clients shared by the regular partitions of each non default priority class when Clients are
+  // not per table, built on first use with the max client lag of their class
+  private final Map<PriorityClass, SnowflakeStreamingIngestClient> priorityClassClients =
+      new EnumMap<>(PriorityClass.class);
+
+  // Priority class of each table when its Client was first looked up. Fixed from then on, as the
+  // channels of the table stay open on the Client of that class.
+  private final ConcurrentHashMap<TableKey, PriorityClass> priorityClassesByTable =
+      new ConcurrentHashMap<>();
+
+  // Stand-in for Snowflake shared by every Client when running in simulated Client mode
+  private SimulatedSnowflake simulatedSnowflake;
+
   /** Initializes a Client manager backed by a single Snowpipe Streaming Client instance */
   public ClientManager() {}
 
@@ -36,22 +77,77 @@ public class ClientManager {
     this.config = config;
     this.useMultipleClients = config.shouldUseMultipleClients();
     this.useSecondClientForLateArrivingPartitions = config.shouldUseSecondaryClientForLateArriving();
-    if (!useMultipleClients) {
+    if (config.isSimulatedClientMode()) {
+      SimulatedSnowflake.Settings settings = config.getSimulatedSettings();
+      LOGGER.warn("Using simulated Snowflake Clients, no data will be ingested. settings={}", settings);
+      this.simulatedSnowflake = new SimulatedSnowflake(settings);
+    }
+    int clientPoolSize = config.getClientPoolSize();
+    if (clientPoolSize > 0) {
+      this.clientPool =
+          new ClientPool(
+              "default",
+              clientPoolSize,
+              i -> buildSingletonClientInstance(false),
+              config.getClientPoolRebalanceLatencyRatio());
+      this.lateArrivingClientPool =
+          new ClientPool(
+              "late_arriving",
+              clientPoolSize,
+              i -> buildSingletonClientInstance(true),
+              config.getClientPoolRebalanceLatencyRatio());
+      clientPool.start(config.getClientPoolRebalanceIntervalMs());
+      lateArrivingClientPool.start(config.getClientPoolRebalanceIntervalMs());
+    } else if (!useMultipleClients) {
       singletonClientInstance = buildSingletonClientInstance(false);
       if (useSecondClientForLateArrivingPartitions) {
         singletonLateArrivingClientInstance = buildSingletonClientInstance(true);
       }
     }
+    for (IsolationGroup group : IsolationGroups.getInstance().getGroups()) {
+      int groupPoolSize = group.clientPoolSizeOrNone();
+      if (groupPoolSize <= 0) {
+        continue;
+      }
+      ClientPool pool =
+          new ClientPool(
+              group.name(),
+              groupPoolSize,
+              i -> buildSingletonClientInstance(false),
+              config.getClientPoolRebalanceLatencyRatio());
+      ClientPool latePool =
+          new ClientPool(
+              group.name() + "_late_arriving",
+              groupPoolSize,
+              i -> buildSingletonClientInstance(true),
+              config.getClientPoolRebalanceLatencyRatio());
+      pool.start(config.getClientPoolRebalanceIntervalMs());
+      latePool.start(config.getClientPoolRebalanceIntervalMs());
+      groupClientPools.put(group.name(), pool);
+      groupLateArrivingClientPools.put(group.name(), latePool);
+    }
     this.clientsPerTable = new ConcurrentHashMap<>();
   }
 
   /** Returns the Client instance (currently a singleton) */
   public SnowflakeStreamingIngestClient getClient(TablePartitionKey tableKey) {
-
-    if (useMultipleClients){
-      // If we are using multiple clients, we will create a new client for each table + late arriving combination
-      TableKey tk = new TableKey(tableKey.getDatabase(), tableKey.getSchema(), tableKey.getTable(), tableKey.isLateArrivingPartition());
-      return clientsPerTable.computeIfAbsent(tk, tkk -> buildSingletonClientInstance(tkk.isLateArrivingClient()));
+    ClientPool groupPool = getGroupClientPool(tableKey);
+    if (groupPool != null) {
+      return groupPool.getClient(tableKey);
+    }
+    if (clientPool != null || !useMultipleClients) {
+      PriorityClass priorityClass = getPriorityClass(tableKey);
+      if (!tableKey.isLateArrivingPartition() && priorityClass != PriorityClass.NORMAL) {
+        return getPriorityClassClient(priorityClass);
+      }
+    }
+    ClientPool pool = getClientPool(tableKey);
+    if (pool != null) {
+      return pool.getClient(tableKey);
+    } else if (useMultipleClients){
+      // If we are using multiple clients, we will create a new client for each table + lateness tier combination
+      TableKey tk = new TableKey(tableKey.getDatabase(), tableKey.getSchema(), tableKey.getTable(), tableKey.getLatenessTier());
+      return clientsPerTable.computeIfAbsent(tk, this::buildTableClientInstance);
     } else {
       if (useSecondClientForLateArrivingPartitions && tableKey.isLateArrivingPartition()) {
         // If secondary client is enabled, we will use the late arriving client for late arriving partitions
@@ -62,6 +158,178 @@ public class ClientManager {
     }
   }
 
+  /**
+   * Returns the max client lag of a table, a table override takes precedence over the lag of its
+   * priority class, which takes precedence over the config
+   */
+  private String getMaxClientLag(TableKey tableKey) {
+    TableOverride override =
+        TableOverrides.getInstance().get(tableKey.database(), tableKey.schema(), tableKey.table());
+    return tableKey.isLateArrivingClient()
+        ? override.latenessTierMaxClientLagOr(
+            tableKey.latenessTier(), config.getLateArrivingMaxClientLag())
+        : override.maxClientLagOr(getMaxClientLag(override.priorityClassOrDefault()));
+  }
+
+  /** Returns the max client lag of the regular partitions of a priority class */
+  private String getMaxClientLag(PriorityClass priorityClass) {
+    String maxLag =
+        switch (priorityClass) {
+          case HIGH -> config.getHighPriorityMaxClientLag();
+          case LOW -> config.getLowPriorityMaxClientLag();
+          case NORMAL -> null;
+        };
+    return maxLag == null || maxLag.isEmpty() ? config.getMaxClientLag() : maxLag;
+  }
+
+  private PriorityClass getPriorityClass(TablePartitionKey tableKey) {
+    return priorityClassesByTable.computeIfAbsent(
+        new TableKey(tableKey.getDatabase(), tableKey.getSchema(), tableKey.getTable(), 0),
+        t ->
+            TableOverrides.getInstance()
+                .get(t.database(), t.schema(), t.table())
+                .priorityClassOrDefault());
+  }
+
+  private SnowflakeStreamingIngestClient getPriorityClassClient(PriorityClass priorityClass) {
+    synchronized (priorityClassClients) {
+      return priorityClassClients.computeIfAbsent(
+          priorityClass,
+          c -> {
+            String maxLag = getMaxClientLag(c);
+            LOGGER.info(
+                "Building Client of priority class. priorityClass={} maxClientLag={}",
+                c.getName(),
+                maxLag);
+            return buildClientInstance(maxLag);
+          });
+    }
+  }
+
+  private SnowflakeStreamingIngestClient buildTableClientInstance(TableKey tableKey) {
+    String maxLag = getMaxClientLag(tableKey);
+    SnowflakeStreamingIngestClient client = buildClientInstance(maxLag);
+    clientLagsPerTable.put(tableKey, Objects.toString(maxLag, ""));
+    return client;
+  }
+
+  /**
+   * Replaces the per table Clients whose max client lag was changed by a table override, as the lag
+   * of a Client cannot be changed once it is built. Channels opened from now on use the new
+   * Clients, the caller is expected to move open channels over and close the replaced Clients.
+   *
+   * @return the replaced Clients, keyed by table
+   */
+  Map<TableKey, SnowflakeStreamingIngestClient> replaceClientsWithChangedLag() {
+    Map<TableKey, SnowflakeStreamingIngestClient> replaced = new HashMap<>();
+    if (config == null) {
+      return replaced;
+    }
+    if (clientPool != null || !useMultipleClients) {
+      boolean lagOverridden =
+          TableOverrides.getInstance().getAll().values().stream()
+              .anyMatch(
+                  o ->
+                      o.maxClientLag() != null
+                          || o.lateArrivingMaxClientLag() != null
+                          || (o.latenessTiers() != null
+                              && o.latenessTiers().stream()
+                                  .anyMatch(tier -> tier.maxClientLag() != null)));
+      if (lagOverridden) {
+        LOGGER.warn("Max client lag can only be overridden per table with per table Clients, ignoring it");
+      }
+      return replaced;
+    }
+    for (TableKey tableKey : clientsPerTable.keySet()) {
+      String maxLag = getMaxClientLag(tableKey);
+      if (Objects.toString(maxLag, "").equals(clientLagsPerTable.get(tableKey))) {
+        continue;
+      }
+      SnowflakeStreamingIngestClient previous =
+          clientsPerTable.put(tableKey, buildTableClientInstance(tableKey));
+      if (previous != null) {
+        replaced.put(tableKey, previous);
+      }
+      LOGGER.info(
+          "Replaced Client to change its max client lag. db={} schema={} table={} latenessTier={} maxClientLag={}",
+          tableKey.database(),
+          tableKey.schema(),
+          tableKey.table(),
+          tableKey.latenessTier(),
+          maxLag);
+    }
+    return replaced;
+  }
+
+  /** Returns the pool of a partition, its group's if it has one, null if it is not pooled */
+  private ClientPool getClientPool(TablePartitionKey tableKey) {
+    ClientPool pool = getGroupClientPool(tableKey);
+    if (pool != null) {
+      return pool;
+    }
+    return tableKey.isLateArrivingPartition() ? lateArrivingClientPool : clientPool;
+  }
+
+  /** Returns the pool of the isolation group of a partition, null if its group has none */
+  private ClientPool getGroupClientPool(TablePartitionKey tableKey) {
+    if (groupClientPools.isEmpty()) {
+      return null;
+    }
+    String group =
+        IsolationGroups.getInstance()
+            .groupOf(tableKey.getDatabase(), tableKey.getSchema(), tableKey.getTable())
+            .name();
+    return tableKey.isLateArrivingPartition()
+        ? groupLateArrivingClientPools.get(group)
+        : groupClientPools.get(group);
+  }
+
+  /** Returns every pool, the default pools first */
+  private List<ClientPool> getClientPools() {
+    List<ClientPool> pools = new ArrayList<>();
+    if (clientPool != null) {
+      pools.add(clientPool);
+      pools.add(lateArrivingClientPool);
+    }
+    pools.addAll(groupClientPools.values());
+    pools.addAll(groupLateArrivingClientPools.values());
+    return pools;
+  }
+
+  /**
+   * Sets the listener notified when a partition is moved to another Client of the pool. The
+   * listener is expected to reopen the partition's channel on the new Client.
+   */
+  public void setReassignmentListener(
+      BiConsumer<TablePartitionKey, SnowflakeStreamingIngestClient> reassignmentListener) {
+    for (ClientPool pool : getClientPools()) {
+      pool.setReassignmentListener(reassignmentListener);
+    }
+  }
+
+  /** Records bytes sent to the channel of a partition, used to balance the Client pool */
+  public void recordBytes(TablePartitionKey tableKey, long bytes) {
+    ClientPool pool = getClientPool(tableKey);
+    if (pool != null) {
+      pool.recordBytes(tableKey, bytes);
+    }
+  }
+
+  /** Records the commit latency of the channel of a partition, used to rebalance the Client pool */
+  public void recordCommitLatency(TablePartitionKey tableKey, long latencyMs) {
+    ClientPool pool = getClientPool(tableKey);
+    if (pool != null) {
+      pool.recordCommitLatency(tableKey, latencyMs);
+    }
+  }
+
+  /** Stops rebalancing every pool */
+  public void shutdown() {
+    for (ClientPool pool : getClientPools()) {
+      pool.shutdown();
+    }
+  }
+
   /** Verifies the connection by creating a single Client instance not bound to a table */
   public boolean credentialsValid() {
     try {
@@ -77,6 +345,18 @@ public class ClientManager {
       LOGGER.error("No configuration provided");
       throw new RuntimeException("Null configuration provided");
     }
+    String maxLag = isLateArrivingClient ? config.getLateArrivingMaxClientLag() : config.getMaxClientLag();
+    return buildClientInstance(maxLag);
+  }
+
+  private SnowflakeStreamingIngestClient buildClientInstance(String maxLag) {
+    if (config == null) {
+      LOGGER.error("No configuration provided");
+      throw new RuntimeException("Null configuration provided");
+    }
+    if (simulatedSnowflake != null) {
+      return simulatedSnowflake.newClient("REST_" + Utils.getHostName());
+    }
     if (config.getSnowflakeUrl() == null
         || config.getSnowflakeRole() == null
         || config.getSnowflakePrivateKey() == null
@@ -89,7 +369,6 @@ public class ClientManager {
     props.put("user", config.getSnowflakeUser());
     props.put("role", config.getSnowflakeRole());
     props.put("private_key", config.getSnowflakePrivateKey());
-    String maxLag = isLateArrivingClient ? config.getLateArrivingMaxClientLag() : config.getMaxClientLag();
     if (maxLag != null) {
       props.put(ParameterProvider.MAX_CLIENT_LAG, maxLag);
     }
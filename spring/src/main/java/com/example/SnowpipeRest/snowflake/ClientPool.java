@@ -0,0 +1,359 @@
+package com.example.SnowpipeRest.snowflake;
+
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * A bounded pool of Clients that channels are spread across. A partition is assigned to the Client
+ * with the lowest observed byte rate when its channel is first opened. Periodically the pool looks
+ * at the commit latency of each Client and, if one is lagging well behind its peers, moves its
+ * busiest partition to the least loaded Client. The load of each Client is published as gauges
+ * tagged by `pool` and `client`.
+ */
+public class ClientPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClientPool.class);
+
+  // Weight of the latest sample in the moving averages of byte rate and commit latency
+  static final double EWMA_ALPHA = 0.3;
+
+  /** Load observed for a single partition */
+  static class PartitionLoad {
+    final LongAdder bytesSinceLastTick = new LongAdder();
+    volatile double bytesPerSecond;
+    volatile int slot;
+
+    PartitionLoad(int slot) {
+      this.slot = slot;
+    }
+  }
+
+  /** Load observed for a single Client of the pool */
+  static class Slot {
+    final int index;
+    volatile SnowflakeStreamingIngestClient client;
+    volatile double bytesPerSecond;
+    volatile int channelCount;
+    // -1 until the first commit is observed, and again after a partition is moved off of the
+    // Client until a commit shows how it fares without it
+    volatile double commitLatencyMs = -1;
+
+    Slot(int index) {
+      this.index = index;
+    }
+  }
+
+  /** Point in time load of a Client */
+  public record ClientLoad(
+      String pool, int index, int channelCount, double bytesPerSecond, double commitLatencyMs) {}
+
+  private final String name;
+  private final Slot[] slots;
+  private final IntFunction<SnowflakeStreamingIngestClient> clientFactory;
+  private final double rebalanceLatencyRatio;
+  private final ConcurrentHashMap<TablePartitionKey, PartitionLoad> partitions;
+
+  // Notified when a partition is moved to another Client so that its channel can be reopened
+  private volatile BiConsumer<TablePartitionKey, SnowflakeStreamingIngestClient> reassignmentListener =
+      (tableKey, client) -> {};
+
+  private ScheduledExecutorService scheduler;
+  private long lastTickNanos;
+
+  /**
+   * @param name name of the pool, used when logging and publishing load
+   * @param size maximum number of Clients in the pool
+   * @param clientFactory builds the Client of a slot, Clients are built on first use
+   * @param rebalanceLatencyRatio a Client is rebalanced once its commit latency exceeds the mean
+   *     of its peers by this factor
+   */
+  public ClientPool(
+      String name,
+      int size,
+      IntFunction<SnowflakeStreamingIngestClient> clientFactory,
+      double rebalanceLatencyRatio) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Client pool size must be positive. size=" + size);
+    }
+    this.name = name;
+    this.slots = new Slot[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot(i);
+    }
+    this.clientFactory = clientFactory;
+    this.rebalanceLatencyRatio = rebalanceLatencyRatio;
+    this.partitions = new ConcurrentHashMap<>();
+    this.lastTickNanos = System.nanoTime();
+    for (Slot slot : slots) {
+      registerGauges(slot);
+    }
+  }
+
+  private void registerGauges(Slot slot) {
+    Tags tags = Tags.of("pool", name, "client", Integer.toString(slot.index));
+    Gauge.builder("snowpipe.rest.client.pool.channels", slot, s -> s.channelCount)
+        .description("Partitions assigned to a pooled Client")
+        .tags(tags)
+        .register(Metrics.globalRegistry);
+    Gauge.builder("snowpipe.rest.client.pool.bytes", slot, s -> s.bytesPerSecond)
+        .description("Bytes per second sent to the channels of a pooled Client")
+        .baseUnit("bytes/s")
+        .tags(tags)
+        .register(Metrics.globalRegistry);
+    TimeGauge.builder(
+            "snowpipe.rest.client.pool.commit.latency",
+            slot,
+            TimeUnit.MILLISECONDS,
+            // NaN until a commit is observed
+            s -> s.commitLatencyMs >= 0 ? s.commitLatencyMs : Double.NaN)
+        .description("Moving average of how long offsets sent to a pooled Client take to commit")
+        .tags(tags)
+        .register(Metrics.globalRegistry);
+  }
+
+  public void setReassignmentListener(
+      BiConsumer<TablePartitionKey, SnowflakeStreamingIngestClient> reassignmentListener) {
+    this.reassignmentListener = reassignmentListener;
+  }
+
+  /**
+   * Starts rebalancing the pool in the background
+   *
+   * @param rebalanceIntervalMs the delay between two rebalances, in MS
+   */
+  public synchronized void start(long rebalanceIntervalMs) {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("client-pool-" + name + "-%d")
+                .setDaemon(true)
+                .build());
+    scheduler.scheduleWithFixedDelay(
+        this::rebalanceSafely, rebalanceIntervalMs, rebalanceIntervalMs, TimeUnit.MILLISECONDS);
+    LOGGER.info(
+        "Started client pool. pool={} size={} rebalanceIntervalMs={}",
+        name,
+        slots.length,
+        rebalanceIntervalMs);
+  }
+
+  public synchronized void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+  }
+
+  /** Returns the Client that a partition is assigned to, assigning it if need be */
+  public SnowflakeStreamingIngestClient getClient(TablePartitionKey tableKey) {
+    PartitionLoad load = partitions.get(tableKey);
+    if (load == null) {
+      load = assign(tableKey);
+    }
+    return getOrBuildClient(slots[load.slot]);
+  }
+
+  private synchronized PartitionLoad assign(TablePartitionKey tableKey) {
+    PartitionLoad load = partitions.get(tableKey);
+    if (load != null) {
+      return load;
+    }
+    Slot slot = leastLoaded(-1);
+    load = new PartitionLoad(slot.index);
+    partitions.put(tableKey, load);
+    slot.channelCount++;
+    LOGGER.info(
+        "Assigned partition to client. pool={} client={} db={} schema={} table={} partition={}",
+        name,
+        slot.index,
+        tableKey.getDatabase(),
+        tableKey.getSchema(),
+        tableKey.getTable(),
+        tableKey.getPartitionIndex());
+    return load;
+  }
+
+  private SnowflakeStreamingIngestClient getOrBuildClient(Slot slot) {
+    SnowflakeStreamingIngestClient client = slot.client;
+    if (client == null) {
+      synchronized (slot) {
+        client = slot.client;
+        if (client == null) {
+          client = clientFactory.apply(slot.index);
+          slot.client = client;
+        }
+      }
+    }
+    return client;
+  }
+
+  /** Returns the slot with the lowest byte rate, breaking ties on channel count */
+  private Slot leastLoaded(int excludedIndex) {
+    Slot best = null;
+    for (Slot slot : slots) {
+      if (slot.index == excludedIndex) {
+        continue;
+      }
+      if (best == null
+          || slot.bytesPerSecond < best.bytesPerSecond
+          || (slot.bytesPerSecond == best.bytesPerSecond
+              && slot.channelCount < best.channelCount)) {
+        best = slot;
+      }
+    }
+    return best;
+  }
+
+  /** Records bytes sent to the channel of a partition */
+  public void recordBytes(TablePartitionKey tableKey, long bytes) {
+    PartitionLoad load = partitions.get(tableKey);
+    if (load != null) {
+      load.bytesSinceLastTick.add(bytes);
+    }
+  }
+
+  /** Records how long it took for an offset sent to the channel of a partition to be committed */
+  public void recordCommitLatency(TablePartitionKey tableKey, long latencyMs) {
+    PartitionLoad load = partitions.get(tableKey);
+    if (load == null) {
+      return;
+    }
+    Slot slot = slots[load.slot];
+    synchronized (slot) {
+      slot.commitLatencyMs =
+          slot.commitLatencyMs < 0 ? latencyMs : ewma(slot.commitLatencyMs, latencyMs);
+    }
+  }
+
+  private static double ewma(double previous, double sample) {
+    return EWMA_ALPHA * sample + (1 - EWMA_ALPHA) * previous;
+  }
+
+  private void rebalanceSafely() {
+    try {
+      rebalance();
+    } catch (Exception e) {
+      LOGGER.error("Unable to rebalance client pool. pool={}", name, e);
+    }
+  }
+
+  /**
+   * Refreshes the byte rate of every partition and Client, which the gauges of the pool read, and
+   * moves the busiest partition off of any Client whose commit latency is lagging behind its peers.
+   */
+  @VisibleForTesting
+  public synchronized void rebalance() {
+    long now = System.nanoTime();
+    double elapsedSeconds = Math.max(1, now - lastTickNanos) / 1e9;
+    lastTickNanos = now;
+
+    double[] slotBytesPerSecond = new double[slots.length];
+    for (PartitionLoad load : partitions.values()) {
+      load.bytesPerSecond =
+          ewma(load.bytesPerSecond, load.bytesSinceLastTick.sumThenReset() / elapsedSeconds);
+      slotBytesPerSecond[load.slot] += load.bytesPerSecond;
+    }
+    for (Slot slot : slots) {
+      slot.bytesPerSecond = slotBytesPerSecond[slot.index];
+    }
+
+    for (Slot slot : slots) {
+      if (isLagging(slot)) {
+        moveBusiestPartition(slot);
+      }
+    }
+  }
+
+  /** Whether the commit latency of a Client exceeds the mean of its peers by the configured ratio */
+  private boolean isLagging(Slot slot) {
+    if (slot.commitLatencyMs < 0 || slot.channelCount <= 1) {
+      // Moving a Client's only channel would just move the lag along with it
+      return false;
+    }
+    double peerLatencyMs = 0;
+    int peers = 0;
+    for (Slot peer : slots) {
+      if (peer != slot && peer.commitLatencyMs >= 0) {
+        peerLatencyMs += peer.commitLatencyMs;
+        peers++;
+      }
+    }
+    return peers > 0 && slot.commitLatencyMs > rebalanceLatencyRatio * (peerLatencyMs / peers);
+  }
+
+  private void moveBusiestPartition(Slot from) {
+    TablePartitionKey busiestKey = null;
+    PartitionLoad busiest = null;
+    for (Map.Entry<TablePartitionKey, PartitionLoad> entry : partitions.entrySet()) {
+      PartitionLoad load = entry.getValue();
+      if (load.slot == from.index
+          && (busiest == null || load.bytesPerSecond > busiest.bytesPerSecond)) {
+        busiestKey = entry.getKey();
+        busiest = load;
+      }
+    }
+    if (busiest == null) {
+      return;
+    }
+    Slot to = leastLoaded(from.index);
+    if (to == null) {
+      return;
+    }
+    double fromLatencyMs = from.commitLatencyMs;
+    busiest.slot = to.index;
+    synchronized (from) {
+      // The latency was observed with the moved partition, judge the Client again on fresh commits
+      // rather than moving another partition off of it on every tick
+      from.commitLatencyMs = -1;
+    }
+    from.channelCount--;
+    from.bytesPerSecond -= busiest.bytesPerSecond;
+    to.channelCount++;
+    to.bytesPerSecond += busiest.bytesPerSecond;
+    LOGGER.info(
+        "Moving partition to another client. pool={} from={} to={} commitLatencyMs={} db={} schema={} table={} partition={} bytesPerSecond={}",
+        name,
+        from.index,
+        to.index,
+        (long) fromLatencyMs,
+        busiestKey.getDatabase(),
+        busiestKey.getSchema(),
+        busiestKey.getTable(),
+        busiestKey.getPartitionIndex(),
+        (long) busiest.bytesPerSecond);
+    reassignmentListener.accept(busiestKey, getOrBuildClient(to));
+  }
+
+  /** Returns the current load of every Client in the pool */
+  public List<ClientLoad> getClientLoads() {
+    List<ClientLoad> loads = new ArrayList<>(slots.length);
+    for (Slot slot : slots) {
+      loads.add(
+          new ClientLoad(
+              name, slot.index, slot.channelCount, slot.bytesPerSecond, slot.commitLatencyMs));
+    }
+    return loads;
+  }
+}
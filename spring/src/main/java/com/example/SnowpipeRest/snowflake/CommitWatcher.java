@@ -0,0 +1,301 @@
+package com.example.SnowpipeRest.snowflake;
+
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+import com.example.SnowpipeRest.utils.Utils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Tracks the committed offset tokens of every open channel from a single background thread. Rather
+ * than each caller sleeping while it polls a channel (see {@link Utils#waitForChannelToDrain}), the
+ * watcher fetches the committed offset tokens for all channels of a Client in one call per poll and
+ * completes the futures of any subscribers whose offset has been committed.
+ */
+public class CommitWatcher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CommitWatcher.class);
+
+  private static CommitWatcher INSTANCE;
+
+  public static synchronized CommitWatcher getInstance() {
+    if (INSTANCE == null) {
+      INSTANCE = new CommitWatcher();
+    }
+    return INSTANCE;
+  }
+
+  @VisibleForTesting
+  public static synchronized void setInstance(CommitWatcher instance) {
+    INSTANCE = instance;
+  }
+
+  /** The latest committed offset seen for a partition along with any outstanding subscriptions */
+  static class PartitionCommitState {
+    // Epoch and buffer index of the latest committed offset token, -1 if nothing was committed
+    long committedEpochTs = -1;
+    long committedOffset = -1;
+
+    // Subscriptions that are still waiting on their offset to be committed. Concurrent since a
+    // subscription completed while they are being checked removes itself
+    final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+  }
+
+  record Subscription(long epochTs, long offset, CompletableFuture<Long> future) {}
+
+  /** Notified every time that a newer committed offset is seen for a partition */
+  @FunctionalInterface
+  public interface CommitListener {
+    void onCommit(TablePartitionKey tableKey, long epochTs, long committedOffset);
+  }
+
+  private final List<CommitListener> commitListeners = new CopyOnWriteArrayList<>();
+
+  @VisibleForTesting
+  final ConcurrentHashMap<TablePartitionKey, PartitionCommitState> partitions;
+
+  private ScheduledExecutorService scheduler;
+
+  // Whether a partition still has a buffer, the state of those that do not is dropped
+  private volatile Predicate<TablePartitionKey> hasBuffer = tableKey -> true;
+
+  CommitWatcher() {
+    this.partitions = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Starts polling the committed offset tokens of all open channels
+   *
+   * @param pollIntervalMs the delay between two polls, in MS
+   */
+  public synchronized void start(long pollIntervalMs) {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("commit-watcher-%d").setDaemon(true).build());
+    scheduler.scheduleWithFixedDelay(
+        this::pollSafely, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    LOGGER.info("Started commit watcher. pollIntervalMs={}", pollIntervalMs);
+  }
+
+  public void addCommitListener(CommitListener listener) {
+    commitListeners.add(listener);
+  }
+
+  public void removeCommitListener(CommitListener listener) {
+    commitListeners.remove(listener);
+  }
+
+  /**
+   * Sets which partitions still have a buffer. Partitions without one are no longer tracked, their
+   * state is dropped on the next poll once none of their subscriptions are outstanding.
+   */
+  public void setBufferedPartitions(Predicate<TablePartitionKey> hasBuffer) {
+    this.hasBuffer = hasBuffer;
+  }
+
+  /** Stops polling. Outstanding subscriptions are left incomplete. */
+  public synchronized void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Returns a future that completes once the given offset, or a later one, has been committed by
+   * the channel of the partition. The future completes exceptionally if another instance with a
+   * newer epoch takes over the channel. Callers that need a deadline should apply one with {@link
+   * CompletableFuture#orTimeout}.
+   *
+   * @param tableKey the partition that the offset was sent to
+   * @param epochTs the epoch of the ingest engine that sent the offset
+   * @param offset the buffer index that we want to see committed
+   * @return a future completing with the latest committed buffer index
+   */
+  public CompletableFuture<Long> awaitCommit(TablePartitionKey tableKey, long epochTs, long offset) {
+    PartitionCommitState state = partitions.computeIfAbsent(tableKey, k -> new PartitionCommitState());
+    Subscription subscription = new Subscription(epochTs, offset, new CompletableFuture<>());
+    synchronized (state) {
+      if (completeIfCommitted(state, subscription)) {
+        return subscription.future();
+      }
+      state.subscriptions.add(subscription);
+    }
+    // Forget subscriptions that are given up on, e.g. timed out with orTimeout
+    subscription
+        .future()
+        .whenComplete((committedOffset, e) -> state.subscriptions.remove(subscription));
+    return subscription.future();
+  }
+
+  /**
+   * @return the latest buffer index committed for the partition within the given epoch, -1 if
+   *     nothing has been committed yet
+   */
+  public long getLatestCommittedOffset(TablePartitionKey tableKey, long epochTs) {
+    PartitionCommitState state = partitions.get(tableKey);
+    if (state == null) {
+      return -1;
+    }
+    synchronized (state) {
+      return state.committedEpochTs == epochTs ? state.committedOffset : -1;
+    }
+  }
+
+  private void pollSafely() {
+    try {
+      poll();
+    } catch (Exception e) {
+      LOGGER.error("Unable to poll committed offset tokens", e);
+    }
+  }
+
+  /**
+   * Fetches the committed offset tokens of all open channels. Channels are grouped by the Client
+   * that owns them so that each Client is asked once for all of its channels.
+   */
+  @VisibleForTesting
+  public void poll() {
+    ChannelManager channelManager = ChannelManager.getInstance();
+    Map<SnowflakeStreamingIngestClient, List<TablePartitionKey>> keysByClient =
+        new IdentityHashMap<>();
+    List<TablePartitionKey> keysWithoutClient = new ArrayList<>();
+    Map<TablePartitionKey, SnowflakeStreamingIngestChannel> channels =
+        new HashMap<>(channelManager.getOpenChannels());
+    for (TablePartitionKey tableKey : channels.keySet()) {
+      SnowflakeStreamingIngestClient client = channelManager.getClient(tableKey);
+      if (client == null) {
+        keysWithoutClient.add(tableKey);
+      } else {
+        keysByClient.computeIfAbsent(client, c -> new ArrayList<>()).add(tableKey);
+      }
+    }
+
+    for (Map.Entry<SnowflakeStreamingIngestClient, List<TablePartitionKey>> entry :
+        keysByClient.entrySet()) {
+      List<SnowflakeStreamingIngestChannel> clientChannels = new ArrayList<>();
+      for (TablePartitionKey tableKey : entry.getValue()) {
+        clientChannels.add(channels.get(tableKey));
+      }
+      Map<String, String> offsetTokens;
+      try {
+        offsetTokens = entry.getKey().getLatestCommittedOffsetTokens(clientChannels);
+      } catch (Exception e) {
+        LOGGER.warn(
+            "Unable to fetch committed offset tokens in batch, falling back to per channel. client={} msg={}",
+            entry.getKey().getName(),
+            e.getMessage());
+        keysWithoutClient.addAll(entry.getValue());
+        continue;
+      }
+      for (int i = 0; i < clientChannels.size(); i++) {
+        onCommittedOffsetToken(
+            entry.getValue().get(i),
+            offsetTokens.get(clientChannels.get(i).getFullyQualifiedName()));
+      }
+    }
+
+    for (TablePartitionKey tableKey : keysWithoutClient) {
+      SnowflakeStreamingIngestChannel channel = channels.get(tableKey);
+      try {
+        onCommittedOffsetToken(tableKey, channel.getLatestCommittedOffsetToken());
+      } catch (Exception e) {
+        LOGGER.warn(
+            "Unable to fetch committed offset token. db={} schema={} table={} partition={} msg={}",
+            tableKey.getDatabase(),
+            tableKey.getSchema(),
+            tableKey.getTable(),
+            tableKey.getPartitionIndex(),
+            e.getMessage());
+      }
+    }
+    prune();
+  }
+
+  /** Drops the state of partitions that no longer have a buffer, nor outstanding subscriptions */
+  private void prune() {
+    Predicate<TablePartitionKey> hasBuffer = this.hasBuffer;
+    partitions
+        .entrySet()
+        .removeIf(
+            entry -> {
+              if (hasBuffer.test(entry.getKey())) {
+                return false;
+              }
+              synchronized (entry.getValue()) {
+                return entry.getValue().subscriptions.isEmpty();
+              }
+            });
+  }
+
+  /** Records the committed offset token of a partition and completes any satisfied subscriptions */
+  void onCommittedOffsetToken(TablePartitionKey tableKey, String offsetToken) {
+    if (offsetToken == null || offsetToken.isEmpty()) {
+      // Nothing ingested yet
+      return;
+    }
+    long epochTs;
+    long offset;
+    try {
+      epochTs = Utils.getEpochTsFromOffsetToken(offsetToken);
+      offset = Utils.getBufferIndexFromOffsetToken(offsetToken);
+    } catch (RuntimeException e) {
+      return;
+    }
+    if (!hasBuffer.test(tableKey)) {
+      return;
+    }
+    PartitionCommitState state = partitions.computeIfAbsent(tableKey, k -> new PartitionCommitState());
+    synchronized (state) {
+      if (epochTs < state.committedEpochTs
+          || (epochTs == state.committedEpochTs && offset <= state.committedOffset)) {
+        return;
+      }
+      state.committedEpochTs = epochTs;
+      state.committedOffset = offset;
+      state.subscriptions.removeIf(s -> completeIfCommitted(state, s));
+    }
+    for (CommitListener listener : commitListeners) {
+      try {
+        listener.onCommit(tableKey, epochTs, offset);
+      } catch (Exception e) {
+        LOGGER.error("Commit listener failed", e);
+      }
+    }
+  }
+
+  private static boolean completeIfCommitted(PartitionCommitState state, Subscription subscription) {
+    if (state.committedEpochTs > subscription.epochTs()) {
+      subscription
+          .future()
+          .completeExceptionally(
+              new IllegalStateException(
+                  "Channel is owned by a newer epoch. committedEpochTs="
+                      + state.committedEpochTs
+                      + " epochTs="
+                      + subscription.epochTs()));
+      return true;
+    }
+    if (state.committedEpochTs == subscription.epochTs()
+        && state.committedOffset >= subscription.offset()) {
+      subscription.future().complete(state.committedOffset);
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,204 @@
+package com.example.SnowpipeRest.snowflake;
+
+import com.example.SnowpipeRest.utils.Utils;
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.OpenChannelRequest;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.streaming.internal.ColumnProperties;
+import net.snowflake.ingest.utils.ErrorCode;
+import net.snowflake.ingest.utils.SFException;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Channel of a {@link SimulatedIngestClient}. Inserted rows are not kept, only their offset tokens
+ * and insert times, which is all that is needed to report committed offset tokens.
+ */
+class SimulatedIngestChannel implements SnowflakeStreamingIngestChannel {
+
+  private record PendingOffset(long insertedAtNanos, String offsetToken) {}
+
+  private final OpenChannelRequest request;
+  private final String fullyQualifiedName;
+  private final SimulatedIngestClient client;
+  private final SimulatedSnowflake snowflake;
+  private final SimulatedSnowflake.Settings settings;
+
+  // Offset tokens inserted but not committed yet, oldest first. Guarded by this.
+  private final ArrayDeque<PendingOffset> pendingOffsets;
+
+  private volatile boolean valid;
+  private volatile boolean closed;
+
+  SimulatedIngestChannel(
+      OpenChannelRequest request,
+      String fullyQualifiedName,
+      SimulatedIngestClient client,
+      SimulatedSnowflake snowflake) {
+    this.request = request;
+    this.fullyQualifiedName = fullyQualifiedName;
+    this.client = client;
+    this.snowflake = snowflake;
+    this.settings = snowflake.getSettings();
+    this.pendingOffsets = new ArrayDeque<>();
+    this.valid = true;
+  }
+
+  @Override
+  public String getFullyQualifiedName() {
+    return fullyQualifiedName;
+  }
+
+  @Override
+  public String getName() {
+    return request.getChannelName();
+  }
+
+  @Override
+  public String getDBName() {
+    return request.getDBName();
+  }
+
+  @Override
+  public String getSchemaName() {
+    return request.getSchemaName();
+  }
+
+  @Override
+  public String getTableName() {
+    return request.getTableName();
+  }
+
+  @Override
+  public String getFullyQualifiedTableName() {
+    return request.getFullyQualifiedTableName();
+  }
+
+  @Override
+  public boolean isValid() {
+    return valid;
+  }
+
+  @Override
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public CompletableFuture<Void> close() {
+    return close(false);
+  }
+
+  /** Closing flushes, so every pending row is committed unless commits are disabled */
+  @Override
+  public CompletableFuture<Void> close(boolean drop) {
+    synchronized (this) {
+      if (valid && settings.commitOffsets() && !pendingOffsets.isEmpty()) {
+        snowflake.commit(fullyQualifiedName, pendingOffsets.peekLast().offsetToken());
+      }
+      pendingOffsets.clear();
+    }
+    closed = true;
+    if (drop) {
+      snowflake.dropChannel(fullyQualifiedName);
+    }
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public InsertValidationResponse insertRow(Map<String, Object> row, String offsetToken) {
+    return insertRow(row, offsetToken, 0);
+  }
+
+  @Override
+  public InsertValidationResponse insertRows(
+      Iterable<Map<String, Object>> rows, String startOffsetToken, String endOffsetToken) {
+    InsertValidationResponse response = new InsertValidationResponse();
+    long rowIndex = 0;
+    for (Map<String, Object> row : rows) {
+      InsertValidationResponse rowResponse = insertRow(row, null, rowIndex++);
+      rowResponse.getInsertErrors().forEach(response::addError);
+    }
+    recordOffset(endOffsetToken);
+    return response;
+  }
+
+  @Override
+  public InsertValidationResponse insertRows(
+      Iterable<Map<String, Object>> rows, String offsetToken) {
+    return insertRows(rows, null, offsetToken);
+  }
+
+  private InsertValidationResponse insertRow(
+      Map<String, Object> row, String offsetToken, long rowIndex) {
+    if (closed) {
+      throw new SFException(ErrorCode.CLOSED_CHANNEL, fullyQualifiedName);
+    }
+    if (!valid) {
+      throw new SFException(ErrorCode.INVALID_CHANNEL, fullyQualifiedName, "Channel reopened");
+    }
+    if (settings.insertLatencyMicros() > 0) {
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(settings.insertLatencyMicros()));
+    }
+    client.acquireBytes((int) Math.min(Utils.estimateRowSizeInBytes(row), Integer.MAX_VALUE));
+    if (SimulatedSnowflake.roll(settings.channelErrorRate())) {
+      invalidate();
+      throw new SFException(
+          ErrorCode.INVALID_CHANNEL, fullyQualifiedName, "Simulated channel failure");
+    }
+    InsertValidationResponse response = new InsertValidationResponse();
+    if (SimulatedSnowflake.roll(settings.insertErrorRate())) {
+      InsertValidationResponse.InsertError error =
+          new InsertValidationResponse.InsertError(row, rowIndex);
+      error.setException(
+          new SFException(ErrorCode.INVALID_FORMAT_ROW, "Simulated row failure"));
+      response.addError(error);
+    }
+    recordOffset(offsetToken);
+    return response;
+  }
+
+  private synchronized void recordOffset(String offsetToken) {
+    if (offsetToken != null && valid) {
+      pendingOffsets.addLast(new PendingOffset(System.nanoTime(), offsetToken));
+    }
+  }
+
+  /** Commits, lazily, the offset tokens that are older than the flush lag */
+  @Override
+  public String getLatestCommittedOffsetToken() {
+    commitFlushedRows();
+    return snowflake.getCommittedOffsetToken(fullyQualifiedName);
+  }
+
+  synchronized void commitFlushedRows() {
+    if (!valid || !settings.commitOffsets()) {
+      return;
+    }
+    long flushedBeforeNanos =
+        System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(settings.flushLagMs());
+    String committed = null;
+    while (!pendingOffsets.isEmpty()
+        && pendingOffsets.peekFirst().insertedAtNanos() <= flushedBeforeNanos) {
+      committed = pendingOffsets.pollFirst().offsetToken();
+    }
+    if (committed != null) {
+      snowflake.commit(fullyQualifiedName, committed);
+    }
+  }
+
+  /** Invalidates the channel, dropping the rows that were not committed yet */
+  synchronized void invalidate() {
+    valid = false;
+    pendingOffsets.clear();
+  }
+
+  @Override
+  public Map<String, ColumnProperties> getTableSchema() {
+    return Map.of();
+  }
+}
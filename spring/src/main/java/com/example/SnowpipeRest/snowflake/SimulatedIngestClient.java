@@ -0,0 +1,79 @@
+package com.example.SnowpipeRest.snowflake;
+
+import com.google.common.util.concurrent.RateLimiter;
+import net.snowflake.ingest.streaming.DropChannelRequest;
+import net.snowflake.ingest.streaming.OpenChannelRequest;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Client of a {@link SimulatedSnowflake}, see there for how its channels behave */
+public class SimulatedIngestClient implements SnowflakeStreamingIngestClient {
+
+  private final String name;
+  private final SimulatedSnowflake snowflake;
+  // Shared by the channels of this Client, null when there is no limit
+  private final RateLimiter rateLimiter;
+  private volatile boolean closed;
+
+  SimulatedIngestClient(String name, SimulatedSnowflake snowflake, RateLimiter rateLimiter) {
+    this.name = name;
+    this.snowflake = snowflake;
+    this.rateLimiter = rateLimiter;
+  }
+
+  @Override
+  public SnowflakeStreamingIngestChannel openChannel(OpenChannelRequest request) {
+    return snowflake.openChannel(request, this);
+  }
+
+  @Override
+  public void dropChannel(DropChannelRequest request) {
+    snowflake.dropChannel(
+        request.getDBName()
+            + "."
+            + request.getSchemaName()
+            + "."
+            + request.getTableName()
+            + "."
+            + request.getChannelName());
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public void setRefreshToken(String refreshToken) {}
+
+  @Override
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public Map<String, String> getLatestCommittedOffsetTokens(
+      List<SnowflakeStreamingIngestChannel> channels) {
+    Map<String, String> offsetTokens = new HashMap<>();
+    for (SnowflakeStreamingIngestChannel channel : channels) {
+      offsetTokens.put(channel.getFullyQualifiedName(), channel.getLatestCommittedOffsetToken());
+    }
+    return offsetTokens;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+  }
+
+  /** Blocks until the byte rate limit of this Client lets the bytes through */
+  void acquireBytes(int bytes) {
+    if (rateLimiter != null && bytes > 0) {
+      rateLimiter.acquire(bytes);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.example.SnowpipeRest.snowflake;
+
+import com.google.common.util.concurrent.RateLimiter;
+import net.snowflake.ingest.streaming.OpenChannelRequest;
+import net.snowflake.ingest.utils.ErrorCode;
+import net.snowflake.ingest.utils.SFException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In process stand-in for the Snowflake side of Snowpipe Streaming, used to load test the whole
+ * application (HTTP, buffer, drain, commit) on one box without a Snowflake account. It hands out
+ * {@link SimulatedIngestClient}s whose channels behave like the SDK's: rows are committed once they
+ * are older than the flush lag, reopening a channel invalidates the previous instance and drops the
+ * rows it had not committed yet, and the committed offset token of a channel survives reopens.
+ * Latency, errors and a per Client byte rate limit can be injected through {@link Settings}.
+ */
+public class SimulatedSnowflake {
+
+  /**
+   * @param insertLatencyMicros time spent in every `insertRow` call
+   * @param flushLagMs how long after being inserted a row is committed, like the SDK's max client
+   *     lag
+   * @param commitOffsets whether rows are ever committed, false to exercise commit timeouts
+   * @param insertErrorRate share of rows, between 0 and 1, rejected with a row level error
+   * @param channelErrorRate share of `insertRow` calls, between 0 and 1, that invalidate the channel
+   * @param openErrorRate share of channel opens, between 0 and 1, that fail
+   * @param maxBytesPerSecond byte rate that each Client accepts before `insertRow` blocks, 0 for no
+   *     limit
+   */
+  public record Settings(
+      long insertLatencyMicros,
+      long flushLagMs,
+      boolean commitOffsets,
+      double insertErrorRate,
+      double channelErrorRate,
+      double openErrorRate,
+      long maxBytesPerSecond) {}
+
+  private final Settings settings;
+
+  // Latest channel instance and committed offset token of every channel, by fully qualified name
+  private final ConcurrentHashMap<String, SimulatedIngestChannel> channels;
+  private final ConcurrentHashMap<String, String> committedOffsetTokens;
+
+  private final AtomicInteger clientCount = new AtomicInteger();
+
+  public SimulatedSnowflake(Settings settings) {
+    this.settings = settings;
+    this.channels = new ConcurrentHashMap<>();
+    this.committedOffsetTokens = new ConcurrentHashMap<>();
+  }
+
+  Settings getSettings() {
+    return settings;
+  }
+
+  /** Builds a Client, each with its own byte rate limit */
+  public SimulatedIngestClient newClient(String name) {
+    RateLimiter rateLimiter =
+        settings.maxBytesPerSecond() > 0 ? RateLimiter.create(settings.maxBytesPerSecond()) : null;
+    return new SimulatedIngestClient(name + "_" + clientCount.getAndIncrement(), this, rateLimiter);
+  }
+
+  /**
+   * Opens a channel, invalidating the previous instance of the same channel. The new instance
+   * starts from the committed offset token of the channel.
+   */
+  SimulatedIngestChannel openChannel(OpenChannelRequest request, SimulatedIngestClient client) {
+    if (roll(settings.openErrorRate())) {
+      throw new SFException(ErrorCode.OPEN_CHANNEL_FAILURE, "Simulated open failure");
+    }
+    String name =
+        request.getDBName()
+            + "."
+            + request.getSchemaName()
+            + "."
+            + request.getTableName()
+            + "."
+            + request.getChannelName();
+    return channels.compute(
+        name,
+        (k, previous) -> {
+          if (previous != null) {
+            // Rows old enough to have been flushed are kept, the rest are lost with the channel
+            previous.commitFlushedRows();
+            previous.invalidate();
+          }
+          return new SimulatedIngestChannel(request, name, client, this);
+        });
+  }
+
+  void dropChannel(String fullyQualifiedName) {
+    SimulatedIngestChannel channel = channels.remove(fullyQualifiedName);
+    if (channel != null) {
+      channel.invalidate();
+    }
+    committedOffsetTokens.remove(fullyQualifiedName);
+  }
+
+  void commit(String fullyQualifiedName, String offsetToken) {
+    committedOffsetTokens.put(fullyQualifiedName, offsetToken);
+  }
+
+  String getCommittedOffsetToken(String fullyQualifiedName) {
+    return committedOffsetTokens.get(fullyQualifiedName);
+  }
+
+  static boolean roll(double rate) {
+    return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+  }
+}
@@ -0,0 +1,36 @@
+package com.example.SnowpipeRest.utils;
+
+/**
+ * Source of time and of waiting for the drain scheduling code. Production code uses {@link
+ * #SYSTEM}; tests and the drain simulation pass a virtual clock so that scheduling runs
+ * reproducibly without real sleeps.
+ */
+public interface Clock {
+
+  Clock SYSTEM =
+      new Clock() {
+        @Override
+        public long currentTimeMillis() {
+          return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+          return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+          Thread.sleep(millis);
+        }
+      };
+
+  /** Wall clock time, see {@link System#currentTimeMillis()} */
+  long currentTimeMillis();
+
+  /** Monotonic time for measuring durations, see {@link System#nanoTime()} */
+  long nanoTime();
+
+  /** Blocks the calling thread, see {@link Thread#sleep(long)} */
+  void sleep(long millis) throws InterruptedException;
+}
@@ -3,10 +3,18 @@ package com.example.SnowpipeRest.utils;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 public class EnqueueResponse {
   public String message;
   public int rowsEnqueued;
   public int rowsRejected;
+  public int rowsDeduplicated;
+
+  // The rows that were rejected, not part of the response body
+  private List<Map<String, Object>> rejectedRows = List.of();
 
   public EnqueueResponse() {}
 
@@ -25,6 +33,18 @@ public class EnqueueResponse {
     return rowsRejected;
   }
 
+  /** Rows that were not enqueued as their key was enqueued recently, see `dedup_column` */
+  @JsonProperty("rows_deduplicated")
+  public int getRowsDeduplicated() {
+    return rowsDeduplicated;
+  }
+
+  /** Rows of the request that were rejected, used to enqueue only those when it is retried */
+  @JsonIgnore
+  public List<Map<String, Object>> getRejectedRows() {
+    return rejectedRows;
+  }
+
   public static class EnqueueResponseBuilder {
 
     private EnqueueResponse enqueueResponse;
@@ -48,6 +68,16 @@ public class EnqueueResponse {
       return this;
     }
 
+    public EnqueueResponseBuilder setRowsDeduplicated(int rowsDeduplicated) {
+      this.enqueueResponse.rowsDeduplicated = rowsDeduplicated;
+      return this;
+    }
+
+    public EnqueueResponseBuilder setRejectedRows(List<Map<String, Object>> rejectedRows) {
+      this.enqueueResponse.rejectedRows = rejectedRows;
+      return this;
+    }
+
     public EnqueueResponse build() {
       return enqueueResponse;
     }
@@ -61,6 +91,12 @@ public class EnqueueResponse {
 
     this.rowsEnqueued += other.rowsEnqueued;
     this.rowsRejected += other.rowsRejected;
+    this.rowsDeduplicated += other.rowsDeduplicated;
+    if (!other.rejectedRows.isEmpty()) {
+      List<Map<String, Object>> merged = new ArrayList<>(this.rejectedRows);
+      merged.addAll(other.rejectedRows);
+      this.rejectedRows = merged;
+    }
     return this;
   }
 }
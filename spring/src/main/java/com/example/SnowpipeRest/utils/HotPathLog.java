@@ -0,0 +1,178 @@
+package com.example.SnowpipeRest.utils;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logging for events that happen on every request, row or drain. In the default `SAMPLED` mode
+ * events are only counted, per key (typically a partition or table), and a summary line per key is
+ * logged every interval. Call sites that carry useful detail may additionally log the first event
+ * of each key per interval via {@link Tally#trySample()}. In `VERBOSE` mode every event is logged as
+ * it happens, which is handy when debugging a single table but costly at high request rates.
+ */
+public class HotPathLog {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(HotPathLog.class);
+
+  public enum Mode {
+    VERBOSE,
+    SAMPLED
+  }
+
+  private static final List<HotPathLog> LOGS = new CopyOnWriteArrayList<>();
+
+  private static volatile Mode mode = Mode.SAMPLED;
+  private static volatile long intervalMs = 30000;
+  private static ScheduledExecutorService scheduler;
+  private static ScheduledFuture<?> flushTask;
+
+  private final Logger logger;
+  private final String event;
+  private final ConcurrentHashMap<String, Tally> tallies;
+
+  /** Occurrences of an event for a single key since the last summary */
+  public static final class Tally {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder amount = new LongAdder();
+    private final AtomicLong lastSampledMs = new AtomicLong();
+
+    /** Counts one occurrence of the event, carrying an amount such as a row count */
+    public void record(long amount) {
+      count.increment();
+      this.amount.add(amount);
+    }
+
+    /**
+     * @return true for at most one caller per key and interval, which may then log the event in
+     *     full
+     */
+    public boolean trySample() {
+      long now = System.currentTimeMillis();
+      long last = lastSampledMs.get();
+      return now - last >= intervalMs && lastSampledMs.compareAndSet(last, now);
+    }
+
+    @VisibleForTesting
+    long getCount() {
+      return count.sum();
+    }
+  }
+
+  private HotPathLog(Logger logger, String event) {
+    this.logger = logger;
+    this.event = event;
+    this.tallies = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Creates a summarized event, logged through the given logger
+   *
+   * @param event name of the event in the summary line, e.g. `enqueue`
+   */
+  public static HotPathLog create(Logger logger, String event) {
+    HotPathLog log = new HotPathLog(logger, event);
+    LOGS.add(log);
+    ensureStarted();
+    return log;
+  }
+
+  /**
+   * Sets the logging mode and the summary interval. Takes effect immediately for every event.
+   *
+   * @param mode `VERBOSE` or `SAMPLED`, case insensitive. Any other mode is logged and treated as
+   *     `SAMPLED`, so that a typo in the config does not keep the ingest engine from starting.
+   */
+  public static synchronized void configure(String mode, long intervalSeconds) {
+    HotPathLog.mode = parseMode(mode);
+    HotPathLog.intervalMs = TimeUnit.SECONDS.toMillis(Math.max(intervalSeconds, 1));
+    if (flushTask != null) {
+      flushTask.cancel(false);
+      flushTask = null;
+    }
+    ensureStarted();
+    LOGGER.info(
+        "Configured hot path logging. mode={} intervalSeconds={}",
+        HotPathLog.mode,
+        TimeUnit.MILLISECONDS.toSeconds(intervalMs));
+  }
+
+  private static Mode parseMode(String mode) {
+    if (mode != null) {
+      for (Mode m : Mode.values()) {
+        if (m.name().equals(mode.trim().toUpperCase(Locale.ROOT))) {
+          return m;
+        }
+      }
+    }
+    LOGGER.warn("Unknown hot path log mode, using {}. mode={}", Mode.SAMPLED, mode);
+    return Mode.SAMPLED;
+  }
+
+  private static synchronized void ensureStarted() {
+    if (scheduler == null) {
+      scheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              r -> {
+                Thread t = new Thread(r, "hot-path-log");
+                t.setDaemon(true);
+                return t;
+              });
+    }
+    if (flushTask == null) {
+      flushTask =
+          scheduler.scheduleAtFixedRate(
+              HotPathLog::flushAll, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public static boolean isVerbose() {
+    return mode == Mode.VERBOSE;
+  }
+
+  /** Returns the tally of a key, keep a reference to it on hot paths to avoid the lookup */
+  public Tally tally(String key) {
+    return tallies.computeIfAbsent(key, k -> new Tally());
+  }
+
+  /** Logs a summary line for every key that saw the event since the last flush */
+  @VisibleForTesting
+  public void flush() {
+    long intervalSeconds = TimeUnit.MILLISECONDS.toSeconds(intervalMs);
+    tallies.forEach(
+        (key, tally) -> {
+          long count = tally.count.sumThenReset();
+          if (count == 0) {
+            return;
+          }
+          logger.info(
+              "Hot path summary. event={} key={} count={} amount={} intervalSeconds={}",
+              event,
+              key,
+              count,
+              tally.amount.sumThenReset(),
+              intervalSeconds);
+        });
+  }
+
+  private static void flushAll() {
+    for (HotPathLog log : LOGS) {
+      try {
+        log.flush();
+      } catch (RuntimeException e) {
+        LOGGER.error("Unable to log hot path summary. event={}", log.event, e);
+      }
+    }
+  }
+}
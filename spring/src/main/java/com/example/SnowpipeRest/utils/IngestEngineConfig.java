@@ -5,6 +5,10 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
 @Component
 public class IngestEngineConfig {
 
@@ -35,6 +39,67 @@ public class IngestEngineConfig {
   @Value("${rest_api.drain_manager_max_seconds_to_wait_to_drain}")
   private int maxSecondsToWaitToDrain;
 
+  @Value("${rest_api.commit_watcher_poll_interval_ms:1000}")
+  private long commitWatcherPollIntervalMs;
+
+  // Comma separated list of `database.schema.table` whose channels are opened on startup
+  @Value("${rest_api.prewarm_tables:}")
+  private String prewarmTables;
+
+  @Value("${rest_api.drain_manager_backoff_base_ms:1000}")
+  private long drainBackoffBaseMs;
+
+  @Value("${rest_api.drain_manager_backoff_max_ms:300000}")
+  private long drainBackoffMaxMs;
+
+  // `sampled` (default) or `verbose`, see HotPathLog
+  @Value("${rest_api.hot_path_log_mode:sampled}")
+  private String hotPathLogMode;
+
+  @Value("${rest_api.hot_path_log_interval_seconds:30}")
+  private long hotPathLogIntervalSeconds;
+
+  // File that insert requests are recorded to for replay, empty to not record
+  @Value("${rest_api.trace_record_path:}")
+  private String traceRecordPath;
+
+  @Value("${rest_api.trace_record_max_requests:100000}")
+  private long traceRecordMaxRequests;
+
+  // JSON file of per table settings, see TableOverrides. Empty for none
+  @Value("${rest_api.table_overrides_path:}")
+  private String tableOverridesPath;
+
+  @Value("${rest_api.table_overrides_reload_interval_ms:10000}")
+  private long tableOverridesReloadIntervalMs;
+
+  // JSON file of isolation groups, see IsolationGroups. Empty for none
+  @Value("${rest_api.isolation_groups_path:}")
+  private String isolationGroupsPath;
+
+  // Size of the request bodies from which they are parsed on several threads, 0 to disable
+  @Value("${rest_api.parallel_parse_threshold_bytes:0}")
+  private long parallelParseThresholdBytes;
+
+  @Value("${rest_api.parallel_parse_threads:0}")
+  private int parallelParseThreads;
+
+  @Value("${rest_api.idempotency_window_seconds:0}")
+  private long idempotencyWindowSeconds;
+
+  @Value("${rest_api.idempotency_max_keys:0}")
+  private long idempotencyMaxKeys;
+
+  @Value("${rest_api.admission_table_bytes_per_second:0}")
+  private long admissionTableBytesPerSecond;
+
+  @Value("${rest_api.admission_database_bytes_per_second:0}")
+  private long admissionDatabaseBytesPerSecond;
+
+  // Drain threads reserved for the partitions of high priority tables, 0 for none
+  @Value("${rest_api.high_priority_drain_threads:0}")
+  private int highPriorityDrainThreads;
+
   private void checkEnv(String envName) {
     String val = System.getenv(envName);
     if (val == null || val.isEmpty()) {
@@ -52,6 +117,10 @@ public class IngestEngineConfig {
     return Integer.parseInt(System.getenv(envName));
   }
 
+  private long getEnvOrDefault(String envName, long defaultValue) {
+    return isEnvSet(envName) ? Long.parseLong(System.getenv(envName)) : defaultValue;
+  }
+
   public long getMaxShardsPerTable() {
     if (maxShardsPerTable <= 0) {
       checkEnv("REST_API_BUFFER_MANAGER_MAX_SHARDS_PER_TABLE");
@@ -135,4 +204,151 @@ public class IngestEngineConfig {
     }
     return splitLateArrivingRows;
   }
+
+  public long getCommitWatcherPollIntervalMs() {
+    if (commitWatcherPollIntervalMs <= 0) {
+      return getEnvOrDefault("REST_API_COMMIT_WATCHER_POLL_INTERVAL_MS", 1000);
+    }
+    return commitWatcherPollIntervalMs;
+  }
+
+  public List<String> getPrewarmTables() {
+    String tables = prewarmTables;
+    if (tables == null || tables.isEmpty()) {
+      tables = System.getenv("REST_API_PREWARM_TABLES");
+    }
+    List<String> ret = new ArrayList<>();
+    if (tables == null || tables.isEmpty()) {
+      return ret;
+    }
+    for (String table : tables.split(",")) {
+      if (!table.isBlank()) {
+        ret.add(table.trim());
+      }
+    }
+    return ret;
+  }
+
+  public long getDrainBackoffBaseMs() {
+    if (drainBackoffBaseMs <= 0) {
+      return getEnvOrDefault("REST_API_DRAIN_MANAGER_BACKOFF_BASE_MS", 1000);
+    }
+    return drainBackoffBaseMs;
+  }
+
+  public long getDrainBackoffMaxMs() {
+    if (drainBackoffMaxMs <= 0) {
+      return getEnvOrDefault("REST_API_DRAIN_MANAGER_BACKOFF_MAX_MS", 300000);
+    }
+    return drainBackoffMaxMs;
+  }
+
+  public String getHotPathLogMode() {
+    String mode = hotPathLogMode;
+    if (mode == null || mode.isEmpty()) {
+      mode = System.getenv("REST_API_HOT_PATH_LOG_MODE");
+    }
+    return mode == null || mode.isEmpty() ? "sampled" : mode;
+  }
+
+  public long getHotPathLogIntervalSeconds() {
+    if (hotPathLogIntervalSeconds <= 0) {
+      return getEnvOrDefault("REST_API_HOT_PATH_LOG_INTERVAL_SECONDS", 30);
+    }
+    return hotPathLogIntervalSeconds;
+  }
+
+  public String getTraceRecordPath() {
+    String path = traceRecordPath;
+    if (path == null || path.isEmpty()) {
+      path = System.getenv("REST_API_TRACE_RECORD_PATH");
+    }
+    return path == null || path.isEmpty() ? null : path;
+  }
+
+  public long getTraceRecordMaxRequests() {
+    if (traceRecordMaxRequests <= 0) {
+      return getEnvOrDefault("REST_API_TRACE_RECORD_MAX_REQUESTS", 100000);
+    }
+    return traceRecordMaxRequests;
+  }
+
+  public Path getTableOverridesPath() {
+    String path = tableOverridesPath;
+    if (path == null || path.isEmpty()) {
+      path = System.getenv("REST_API_TABLE_OVERRIDES_PATH");
+    }
+    return path == null || path.isEmpty() ? null : Path.of(path);
+  }
+
+  public Path getIsolationGroupsPath() {
+    String path = isolationGroupsPath;
+    if (path == null || path.isEmpty()) {
+      path = System.getenv("REST_API_ISOLATION_GROUPS_PATH");
+    }
+    return path == null || path.isEmpty() ? null : Path.of(path);
+  }
+
+  public long getTableOverridesReloadIntervalMs() {
+    if (tableOverridesReloadIntervalMs <= 0) {
+      return getEnvOrDefault("REST_API_TABLE_OVERRIDES_RELOAD_INTERVAL_MS", 10000);
+    }
+    return tableOverridesReloadIntervalMs;
+  }
+
+  public long getParallelParseThresholdBytes() {
+    if (parallelParseThresholdBytes <= 0) {
+      return getEnvOrDefault("REST_API_PARALLEL_PARSE_THRESHOLD_BYTES", 0);
+    }
+    return parallelParseThresholdBytes;
+  }
+
+  /** Returns the threads that large requests are parsed on, one per core by default */
+  public int getParallelParseThreads() {
+    if (parallelParseThreads <= 0) {
+      return (int)
+          getEnvOrDefault(
+              "REST_API_PARALLEL_PARSE_THREADS", Runtime.getRuntime().availableProcessors());
+    }
+    return parallelParseThreads;
+  }
+
+  /** Returns how long idempotency keys are remembered, 0 to ignore them */
+  public long getIdempotencyWindowSeconds() {
+    if (idempotencyWindowSeconds <= 0) {
+      return getEnvOrDefault("REST_API_IDEMPOTENCY_WINDOW_SECONDS", 600);
+    }
+    return idempotencyWindowSeconds;
+  }
+
+  public int getIdempotencyMaxKeys() {
+    if (idempotencyMaxKeys <= 0) {
+      return (int) getEnvOrDefault("REST_API_IDEMPOTENCY_MAX_KEYS", 100000);
+    }
+    return (int) idempotencyMaxKeys;
+  }
+
+  /** Returns the quota of each table in request bytes per second, 0 for none */
+  public long getAdmissionTableBytesPerSecond() {
+    if (admissionTableBytesPerSecond <= 0) {
+      return getEnvOrDefault("REST_API_ADMISSION_TABLE_BYTES_PER_SECOND", 0);
+    }
+    return admissionTableBytesPerSecond;
+  }
+
+  /** Returns the quota of each database in request bytes per second, 0 for none */
+  public long getAdmissionDatabaseBytesPerSecond() {
+    if (admissionDatabaseBytesPerSecond <= 0) {
+      return getEnvOrDefault("REST_API_ADMISSION_DATABASE_BYTES_PER_SECOND", 0);
+    }
+    return admissionDatabaseBytesPerSecond;
+  }
+
+  /** Returns the drain threads reserved for high priority partitions, 0 for none */
+  public int getHighPriorityDrainThreads() {
+    if (highPriorityDrainThreads <= 0) {
+      return (int) getEnvOrDefault("REST_API_HIGH_PRIORITY_DRAIN_THREADS", 0);
+    }
+    return highPriorityDrainThreads;
+  }
 }
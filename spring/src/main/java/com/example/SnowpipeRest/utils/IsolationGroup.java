@@ -0,0 +1,82 @@
+package com.example.SnowpipeRest.utils;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * A group of tables isolated from the others, read from the isolation groups file, see {@link
+ * IsolationGroups}. Tables are matched by database or by `database.schema.table` pattern. Every
+ * setting is optional, a group without one shares that resource with the tables of no group.
+ *
+ * @param name name of the group, used in logs and metrics
+ * @param databases databases whose tables belong to the group, matched case insensitively
+ * @param tables `database.schema.table` patterns of the tables that belong to the group, where `*`
+ *     matches any run of characters
+ * @param maxBufferRows rows that the in memory buffers of the group's tables are guaranteed to hold
+ *     together. Beyond it the group borrows the rows that other groups leave unused
+ * @param drainThreads drain threads that the group's partitions are guaranteed. Beyond them the
+ *     group borrows threads that other groups leave idle
+ * @param clientPoolSize size of a Client pool dedicated to the group's tables, none by default
+ */
+public record IsolationGroup(
+    @JsonProperty("name") String name,
+    @JsonProperty("databases") List<String> databases,
+    @JsonProperty("tables") List<String> tables,
+    @JsonProperty("max_buffer_rows") Long maxBufferRows,
+    @JsonProperty("drain_threads") Integer drainThreads,
+    @JsonProperty("client_pool_size") Integer clientPoolSize) {
+
+  /** The group of the tables that match no configured group, it reserves nothing */
+  public static final IsolationGroup DEFAULT =
+      new IsolationGroup("default", null, null, null, null, null);
+
+  /** Throws an IllegalArgumentException naming the first setting that is out of range */
+  void validate() {
+    if (name == null || name.isEmpty()) {
+      throw new IllegalArgumentException("Isolation group without a name");
+    }
+    if (name.equalsIgnoreCase(DEFAULT.name())) {
+      throw new IllegalArgumentException("Isolation group name is reserved. group=" + name);
+    }
+    if ((databases == null || databases.isEmpty()) && (tables == null || tables.isEmpty())) {
+      throw new IllegalArgumentException("Isolation group matches no table. group=" + name);
+    }
+    if (tables != null) {
+      for (String pattern : tables) {
+        if (pattern == null || pattern.split("\\.", -1).length != 3) {
+          throw new IllegalArgumentException(
+              "Isolation group table pattern must be database.schema.table. group="
+                  + name
+                  + " pattern="
+                  + pattern);
+        }
+      }
+    }
+    checkPositive("max_buffer_rows", maxBufferRows);
+    checkPositive("drain_threads", drainThreads == null ? null : drainThreads.longValue());
+    checkPositive("client_pool_size", clientPoolSize == null ? null : clientPoolSize.longValue());
+  }
+
+  private void checkPositive(String setting, Long value) {
+    if (value != null && value <= 0) {
+      throw new IllegalArgumentException(
+          "Isolation group setting must be positive. group=" + name + " setting=" + setting + " value=" + value);
+    }
+  }
+
+  /** Returns the rows guaranteed to the group, 0 if it has no budget */
+  public long maxBufferRowsOrNone() {
+    return maxBufferRows != null ? maxBufferRows : 0;
+  }
+
+  /** Returns the drain threads reserved for the group, 0 if it has none */
+  public int drainThreadsOrNone() {
+    return drainThreads != null ? drainThreads : 0;
+  }
+
+  /** Returns the size of the group's Client pool, 0 if it has none */
+  public int clientPoolSizeOrNone() {
+    return clientPoolSize != null ? clientPoolSize : 0;
+  }
+}
@@ -0,0 +1,178 @@
+package com.example.SnowpipeRest.utils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Groups of tables that are isolated from each other, read once at startup from the JSON file at
+ * `rest_api.isolation_groups_path`, so that a spike on the tables of one tenant cannot take the
+ * memory, drain threads and Clients that the others need. The file lists {@link IsolationGroup}s,
+ * a table belongs to the first group that matches it:
+ *
+ * <pre>
+ * [{"name": "tenant_a", "databases": ["TENANT_A"], "max_buffer_rows": 2000000, "drain_threads": 4},
+ *  {"name": "alerting", "tables": ["*.*.AUTH_LOGS"], "drain_threads": 2, "client_pool_size": 1}]
+ * </pre>
+ *
+ * Tables that match no group belong to {@link IsolationGroup#DEFAULT}. A file that cannot be read
+ * or fails validation is logged and ignored, every table then belongs to the default group.
+ */
+public class IsolationGroups {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IsolationGroups.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static volatile IsolationGroups INSTANCE;
+
+  public static IsolationGroups getInstance() {
+    if (INSTANCE == null) {
+      synchronized (IsolationGroups.class) {
+        if (INSTANCE == null) {
+          // Lazy load for the same reason as ChannelManager, the config is not a Spring bean here
+          INSTANCE = load(new IngestEngineConfig().getIsolationGroupsPath());
+        }
+      }
+    }
+    return INSTANCE;
+  }
+
+  @VisibleForTesting
+  public static synchronized void setInstance(IsolationGroups instance) {
+    INSTANCE = instance;
+  }
+
+  /** A group with the patterns of its tables compiled */
+  private record Matcher(IsolationGroup group, Set<String> databases, List<Pattern> tables) {
+    boolean matches(String database, String qualifiedName) {
+      if (databases.contains(database)) {
+        return true;
+      }
+      for (Pattern table : tables) {
+        if (table.matcher(qualifiedName).matches()) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private final List<IsolationGroup> groups;
+  private final List<Matcher> matchers;
+
+  // Group of each `DATABASE.SCHEMA.TABLE` looked up so far, the groups never change
+  private final Map<String, IsolationGroup> groupsByTable = new ConcurrentHashMap<>();
+
+  /**
+   * @param groups the groups in the order they are matched
+   * @throws IllegalArgumentException if a group is invalid or two groups share a name
+   */
+  public IsolationGroups(List<IsolationGroup> groups) {
+    Set<String> names = new HashSet<>();
+    List<Matcher> matchers = new ArrayList<>();
+    for (IsolationGroup group : groups) {
+      if (group == null) {
+        throw new IllegalArgumentException("Isolation group without settings");
+      }
+      group.validate();
+      if (!names.add(group.name().toLowerCase(Locale.ROOT))) {
+        throw new IllegalArgumentException("Isolation group defined twice. group=" + group.name());
+      }
+      Set<String> databases = new HashSet<>();
+      if (group.databases() != null) {
+        for (String database : group.databases()) {
+          databases.add(database.toUpperCase(Locale.ROOT));
+        }
+      }
+      List<Pattern> tables = new ArrayList<>();
+      if (group.tables() != null) {
+        for (String table : group.tables()) {
+          tables.add(toPattern(table));
+        }
+      }
+      matchers.add(new Matcher(group, databases, tables));
+    }
+    this.groups = List.copyOf(groups);
+    this.matchers = matchers;
+  }
+
+  /**
+   * Reads the isolation groups file
+   *
+   * @param path the file, null for none
+   * @return the groups of the file, none if there is no file or it is invalid
+   */
+  public static IsolationGroups load(Path path) {
+    if (path == null) {
+      return new IsolationGroups(Collections.emptyList());
+    }
+    try {
+      List<IsolationGroup> groups =
+          mapper.readValue(Files.readAllBytes(path), new TypeReference<List<IsolationGroup>>() {});
+      IsolationGroups loaded = new IsolationGroups(groups == null ? Collections.emptyList() : groups);
+      LOGGER.info("Loaded isolation groups. path={} groups={}", path, loaded.getGroups());
+      return loaded;
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.error(
+          "Invalid isolation groups, every table shares the default group. path={} msg={}",
+          path,
+          e.getMessage());
+      return new IsolationGroups(Collections.emptyList());
+    }
+  }
+
+  /** Returns the configured groups in the order they are matched, without the default group */
+  public List<IsolationGroup> getGroups() {
+    return groups;
+  }
+
+  /** Returns whether any group is configured */
+  public boolean isEmpty() {
+    return groups.isEmpty();
+  }
+
+  /** Returns the group of a table, {@link IsolationGroup#DEFAULT} if it matches none */
+  public IsolationGroup groupOf(String database, String schema, String table) {
+    if (matchers.isEmpty()) {
+      return IsolationGroup.DEFAULT;
+    }
+    String qualifiedName = (database + "." + schema + "." + table).toUpperCase(Locale.ROOT);
+    return groupsByTable.computeIfAbsent(
+        qualifiedName,
+        name -> {
+          String upperDatabase = database.toUpperCase(Locale.ROOT);
+          for (Matcher matcher : matchers) {
+            if (matcher.matches(upperDatabase, name)) {
+              return matcher.group();
+            }
+          }
+          return IsolationGroup.DEFAULT;
+        });
+  }
+
+  /** Compiles a `database.schema.table` pattern, `*` matching any run of characters */
+  private static Pattern toPattern(String pattern) {
+    String[] literals = pattern.toUpperCase(Locale.ROOT).split("\\*", -1);
+    StringBuilder regex = new StringBuilder(Pattern.quote(literals[0]));
+    for (int i = 1; i < literals.length; i++) {
+      regex.append(".*").append(Pattern.quote(literals[i]));
+    }
+    return Pattern.compile(regex.toString());
+  }
+}
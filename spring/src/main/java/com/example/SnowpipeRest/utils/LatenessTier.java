@@ -0,0 +1,22 @@
+package com.example.SnowpipeRest.utils;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A lateness tier of a table, see {@link TableOverride#latenessTiers()}. Rows at least {@code
+ * minAgeMinutes} old, and younger than the next tier, go to the tier's own partition so that each
+ * tier is drained and flushed on its own terms. Every field but the age is optional.
+ *
+ * @param minAgeMinutes age from which a row belongs to this tier
+ * @param maxClientLag max client lag of the tier's Client, only with per table Clients. Falls back
+ *     to the table's late arriving max client lag
+ * @param drainPriority tiers of a higher priority are drained first when there are more partitions
+ *     to drain than drain threads. Regular partitions have priority 0, the default
+ * @param maxRecordsToDrain rows sent by a single drain of the tier's partition, falls back to the
+ *     table's
+ */
+public record LatenessTier(
+    @JsonProperty("min_age_minutes") Long minAgeMinutes,
+    @JsonProperty("max_client_lag") String maxClientLag,
+    @JsonProperty("drain_priority") Integer drainPriority,
+    @JsonProperty("max_records_to_drain") Long maxRecordsToDrain) {}
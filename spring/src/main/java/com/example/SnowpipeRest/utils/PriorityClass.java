@@ -0,0 +1,37 @@
+package com.example.SnowpipeRest.utils;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import java.util.Locale;
+
+/**
+ * Priority class of a table, set by its `priority_class` override. Partitions of a higher class are
+ * drained first, `high` ones on threads reserved for them, and each class flushes through Clients
+ * of its own max client lag.
+ */
+public enum PriorityClass {
+  // Latency critical tables, e.g. ones that feed alerting
+  HIGH,
+  NORMAL,
+  // Bulk tables that are better flushed in larger batches
+  LOW;
+
+  /**
+   * Parses the name of a class, case insensitively. Also reads the class of a table override.
+   *
+   * @throws IllegalArgumentException if there is no such class
+   */
+  @JsonCreator
+  public static PriorityClass parse(String name) {
+    try {
+      return valueOf(name.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown priority class. value=" + name);
+    }
+  }
+
+  /** Returns the name of the class as written in overrides and metric tags */
+  public String getName() {
+    return name().toLowerCase(Locale.ROOT);
+  }
+}
@@ -2,7 +2,12 @@ package com.example.SnowpipeRest.utils;
 
 import java.util.Objects;
 
-public record TableKey(String database, String schema, String table, boolean isLateArrivingClient) {
+/** @param latenessTier the lateness tier that the Client is for, 0 for regular partitions */
+public record TableKey(String database, String schema, String table, int latenessTier) {
+
+  public boolean isLateArrivingClient() {
+    return latenessTier > 0;
+  }
 
   @Override
   public boolean equals(Object obj) {
@@ -12,6 +17,6 @@ public record TableKey(String database, String schema, String table, boolean isL
     return database.equals(other.database)
         && Objects.equals(schema, other.schema)
         && Objects.equals(table, other.table)
-        && Objects.equals(isLateArrivingClient, other.isLateArrivingClient);
+        && latenessTier == other.latenessTier;
   }
 }
@@ -0,0 +1,251 @@
+package com.example.SnowpipeRest.utils;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Settings of a single table read from the table overrides file, see {@link TableOverrides}. Every
+ * field is optional, null falls back to the global setting (or to the built in default of the
+ * table).
+ *
+ * @param maxBufferRowCount row cap of each partition of the table, in memory only
+ * @param maxBufferBytes approximate byte cap of each partition of the table, estimated from the
+ *     size of the requests that carried its rows, in memory only
+ * @param shards number of partitions that rows of the table are spread across
+ * @param maxRecordsToDrain rows sent by a single drain of a partition
+ * @param maxDurationToDrainMs time spent by a single drain of a partition
+ * @param maxClientLag max client lag of the table's Client, only with per table Clients
+ * @param lateArrivingMaxClientLag max client lag of the Client of the late arriving partition
+ * @param lateArrivingColumn timestamp column used to split out late arriving rows, empty to not
+ *     split the table
+ * @param lateArrivingThresholdMinutes age beyond which a row is late arriving
+ * @param lateArrivingShards number of partitions that the late arriving rows of each lateness tier
+ *     are spread across
+ * @param lateArrivingFormat how the timestamp column is written, `iso` (the default),
+ *     `epoch_millis` or `epoch_seconds`
+ * @param latenessTiers tiers of late arriving rows by ascending age, each routed to a partition of
+ *     its own. Replaces the single tier from `late_arriving_threshold_minutes`
+ * @param dedupColumn key column that rows are deduplicated on at enqueue time, none by default
+ * @param dedupWindowMinutes how long a key is remembered
+ * @param dedupMaxKeys keys of the table remembered exactly, older keys in the window are kept in
+ *     Bloom filters
+ * @param maxBytesPerSecond quota of request bytes per second admitted for the table
+ * @param priorityClass `high`, `normal` (the default) or `low`, see {@link PriorityClass}. Parsed
+ *     as the file is loaded, so that the drain loop does not parse it on every lookup
+ */
+public record TableOverride(
+    @JsonProperty("max_buffer_row_count") Long maxBufferRowCount,
+    @JsonProperty("max_buffer_bytes") Long maxBufferBytes,
+    @JsonProperty("shards") Long shards,
+    @JsonProperty("max_records_to_drain") Long maxRecordsToDrain,
+    @JsonProperty("max_duration_to_drain_ms") Long maxDurationToDrainMs,
+    @JsonProperty("max_client_lag") String maxClientLag,
+    @JsonProperty("late_arriving_max_client_lag") String lateArrivingMaxClientLag,
+    @JsonProperty("late_arriving_column") String lateArrivingColumn,
+    @JsonProperty("late_arriving_threshold_minutes") Long lateArrivingThresholdMinutes,
+    @JsonProperty("late_arriving_shards") Long lateArrivingShards,
+    @JsonProperty("late_arriving_format") String lateArrivingFormat,
+    @JsonProperty("lateness_tiers") List<LatenessTier> latenessTiers,
+    @JsonProperty("dedup_column") String dedupColumn,
+    @JsonProperty("dedup_window_minutes") Long dedupWindowMinutes,
+    @JsonProperty("dedup_max_keys") Long dedupMaxKeys,
+    @JsonProperty("max_bytes_per_second") Long maxBytesPerSecond,
+    @JsonProperty("priority_class") PriorityClass priorityClass) {
+
+  /** Overrides nothing */
+  public static final TableOverride NONE =
+      new TableOverride(
+          null, null, null, null, null, null, null, null, null, null, null, null, null, null, null,
+          null, null);
+
+  static final long DEFAULT_DEDUP_WINDOW_MINUTES = 60;
+  static final long DEFAULT_DEDUP_MAX_KEYS = 100_000;
+
+  private static final Set<String> LATE_ARRIVING_FORMATS =
+      Set.of("iso", "epoch_millis", "epoch_seconds");
+
+  /** Throws an IllegalArgumentException naming the first setting that is out of range */
+  void validate(String table) {
+    checkPositive(table, "max_buffer_row_count", maxBufferRowCount);
+    checkPositive(table, "max_buffer_bytes", maxBufferBytes);
+    checkPositive(table, "shards", shards);
+    checkPositive(table, "max_records_to_drain", maxRecordsToDrain);
+    checkPositive(table, "max_duration_to_drain_ms", maxDurationToDrainMs);
+    checkPositive(table, "late_arriving_threshold_minutes", lateArrivingThresholdMinutes);
+    checkPositive(table, "late_arriving_shards", lateArrivingShards);
+    checkPositive(table, "dedup_window_minutes", dedupWindowMinutes);
+    checkPositive(table, "dedup_max_keys", dedupMaxKeys);
+    checkPositive(table, "max_bytes_per_second", maxBytesPerSecond);
+    if (dedupMaxKeys != null && dedupMaxKeys > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          "Table override out of range. table=" + table + " setting=dedup_max_keys value=" + dedupMaxKeys);
+    }
+    if (lateArrivingFormat != null && !LATE_ARRIVING_FORMATS.contains(lateArrivingFormat)) {
+      throw new IllegalArgumentException(
+          "Unknown late arriving format. table=" + table + " value=" + lateArrivingFormat);
+    }
+    if (latenessTiers != null) {
+      validateLatenessTiers(table);
+    }
+  }
+
+  private void validateLatenessTiers(String table) {
+    if (latenessTiers.isEmpty() || latenessTiers.size() >= Utils.MAX_LATENESS_TIERS) {
+      throw new IllegalArgumentException(
+          "Lateness tiers must number between 1 and "
+              + (Utils.MAX_LATENESS_TIERS - 1)
+              + ". table="
+              + table);
+    }
+    if (lateArrivingThresholdMinutes != null) {
+      throw new IllegalArgumentException(
+          "Set either lateness_tiers or late_arriving_threshold_minutes. table=" + table);
+    }
+    long previousMinAge = 0;
+    for (LatenessTier tier : latenessTiers) {
+      if (tier == null || tier.minAgeMinutes() == null || tier.minAgeMinutes() <= previousMinAge) {
+        throw new IllegalArgumentException(
+            "Lateness tiers must have ascending positive min_age_minutes. table=" + table);
+      }
+      checkPositive(table, "max_records_to_drain", tier.maxRecordsToDrain());
+      previousMinAge = tier.minAgeMinutes();
+    }
+  }
+
+  private static void checkPositive(String table, String name, Long value) {
+    if (value != null && value <= 0) {
+      throw new IllegalArgumentException(
+          "Table override must be positive. table=" + table + " setting=" + name + " value=" + value);
+    }
+  }
+
+  public long maxBufferRowCountOr(long defaultValue) {
+    return maxBufferRowCount != null ? maxBufferRowCount : defaultValue;
+  }
+
+  /** Returns the byte cap of each partition, 0 if the table has none */
+  public long maxBufferBytesOrNone() {
+    return maxBufferBytes != null ? maxBufferBytes : 0;
+  }
+
+  /** Returns whether the table caps its partitions, which only buffers held in memory have */
+  public boolean hasBufferCaps() {
+    return maxBufferRowCount != null || maxBufferBytes != null;
+  }
+
+  public long shardsOr(long defaultValue) {
+    return shards != null ? shards : defaultValue;
+  }
+
+  public long maxRecordsToDrainOr(long defaultValue) {
+    return maxRecordsToDrain != null ? maxRecordsToDrain : defaultValue;
+  }
+
+  public long maxDurationToDrainMsOr(long defaultValue) {
+    return maxDurationToDrainMs != null ? maxDurationToDrainMs : defaultValue;
+  }
+
+  public String maxClientLagOr(String defaultValue) {
+    return maxClientLag != null ? maxClientLag : defaultValue;
+  }
+
+  public String lateArrivingMaxClientLagOr(String defaultValue) {
+    return lateArrivingMaxClientLag != null ? lateArrivingMaxClientLag : defaultValue;
+  }
+
+  /** Returns the late arriving timestamp column, null if late arriving rows are not split out */
+  public String lateArrivingColumnOr(String defaultValue) {
+    if (lateArrivingColumn == null) {
+      return defaultValue;
+    }
+    return lateArrivingColumn.isEmpty() ? null : lateArrivingColumn;
+  }
+
+  public Duration lateArrivingThresholdOr(Duration defaultValue) {
+    return lateArrivingThresholdMinutes != null
+        ? Duration.ofMinutes(lateArrivingThresholdMinutes)
+        : defaultValue;
+  }
+
+  public long lateArrivingShardsOr(long defaultValue) {
+    return lateArrivingShards != null ? lateArrivingShards : defaultValue;
+  }
+
+  /** Returns the number of lateness tiers, 1 unless tiers are set */
+  public int latenessTierCount() {
+    return latenessTiers != null ? latenessTiers.size() : 1;
+  }
+
+  /**
+   * Returns the age from which rows belong to a lateness tier
+   *
+   * @param tier the tier, from 1 for the youngest
+   * @param defaultThreshold the threshold of the single tier when tiers are not set
+   */
+  public Duration latenessTierMinAge(int tier, Duration defaultThreshold) {
+    if (latenessTiers == null) {
+      return lateArrivingThresholdOr(defaultThreshold);
+    }
+    return Duration.ofMinutes(latenessTiers.get(tier - 1).minAgeMinutes());
+  }
+
+  /** Returns the max client lag of a lateness tier, from 1 for the youngest */
+  public String latenessTierMaxClientLagOr(int tier, String defaultValue) {
+    LatenessTier latenessTier = getLatenessTier(tier);
+    if (latenessTier != null && latenessTier.maxClientLag() != null) {
+      return latenessTier.maxClientLag();
+    }
+    return lateArrivingMaxClientLagOr(defaultValue);
+  }
+
+  /** Returns the drain priority of a lateness tier, 0 for regular partitions and by default */
+  public int latenessTierDrainPriority(int tier) {
+    LatenessTier latenessTier = getLatenessTier(tier);
+    return latenessTier != null && latenessTier.drainPriority() != null
+        ? latenessTier.drainPriority()
+        : 0;
+  }
+
+  /** Returns the rows sent by a drain of a lateness tier, the table's for regular partitions */
+  public long latenessTierMaxRecordsToDrainOr(int tier, long defaultValue) {
+    LatenessTier latenessTier = getLatenessTier(tier);
+    if (latenessTier != null && latenessTier.maxRecordsToDrain() != null) {
+      return latenessTier.maxRecordsToDrain();
+    }
+    return maxRecordsToDrainOr(defaultValue);
+  }
+
+  /** Returns the key column that rows are deduplicated on, null if they are not */
+  public String dedupColumnOrNone() {
+    return dedupColumn == null || dedupColumn.isEmpty() ? null : dedupColumn;
+  }
+
+  public Duration dedupWindowOrDefault() {
+    return Duration.ofMinutes(
+        dedupWindowMinutes != null ? dedupWindowMinutes : DEFAULT_DEDUP_WINDOW_MINUTES);
+  }
+
+  public int dedupMaxKeysOrDefault() {
+    return (int) (dedupMaxKeys != null ? dedupMaxKeys : DEFAULT_DEDUP_MAX_KEYS);
+  }
+
+  /** Returns the admission quota of the table in request bytes per second, 0 for none */
+  public long maxBytesPerSecondOr(long defaultValue) {
+    return maxBytesPerSecond != null ? maxBytesPerSecond : defaultValue;
+  }
+
+  public PriorityClass priorityClassOrDefault() {
+    return priorityClass != null ? priorityClass : PriorityClass.NORMAL;
+  }
+
+  /** Returns a configured tier, null for regular partitions or tiers that are no longer set */
+  private LatenessTier getLatenessTier(int tier) {
+    if (latenessTiers == null || tier < 1 || tier > latenessTiers.size()) {
+      return null;
+    }
+    return latenessTiers.get(tier - 1);
+  }
+}
@@ -0,0 +1,245 @@
+package com.example.SnowpipeRest.utils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per table settings that take precedence over the global ones, read from the JSON file at
+ * `rest_api.table_overrides_path` and reloaded whenever it changes so that a hot table can be tuned
+ * without a restart. The file maps tables, matched case insensitively, to a {@link TableOverride}.
+ * A table is named either by `database.schema.table`, or by its bare name to apply to the table of
+ * that name in every database and schema; the qualified name takes precedence:
+ *
+ * <pre>
+ * {"EDR_DATA": {"shards": 8, "max_client_lag": "2 seconds"}, "DB1.PUBLIC.EDR_DATA": {"shards": 16}}
+ * </pre>
+ *
+ * A file that cannot be read or fails validation is logged and ignored, the previous overrides stay
+ * in place. Readers look overrides up on every request and drain, so changes apply to new requests
+ * and drains right away; listeners are notified of changes to settings that are held elsewhere.
+ */
+public class TableOverrides {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TableOverrides.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static volatile TableOverrides INSTANCE;
+
+  public static TableOverrides getInstance() {
+    if (INSTANCE == null) {
+      synchronized (TableOverrides.class) {
+        if (INSTANCE == null) {
+          // Lazy load for the same reason as ChannelManager, the config is not a Spring bean here
+          IngestEngineConfig config = new IngestEngineConfig();
+          TableOverrides overrides = new TableOverrides(config.getTableOverridesPath());
+          overrides.start(config.getTableOverridesReloadIntervalMs());
+          INSTANCE = overrides;
+        }
+      }
+    }
+    return INSTANCE;
+  }
+
+  @VisibleForTesting
+  public static synchronized void setInstance(TableOverrides instance) {
+    INSTANCE = instance;
+  }
+
+  // Null when no overrides file is configured
+  private final Path path;
+
+  // Immutable once published, keyed case insensitively
+  private volatile Map<String, TableOverride> overrides = Collections.emptyMap();
+
+  // Whether any override is keyed by a qualified name, which spares the lookup of one otherwise.
+  // Written before the overrides it describes, so a reader may look one up needlessly but not miss
+  // one.
+  private volatile boolean hasQualifiedKeys;
+
+  // Contents of the file as last loaded, to tell whether it changed
+  private byte[] loadedContents;
+  private boolean missingLogged;
+
+  private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+
+  private ScheduledExecutorService scheduler;
+
+  /** @param path the overrides file, null for none */
+  public TableOverrides(Path path) {
+    this.path = path;
+    if (path != null) {
+      reload();
+    }
+  }
+
+  /**
+   * Returns the overrides of a table keyed by its bare name, {@link TableOverride#NONE} if it has
+   * none. Overrides keyed by a qualified name are only found by {@link #get(String, String,
+   * String)}.
+   */
+  public TableOverride get(String table) {
+    TableOverride override = overrides.get(table);
+    return override != null ? override : TableOverride.NONE;
+  }
+
+  /**
+   * Returns the overrides of a table, those keyed by `database.schema.table` if there are any, else
+   * those keyed by its bare name, else {@link TableOverride#NONE}. Only the bare name is looked up
+   * when the database or schema is null.
+   */
+  public TableOverride get(String database, String schema, String table) {
+    if (hasQualifiedKeys && database != null && schema != null) {
+      TableOverride override = overrides.get(qualifiedName(database, schema, table));
+      if (override != null) {
+        return override;
+      }
+    }
+    return get(table);
+  }
+
+  static String qualifiedName(String database, String schema, String table) {
+    return database + "." + schema + "." + table;
+  }
+
+  /** Returns every override currently in effect, keyed by table */
+  public Map<String, TableOverride> getAll() {
+    return overrides;
+  }
+
+  /** Registers a listener that is called, on the reload thread, after the overrides changed */
+  public void addChangeListener(Runnable listener) {
+    changeListeners.add(listener);
+  }
+
+  /** Unregisters a listener added by {@link #addChangeListener} */
+  public void removeChangeListener(Runnable listener) {
+    changeListeners.remove(listener);
+  }
+
+  /**
+   * Starts checking the overrides file for changes
+   *
+   * @param reloadIntervalMs the delay between two checks, in MS
+   */
+  public synchronized void start(long reloadIntervalMs) {
+    if (path == null || scheduler != null) {
+      return;
+    }
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("table-overrides-%d").setDaemon(true).build());
+    scheduler.scheduleWithFixedDelay(
+        this::reload, reloadIntervalMs, reloadIntervalMs, TimeUnit.MILLISECONDS);
+    LOGGER.info(
+        "Watching table overrides. path={} reloadIntervalMs={} tables={}",
+        path,
+        reloadIntervalMs,
+        overrides.keySet());
+  }
+
+  public synchronized void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Reads the overrides file and publishes its overrides if it changed since the last load
+   *
+   * @return whether new overrides were published
+   */
+  @VisibleForTesting
+  public synchronized boolean reload() {
+    byte[] contents;
+    try {
+      contents = Files.readAllBytes(path);
+      missingLogged = false;
+    } catch (NoSuchFileException e) {
+      if (!missingLogged) {
+        LOGGER.warn("Table overrides file not found, keeping current overrides. path={}", path);
+        missingLogged = true;
+      }
+      return false;
+    } catch (IOException e) {
+      LOGGER.error("Unable to read table overrides, keeping current overrides. path={}", path, e);
+      return false;
+    }
+    if (Arrays.equals(contents, loadedContents)) {
+      return false;
+    }
+    Map<String, TableOverride> parsed;
+    try {
+      parsed = parse(contents);
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.error(
+          "Invalid table overrides, keeping current overrides. path={} msg={}",
+          path,
+          e.getMessage());
+      // Don't log the same broken file on every check
+      loadedContents = contents;
+      return false;
+    }
+    loadedContents = contents;
+    if (parsed.equals(overrides)) {
+      return false;
+    }
+    boolean qualified = parsed.keySet().stream().anyMatch(key -> key.indexOf('.') >= 0);
+    if (qualified) {
+      hasQualifiedKeys = true;
+    }
+    overrides = parsed;
+    hasQualifiedKeys = qualified;
+    LOGGER.info("Loaded table overrides. path={} overrides={}", path, parsed);
+    for (Runnable listener : changeListeners) {
+      try {
+        listener.run();
+      } catch (RuntimeException e) {
+        LOGGER.error("Unable to apply table overrides", e);
+      }
+    }
+    return true;
+  }
+
+  private static Map<String, TableOverride> parse(byte[] contents) throws IOException {
+    Map<String, TableOverride> raw =
+        mapper.readValue(contents, new TypeReference<Map<String, TableOverride>>() {});
+    Map<String, TableOverride> parsed = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    if (raw == null) {
+      return Collections.unmodifiableMap(parsed);
+    }
+    for (Map.Entry<String, TableOverride> entry : raw.entrySet()) {
+      if (entry.getKey().indexOf('.') >= 0
+          && !entry.getKey().matches("[^.]+\\.[^.]+\\.[^.]+")) {
+        throw new IllegalArgumentException(
+            "Table must be named either database.schema.table or by its bare name. table="
+                + entry.getKey());
+      }
+      TableOverride override = entry.getValue() != null ? entry.getValue() : TableOverride.NONE;
+      override.validate(entry.getKey());
+      if (parsed.put(entry.getKey(), override) != null) {
+        throw new IllegalArgumentException("Table overridden twice. table=" + entry.getKey());
+      }
+    }
+    return Collections.unmodifiableMap(parsed);
+  }
+}
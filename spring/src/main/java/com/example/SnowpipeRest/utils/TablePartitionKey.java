@@ -3,6 +3,7 @@ package com.example.SnowpipeRest.utils;
 import java.util.Objects;
 
 import static com.example.SnowpipeRest.utils.Utils.LATE_ARRIVING_PARTITION_INDEX;
+import static com.example.SnowpipeRest.utils.Utils.MAX_LATENESS_TIERS;
 
 public class TablePartitionKey {
 
@@ -18,6 +19,21 @@ public class TablePartitionKey {
     this.partitionIndex = partitionIndex;
   }
 
+  /**
+   * Returns the key of a late arriving partition. These take the negative indexes, apart from the
+   * regular ones and so do their channels: shard s of tier t is partition -(s * {@link
+   * Utils#MAX_LATENESS_TIERS} + t), so the first shard of the first tier is -1, of the second tier
+   * -2, and the second shard of the first tier -101.
+   *
+   * @param latenessTier the tier, from 1 for the youngest
+   * @param shard the shard within the tier, from 0
+   */
+  public static TablePartitionKey lateArriving(
+      String database, String schema, String table, int latenessTier, long shard) {
+    return new TablePartitionKey(
+        database, schema, table, -(shard * MAX_LATENESS_TIERS + latenessTier));
+  }
+
   public String getDatabase() {
     return database;
   }
@@ -35,7 +51,17 @@ public class TablePartitionKey {
   }
 
   public boolean isLateArrivingPartition() {
-    return partitionIndex == LATE_ARRIVING_PARTITION_INDEX;
+    return partitionIndex <= LATE_ARRIVING_PARTITION_INDEX;
+  }
+
+  /** Returns the lateness tier of the partition, from 1 for the youngest, 0 if not late arriving */
+  public int getLatenessTier() {
+    return isLateArrivingPartition() ? (int) (-partitionIndex % MAX_LATENESS_TIERS) : 0;
+  }
+
+  /** Returns the shard of a late arriving partition within its lateness tier, 0 if not late */
+  public long getLateArrivingShard() {
+    return isLateArrivingPartition() ? -partitionIndex / MAX_LATENESS_TIERS : 0;
   }
 
   @Override
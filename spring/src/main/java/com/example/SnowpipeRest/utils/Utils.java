@@ -21,8 +21,12 @@ public class Utils {
 
   private static final ObjectMapper mapper = new ObjectMapper();
 
+  // Partition of the first lateness tier, see TablePartitionKey#lateArriving for the others
   public static final long LATE_ARRIVING_PARTITION_INDEX = -1;
 
+  // Bound on the lateness tiers of a table, late arriving partitions of a tier are this far apart
+  public static final int MAX_LATENESS_TIERS = 100;
+
   public enum DrainReason {
     INVALID_EPOCH,
     OFFSET_MATCHED,
@@ -74,7 +78,10 @@ public class Utils {
    * @param channel the channel to fetch the latest persisted offset token from
    * @param lastSentOffsetToken the offset token that was last sent to Snowflake
    * @return the result of waiting to drain
+   * @deprecated blocks the calling thread while polling a single channel, subscribe through
+   *     {@code CommitWatcher#awaitCommit} instead
    */
+  @Deprecated
   public static DrainReason waitForChannelToDrain(
       int maxSecondsToWaitToDrain,
       SnowflakeStreamingIngestChannel channel,
@@ -154,4 +161,26 @@ public class Utils {
     }
     return Optional.of(rows);
   }
+
+  /**
+   * Cheaply estimates the size of a row once serialized. This is only meant to compare the load of
+   * partitions against one another, not to be exact.
+   */
+  public static long estimateRowSizeInBytes(Map<String, Object> row) {
+    long size = 0;
+    for (Map.Entry<String, Object> entry : row.entrySet()) {
+      size += entry.getKey().length();
+      Object value = entry.getValue();
+      if (value == null) {
+        size += 1;
+      } else if (value instanceof CharSequence str) {
+        size += str.length();
+      } else if (value instanceof Number || value instanceof Boolean) {
+        size += 8;
+      } else {
+        size += value.toString().length();
+      }
+    }
+    return size;
+  }
 }
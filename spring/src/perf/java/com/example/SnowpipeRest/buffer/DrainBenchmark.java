@@ -0,0 +1,117 @@
+package com.example.SnowpipeRest.buffer;
+
+import com.example.SnowpipeRest.perf.EdrPayloads;
+import com.example.SnowpipeRest.snowflake.ChannelManager;
+import com.example.SnowpipeRest.snowflake.CommitWatcher;
+import com.example.SnowpipeRest.snowflake.InstantCommitWatcher;
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drain tasks per second run by {@link Drainer#drain()} against the in memory {@link TestChannel}.
+ * Before each drain the buffer is filled with exactly one drain's worth of rows, so every drain
+ * sends `rowsPerDrain` rows and exits on the record limit. Offsets are committed as soon as they
+ * are sent.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DrainBenchmark {
+
+  private static final long EPOCH_TS = 1234;
+
+  @State(Scope.Benchmark)
+  public static class ChannelState {
+
+    @Param({"100", "1000"})
+    int rowsPerDrain;
+
+    final AtomicInteger partitions = new AtomicInteger();
+
+    TestChannelManager channelManager;
+    List<Map<String, Object>> rows;
+
+    @Setup
+    public void setUp() {
+      channelManager = new TestChannelManager(null, false, false);
+      ChannelManager.setInstance(channelManager);
+      CommitWatcher.setInstance(new InstantCommitWatcher());
+      rows = EdrPayloads.rows(rowsPerDrain, 0.1, 42);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class PartitionState {
+
+    Buffer buffer;
+    TestChannel channel;
+
+    @Setup
+    public void setUp(ChannelState state) {
+      buffer =
+          new Buffer(
+              "bench_db",
+              "bench_schema",
+              EdrPayloads.TABLE,
+              state.rowsPerDrain * 2L,
+              state.partitions.getAndIncrement(),
+              false,
+              null);
+      TablePartitionKey tableKey =
+          new TablePartitionKey(
+              buffer.getDatabase(), buffer.getSchema(), buffer.getTable(), buffer.getPartitionIndex());
+      // The test channel manager keeps its channels in a plain map, open them one at a time
+      synchronized (state) {
+        channel = (TestChannel) state.channelManager.openChannelAsync(tableKey).join();
+      }
+    }
+
+    @Setup(Level.Invocation)
+    public void fill(ChannelState state) {
+      buffer.expandRowsEnqueueData(Optional.of(state.rows));
+    }
+
+    @TearDown(Level.Invocation)
+    public void commit() {
+      buffer.trimCommitted(buffer.getLastSentOffset());
+      channel.insertedRows.clear();
+    }
+  }
+
+  private static Drainer.TerminationReason runDrain(ChannelState state, PartitionState partition) {
+    return new Drainer(EPOCH_TS, partition.buffer, 60_000, state.rowsPerDrain, 1).drain();
+  }
+
+  @Benchmark
+  public Drainer.TerminationReason drain(ChannelState state, PartitionState partition) {
+    return runDrain(state, partition);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Drainer.TerminationReason drainFourThreads(
+      ChannelState state, PartitionState partition) {
+    return runDrain(state, partition);
+  }
+}
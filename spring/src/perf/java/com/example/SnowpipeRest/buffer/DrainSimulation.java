@@ -0,0 +1,376 @@
+package com.example.SnowpipeRest.buffer;
+
+import com.example.SnowpipeRest.snowflake.ChannelManager;
+import com.example.SnowpipeRest.snowflake.CommitWatcher;
+import com.example.SnowpipeRest.snowflake.InstantCommitWatcher;
+import com.example.SnowpipeRest.utils.EnqueueResponse;
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+import com.example.SnowpipeRest.utils.VirtualClock;
+import com.example.SnowpipeRest.utils.VirtualExecutor;
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the real DrainManager and Drainer against thousands of partitions in virtual time, see
+ * {@link VirtualClock}, so that scheduling settings can be compared offline and reproducibly. Rows
+ * arrive as Poisson distributed requests spread over partitions by a Zipf distribution, the SDK is
+ * modelled by a log-normal per row insert latency with rare stalls, and commits are instant. Reports
+ * row latency from enqueue to insert, fairness across partitions and drain thread utilization. Run
+ * it with `make simulate SIMULATE_ARGS="..."`, see the Drain simulation section of the README.
+ */
+public final class DrainSimulation {
+
+  private static final String ENQUEUED_AT = "enqueued_at_nanos";
+
+  // Modelled insert latency is accumulated and slept in slices of at least this much, sleeping
+  // after every row would make long runs needlessly slow
+  private static final long SLEEP_QUANTUM_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private static final long EPOCH_TS = 1234;
+
+  private final Map<String, String> options;
+  private final VirtualClock clock = new VirtualClock(EPOCH_TS);
+  private final Random random;
+
+  private final int partitions;
+  private final PartitionStats[] stats;
+  private final Buffer[] buffers;
+  private final double[] cumulativeWeights;
+  private final LatencySamples latencies = new LatencySamples();
+
+  private final long insertLatencyMedianNanos;
+  private final double insertLatencySigma;
+  private final double stallProbability;
+  private final long stallNanos;
+  private long insertNanos;
+
+  /** Arrivals and deliveries of a partition */
+  private static final class PartitionStats {
+    long rowsArrived;
+    long rowsRejected;
+    long rowsSent;
+    long latencySumNanos;
+    long latencyMaxNanos;
+    // Enqueue time and remaining row count of every accepted request not fully sent yet, rows of
+    // a partition are sent in order
+    final ArrayDeque<long[]> unsentRequests = new ArrayDeque<>();
+
+    void rowSent() {
+      long[] oldest = unsentRequests.peekFirst();
+      if (oldest != null && --oldest[1] == 0) {
+        unsentRequests.pollFirst();
+      }
+    }
+  }
+
+  /** Row latencies of the whole run, kept in full so that percentiles are exact */
+  private static final class LatencySamples {
+    private long[] values = new long[1 << 16];
+    private int size;
+
+    void add(long value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    long[] sorted() {
+      long[] sorted = Arrays.copyOf(values, size);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+  }
+
+  /** Channel taking a modelled amount of virtual time per row */
+  private final class SimulatedChannel extends TestChannel {
+    private final PartitionStats partitionStats;
+    private long sleepDebtNanos;
+
+    SimulatedChannel(PartitionStats partitionStats) {
+      super(false, false);
+      this.partitionStats = partitionStats;
+    }
+
+    @Override
+    public boolean isValid() {
+      return true;
+    }
+
+    @Override
+    public InsertValidationResponse insertRow(Map<String, Object> row, String offsetToken) {
+      long latencyNanos = sampleInsertLatencyNanos();
+      insertNanos += latencyNanos;
+      sleepDebtNanos += latencyNanos;
+      if (sleepDebtNanos >= SLEEP_QUANTUM_NANOS) {
+        clock.sleepNanos(sleepDebtNanos);
+        sleepDebtNanos = 0;
+      }
+      long rowLatencyNanos = clock.nanoTime() - (Long) row.get(ENQUEUED_AT);
+      latencies.add(rowLatencyNanos);
+      partitionStats.rowsSent++;
+      partitionStats.rowSent();
+      partitionStats.latencySumNanos += rowLatencyNanos;
+      partitionStats.latencyMaxNanos = Math.max(partitionStats.latencyMaxNanos, rowLatencyNanos);
+      return new InsertValidationResponse();
+    }
+
+    @Override
+    public String getLatestCommittedOffsetToken() {
+      return null;
+    }
+  }
+
+  private final class SimulatedChannelManager extends TestChannelManager {
+    SimulatedChannelManager() {
+      super(null, false, false);
+    }
+
+    @Override
+    public CompletableFuture<SnowflakeStreamingIngestChannel> openChannelAsync(
+        TablePartitionKey tableKey) {
+      return CompletableFuture.completedFuture(
+          channels.computeIfAbsent(
+              tableKey, k -> new SimulatedChannel(stats[partitionOf(k.getTable())])));
+    }
+  }
+
+  /** Commits every sent offset straight away, releasing the rows retained for replay */
+  private final class InstantCommits extends InstantCommitWatcher {
+    @Override
+    public CompletableFuture<Long> awaitCommit(
+        TablePartitionKey tableKey, long epochTs, long offset) {
+      buffers[partitionOf(tableKey.getTable())].trimCommitted(offset);
+      return super.awaitCommit(tableKey, epochTs, offset);
+    }
+  }
+
+  private DrainSimulation(Map<String, String> options) {
+    this.options = options;
+    this.random = new Random(getLong("seed", 42));
+    this.partitions = (int) getLong("partitions", 1000);
+    this.stats = new PartitionStats[partitions];
+    this.buffers = new Buffer[partitions];
+    this.cumulativeWeights = new double[partitions];
+    double skew = getDouble("skew", 1.0);
+    double total = 0;
+    for (int i = 0; i < partitions; i++) {
+      total += 1 / Math.pow(i + 1, skew);
+      cumulativeWeights[i] = total;
+    }
+    for (int i = 0; i < partitions; i++) {
+      cumulativeWeights[i] /= total;
+    }
+    this.insertLatencyMedianNanos =
+        TimeUnit.MICROSECONDS.toNanos(getLong("insert-latency-us", 5));
+    this.insertLatencySigma = getDouble("insert-latency-sigma", 0.5);
+    this.stallProbability = getDouble("stall-probability", 0.0001);
+    this.stallNanos = TimeUnit.MILLISECONDS.toNanos(getLong("stall-ms", 50));
+  }
+
+  public static void main(String[] args) {
+    Map<String, String> options = new LinkedHashMap<>();
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (!arg.startsWith("--") || separator < 0) {
+        throw new IllegalArgumentException("Expected --name=value, got " + arg);
+      }
+      options.put(arg.substring(2, separator), arg.substring(separator + 1));
+    }
+    new DrainSimulation(options).run();
+    System.exit(0);
+  }
+
+  private long getLong(String name, long defaultValue) {
+    return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+  }
+
+  private double getDouble(String name, double defaultValue) {
+    return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+  }
+
+  private static String table(int partition) {
+    return String.format("T%05d", partition);
+  }
+
+  private static int partitionOf(String table) {
+    return Integer.parseInt(table.substring(1));
+  }
+
+  private long sampleInsertLatencyNanos() {
+    if (stallProbability > 0 && random.nextDouble() < stallProbability) {
+      return stallNanos;
+    }
+    return (long) (insertLatencyMedianNanos * Math.exp(insertLatencySigma * random.nextGaussian()));
+  }
+
+  private void run() {
+    int threads = (int) getLong("threads", 15);
+    long maxDurationToDrainMs = getLong("max-duration-ms", 1000);
+    long maxRecordsToDrain = getLong("max-records", 10000);
+    int queueCapacity = (int) getLong("queue-capacity", DrainManager.EXECUTOR_QUEUE_CAPACITY);
+    long rowsPerSecond = getLong("rows-per-second", 50000);
+    int rowsPerRequest = (int) getLong("rows-per-request", 100);
+    long durationSeconds = getLong("duration", 120);
+    long reportIntervalSeconds = getLong("report-interval", 30);
+
+    ChannelManager.setInstance(new SimulatedChannelManager());
+    CommitWatcher.setInstance(new InstantCommits());
+    BufferManager bufferManager = new BufferManager(getLong("max-buffer-rows", 100000), 1, false);
+    for (int i = 0; i < partitions; i++) {
+      stats[i] = new PartitionStats();
+      buffers[i] = bufferManager.getBuffer("SIM_DB", "PUBLIC", table(i));
+    }
+    VirtualExecutor executor = new VirtualExecutor(clock, threads, queueCapacity);
+    DrainManager drainManager =
+        new DrainManager(
+            EPOCH_TS,
+            bufferManager,
+            threads,
+            maxDurationToDrainMs,
+            maxRecordsToDrain,
+            120,
+            false,
+            new PartitionCircuitBreaker(
+                DrainManager.DEFAULT_BACKOFF_BASE_MS,
+                DrainManager.DEFAULT_BACKOFF_MAX_MS,
+                clock::currentTimeMillis),
+            0,
+            executor,
+            clock);
+
+    System.out.printf(
+        "Simulating. partitions=%d threads=%d queueCapacity=%d maxDurationToDrainMs=%d"
+            + " maxRecordsToDrain=%d rowsPerSecond=%d rowsPerRequest=%d durationSeconds=%d options=%s%n",
+        partitions,
+        threads,
+        queueCapacity,
+        maxDurationToDrainMs,
+        maxRecordsToDrain,
+        rowsPerSecond,
+        rowsPerRequest,
+        durationSeconds,
+        options);
+    long realStartNanos = System.nanoTime();
+    clock.start("drain-manager", drainManager);
+    double requestsPerSecond = (double) rowsPerSecond / rowsPerRequest;
+    clock.start("arrivals", () -> generateArrivals(requestsPerSecond, rowsPerRequest));
+
+    for (long elapsed = 0; elapsed < durationSeconds; ) {
+      long step = Math.min(reportIntervalSeconds, durationSeconds - elapsed);
+      clock.sleep(TimeUnit.SECONDS.toMillis(step));
+      elapsed += step;
+      System.out.printf(
+          "virtualSeconds=%d rowsArrived=%d rowsSent=%d%n",
+          elapsed,
+          Arrays.stream(stats).mapToLong(s -> s.rowsArrived).sum(),
+          Arrays.stream(stats).mapToLong(s -> s.rowsSent).sum());
+    }
+    report(executor, durationSeconds, System.nanoTime() - realStartNanos);
+  }
+
+  private void generateArrivals(double requestsPerSecond, int rowsPerRequest) {
+    while (true) {
+      double intervalSeconds = -Math.log(1 - random.nextDouble()) / requestsPerSecond;
+      clock.sleepNanos((long) (intervalSeconds * TimeUnit.SECONDS.toNanos(1)));
+      int partition = Arrays.binarySearch(cumulativeWeights, random.nextDouble());
+      partition = Math.min(partition < 0 ? -partition - 1 : partition, partitions - 1);
+      // Every row of a request carries its enqueue time, rows are immutable so they can be shared
+      Map<String, Object> row = Map.of(ENQUEUED_AT, clock.nanoTime());
+      EnqueueResponse response =
+          buffers[partition].expandRowsEnqueueData(
+              Optional.of(Collections.nCopies(rowsPerRequest, row)), System.nanoTime());
+      PartitionStats s = stats[partition];
+      s.rowsArrived += rowsPerRequest;
+      s.rowsRejected += response.getRowsRejected();
+      if (response.getRowsEnqueued() > 0) {
+        s.unsentRequests.addLast(new long[] {clock.nanoTime(), response.getRowsEnqueued()});
+      }
+    }
+  }
+
+  private void report(VirtualExecutor executor, long durationSeconds, long realNanos) {
+    long arrived = 0;
+    long rejected = 0;
+    long sent = 0;
+    double shareSum = 0;
+    double shareSquareSum = 0;
+    int activePartitions = 0;
+    List<Double> meanLatenciesMs = new ArrayList<>();
+    long worstPartitionMaxNanos = 0;
+    long oldestUnsentMs = 0;
+    for (int i = 0; i < partitions; i++) {
+      PartitionStats s = stats[i];
+      arrived += s.rowsArrived;
+      rejected += s.rowsRejected;
+      sent += s.rowsSent;
+      long accepted = s.rowsArrived - s.rowsRejected;
+      if (accepted > 0) {
+        // Jain's fairness index of the share of accepted rows that each partition got sent
+        double share = (double) s.rowsSent / accepted;
+        shareSum += share;
+        shareSquareSum += share * share;
+        activePartitions++;
+      }
+      if (s.rowsSent > 0) {
+        meanLatenciesMs.add(s.latencySumNanos / 1e6 / s.rowsSent);
+        worstPartitionMaxNanos = Math.max(worstPartitionMaxNanos, s.latencyMaxNanos);
+      }
+      long[] oldestUnsent = s.unsentRequests.peekFirst();
+      if (oldestUnsent != null) {
+        oldestUnsentMs =
+            Math.max(
+                oldestUnsentMs, TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - oldestUnsent[0]));
+      }
+    }
+    Collections.sort(meanLatenciesMs);
+    long[] sorted = latencies.sorted();
+    double threadNanos = (double) executor.getThreadCount() * TimeUnit.SECONDS.toNanos(durationSeconds);
+
+    System.out.println("== Drain simulation summary ==");
+    System.out.printf(
+        "virtualSeconds=%d realSeconds=%.1f rowsArrived=%d rowsRejected=%d rowsSent=%d rowsUnsent=%d%n",
+        durationSeconds, realNanos / 1e9, arrived, rejected, sent, arrived - rejected - sent);
+    System.out.printf(
+        "row latency ms p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+        percentileMs(sorted, 0.5),
+        percentileMs(sorted, 0.9),
+        percentileMs(sorted, 0.99),
+        percentileMs(sorted, 0.999),
+        sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+    System.out.printf(
+        "fairness jainIndex=%.4f activePartitions=%d partitionMeanLatencyMs min=%.1f p50=%.1f max=%.1f"
+            + " worstPartitionMaxLatencyMs=%.1f oldestUnsentRowAgeMs=%d%n",
+        activePartitions == 0 ? 1 : shareSum * shareSum / (activePartitions * shareSquareSum),
+        activePartitions,
+        meanLatenciesMs.isEmpty() ? 0 : meanLatenciesMs.getFirst(),
+        meanLatenciesMs.isEmpty() ? 0 : meanLatenciesMs.get(meanLatenciesMs.size() / 2),
+        meanLatenciesMs.isEmpty() ? 0 : meanLatenciesMs.getLast(),
+        worstPartitionMaxNanos / 1e6,
+        oldestUnsentMs);
+    System.out.printf(
+        "threads utilization=%.3f insertUtilization=%.3f%n",
+        executor.getBusyNanos() / threadNanos,
+        insertNanos / threadNanos);
+  }
+
+  private static double percentileMs(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+    return sorted[Math.max(index, 0)] / 1e6;
+  }
+}
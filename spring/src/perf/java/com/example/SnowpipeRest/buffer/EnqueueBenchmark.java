@@ -0,0 +1,150 @@
+package com.example.SnowpipeRest.buffer;
+
+import com.example.SnowpipeRest.perf.BenchmarkRocksDB;
+import com.example.SnowpipeRest.perf.EdrPayloads;
+import com.example.SnowpipeRest.utils.EnqueueResponse;
+import net.snowflake.ingest.utils.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests per second enqueued by {@link Buffer#expandRowsEnqueueData}, in memory and with the
+ * RocksDB write ahead log. Unless noted each thread owns a partition and takes the rows of every
+ * request back off the buffer, as a drainer would, so that the buffer never fills up.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnqueueBenchmark {
+
+  private static final long MAX_ROW_COUNT = 1_000_000;
+
+  @State(Scope.Benchmark)
+  public static class PayloadState {
+
+    @Param({"false", "true"})
+    boolean wal;
+
+    @Param({"10", "100"})
+    int rowsPerRequest;
+
+    final AtomicInteger partitions = new AtomicInteger();
+
+    List<Map<String, Object>> rows;
+
+    @Setup
+    public void setUp() {
+      rows = EdrPayloads.rows(rowsPerRequest, 0.1, 42);
+    }
+
+    Buffer newBuffer() {
+      return new Buffer(
+          "bench_db",
+          "bench_schema",
+          EdrPayloads.TABLE,
+          MAX_ROW_COUNT,
+          partitions.getAndIncrement(),
+          wal,
+          wal ? BenchmarkRocksDB.get() : null);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class PartitionState {
+
+    Buffer buffer;
+
+    @Setup
+    public void setUp(PayloadState payload) {
+      buffer = payload.newBuffer();
+    }
+  }
+
+  /** A single partition fed by several request threads and emptied by one drainer thread */
+  @State(Scope.Group)
+  public static class SharedPartitionState {
+
+    Buffer buffer;
+
+    @Setup
+    public void setUp(PayloadState payload) {
+      // The WAL has no capacity bound, producers outpacing the consumer would fill the disk
+      buffer =
+          new Buffer(
+              "bench_db",
+              "bench_schema",
+              EdrPayloads.TABLE,
+              MAX_ROW_COUNT,
+              payload.partitions.getAndIncrement(),
+              false,
+              null);
+    }
+  }
+
+  private static long takeRows(Buffer buffer, int maxRows) {
+    long lastOffset = -1;
+    for (int i = 0; i < maxRows; i++) {
+      Optional<Pair<Long, Map<String, Object>>> row = buffer.getAndAdvanceLatestUncommittedRow();
+      if (row.isEmpty()) {
+        break;
+      }
+      lastOffset = row.get().getFirst();
+    }
+    if (lastOffset >= 0) {
+      buffer.trimCommitted(lastOffset);
+    }
+    return lastOffset;
+  }
+
+  private static EnqueueResponse enqueueAndTake(PayloadState payload, PartitionState partition) {
+    EnqueueResponse response = partition.buffer.expandRowsEnqueueData(Optional.of(payload.rows));
+    takeRows(partition.buffer, payload.rowsPerRequest);
+    return response;
+  }
+
+  @Benchmark
+  public EnqueueResponse enqueue(PayloadState payload, PartitionState partition) {
+    return enqueueAndTake(payload, partition);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public EnqueueResponse enqueueFourThreads(PayloadState payload, PartitionState partition) {
+    return enqueueAndTake(payload, partition);
+  }
+
+  @Benchmark
+  @Group("sharedPartition")
+  @GroupThreads(3)
+  public EnqueueResponse sharedPartitionEnqueue(
+      PayloadState payload, SharedPartitionState partition) {
+    return partition.buffer.expandRowsEnqueueData(Optional.of(payload.rows));
+  }
+
+  @Benchmark
+  @Group("sharedPartition")
+  @GroupThreads(1)
+  public long sharedPartitionTake(PayloadState payload, SharedPartitionState partition) {
+    return takeRows(partition.buffer, payload.rowsPerRequest);
+  }
+}
@@ -0,0 +1,170 @@
+package com.example.SnowpipeRest.buffer;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.FileAppender;
+import com.example.SnowpipeRest.utils.EnqueueResponse;
+import com.example.SnowpipeRest.utils.HotPathLog;
+import net.snowflake.ingest.utils.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request throughput with per event (`VERBOSE`) versus summarized (`SAMPLED`) hot path logging,
+ * written to a file either on the calling thread (`SYNC`) or from a background thread (`ASYNC`).
+ * Each invocation enqueues a small request into an in memory buffer and takes its rows back off,
+ * or splits a request whose late arriving timestamps are all null.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotPathLogBenchmark {
+
+  private static final int ROWS_PER_REQUEST = 10;
+
+  @State(Scope.Benchmark)
+  public static class LogState {
+
+    @Param({"VERBOSE", "SAMPLED"})
+    String mode;
+
+    @Param({"SYNC", "ASYNC"})
+    String appender;
+
+    final AtomicInteger partitions = new AtomicInteger();
+
+    List<Map<String, Object>> rows;
+    List<Map<String, Object>> nullTimestampRows;
+
+    @Setup
+    public void setUp() {
+      HotPathLog.configure(mode, 1);
+      configureLogback("ASYNC".equals(appender));
+      rows = new ArrayList<>();
+      nullTimestampRows = new ArrayList<>();
+      for (int i = 0; i < ROWS_PER_REQUEST; i++) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("deviceId", "device-" + i);
+        row.put("eventType", "process_start");
+        row.put("sequence", i);
+        rows.add(row);
+        Map<String, Object> nullTimestampRow = new HashMap<>(row);
+        nullTimestampRow.put("generatedTime", null);
+        nullTimestampRows.add(nullTimestampRow);
+      }
+    }
+
+    @TearDown
+    public void tearDown() {
+      // Stopping the context flushes whatever the async appender still has queued
+      ((LoggerContext) LoggerFactory.getILoggerFactory()).stop();
+    }
+
+    private static void configureLogback(boolean async) {
+      LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+      context.reset();
+
+      PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+      encoder.setContext(context);
+      encoder.setPattern("%d{yyyy-MM-dd'T'HH:mm:ss.SSSXXX} %5p [%t] %logger{39} : %m%n");
+      encoder.start();
+
+      FileAppender<ILoggingEvent> file = new FileAppender<>();
+      file.setContext(context);
+      file.setName("FILE");
+      file.setFile("target/perf/hot-path-log-benchmark.log");
+      file.setAppend(false);
+      file.setEncoder(encoder);
+      file.start();
+
+      Appender<ILoggingEvent> root = file;
+      if (async) {
+        AsyncAppender asyncAppender = new AsyncAppender();
+        asyncAppender.setContext(context);
+        asyncAppender.setName("ASYNC_FILE");
+        asyncAppender.setQueueSize(8192);
+        asyncAppender.addAppender(file);
+        asyncAppender.start();
+        root = asyncAppender;
+      }
+      ch.qos.logback.classic.Logger rootLogger = context.getLogger(Logger.ROOT_LOGGER_NAME);
+      rootLogger.setLevel(Level.INFO);
+      rootLogger.addAppender(root);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class BufferState {
+
+    Buffer buffer;
+
+    @Setup
+    public void setUp(LogState logState) {
+      // One partition per thread, as the drain manager never drains a partition concurrently
+      buffer =
+          new Buffer(
+              "bench_db",
+              "bench_schema",
+              "bench_table",
+              Long.MAX_VALUE,
+              logState.partitions.getAndIncrement(),
+              false,
+              null);
+    }
+  }
+
+  private static EnqueueResponse enqueueAndTake(LogState logState, BufferState bufferState) {
+    Buffer buffer = bufferState.buffer;
+    EnqueueResponse response = buffer.expandRowsEnqueueData(Optional.of(logState.rows));
+    long lastOffset = -1;
+    Optional<Pair<Long, Map<String, Object>>> row;
+    while ((row = buffer.getAndAdvanceLatestUncommittedRow()).isPresent()) {
+      lastOffset = row.get().getFirst();
+    }
+    buffer.trimCommitted(lastOffset);
+    return response;
+  }
+
+  @Benchmark
+  public EnqueueResponse enqueue(LogState logState, BufferState bufferState) {
+    return enqueueAndTake(logState, bufferState);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public EnqueueResponse enqueueFourThreads(LogState logState, BufferState bufferState) {
+    return enqueueAndTake(logState, bufferState);
+  }
+
+  @Benchmark
+  public RowSplitter.SplitResult splitNullTimestamps(LogState logState) {
+    return RowSplitter.splitLateArrivingRows(Optional.of(logState.nullTimestampRows), "EDR_DATA");
+  }
+}
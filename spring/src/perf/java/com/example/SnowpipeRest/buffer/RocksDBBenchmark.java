@@ -0,0 +1,91 @@
+package com.example.SnowpipeRest.buffer;
+
+import com.example.SnowpipeRest.perf.BenchmarkRocksDB;
+import com.example.SnowpipeRest.perf.EdrPayloads;
+import com.example.SnowpipeRest.utils.Utils;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rows per second written to and read from the write ahead log by {@link RocksDBManager}. Values
+ * are serialized EDR rows, each thread works on its own partition.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RocksDBBenchmark {
+
+  // Offsets wrap around so that the database stays the same size however long the run
+  private static final int KEYS_PER_PARTITION = 100_000;
+
+  private static final AtomicInteger PARTITIONS = new AtomicInteger();
+
+  @State(Scope.Thread)
+  public static class PartitionState {
+
+    RocksDBManager rocksDB;
+    String[] keys;
+    String value;
+    int next;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+      rocksDB = BenchmarkRocksDB.get();
+      int partition = PARTITIONS.getAndIncrement();
+      keys = new String[KEYS_PER_PARTITION];
+      for (int i = 0; i < KEYS_PER_PARTITION; i++) {
+        keys[i] = Utils.getKeyForWAL("bench_db", "bench_schema", EdrPayloads.TABLE, partition, i);
+      }
+      value = new ObjectMapper().writeValueAsString(EdrPayloads.rows(1, 0.1, partition).get(0));
+      // Reads should always hit
+      for (String key : keys) {
+        rocksDB.writeToDB(key, value);
+      }
+    }
+
+    String nextKey() {
+      String key = keys[next];
+      next = (next + 1) % KEYS_PER_PARTITION;
+      return key;
+    }
+  }
+
+  @Benchmark
+  public boolean write(PartitionState state) {
+    return state.rocksDB.writeToDB(state.nextKey(), state.value);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean writeFourThreads(PartitionState state) {
+    return state.rocksDB.writeToDB(state.nextKey(), state.value);
+  }
+
+  @Benchmark
+  public Optional<String> read(PartitionState state) {
+    return state.rocksDB.readFromDB(state.nextKey());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Optional<String> readFourThreads(PartitionState state) {
+    return state.rocksDB.readFromDB(state.nextKey());
+  }
+}
@@ -0,0 +1,94 @@
+package com.example.SnowpipeRest.buffer;
+
+import com.example.SnowpipeRest.perf.EdrPayloads;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests per second split into late arriving and regular rows by {@link RowSplitter}, against
+ * {@link #splitJavaTime()} which classifies the same rows the way RowSplitter did before it had its
+ * own timestamp parser
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowSplitterBenchmark {
+
+  @Param({"100", "100000"})
+  int rowsPerRequest;
+
+  @Param({"0.0", "0.1", "0.5"})
+  double lateFraction;
+
+  Optional<List<Map<String, Object>>> rows;
+
+  @Setup
+  public void setUp() {
+    rows = Optional.of(EdrPayloads.rows(rowsPerRequest, lateFraction, 42));
+  }
+
+  @Benchmark
+  public RowSplitter.SplitResult split() {
+    return RowSplitter.splitLateArrivingRows(rows, EdrPayloads.TABLE);
+  }
+
+  /** Baseline: java.time parsing, which allocates per row and throws on every naive timestamp */
+  @Benchmark
+  public int splitJavaTime() {
+    Instant lateThreshold = Instant.now().minus(Duration.ofHours(12));
+    String column = RowSplitter.getTimestampColumn(EdrPayloads.TABLE);
+    int late = 0;
+    for (Map<String, Object> row : rows.get()) {
+      Object timestamp = row.get(column);
+      Instant eventTime;
+      if (timestamp instanceof Long millis) {
+        eventTime = Instant.ofEpochMilli(millis);
+      } else if (timestamp instanceof String s) {
+        try {
+          eventTime = Instant.parse(s);
+        } catch (DateTimeParseException e) {
+          try {
+            eventTime = LocalDateTime.parse(s).toInstant(ZoneOffset.UTC);
+          } catch (DateTimeParseException e2) {
+            continue;
+          }
+        }
+      } else {
+        continue;
+      }
+      if (eventTime.isBefore(lateThreshold)) {
+        late++;
+      }
+    }
+    return late;
+  }
+
+  @Benchmark
+  @Threads(4)
+  public RowSplitter.SplitResult splitFourThreads() {
+    return RowSplitter.splitLateArrivingRows(rows, EdrPayloads.TABLE);
+  }
+}
@@ -0,0 +1,21 @@
+package com.example.SnowpipeRest.perf;
+
+import com.example.SnowpipeRest.buffer.RocksDBManager;
+
+/**
+ * RocksDB holds a lock on its directory, so every benchmark in a forked JVM shares one instance.
+ * It lives in the usual `/tmp/snowpiperest` location.
+ */
+public final class BenchmarkRocksDB {
+
+  private static RocksDBManager instance;
+
+  private BenchmarkRocksDB() {}
+
+  public static synchronized RocksDBManager get() {
+    if (instance == null) {
+      instance = new RocksDBManager();
+    }
+    return instance;
+  }
+}
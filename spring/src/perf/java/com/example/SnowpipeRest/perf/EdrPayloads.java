@@ -0,0 +1,124 @@
+package com.example.SnowpipeRest.perf;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates endpoint detection and response (EDR) events shaped like the ones sent to the `EDR_DATA`
+ * table: a flat record of process, network and host attributes, a small tag list, a nested metadata
+ * object and a `generatedTime` timestamp. A configurable fraction of rows is late arriving, i.e.
+ * generated between 13 and 48 hours ago, and timestamps come in the formats that RowSplitter
+ * accepts (ISO instants, offset-less local date times and epoch millis) plus the odd null.
+ */
+public final class EdrPayloads {
+
+  public static final String TABLE = "EDR_DATA";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final String[] EVENT_TYPES = {
+    "process_start", "process_end", "network_connect", "file_write", "registry_set", "dns_query"
+  };
+  private static final String[] PROCESSES = {
+    "chrome.exe", "svchost.exe", "powershell.exe", "explorer.exe", "python3", "sshd", "java"
+  };
+  private static final String[] SEVERITIES = {"info", "low", "medium", "high", "critical"};
+  private static final String[] TAGS = {"lateral", "persistence", "exfil", "baseline", "signed"};
+
+  private EdrPayloads() {}
+
+  /**
+   * @param count number of rows
+   * @param lateFraction fraction of rows, between 0 and 1, whose `generatedTime` is late
+   * @param seed seed of the generator so that runs are comparable
+   */
+  public static List<Map<String, Object>> rows(int count, double lateFraction, long seed) {
+    Random random = new Random(seed);
+    Instant now = Instant.now();
+    List<Map<String, Object>> rows = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      rows.add(row(random, now, random.nextDouble() < lateFraction));
+    }
+    return rows;
+  }
+
+  /** Same as {@link #rows(int, double, long)} serialized as a request body */
+  public static String requestBody(int count, double lateFraction, long seed) {
+    try {
+      return MAPPER.writeValueAsString(rows(count, lateFraction, seed));
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Unable to serialize generated rows", e);
+    }
+  }
+
+  private static Map<String, Object> row(Random random, Instant now, boolean late) {
+    Map<String, Object> row = new LinkedHashMap<>();
+    long ageSeconds = late ? 3600L * (13 + random.nextInt(35)) : random.nextInt(300);
+    row.put("generatedTime", timestamp(random, now.minusSeconds(ageSeconds)));
+    row.put("eventId", new UUID(random.nextLong(), random.nextLong()).toString());
+    row.put("eventType", pick(random, EVENT_TYPES));
+    row.put("deviceId", "dev-" + random.nextInt(50_000));
+    row.put("hostname", "host-" + random.nextInt(50_000) + ".corp.example.com");
+    row.put("osVersion", "10.0." + (19041 + random.nextInt(4000)));
+    row.put("user", "CORP\\user" + random.nextInt(10_000));
+    row.put("processName", pick(random, PROCESSES));
+    row.put("processId", 1000 + random.nextInt(60_000));
+    row.put("parentProcessName", pick(random, PROCESSES));
+    row.put(
+        "commandLine",
+        pick(random, PROCESSES)
+            + " --flag-"
+            + random.nextInt(100)
+            + " C:\\Users\\Public\\"
+            + random.nextInt());
+    row.put("sha256", Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+    row.put("srcIp", ip(random));
+    row.put("dstIp", ip(random));
+    row.put("dstPort", random.nextInt(65_536));
+    row.put("bytesSent", random.nextInt(1 << 20));
+    row.put("severity", pick(random, SEVERITIES));
+    row.put("signed", random.nextBoolean());
+    List<String> tags = new ArrayList<>();
+    for (int i = random.nextInt(3); i >= 0; i--) {
+      tags.add(pick(random, TAGS));
+    }
+    row.put("tags", tags);
+    Map<String, Object> metadata = new HashMap<>();
+    metadata.put("sensorVersion", "7." + random.nextInt(20) + "." + random.nextInt(100));
+    metadata.put("policyId", random.nextInt(500));
+    metadata.put("region", random.nextBoolean() ? "us-west-2" : "eu-central-1");
+    row.put("metadata", metadata);
+    return row;
+  }
+
+  private static Object timestamp(Random random, Instant instant) {
+    int format = random.nextInt(100);
+    if (format < 70) {
+      return instant.toString();
+    } else if (format < 85) {
+      return LocalDateTime.ofInstant(instant, ZoneOffset.UTC).toString();
+    } else if (format < 99) {
+      return instant.toEpochMilli();
+    }
+    return null;
+  }
+
+  private static String ip(Random random) {
+    return "10." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+  }
+
+  private static String pick(Random random, String[] values) {
+    return values[random.nextInt(values.length)];
+  }
+}
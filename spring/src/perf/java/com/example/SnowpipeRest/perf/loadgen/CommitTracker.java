@@ -0,0 +1,123 @@
+package com.example.SnowpipeRest.perf.loadgen;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates end to end commit latency from the server's `/snowpipe/admin/lag` endpoint. Rows of a
+ * table are assumed to be committed in the order their requests were acknowledged: a request counts
+ * as committed once the committed rows of its table, summed over all partitions, reach the rows
+ * acknowledged for that table up to and including it. Rows written before the run started are
+ * counted in a baseline taken at start, so other producers writing to the same tables during the run
+ * skew the estimate.
+ */
+class CommitTracker {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private record PendingRequest(long committedRowsTarget, long plannedAtNanos) {}
+
+  private static final class TableProgress {
+    private final long baselineRows;
+    private long acknowledgedRows;
+    private final ArrayDeque<PendingRequest> pending = new ArrayDeque<>();
+
+    private TableProgress(long baselineRows) {
+      this.baselineRows = baselineRows;
+    }
+  }
+
+  private final HttpClient http;
+  private final URI lagUri;
+  private final LoadReport report;
+
+  private final Map<String, Long> baselineRows;
+  private final ConcurrentHashMap<String, TableProgress> tables;
+
+  CommitTracker(HttpClient http, String url, LoadReport report)
+      throws IOException, InterruptedException {
+    this.http = http;
+    this.lagUri = URI.create(url + "/snowpipe/admin/lag");
+    this.report = report;
+    this.baselineRows = fetchRowsPerTable(false);
+    this.tables = new ConcurrentHashMap<>();
+  }
+
+  private static String key(String database, String schema, String table) {
+    return database + "." + schema + "." + table;
+  }
+
+  /** Records a request whose rows, all or some of them, were acknowledged by the server */
+  void recordAcknowledged(
+      String database, String schema, String table, int rows, long plannedAtNanos) {
+    if (rows <= 0) {
+      return;
+    }
+    String key = key(database, schema, table);
+    TableProgress progress =
+        tables.computeIfAbsent(key, k -> new TableProgress(baselineRows.getOrDefault(k, 0L)));
+    synchronized (progress) {
+      progress.acknowledgedRows += rows;
+      progress.pending.addLast(
+          new PendingRequest(progress.baselineRows + progress.acknowledgedRows, plannedAtNanos));
+    }
+  }
+
+  /** Fetches committed offsets and records the commit latency of newly committed requests */
+  void poll() throws IOException, InterruptedException {
+    Map<String, Long> committedRows = fetchRowsPerTable(true);
+    long now = System.nanoTime();
+    tables.forEach(
+        (key, progress) -> {
+          long committed = committedRows.getOrDefault(key, 0L);
+          synchronized (progress) {
+            while (!progress.pending.isEmpty()
+                && progress.pending.peekFirst().committedRowsTarget() <= committed) {
+              report.recordCommit(now - progress.pending.pollFirst().plannedAtNanos());
+            }
+          }
+        });
+  }
+
+  long getPendingCount() {
+    long pending = 0;
+    for (TableProgress progress : tables.values()) {
+      synchronized (progress) {
+        pending += progress.pending.size();
+      }
+    }
+    return pending;
+  }
+
+  /** Sums written, or committed, rows over the partitions of each table */
+  private Map<String, Long> fetchRowsPerTable(boolean committed)
+      throws IOException, InterruptedException {
+    HttpResponse<String> response =
+        http.send(HttpRequest.newBuilder(lagUri).GET().build(), HttpResponse.BodyHandlers.ofString());
+    if (response.statusCode() != 200) {
+      throw new IOException("Unable to fetch partition lag. status=" + response.statusCode());
+    }
+    Map<String, Long> rows = new HashMap<>();
+    for (JsonNode partition : MAPPER.readTree(response.body())) {
+      String key =
+          key(
+              partition.get("database").asText(),
+              partition.get("schema").asText(),
+              partition.get("table").asText());
+      long offset =
+          partition.get(committed ? "committed_offset" : "written_offset").asLong();
+      rows.merge(key, offset + 1, Long::sum);
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,178 @@
+package com.example.SnowpipeRest.perf.loadgen;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives `PUT /snowpipe/insert/{database}/{schema}/{table}` of a running instance with generated
+ * traffic, or with a recorded trace replayed at a multiple of its original speed, and reports
+ * request latency percentiles, the share of 503 responses and end to end commit latency. Run it
+ * with `make loadgen LOADGEN_ARGS="..."`, see the Load testing section of the README for options.
+ */
+public final class LoadGenerator {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final LoadOptions options;
+  private final HttpClient http;
+  private final LoadReport report;
+  private final Semaphore inFlight;
+  private CommitTracker commitTracker;
+
+  private LoadGenerator(LoadOptions options) {
+    this.options = options;
+    this.http =
+        HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    this.report = new LoadReport();
+    this.inFlight = new Semaphore(options.concurrency());
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadOptions options = LoadOptions.parse(args);
+    new LoadGenerator(options).run();
+  }
+
+  private void run() throws Exception {
+    commitTracker = new CommitTracker(http, options.url(), report);
+    Iterator<PlannedRequest> requests;
+    boolean openLoop;
+    if (options.isReplay()) {
+      requests = new TraceReplay(Path.of(options.trace()), options.speed());
+      openLoop = true;
+      System.out.printf("Replaying trace. trace=%s speed=%s%n", options.trace(), options.speed());
+    } else {
+      SyntheticTraffic traffic = new SyntheticTraffic(options);
+      requests = traffic;
+      openLoop = traffic.isOpenLoop();
+      System.out.printf(
+          "Generating traffic. tables=%s rate=%s concurrency=%d durationSeconds=%d rows=%d-%d"
+              + " payload=%s lateFraction=%s%n",
+          options.tableWeights(),
+          openLoop ? options.rate() + "/s" : "closed loop",
+          options.concurrency(),
+          options.durationSeconds(),
+          options.minRows(),
+          options.maxRows(),
+          options.payload(),
+          options.lateFraction());
+    }
+
+    long start = System.nanoTime();
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "loadgen-monitor");
+              t.setDaemon(true);
+              return t;
+            });
+    scheduler.scheduleWithFixedDelay(this::pollCommits, 250, 250, TimeUnit.MILLISECONDS);
+    scheduler.scheduleAtFixedRate(
+        () ->
+            report.printProgress(
+                System.out,
+                System.nanoTime() - start,
+                options.concurrency() - inFlight.availablePermits(),
+                commitTracker.getPendingCount()),
+        options.reportIntervalSeconds(),
+        options.reportIntervalSeconds(),
+        TimeUnit.SECONDS);
+
+    long durationNanos = TimeUnit.SECONDS.toNanos(options.durationSeconds());
+    while (requests.hasNext()) {
+      if (!openLoop && System.nanoTime() - start >= durationNanos) {
+        break;
+      }
+      PlannedRequest request = requests.next();
+      long plannedAtNanos = start + request.atNanos();
+      long waitNanos;
+      while ((waitNanos = plannedAtNanos - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(waitNanos);
+      }
+      inFlight.acquire();
+      // Closed loop requests are only due once a slot frees up
+      send(request, openLoop ? plannedAtNanos : System.nanoTime());
+    }
+    inFlight.acquire(options.concurrency());
+    long sendingNanos = System.nanoTime() - start;
+
+    long commitDeadline =
+        System.nanoTime() + TimeUnit.SECONDS.toNanos(options.commitTimeoutSeconds());
+    while (commitTracker.getPendingCount() > 0 && System.nanoTime() < commitDeadline) {
+      Thread.sleep(250);
+    }
+    scheduler.shutdownNow();
+    pollCommits();
+    if (requests instanceof AutoCloseable closeable) {
+      closeable.close();
+    }
+    report.printSummary(System.out, sendingNanos, commitTracker.getPendingCount());
+    System.exit(0);
+  }
+
+  private void send(PlannedRequest request, long plannedAtNanos) {
+    HttpRequest httpRequest =
+        HttpRequest.newBuilder(
+                URI.create(
+                    options.url()
+                        + "/snowpipe/insert/"
+                        + request.database()
+                        + "/"
+                        + request.schema()
+                        + "/"
+                        + request.table()))
+            .header("Content-Type", "application/json")
+            .PUT(HttpRequest.BodyPublishers.ofString(request.body()))
+            .build();
+    http.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString())
+        .whenComplete(
+            (response, e) -> {
+              try {
+                long latencyNanos = System.nanoTime() - plannedAtNanos;
+                if (e != null) {
+                  report.recordError(request.rows(), latencyNanos);
+                  return;
+                }
+                int enqueued = 0;
+                int rejected = 0;
+                if (response.statusCode() == 200 || response.statusCode() == 503) {
+                  JsonNode body = MAPPER.readTree(response.body());
+                  enqueued = body.path("rows_enqueued").asInt();
+                  rejected = body.path("rows_rejected").asInt();
+                }
+                report.recordResponse(
+                    response.statusCode(), request.rows(), enqueued, rejected, latencyNanos);
+                commitTracker.recordAcknowledged(
+                    request.database(), request.schema(), request.table(), enqueued, plannedAtNanos);
+              } catch (Exception ex) {
+                report.recordError(request.rows(), System.nanoTime() - plannedAtNanos);
+              } finally {
+                inFlight.release();
+              }
+            });
+  }
+
+  private void pollCommits() {
+    try {
+      commitTracker.poll();
+    } catch (Exception e) {
+      System.err.println("Unable to poll partition lag. e=" + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.example.SnowpipeRest.perf.loadgen;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Command line options of the {@link LoadGenerator}, given as `--name=value`. See the Load testing
+ * section of the README for what each option does.
+ */
+record LoadOptions(
+    String url,
+    String database,
+    String schema,
+    Map<String, Integer> tableWeights,
+    double rate,
+    boolean poisson,
+    int concurrency,
+    long durationSeconds,
+    int minRows,
+    int maxRows,
+    String payload,
+    double lateFraction,
+    String trace,
+    double speed,
+    long commitTimeoutSeconds,
+    long reportIntervalSeconds,
+    long seed) {
+
+  static LoadOptions parse(String[] args) {
+    Map<String, String> values = new LinkedHashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        throw new IllegalArgumentException("Expected --name=value, got " + arg);
+      }
+      int separator = arg.indexOf('=');
+      values.put(arg.substring(2, separator), arg.substring(separator + 1));
+    }
+    String[] rows = values.getOrDefault("rows", "100").split("-");
+    LoadOptions options =
+        new LoadOptions(
+            values.getOrDefault("url", "http://localhost:8080"),
+            values.getOrDefault("database", "MY_DB"),
+            values.getOrDefault("schema", "PUBLIC"),
+            parseTableWeights(values.getOrDefault("tables", "EDR_DATA")),
+            Double.parseDouble(values.getOrDefault("rate", "0")),
+            "poisson".equalsIgnoreCase(values.getOrDefault("arrivals", "poisson")),
+            Integer.parseInt(values.getOrDefault("concurrency", "32")),
+            Long.parseLong(values.getOrDefault("duration", "60")),
+            Integer.parseInt(rows[0]),
+            Integer.parseInt(rows[rows.length - 1]),
+            values.getOrDefault("payload", "edr"),
+            Double.parseDouble(values.getOrDefault("late-fraction", "0.05")),
+            values.get("trace"),
+            Double.parseDouble(values.getOrDefault("speed", "1")),
+            Long.parseLong(values.getOrDefault("commit-timeout", "120")),
+            Long.parseLong(values.getOrDefault("report-interval", "10")),
+            Long.parseLong(values.getOrDefault("seed", "42")));
+    values.keySet().removeAll(KNOWN_OPTIONS);
+    if (!values.isEmpty()) {
+      throw new IllegalArgumentException("Unknown options " + values.keySet());
+    }
+    return options;
+  }
+
+  private static final Set<String> KNOWN_OPTIONS =
+      Set.of(
+          "url",
+          "database",
+          "schema",
+          "tables",
+          "rate",
+          "arrivals",
+          "concurrency",
+          "duration",
+          "rows",
+          "payload",
+          "late-fraction",
+          "trace",
+          "speed",
+          "commit-timeout",
+          "report-interval",
+          "seed");
+
+  /** Parses `TABLE_A:3,TABLE_B:1`, a table without a weight has weight 1 */
+  private static Map<String, Integer> parseTableWeights(String tables) {
+    Map<String, Integer> weights = new LinkedHashMap<>();
+    for (String table : tables.split(",")) {
+      if (table.isBlank()) {
+        continue;
+      }
+      String[] parts = table.trim().split(":");
+      weights.put(parts[0], parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+    }
+    return weights;
+  }
+
+  boolean isReplay() {
+    return trace != null && !trace.isEmpty();
+  }
+}
@@ -0,0 +1,129 @@
+package com.example.SnowpipeRest.perf.loadgen;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcome of a load run. Request latency is measured from when a request was planned to be sent,
+ * not from when it was actually sent, so that a slow server cannot hide latency by holding back the
+ * load (coordinated omission). Percentiles cover the whole run.
+ */
+class LoadReport {
+
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final Timer requestLatency = timer("request");
+  private final Timer commitLatency = timer("commit");
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder ok = new LongAdder();
+  private final LongAdder unavailable = new LongAdder();
+  private final LongAdder otherStatus = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder rowsSent = new LongAdder();
+  private final LongAdder rowsEnqueued = new LongAdder();
+  private final LongAdder rowsRejected = new LongAdder();
+
+  private long lastProgressRequests;
+  private long lastProgressNanos;
+
+  private Timer timer(String name) {
+    return Timer.builder("loadgen." + name)
+        .publishPercentiles(PERCENTILES)
+        .distributionStatisticExpiry(Duration.ofDays(1))
+        .distributionStatisticBufferLength(1)
+        .register(registry);
+  }
+
+  void recordResponse(int status, int rows, int enqueued, int rejected, long latencyNanos) {
+    requests.increment();
+    rowsSent.add(rows);
+    rowsEnqueued.add(enqueued);
+    rowsRejected.add(rejected);
+    if (status == 200) {
+      ok.increment();
+    } else if (status == 503) {
+      unavailable.increment();
+    } else {
+      otherStatus.increment();
+    }
+    requestLatency.record(latencyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordError(int rows, long latencyNanos) {
+    requests.increment();
+    rowsSent.add(rows);
+    errors.increment();
+    requestLatency.record(latencyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordCommit(long latencyNanos) {
+    commitLatency.record(latencyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Prints one line with the request rate since the previous progress line */
+  void printProgress(PrintStream out, long elapsedNanos, long inFlight, long pendingCommits) {
+    long total = requests.sum();
+    double seconds = (elapsedNanos - lastProgressNanos) / 1e9;
+    out.printf(
+        "elapsed=%ds requests=%d rate=%.1f/s 503=%d errors=%d inFlight=%d pendingCommits=%d%n",
+        TimeUnit.NANOSECONDS.toSeconds(elapsedNanos),
+        total,
+        seconds > 0 ? (total - lastProgressRequests) / seconds : 0,
+        unavailable.sum(),
+        errors.sum(),
+        inFlight,
+        pendingCommits);
+    lastProgressRequests = total;
+    lastProgressNanos = elapsedNanos;
+  }
+
+  void printSummary(PrintStream out, long elapsedNanos, long pendingCommits) {
+    long total = requests.sum();
+    double seconds = elapsedNanos / 1e9;
+    out.println("== Load test summary ==");
+    out.printf(
+        "duration=%.1fs requests=%d rate=%.1f/s rowsSent=%d rows/s=%.0f%n",
+        seconds, total, total / seconds, rowsSent.sum(), rowsSent.sum() / seconds);
+    out.printf(
+        "status 200=%d 503=%d (%.2f%%) other=%d errors=%d%n",
+        ok.sum(),
+        unavailable.sum(),
+        total > 0 ? 100.0 * unavailable.sum() / total : 0,
+        otherStatus.sum(),
+        errors.sum());
+    out.printf("rows enqueued=%d rejected=%d%n", rowsEnqueued.sum(), rowsRejected.sum());
+    printLatency(out, "request latency", requestLatency);
+    printLatency(out, "commit latency", commitLatency);
+    if (pendingCommits > 0) {
+      out.printf("requests not committed before the commit timeout=%d%n", pendingCommits);
+    }
+  }
+
+  private static void printLatency(PrintStream out, String name, Timer timer) {
+    HistogramSnapshot snapshot = timer.takeSnapshot();
+    StringBuilder line = new StringBuilder(name).append(" ms count=").append(snapshot.count());
+    for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+      line.append(
+          String.format(
+              " p%s=%.1f",
+              format(percentile.percentile()), percentile.value(TimeUnit.MILLISECONDS)));
+    }
+    line.append(String.format(" max=%.1f", snapshot.max(TimeUnit.MILLISECONDS)));
+    out.println(line);
+  }
+
+  /** 0.5 as 50, 0.999 as 99.9 */
+  private static String format(double percentile) {
+    String value = Double.toString(percentile * 100);
+    return value.endsWith(".0") ? value.substring(0, value.length() - 2) : value;
+  }
+}
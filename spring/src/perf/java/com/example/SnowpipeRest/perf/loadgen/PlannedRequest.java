@@ -0,0 +1,10 @@
+package com.example.SnowpipeRest.perf.loadgen;
+
+/**
+ * A request to send
+ *
+ * @param atNanos when to send it, relative to the start of the run
+ * @param rows number of rows in the body, used for reporting
+ */
+record PlannedRequest(
+    long atNanos, String database, String schema, String table, String body, int rows) {}
@@ -0,0 +1,135 @@
+package com.example.SnowpipeRest.perf.loadgen;
+
+import com.example.SnowpipeRest.perf.EdrPayloads;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generated requests spread over a weighted mix of tables. Bodies are generated up front, a few
+ * variants per table, so that generating payloads does not limit the request rate. With a rate,
+ * requests are planned open loop, at fixed or Poisson distributed intervals, regardless of how fast
+ * the server answers. Without a rate every request is due immediately and the number of requests in
+ * flight alone bounds the load (closed loop).
+ */
+class SyntheticTraffic implements Iterator<PlannedRequest> {
+
+  private static final int BODY_VARIANTS = 16;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private record Body(String json, int rows) {}
+
+  private final LoadOptions options;
+  private final Random random;
+  private final List<String> tables;
+  private final int[] cumulativeWeights;
+  private final Map<String, List<Body>> bodies;
+  private final long durationNanos;
+
+  private long nextAtNanos;
+
+  SyntheticTraffic(LoadOptions options) {
+    this.options = options;
+    this.random = new Random(options.seed());
+    this.tables = new ArrayList<>(options.tableWeights().keySet());
+    this.cumulativeWeights = new int[tables.size()];
+    int total = 0;
+    for (int i = 0; i < tables.size(); i++) {
+      total += options.tableWeights().get(tables.get(i));
+      cumulativeWeights[i] = total;
+    }
+    this.bodies = new HashMap<>();
+    for (String table : tables) {
+      List<Body> variants = new ArrayList<>();
+      for (int i = 0; i < BODY_VARIANTS; i++) {
+        int rows = options.minRows() + random.nextInt(options.maxRows() - options.minRows() + 1);
+        variants.add(new Body(body(rows, random.nextLong()), rows));
+      }
+      bodies.put(table, variants);
+    }
+    this.durationNanos = TimeUnit.SECONDS.toNanos(options.durationSeconds());
+  }
+
+  private String body(int rows, long seed) {
+    if ("edr".equalsIgnoreCase(options.payload())) {
+      return EdrPayloads.requestBody(rows, options.lateFraction(), seed);
+    } else if ("narrow".equalsIgnoreCase(options.payload())) {
+      return narrowBody(rows, seed);
+    }
+    throw new IllegalArgumentException(
+        "Unknown payload, expected edr or narrow. payload=" + options.payload());
+  }
+
+  /** Three columns per row: an id, a value and the `generatedTime` timestamp */
+  private String narrowBody(int count, long seed) {
+    Random random = new Random(seed);
+    Instant now = Instant.now();
+    List<Map<String, Object>> rows = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      boolean late = random.nextDouble() < options.lateFraction();
+      long ageSeconds = late ? 3600L * (13 + random.nextInt(35)) : random.nextInt(300);
+      Map<String, Object> row = new LinkedHashMap<>();
+      row.put("id", random.nextLong());
+      row.put("value", random.nextDouble());
+      row.put("generatedTime", now.minusSeconds(ageSeconds).toString());
+      rows.add(row);
+    }
+    try {
+      return MAPPER.writeValueAsString(rows);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Unable to serialize generated rows", e);
+    }
+  }
+
+  boolean isOpenLoop() {
+    return options.rate() > 0;
+  }
+
+  /** In closed loop the run ends on time, the caller checks the duration */
+  @Override
+  public boolean hasNext() {
+    return !isOpenLoop() || nextAtNanos < durationNanos;
+  }
+
+  @Override
+  public PlannedRequest next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    String table = pickTable();
+    List<Body> variants = bodies.get(table);
+    Body body = variants.get(random.nextInt(variants.size()));
+    PlannedRequest request =
+        new PlannedRequest(
+            nextAtNanos, options.database(), options.schema(), table, body.json(), body.rows());
+    if (isOpenLoop()) {
+      double intervalSeconds =
+          options.poisson()
+              ? -Math.log(1 - random.nextDouble()) / options.rate()
+              : 1 / options.rate();
+      nextAtNanos += (long) (intervalSeconds * TimeUnit.SECONDS.toNanos(1));
+    }
+    return request;
+  }
+
+  private String pickTable() {
+    int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    for (int i = 0; i < cumulativeWeights.length; i++) {
+      if (pick < cumulativeWeights[i]) {
+        return tables.get(i);
+      }
+    }
+    return tables.get(tables.size() - 1);
+  }
+}
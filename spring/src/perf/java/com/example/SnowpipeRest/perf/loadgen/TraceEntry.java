@@ -0,0 +1,15 @@
+package com.example.SnowpipeRest.perf.loadgen;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One line of a request trace, as written by the server's RequestTraceRecorder
+ *
+ * @param atMs when the request arrived, relative to the first recorded request
+ */
+record TraceEntry(
+    @JsonProperty("at_ms") long atMs,
+    @JsonProperty("database") String database,
+    @JsonProperty("schema") String schema,
+    @JsonProperty("table") String table,
+    @JsonProperty("body") String body) {}
@@ -0,0 +1,79 @@
+package com.example.SnowpipeRest.perf.loadgen;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests read from a trace recorded by the server (see `rest_api.trace_record_path`), planned at
+ * their recorded arrival times divided by the speed, e.g. a speed of 4 replays an hour of traffic in
+ * 15 minutes. The trace is streamed so that it may be larger than the heap.
+ */
+class TraceReplay implements Iterator<PlannedRequest>, AutoCloseable {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final BufferedReader reader;
+  private final double speed;
+  private String nextLine;
+
+  TraceReplay(Path trace, double speed) throws IOException {
+    if (speed <= 0) {
+      throw new IllegalArgumentException("Speed must be positive. speed=" + speed);
+    }
+    this.reader = Files.newBufferedReader(trace);
+    this.speed = speed;
+    this.nextLine = readLine();
+  }
+
+  private String readLine() {
+    try {
+      String line;
+      do {
+        line = reader.readLine();
+      } while (line != null && line.isBlank());
+      return line;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return nextLine != null;
+  }
+
+  @Override
+  public PlannedRequest next() {
+    if (nextLine == null) {
+      throw new NoSuchElementException();
+    }
+    try {
+      TraceEntry entry = MAPPER.readValue(nextLine, TraceEntry.class);
+      JsonNode rows = MAPPER.readTree(entry.body());
+      nextLine = readLine();
+      return new PlannedRequest(
+          (long) (TimeUnit.MILLISECONDS.toNanos(entry.atMs()) / speed),
+          entry.database(),
+          entry.schema(),
+          entry.table(),
+          entry.body(),
+          rows.isArray() ? rows.size() : 1);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Invalid trace line", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
@@ -0,0 +1,64 @@
+package com.example.SnowpipeRest.rest;
+
+import com.example.SnowpipeRest.buffer.RowSplitter;
+import com.example.SnowpipeRest.perf.EdrPayloads;
+import com.example.SnowpipeRest.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Large requests per second parsed and split into late arriving and regular rows, on the request
+ * thread and by {@link ParallelRequestParser}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelParseBenchmark {
+
+  @Param({"10000", "100000"})
+  int rowsPerRequest;
+
+  @Param({"4"})
+  int threads;
+
+  String requestBody;
+
+  ParallelRequestParser parser;
+
+  @Setup
+  public void setUp() {
+    requestBody = EdrPayloads.requestBody(rowsPerRequest, 0.1, 42);
+    parser = new ParallelRequestParser(1, threads);
+  }
+
+  @TearDown
+  public void tearDown() {
+    parser.shutdown();
+  }
+
+  @Benchmark
+  public RowSplitter.SplitResult sequential() {
+    return RowSplitter.splitLateArrivingRows(
+        Utils.getRowsFromRequestBody(requestBody), EdrPayloads.TABLE);
+  }
+
+  @Benchmark
+  public RowSplitter.SplitResult parallel() {
+    return parser.parseAndSplit(requestBody, "bench_db", "bench_schema", EdrPayloads.TABLE);
+  }
+}
@@ -0,0 +1,18 @@
+package com.example.SnowpipeRest.snowflake;
+
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Commit watcher that treats every sent offset as committed straight away, so that benchmarks of the
+ * drain path neither poll channels nor pile up subscriptions that are never completed.
+ */
+public class InstantCommitWatcher extends CommitWatcher {
+
+  @Override
+  public CompletableFuture<Long> awaitCommit(
+      TablePartitionKey tableKey, long epochTs, long offset) {
+    return CompletableFuture.completedFuture(offset);
+  }
+}
@@ -0,0 +1,51 @@
+package com.example.SnowpipeRest.utils;
+
+import com.example.SnowpipeRest.perf.EdrPayloads;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/** Requests per second deserialized by {@link Utils#getRowsFromRequestBody(String)} */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParseBenchmark {
+
+  @Param({"1", "100", "1000"})
+  int rowsPerRequest;
+
+  String requestBody;
+
+  @Setup
+  public void setUp() {
+    requestBody = EdrPayloads.requestBody(rowsPerRequest, 0.1, 42);
+  }
+
+  @Benchmark
+  public Optional<List<Map<String, Object>>> parse() {
+    return Utils.getRowsFromRequestBody(requestBody);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Optional<List<Map<String, Object>>> parseFourThreads() {
+    return Utils.getRowsFromRequestBody(requestBody);
+  }
+}
@@ -1,9 +1,19 @@
 package com.example.SnowpipeRest.buffer;
 
 import com.example.SnowpipeRest.utils.EnqueueResponse;
+import com.example.SnowpipeRest.utils.VirtualClock;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import net.snowflake.ingest.utils.Pair;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -18,8 +28,8 @@ public class BufferTest {
   }
 
   @Test
-  public void testNoOutstandingRowsWal() {
-    RocksDBManager rocksDBManager = new RocksDBManager();
+  public void testNoOutstandingRowsWal(@TempDir Path dir) {
+    RocksDBManager rocksDBManager = new RocksDBManager(dir);
     Buffer buffer = new Buffer("my_db", "my_sch", "my_table", 1, 1, true, rocksDBManager);
     rocksDBManager.tearDown();
   }
@@ -37,8 +47,8 @@ public class BufferTest {
   }
 
   @Test
-  public void testHasOutstandingRowsAllAcceptedWAL() {
-    RocksDBManager rocksDBManager = new RocksDBManager();
+  public void testHasOutstandingRowsAllAcceptedWAL(@TempDir Path dir) {
+    RocksDBManager rocksDBManager = new RocksDBManager(dir);
     Buffer buffer = new Buffer("my_db", "my_sch", "my_table", 2, 1, true, rocksDBManager);
     assertFalse(buffer.hasOutstandingRows());
     String requestBody =
@@ -97,8 +107,8 @@ public class BufferTest {
   }
 
   @Test
-  public void testGetAndAdvanceLatestUncommittedRowWAL() {
-    RocksDBManager rocksDBManager = new RocksDBManager();
+  public void testGetAndAdvanceLatestUncommittedRowWAL(@TempDir Path dir) {
+    RocksDBManager rocksDBManager = new RocksDBManager(dir);
     Buffer buffer = new Buffer("my_db", "my_sch", "my_table", 2, 1, true, rocksDBManager);
     assertFalse(buffer.hasOutstandingRows());
     String requestBody =
@@ -121,4 +131,264 @@ public class BufferTest {
     assertEquals(row.get().getSecond().get("some_string"), "two");
     rocksDBManager.tearDown();
   }
+
+  @Test
+  public void testRetainedRowsCappedApartFromQueue() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    try {
+      GroupRowBudget budget = new GroupRowBudget("group", 4, new GroupRowBudget.Pool());
+      Buffer buffer = new Buffer("my_db", "my_sch", "retained_table", 2, 1, false, null);
+      buffer.setRowBudget(budget);
+      String requestBody =
+          "[{\"some_int\": 1, \"some_string\": \"one\"}, {\"some_int\": 2, \"some_string\": \"two\"}]";
+      buffer.expandRowsEnqueueData(requestBody);
+      assertTrue(buffer.getAndAdvanceLatestUncommittedRow().isPresent());
+      assertTrue(buffer.getAndAdvanceLatestUncommittedRow().isPresent());
+      assertEquals(2, buffer.getRetainedRowCount());
+
+      // Sent rows wait for their commit without taking room from new rows
+      assertEquals(2, buffer.expandRowsEnqueueData(requestBody).getRowsEnqueued());
+      assertEquals(4, budget.getUsedRows());
+
+      // With no commit observed the oldest retained row makes way, giving its budget back
+      assertEquals(2L, buffer.getAndAdvanceLatestUncommittedRow().get().getFirst());
+      assertEquals(2, buffer.getRetainedRowCount());
+      assertEquals(3, budget.getUsedRows());
+      assertEquals(
+          1,
+          registry
+              .get("snowpipe.rest.buffer.retained.rows.dropped")
+              .tag("database", "my_db")
+              .tag("table", "retained_table")
+              .tag("partition", "1")
+              .counter()
+              .count());
+
+      // Rows still in the window are replayed after a rewind
+      assertEquals(2, buffer.rewindTo(-1));
+      assertEquals(1L, buffer.getAndAdvanceLatestUncommittedRow().get().getFirst());
+    } finally {
+      Metrics.removeRegistry(registry);
+    }
+  }
+
+  @Test
+  public void testByteCapEstimatedFromRequestSize() {
+    Buffer buffer = new Buffer("my_db", "my_sch", "my_table", 100, 1, false, null);
+    // Each row is about 40 bytes of request, so a 100 byte cap fits two of them
+    buffer.setLimits(100, 100);
+    Optional<List<Map<String, Object>>> rows =
+        Optional.of(List.of(Map.of("a", 1), Map.of("a", 2), Map.of("a", 3)));
+    EnqueueResponse resp = buffer.expandRowsEnqueueData(rows, System.nanoTime(), 120);
+    assertEquals(2, resp.getRowsEnqueued());
+    assertEquals(1, resp.getRowsRejected());
+    assertEquals(80, buffer.getApproximateBytes());
+
+    // Raising the caps lets new rows in without touching the buffered ones
+    buffer.setLimits(100, 1000);
+    resp = buffer.expandRowsEnqueueData(rows, System.nanoTime(), 120);
+    assertEquals(3, resp.getRowsEnqueued());
+    assertEquals(5, buffer.getQueuedRowCount());
+  }
+
+  @Test
+  public void testDropsDuplicateKeys() {
+    Buffer buffer = new Buffer("my_db", "my_sch", "my_table", 3, 1, false, null);
+    buffer.setDeduplicator(
+        new RowDeduplicator(
+            "my_db", "my_sch", "my_table", "id", 60_000, 100, new VirtualClock(0)));
+    Map<String, Object> noKey = Map.of("a", 0);
+    EnqueueResponse resp =
+        buffer.expandRowsEnqueueData(
+            Optional.of(List.of(Map.of("id", 1), Map.of("id", 1), noKey, noKey)));
+    assertEquals(3, resp.getRowsEnqueued());
+    assertEquals(1, resp.getRowsDeduplicated());
+
+    // A rejected row is not remembered, so its retry is enqueued
+    resp = buffer.expandRowsEnqueueData(Optional.of(List.of(Map.of("id", 1), Map.of("id", 2))));
+    assertEquals(1, resp.getRowsDeduplicated());
+    assertEquals(1, resp.getRowsRejected());
+    buffer.getAndAdvanceLatestUncommittedRow();
+    buffer.trimCommitted(0);
+    resp = buffer.expandRowsEnqueueData(Optional.of(List.of(Map.of("id", 2))));
+    assertEquals(1, resp.getRowsEnqueued());
+  }
+
+  @Test
+  public void testGroupBudgetLendsUnusedRows() {
+    GroupRowBudget.Pool pool = new GroupRowBudget.Pool();
+    GroupRowBudget noisy = new GroupRowBudget("noisy", 2, pool);
+    GroupRowBudget quiet = new GroupRowBudget("quiet", 2, pool);
+    Buffer noisyBuffer = new Buffer("noisy_db", "my_sch", "my_table", 100, 1, false, null);
+    Buffer quietBuffer = new Buffer("quiet_db", "my_sch", "my_table", 100, 1, false, null);
+    noisyBuffer.setRowBudget(noisy);
+    quietBuffer.setRowBudget(quiet);
+    String fiveRows = "[{\"a\": 0}, {\"a\": 1}, {\"a\": 2}, {\"a\": 3}, {\"a\": 4}]";
+
+    // Borrows the two rows the quiet group leaves unused
+    EnqueueResponse resp = noisyBuffer.expandRowsEnqueueData(fiveRows);
+    assertEquals(4, resp.getRowsEnqueued());
+    assertEquals(2, noisy.getBorrowedRows());
+
+    // The quiet group still gets its own rows
+    resp = quietBuffer.expandRowsEnqueueData("[{\"a\": 0}, {\"a\": 1}, {\"a\": 2}]");
+    assertEquals(2, resp.getRowsEnqueued());
+    assertEquals(1, resp.getRowsRejected());
+    assertEquals(6, pool.getUsedRows());
+
+    // Rows are given back once committed, not when sent
+    for (int i = 0; i < 3; i++) {
+      noisyBuffer.getAndAdvanceLatestUncommittedRow();
+    }
+    assertEquals(4, noisy.getUsedRows());
+    noisyBuffer.trimCommitted(2);
+    assertEquals(1, noisy.getUsedRows());
+    assertEquals(3, pool.getUsedRows());
+  }
+
+  @Test
+  public void testRewindReplaysUncommittedRowsInOrder() {
+    Buffer buffer = new Buffer("my_db", "my_sch", "my_table", 10, 1, false, null);
+    buffer.expandRowsEnqueueData(
+        "[{\"some_int\": 0}, {\"some_int\": 1}, {\"some_int\": 2}, {\"some_int\": 3}]");
+    for (int i = 0; i < 3; i++) {
+      assertTrue(buffer.getAndAdvanceLatestUncommittedRow().isPresent());
+    }
+
+    assertEquals(2, buffer.rewindTo(0));
+    assertEquals(1L, buffer.getAndAdvanceLatestUncommittedRow().get().getFirst());
+    // Rewinding again before the replay completes keeps the order intact
+    assertEquals(1, buffer.rewindTo(0));
+    assertEquals(1L, buffer.getAndAdvanceLatestUncommittedRow().get().getFirst());
+    assertEquals(2L, buffer.getAndAdvanceLatestUncommittedRow().get().getFirst());
+    assertEquals(3L, buffer.getAndAdvanceLatestUncommittedRow().get().getFirst());
+    assertFalse(buffer.getAndAdvanceLatestUncommittedRow().isPresent());
+    assertEquals(0, buffer.rewindTo(3));
+  }
+
+  @Test
+  public void testMetrics() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    try {
+      Buffer buffer = new Buffer("my_db", "my_sch", "metrics_table", 1, 3, false, null);
+      String requestBody =
+          "[{\"some_int\": 1, \"some_string\": \"one\"}, {\"some_int\": 2, \"some_string\": \"two\"}]";
+      buffer.expandRowsEnqueueData(requestBody);
+      assertEquals(
+          1,
+          registry
+              .get("snowpipe.rest.buffer.rows.enqueued")
+              .tag("table", "metrics_table")
+              .tag("partition", "3")
+              .counter()
+              .count());
+      assertEquals(
+          1,
+          registry
+              .get("snowpipe.rest.buffer.rows.rejected")
+              .tag("table", "metrics_table")
+              .counter()
+              .count());
+      assertEquals(
+          1, registry.get("snowpipe.rest.buffer.rows").tag("table", "metrics_table").gauge().value());
+
+      buffer.getAndAdvanceLatestUncommittedRow();
+      assertEquals(
+          0, registry.get("snowpipe.rest.buffer.rows").tag("table", "metrics_table").gauge().value());
+      assertEquals(
+          1,
+          registry
+              .get("snowpipe.rest.buffer.retained.rows")
+              .tag("table", "metrics_table")
+              .gauge()
+              .value());
+    } finally {
+      Metrics.removeRegistry(registry);
+    }
+  }
+
+  @Test
+  public void testLatencyPerStage() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    try {
+      Buffer buffer = new Buffer("my_db", "my_sch", "latency_table", 10, 0, false, null);
+      buffer.expandRowsEnqueueData("[{\"some_int\": 0}, {\"some_int\": 1}]");
+      buffer.expandRowsEnqueueData("[{\"some_int\": 2}]");
+      for (int i = 0; i < 3; i++) {
+        long offset = buffer.getAndAdvanceLatestUncommittedRow().get().getFirst();
+        buffer.recordRowSent(offset, System.nanoTime());
+      }
+      assertEquals(2, latencyCount(registry, "buffered"));
+      assertEquals(2, latencyCount(registry, "insert"));
+      assertEquals(0, latencyCount(registry, "commit"));
+
+      // Only the first request is fully committed
+      buffer.trimCommitted(1);
+      assertEquals(1, latencyCount(registry, "commit"));
+      assertEquals(1, latencyCount(registry, "end_to_end"));
+      buffer.trimCommitted(2);
+      assertEquals(2, latencyCount(registry, "end_to_end"));
+    } finally {
+      Metrics.removeRegistry(registry);
+    }
+  }
+
+  @Test
+  public void testLag() {
+    Buffer buffer = new Buffer("my_db", "my_sch", "lag_table", 10, 0, false, null);
+    PartitionLag lag = buffer.getLag();
+    assertEquals(-1, lag.writtenOffset());
+    assertEquals(-1, lag.sentOffset());
+    assertEquals(-1, lag.committedOffset());
+    assertEquals(0, lag.oldestUncommittedAgeMs());
+
+    buffer.expandRowsEnqueueData("[{\"some_int\": 0}, {\"some_int\": 1}, {\"some_int\": 2}]");
+    buffer.recordRowSent(buffer.getAndAdvanceLatestUncommittedRow().get().getFirst(), 0);
+    buffer.recordRowSent(buffer.getAndAdvanceLatestUncommittedRow().get().getFirst(), 0);
+    buffer.trimCommitted(0);
+    lag = buffer.getLag();
+    assertEquals(2, lag.writtenOffset());
+    assertEquals(1, lag.sentOffset());
+    assertEquals(0, lag.committedOffset());
+    assertEquals(1, lag.unsentRows());
+    assertEquals(1, lag.uncommittedRows());
+    assertTrue(lag.oldestUncommittedAgeMs() >= 0);
+
+    // A stale commit never moves the committed offset back
+    buffer.trimCommitted(-1);
+    assertEquals(0, buffer.getCommittedOffset());
+  }
+
+  @Test
+  public void testEnqueueJfrEvent() throws Exception {
+    Buffer buffer = new Buffer("my_db", "my_sch", "jfr_table", 1, 2, false, null);
+    Path dump = Files.createTempFile("enqueue", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("com.example.SnowpipeRest.Enqueue");
+      recording.start();
+      buffer.expandRowsEnqueueData("[{\"some_int\": 0}, {\"some_int\": 1}]");
+      recording.stop();
+      recording.dump(dump);
+    }
+    List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+    Files.delete(dump);
+    assertEquals(1, events.size());
+    RecordedEvent event = events.get(0);
+    assertEquals("jfr_table", event.getString("table"));
+    assertEquals(2, event.getLong("partition"));
+    assertEquals(1, event.getInt("rowsEnqueued"));
+    assertEquals(1, event.getInt("rowsRejected"));
+  }
+
+  private static long latencyCount(SimpleMeterRegistry registry, String stage) {
+    return registry
+        .get("snowpipe.rest.latency")
+        .tag("table", "latency_table")
+        .tag("stage", stage)
+        .timer()
+        .count();
+  }
 }
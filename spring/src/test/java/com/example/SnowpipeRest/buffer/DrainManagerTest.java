@@ -1,14 +1,31 @@
 package com.example.SnowpipeRest.buffer;
 
 import com.example.SnowpipeRest.snowflake.ChannelManager;
+import com.example.SnowpipeRest.snowflake.ClientManager;
+import com.example.SnowpipeRest.snowflake.SimulatedSnowflake;
+import com.example.SnowpipeRest.utils.IsolationGroup;
+import com.example.SnowpipeRest.utils.IsolationGroups;
+import com.example.SnowpipeRest.utils.PriorityClass;
+import com.example.SnowpipeRest.utils.TableOverrides;
 import com.example.SnowpipeRest.utils.TablePartitionKey;
 import com.example.SnowpipeRest.utils.Utils;
+import com.example.SnowpipeRest.utils.VirtualClock;
+import com.example.SnowpipeRest.utils.VirtualExecutor;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
 import net.snowflake.ingest.utils.Pair;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -21,6 +38,40 @@ public class DrainManagerTest {
     }
   }
 
+  /**
+   * Channel manager that really opens channels in the background, on simulated Clients handed out
+   * once the gate opens. Opens fail when there is no Client.
+   */
+  private static ChannelManager gatedChannelManager(CountDownLatch gate, boolean hasClient) {
+    SnowflakeStreamingIngestClient client =
+        new SimulatedSnowflake(new SimulatedSnowflake.Settings(0, 0, true, 0, 0, 0, 0))
+            .newClient("gated");
+    return new ChannelManager(
+        new ClientManager() {
+          @Override
+          public SnowflakeStreamingIngestClient getClient(TablePartitionKey tableKey) {
+            try {
+              gate.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            if (!hasClient) {
+              throw new IllegalStateException("Unable to reach Snowflake");
+            }
+            return client;
+          }
+        },
+        1);
+  }
+
+  private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < deadlineMs) {
+      Thread.sleep(10);
+    }
+    assertTrue(condition.getAsBoolean());
+  }
+
   @Test
   public void testDrainManagerLifecycle() {
     BufferManager bufferManager = new BufferManager(100, 1, false);
@@ -220,4 +271,336 @@ public class DrainManagerTest {
       verifyRowsForChannel(channel, 2000);
     }
   }
+
+  // More partitions than the single thread and the executor queue can take in one pass, the
+  // rejected ones must be picked up on later passes
+  @Test
+  public void testMorePartitionsThanExecutorCapacityInVirtualTime() {
+    TestChannelManager channelManager = new TestChannelManager(null, false, false);
+    ChannelManager.setInstance(channelManager);
+
+    VirtualClock clock = new VirtualClock(1234);
+    BufferManager bufferManager = new BufferManager(100, 1, false);
+    DrainManager drainManager =
+        new DrainManager(
+            1234,
+            bufferManager,
+            1,
+            100,
+            10,
+            120,
+            false,
+            new PartitionCircuitBreaker(1000, 300000, clock::currentTimeMillis),
+            0,
+            new VirtualExecutor(clock, 1, DrainManager.EXECUTOR_QUEUE_CAPACITY),
+            clock);
+    final String requestBody =
+        "[{\"some_int\": 1, \"some_string\": \"one\"}, {\"some_int\": 2, \"some_string\": \"two\"}]";
+    for (int i = 0; i < 30; i++) {
+      bufferManager
+          .getBuffer("my_db", "my_sch", "my_table_" + i)
+          .expandRowsEnqueueData(requestBody);
+    }
+
+    clock.start("drain-manager", drainManager);
+    // Each drain holds the thread for its full 100ms, so 30 partitions need at least 3 seconds
+    clock.sleep(10_000);
+
+    assertEquals(30, channelManager.channels.size());
+    for (int i = 0; i < 30; i++) {
+      TestChannel channel =
+          (TestChannel)
+              channelManager.channels.get(
+                  new TablePartitionKey("my_db", "my_sch", "my_table_" + i, 0));
+      assertNotNull(channel);
+      assertEquals(2, channel.insertedRows.size());
+      verifyRowsForChannel(channel, 2);
+    }
+    assertTrue(drainManager.getTableWorkQueue().isEmpty());
+  }
+
+  // A backlog of bulk partitions must not keep the partition of a group with a reserved thread
+  // waiting, while the thread is lent out once the group has nothing to drain
+  @Test
+  public void testIsolationGroupGetsReservedThreadInVirtualTime() {
+    TestChannelManager channelManager = new TestChannelManager(null, false, false);
+    ChannelManager.setInstance(channelManager);
+    IsolationGroups.setInstance(
+        new IsolationGroups(
+            List.of(
+                new IsolationGroup(
+                    "alerting", null, List.of("*.*.AUTH_LOGS"), null, 1, null))));
+    try {
+      VirtualClock clock = new VirtualClock(1234);
+      BufferManager bufferManager = new BufferManager(100, 1, false);
+      DrainManager drainManager =
+          new DrainManager(
+              1234,
+              bufferManager,
+              2,
+              100,
+              10,
+              120,
+              false,
+              new PartitionCircuitBreaker(1000, 300000, clock::currentTimeMillis),
+              0,
+              new VirtualExecutor(clock, 2, DrainManager.EXECUTOR_QUEUE_CAPACITY),
+              clock);
+      final String requestBody =
+          "[{\"some_int\": 1, \"some_string\": \"one\"}, {\"some_int\": 2, \"some_string\": \"two\"}]";
+      for (int i = 0; i < 20; i++) {
+        bufferManager
+            .getBuffer("my_db", "my_sch", "my_table_" + i)
+            .expandRowsEnqueueData(requestBody);
+      }
+      bufferManager.getBuffer("my_db", "my_sch", "auth_logs").expandRowsEnqueueData(requestBody);
+
+      clock.start("drain-manager", drainManager);
+      clock.sleep(150);
+      TestChannel alerting =
+          (TestChannel)
+              channelManager.channels.get(
+                  new TablePartitionKey("my_db", "my_sch", "auth_logs", 0));
+      assertNotNull(alerting);
+      assertEquals(2, alerting.insertedRows.size());
+
+      // Lent threads are only taken when idle, two per pass once the reserved one is lent out
+      clock.sleep(12_000);
+      assertEquals(21, channelManager.channels.size());
+      assertTrue(drainManager.getTableWorkQueue().isEmpty());
+    } finally {
+      IsolationGroups.setInstance(null);
+    }
+  }
+
+  // Drains on lent threads give them back as soon as the group they are reserved for has rows
+  @Test
+  public void testLentThreadsAreGivenBackInVirtualTime() {
+    TestChannelManager channelManager = new TestChannelManager(null, false, false);
+    ChannelManager.setInstance(channelManager);
+    IsolationGroups.setInstance(
+        new IsolationGroups(
+            List.of(
+                new IsolationGroup(
+                    "alerting", null, List.of("*.*.AUTH_LOGS"), null, 1, null))));
+    try {
+      VirtualClock clock = new VirtualClock(1234);
+      BufferManager bufferManager = new BufferManager(100, 1, false);
+      DrainManager drainManager =
+          new DrainManager(
+              1234,
+              bufferManager,
+              2,
+              60_000,
+              1000,
+              120,
+              false,
+              new PartitionCircuitBreaker(1000, 300000, clock::currentTimeMillis),
+              0,
+              new VirtualExecutor(clock, 2, DrainManager.EXECUTOR_QUEUE_CAPACITY),
+              clock);
+      final String requestBody =
+          "[{\"some_int\": 1, \"some_string\": \"one\"}, {\"some_int\": 2, \"some_string\": \"two\"}]";
+      for (int i = 0; i < 2; i++) {
+        bufferManager
+            .getBuffer("my_db", "my_sch", "my_table_" + i)
+            .expandRowsEnqueueData(requestBody);
+      }
+
+      // Both threads are lent out to drains that would otherwise wait for rows for a minute
+      clock.start("drain-manager", drainManager);
+      clock.sleep(2_000);
+      assertEquals(2, drainManager.getGroupDrains(IsolationGroup.DEFAULT));
+
+      bufferManager.getBuffer("my_db", "my_sch", "auth_logs").expandRowsEnqueueData(requestBody);
+      clock.sleep(1_100);
+      TestChannel alerting =
+          (TestChannel)
+              channelManager.channels.get(
+                  new TablePartitionKey("my_db", "my_sch", "auth_logs", 0));
+      assertNotNull(alerting);
+      assertEquals(2, alerting.insertedRows.size());
+    } finally {
+      IsolationGroups.setInstance(null);
+    }
+  }
+
+  @Test
+  public void testWorkQueueOrderedByDrainPriority(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("overrides.json");
+    Files.writeString(
+        file,
+        "{\"MY_TABLE\": {\"lateness_tiers\": [{\"min_age_minutes\": 60, \"drain_priority\": 1},"
+            + " {\"min_age_minutes\": 10080, \"drain_priority\": -1}]}}");
+    TableOverrides.setInstance(new TableOverrides(file));
+    try {
+      DrainManager drainManager =
+          new DrainManager(1234, new BufferManager(100, 1, false), 1, 100, 10, 120, false);
+      TablePartitionKey oldest = new TablePartitionKey("my_db", "my_sch", "my_table", -2);
+      TablePartitionKey regular = new TablePartitionKey("my_db", "my_sch", "my_table", 0);
+      TablePartitionKey other = new TablePartitionKey("my_db", "my_sch", "other_table", 0);
+      TablePartitionKey youngest = new TablePartitionKey("my_db", "my_sch", "my_table", -1);
+      for (TablePartitionKey tableKey : List.of(oldest, regular, other, youngest)) {
+        drainManager.enqueueWorkItemIfNeeded(tableKey);
+      }
+
+      drainManager.sortWorkQueueByDrainPriority();
+
+      // Higher priority first, partitions of the same priority keep their order
+      assertEquals(
+          List.of(youngest, regular, other, oldest), new ArrayList<>(drainManager.getTableWorkQueue()));
+      drainManager.shutdown();
+    } finally {
+      TableOverrides.setInstance(null);
+    }
+  }
+
+  // A high priority table is drained on its reserved thread even while normal tables hold the rest
+  @Test
+  public void testHighPriorityTableGetsReservedThreadInVirtualTime(@TempDir Path dir)
+      throws Exception {
+    Path file = dir.resolve("overrides.json");
+    Files.writeString(file, "{\"AUTH_LOGS\": {\"priority_class\": \"high\"}}");
+    TableOverrides.setInstance(new TableOverrides(file));
+    TestChannelManager channelManager = new TestChannelManager(null, false, false);
+    ChannelManager.setInstance(channelManager);
+    try {
+      VirtualClock clock = new VirtualClock(1234);
+      BufferManager bufferManager = new BufferManager(100, 1, false);
+      DrainManager drainManager =
+          new DrainManager(
+              1234,
+              bufferManager,
+              2,
+              60_000,
+              1000,
+              120,
+              false,
+              new PartitionCircuitBreaker(1000, 300000, clock::currentTimeMillis),
+              1,
+              new VirtualExecutor(clock, 2, DrainManager.EXECUTOR_QUEUE_CAPACITY),
+              clock);
+      final String requestBody =
+          "[{\"some_int\": 1, \"some_string\": \"one\"}, {\"some_int\": 2, \"some_string\": \"two\"}]";
+      for (int i = 0; i < 2; i++) {
+        bufferManager
+            .getBuffer("my_db", "my_sch", "my_table_" + i)
+            .expandRowsEnqueueData(requestBody);
+      }
+
+      // The reserved thread is lent out to a normal table while no high priority table has rows
+      clock.start("drain-manager", drainManager);
+      clock.sleep(2_000);
+      assertEquals(2, drainManager.getPriorityDrains(PriorityClass.NORMAL));
+
+      bufferManager.getBuffer("my_db", "my_sch", "auth_logs").expandRowsEnqueueData(requestBody);
+      clock.sleep(1_100);
+      TestChannel highPriority =
+          (TestChannel)
+              channelManager.channels.get(
+                  new TablePartitionKey("my_db", "my_sch", "auth_logs", 0));
+      assertNotNull(highPriority);
+      assertEquals(2, highPriority.insertedRows.size());
+    } finally {
+      TableOverrides.setInstance(null);
+    }
+  }
+
+  @Test
+  public void testWorkQueueOrderedByPriorityClass(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("overrides.json");
+    Files.writeString(
+        file,
+        "{\"ALERTS\": {\"priority_class\": \"high\"}, \"BULK\": {\"priority_class\": \"low\"},"
+            + " \"MY_TABLE\": {\"lateness_tiers\": [{\"min_age_minutes\": 60, \"drain_priority\": 1}]}}");
+    TableOverrides.setInstance(new TableOverrides(file));
+    try {
+      DrainManager drainManager =
+          new DrainManager(1234, new BufferManager(100, 1, false), 1, 100, 10, 120, false);
+      TablePartitionKey bulk = new TablePartitionKey("my_db", "my_sch", "bulk", 0);
+      TablePartitionKey late = new TablePartitionKey("my_db", "my_sch", "my_table", -1);
+      TablePartitionKey regular = new TablePartitionKey("my_db", "my_sch", "my_table", 0);
+      TablePartitionKey alerts = new TablePartitionKey("my_db", "my_sch", "alerts", 0);
+      for (TablePartitionKey tableKey : List.of(bulk, late, regular, alerts)) {
+        drainManager.enqueueWorkItemIfNeeded(tableKey);
+      }
+
+      drainManager.sortWorkQueueByDrainPriority();
+
+      // The class comes first, the drain priority only orders partitions of the same class
+      assertEquals(
+          List.of(alerts, late, regular, bulk), new ArrayList<>(drainManager.getTableWorkQueue()));
+      drainManager.shutdown();
+    } finally {
+      TableOverrides.setInstance(null);
+    }
+  }
+
+  @Test
+  public void testPartitionSkippedUntilChannelOpens() throws Exception {
+    CountDownLatch gate = new CountDownLatch(1);
+    ChannelManager channelManager = gatedChannelManager(gate, true);
+    ChannelManager.setInstance(channelManager);
+    BufferManager bufferManager = new BufferManager(100, 1, false);
+    DrainManager drainManager = new DrainManager(1234, bufferManager, 1, 100, 10, 120, false);
+    try {
+      TablePartitionKey tableKey = new TablePartitionKey("my_db", "my_sch", "my_table", 0);
+      Buffer buffer = bufferManager.getBuffer("my_db", "my_sch", "my_table");
+      buffer.expandRowsEnqueueData(
+          "[{\"some_int\": 1, \"some_string\": \"one\"}, {\"some_int\": 2, \"some_string\": \"two\"}]");
+      drainManager.enqueueWorkItemIfNeeded(tableKey);
+
+      // The channel is still opening, the partition is dropped for this pass without a drain
+      assertTrue(drainManager.processWorKQueueItem(tableKey));
+      assertFalse(drainManager.getTableWorkSet().contains(tableKey));
+      assertEquals(2, buffer.getQueuedRowCount());
+      assertFalse(drainManager.getCircuitBreaker().isTripped(tableKey));
+
+      gate.countDown();
+      channelManager.openChannelAsync(tableKey).get(5, TimeUnit.SECONDS);
+      drainManager.enqueueWorkItemIfNeeded(tableKey);
+      assertTrue(drainManager.processWorKQueueItem(tableKey));
+      awaitCondition(() -> buffer.getQueuedRowCount() == 0);
+    } finally {
+      drainManager.shutdown();
+      channelManager.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailedChannelOpenTripsPartition() throws Exception {
+    ChannelManager channelManager = gatedChannelManager(new CountDownLatch(0), false);
+    ChannelManager.setInstance(channelManager);
+    BufferManager bufferManager = new BufferManager(100, 1, false);
+    DrainManager drainManager =
+        new DrainManager(
+            1234,
+            bufferManager,
+            1,
+            100,
+            10,
+            120,
+            false,
+            new PartitionCircuitBreaker(60_000, 300_000),
+            0);
+    try {
+      TablePartitionKey tableKey = new TablePartitionKey("my_db", "my_sch", "my_table", 0);
+      Buffer buffer = bufferManager.getBuffer("my_db", "my_sch", "my_table");
+      buffer.expandRowsEnqueueData("[{\"some_int\": 1}]");
+
+      drainManager.enqueueWorkItemIfNeeded(tableKey);
+      assertTrue(drainManager.processWorKQueueItem(tableKey));
+      awaitCondition(() -> drainManager.getCircuitBreaker().isTripped(tableKey));
+
+      // Backing off, the partition is not handed a drain nor another open
+      drainManager.enqueueWorkItemIfNeeded(tableKey);
+      assertTrue(drainManager.processWorKQueueItem(tableKey));
+      assertFalse(drainManager.getTableWorkSet().contains(tableKey));
+      assertFalse(channelManager.isChannelReady(tableKey));
+      assertEquals(1, buffer.getQueuedRowCount());
+    } finally {
+      drainManager.shutdown();
+      channelManager.shutdown();
+    }
+  }
 }
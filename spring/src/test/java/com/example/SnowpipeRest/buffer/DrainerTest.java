@@ -115,9 +115,56 @@ public class DrainerTest {
     ChannelManager.setInstance(channelManager);
     reason = drainer.drain();
     assertEquals(Drainer.TerminationReason.SUCCESS, reason);
-    assertFalse(buffer.hasOutstandingRows());
+    // The failed row is kept for replay until it is committed
+    assertEquals(1, buffer.getRetainedRowCount());
     // Will be 0 due to enqueueing
     assertEquals(0, channel.insertedRows.size());
+
+    // The row that failed is replayed to the new channel ahead of the one that was never sent
+    TestChannel newChannel =
+        (TestChannel)
+            channelManager.channels.get(new TablePartitionKey("my_db", "my_sch", "my_table", 1));
+    assertEquals(1, newChannel.insertedRows.size());
+    assertEquals("0-1234", newChannel.insertedRows.get(0).getSecond());
+    assertTrue(buffer.hasOutstandingRows());
+
+    reason = drainer.drain();
+    assertEquals(Drainer.TerminationReason.SUCCESS, reason);
+    assertFalse(buffer.hasOutstandingRows());
+    assertEquals(2, newChannel.insertedRows.size());
+    assertEquals("1-1234", newChannel.insertedRows.get(1).getSecond());
+    assertEquals(2, buffer.getRetainedRowCount());
+    buffer.trimCommitted(1);
+    assertEquals(0, buffer.getRetainedRowCount());
+  }
+
+  @Test
+  public void testDrainReplaysOnlyUncommittedRowsToReopenedChannel() {
+    TestChannelManager channelManager = new TestChannelManager(null, false, false);
+    ChannelManager.setInstance(channelManager);
+
+    Buffer buffer = new Buffer("my_db", "my_sch", "my_table", 10, 1, false, null);
+    String requestBody =
+        "[{\"some_int\": 1}, {\"some_int\": 2}, {\"some_int\": 3}, {\"some_int\": 4}]";
+    buffer.expandRowsEnqueueData(requestBody);
+
+    Drainer drainer = new Drainer(1234, buffer, 1000, 4, 120);
+    assertEquals(Drainer.TerminationReason.SUCCESS, drainer.drain());
+    assertFalse(buffer.hasOutstandingRows());
+
+    // The channel is reopened having only committed the first two rows
+    channelManager = new TestChannelManager(null, false, false);
+    ChannelManager.setInstance(channelManager);
+    TestChannel reopened =
+        (TestChannel) channelManager.getChannelForTable("my_db", "my_sch", "my_table", 1);
+    reopened.setLatestCommittedOffsetToken("1-1234");
+
+    drainer = new Drainer(1234, buffer, 1000, 2, 120);
+    assertEquals(Drainer.TerminationReason.SUCCESS, drainer.drain());
+    assertEquals(2, reopened.insertedRows.size());
+    assertEquals("2-1234", reopened.insertedRows.get(0).getSecond());
+    assertEquals("3-1234", reopened.insertedRows.get(1).getSecond());
+    assertFalse(buffer.hasOutstandingRows());
   }
 
   @Test
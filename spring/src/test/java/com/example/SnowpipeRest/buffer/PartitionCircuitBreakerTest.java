@@ -0,0 +1,101 @@
+package com.example.SnowpipeRest.buffer;
+
+import com.example.SnowpipeRest.snowflake.ChannelManager;
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PartitionCircuitBreakerTest {
+
+  private final TablePartitionKey tableKey =
+      new TablePartitionKey("my_db", "my_sch", "my_table", 0);
+
+  @Test
+  public void testClosedByDefault() {
+    PartitionCircuitBreaker breaker = new PartitionCircuitBreaker(1000, 60000);
+    assertFalse(breaker.isTripped(tableKey));
+    assertTrue(breaker.tryAcquire(tableKey));
+    assertTrue(breaker.tryAcquire(tableKey));
+  }
+
+  @Test
+  public void testTripAndHalfOpenProbe() {
+    AtomicLong now = new AtomicLong(0);
+    PartitionCircuitBreaker breaker = new PartitionCircuitBreaker(1000, 60000, now::get);
+
+    breaker.onFailure(tableKey);
+    assertTrue(breaker.isTripped(tableKey));
+    assertFalse(breaker.tryAcquire(tableKey));
+
+    // The first backoff is somewhere between half and all of the base backoff
+    now.set(1000);
+    assertFalse(breaker.isTripped(tableKey));
+    assertTrue(breaker.tryAcquire(tableKey));
+    // Only a single probe is let through
+    assertTrue(breaker.isTripped(tableKey));
+    assertFalse(breaker.tryAcquire(tableKey));
+
+    // An inconclusive probe lets the next attempt through
+    breaker.release(tableKey);
+    assertTrue(breaker.tryAcquire(tableKey));
+
+    breaker.onSuccess(tableKey);
+    assertFalse(breaker.isTripped(tableKey));
+    assertTrue(breaker.tryAcquire(tableKey));
+    assertTrue(breaker.tryAcquire(tableKey));
+  }
+
+  @Test
+  public void testBackoffGrowsAndIsCapped() {
+    PartitionCircuitBreaker breaker = new PartitionCircuitBreaker(1000, 60000);
+    for (int i = 0; i < 100; i++) {
+      long first = breaker.getBackoffMs(1);
+      assertTrue(first >= 500 && first <= 1000);
+      long fourth = breaker.getBackoffMs(4);
+      assertTrue(fourth >= 4000 && fourth <= 8000);
+      long capped = breaker.getBackoffMs(64);
+      assertTrue(capped >= 30000 && capped <= 60000);
+    }
+  }
+
+  @Test
+  public void testFailedChannelOpenTrips() {
+    AtomicLong now = new AtomicLong(0);
+    PartitionCircuitBreaker breaker = new PartitionCircuitBreaker(1000, 60000, now::get);
+    CompletableFuture<Object> channelOpen = new CompletableFuture<>();
+    breaker.watchChannelOpen(tableKey, channelOpen);
+    breaker.watchChannelOpen(tableKey, channelOpen);
+    assertFalse(breaker.isTripped(tableKey));
+
+    channelOpen.completeExceptionally(new RuntimeException("bad credentials"));
+    assertTrue(breaker.isTripped(tableKey));
+
+    // Watching the same open twice counts a single failure
+    now.set(1000);
+    assertFalse(breaker.isTripped(tableKey));
+  }
+
+  @Test
+  public void testDrainManagerSkipsTrippedPartition() throws InterruptedException {
+    TestChannelManager channelManager = new TestChannelManager(null, true, false);
+    ChannelManager.setInstance(channelManager);
+    BufferManager bufferManager = new BufferManager(100, 1, false);
+    DrainManager drainManager = new DrainManager(1234, bufferManager, 1, 1000, 10, 120, false);
+    bufferManager
+        .getBuffer("my_db", "my_sch", "my_table")
+        .expandRowsEnqueueData("[{\"some_int\": 1}]");
+
+    drainManager.processWorKQueueItem(tableKey);
+    Thread.sleep(500);
+    assertTrue(drainManager.getCircuitBreaker().isTripped(tableKey));
+
+    drainManager.enqueueWorkItemIfNeeded(tableKey);
+    drainManager.processWorKQueueItem(tableKey);
+    assertFalse(drainManager.getTableWorkSet().contains(tableKey));
+    drainManager.shutdown();
+  }
+}
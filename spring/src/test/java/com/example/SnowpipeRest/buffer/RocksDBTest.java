@@ -1,11 +1,17 @@
 package com.example.SnowpipeRest.buffer;
 
+import com.example.SnowpipeRest.utils.TablePartitionKey;
 import com.example.SnowpipeRest.utils.Utils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 public class RocksDBTest {
 
@@ -34,4 +40,56 @@ public class RocksDBTest {
     Assertions.assertTrue(data.isPresent());
     Assertions.assertEquals(testPayload, data.get());
   }
+
+  @Test
+  public void testGetPersistedPartitions(@TempDir Path directory) {
+    RocksDBManager manager = new RocksDBManager(directory);
+    try {
+      // Partition 1 sorts right before partition 10, which the seek past partition 1 must not skip
+      List<TablePartitionKey> persisted =
+          List.of(
+              new TablePartitionKey("db", "sch", "mytable", 1),
+              new TablePartitionKey("db", "sch", "mytable", 10),
+              TablePartitionKey.lateArriving("db", "sch", "mytable", 1, 0),
+              new TablePartitionKey("db", "sch", "other", 0));
+      for (TablePartitionKey tableKey : persisted) {
+        for (long offset = 0; offset < 20; offset++) {
+          manager.writeToDB(
+              Utils.getKeyForWAL(
+                  tableKey.getDatabase(),
+                  tableKey.getSchema(),
+                  tableKey.getTable(),
+                  tableKey.getPartitionIndex(),
+                  offset),
+              "[{\"a\": 1}]");
+        }
+      }
+      manager.writeToDB("db.sch.mytable.not_a_partition.0", "[{\"a\": 1}]");
+      manager.writeToDB(RocksDBManager.METADATA_PREFIX + "db.sch.late.0.0", "{}");
+
+      Assertions.assertEquals(Set.copyOf(persisted), manager.getPersistedPartitions());
+    } finally {
+      manager.tearDown();
+    }
+  }
+
+  @Test
+  public void testReadPrefix(@TempDir Path directory) {
+    RocksDBManager manager = new RocksDBManager(directory);
+    try {
+      manager.writeToDB(RocksDBManager.METADATA_PREFIX + "a/2", "two");
+      manager.writeToDB(RocksDBManager.METADATA_PREFIX + "a/1", "one");
+      manager.writeToDB(RocksDBManager.METADATA_PREFIX + "b/1", "other");
+      manager.writeToDB("db.sch.mytable.0.0", "row");
+
+      Assertions.assertEquals(
+          Map.of(
+              RocksDBManager.METADATA_PREFIX + "a/1", "one",
+              RocksDBManager.METADATA_PREFIX + "a/2", "two"),
+          manager.readPrefix(RocksDBManager.METADATA_PREFIX + "a/"));
+      Assertions.assertTrue(manager.readPrefix("zz").isEmpty());
+    } finally {
+      manager.tearDown();
+    }
+  }
 }
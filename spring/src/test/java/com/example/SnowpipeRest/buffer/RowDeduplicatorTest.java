@@ -0,0 +1,66 @@
+package com.example.SnowpipeRest.buffer;
+
+import com.example.SnowpipeRest.utils.VirtualClock;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RowDeduplicatorTest {
+
+  private final VirtualClock clock = new VirtualClock(0);
+
+  private RowDeduplicator deduplicator(long windowMs, int maxKeys) {
+    return new RowDeduplicator("db", "sch", "dedup_table", "id", windowMs, maxKeys, clock);
+  }
+
+  @Test
+  public void testKeysOfRows() {
+    RowDeduplicator deduplicator = deduplicator(60_000, 10);
+    assertEquals("42", deduplicator.keyOf(Map.of("id", 42)));
+    assertEquals("abc", deduplicator.keyOf(Map.of("id", "abc")));
+    assertNull(deduplicator.keyOf(Map.of("other", 1)));
+  }
+
+  @Test
+  public void testRemembersKeysForWindow() {
+    RowDeduplicator deduplicator = deduplicator(60_000, 10);
+    assertTrue(deduplicator.claim("a"));
+    assertFalse(deduplicator.claim("a"));
+    clock.sleep(59_999);
+    assertFalse(deduplicator.claim("a"));
+    clock.sleep(1);
+    assertTrue(deduplicator.claim("a"));
+
+    deduplicator.release("a");
+    assertTrue(deduplicator.claim("a"));
+  }
+
+  @Test
+  public void testSpillsOldestKeysIntoFilters() {
+    RowDeduplicator deduplicator = deduplicator(60_000, 100);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(deduplicator.claim("key-" + i));
+      clock.sleep(10);
+    }
+    assertEquals(100, deduplicator.getExactKeyCount());
+    assertTrue(deduplicator.getMemoryBytes() > 100 * RowDeduplicator.BYTES_PER_EXACT_KEY);
+    // Spilled keys are still duplicates within the window
+    for (int i = 0; i < 1000; i++) {
+      assertFalse(deduplicator.claim("key-" + i), "key-" + i);
+    }
+    int falsePositives = 0;
+    for (int i = 1000; i < 2000; i++) {
+      if (!deduplicator.claim("key-" + i)) {
+        falsePositives++;
+      }
+    }
+    assertEquals(0, falsePositives);
+
+    // Every generation is dropped once all of its keys are out of the window
+    clock.sleep(60_000 + 60_000 / RowDeduplicator.GENERATIONS);
+    assertTrue(deduplicator.claim("key-0"));
+    assertEquals(RowDeduplicator.BYTES_PER_EXACT_KEY, deduplicator.getMemoryBytes());
+  }
+}
@@ -3,7 +3,11 @@ package com.example.SnowpipeRest.buffer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import com.example.SnowpipeRest.utils.TableOverrides;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneOffset;
@@ -415,4 +419,55 @@ class RowSplitterTest {
         assertEquals(1, result.regularRows().size(), "Should be REGULAR based on ISO string without millis/zone (assuming UTC)");
         assertEquals(59, result.regularRows().get(0).get("ID"));
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("Should read epoch seconds, as numbers or strings, for a table hinted as epoch_seconds")
+    void testSplitRows_withEpochSecondsFormatOverride(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("overrides.json");
+        Files.writeString(file, "{\"" + CONFIGURED_TABLE + "\": {\"late_arriving_format\": \"epoch_seconds\"}}");
+        TableOverrides.setInstance(new TableOverrides(file));
+        try {
+            List<Map<String, Object>> rows = Arrays.asList(
+                    createRow(301, lateTime.getEpochSecond()),                   // Late (Long seconds)
+                    createRow(302, (int) regularTime.getEpochSecond()),          // Regular (Integer seconds)
+                    createRow(303, String.valueOf(lateTime.getEpochSecond())),   // Late (String seconds)
+                    createRow(304, lateTime.toString())                          // Late (ISO still parses)
+            );
+            RowSplitter.SplitResult result = RowSplitter.splitLateArrivingRows(Optional.of(rows), CONFIGURED_TABLE);
+
+            assertEquals(List.of(301, 303, 304), result.lateRows().stream().map(r -> r.get("ID")).toList());
+            assertEquals(List.of(302), result.regularRows().stream().map(r -> r.get("ID")).toList());
+        } finally {
+            TableOverrides.setInstance(null);
+        }
+    }
+
+    @Test
+    @DisplayName("Should not cache a rule per table name for tables without an override or a built in column")
+    void testRuleCacheDoesNotGrowWithTableNames(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("overrides.json");
+        Files.writeString(file, "{\"" + CONFIGURED_TABLE + "\": {\"late_arriving_format\": \"epoch_seconds\"}}");
+        TableOverrides.setInstance(new TableOverrides(file));
+        try {
+            List<Map<String, Object>> rows = Collections.singletonList(createRow(401, lateTime.toString()));
+            RowSplitter.splitLateArrivingRows(Optional.of(rows), CONFIGURED_TABLE);
+            RowSplitter.splitLateArrivingRows(Optional.of(rows), UNCONFIGURED_TABLE);
+            int ruleCount = RowSplitter.getRuleCount();
+
+            for (int i = 0; i < 100; i++) {
+                RowSplitter.SplitResult result =
+                        RowSplitter.splitLateArrivingRows(Optional.of(rows), "DB_" + i, "PUBLIC", "MISSPELLED_" + i);
+                assertEquals(1, result.regularRows().size());
+            }
+            RowSplitter.splitLateArrivingRows(Optional.of(rows), "DB", "PUBLIC", CONFIGURED_TABLE.toLowerCase());
+            assertEquals(ruleCount, RowSplitter.getRuleCount());
+
+            // A reload drops the rules of the overrides that it replaced
+            TableOverrides.setInstance(new TableOverrides(file));
+            RowSplitter.splitLateArrivingRows(Optional.of(rows), CONFIGURED_TABLE);
+            assertEquals(ruleCount, RowSplitter.getRuleCount());
+        } finally {
+            TableOverrides.setInstance(null);
+        }
+    }
+}
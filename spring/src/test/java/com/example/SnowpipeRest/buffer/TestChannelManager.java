@@ -8,6 +8,7 @@ import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class TestChannelManager extends ChannelManager {
 
@@ -26,6 +27,19 @@ public class TestChannelManager extends ChannelManager {
     this.returnResponseWithErrors = returnResponseWithErrors;
   }
 
+  @Override
+  public Map<TablePartitionKey, SnowflakeStreamingIngestChannel> getOpenChannels() {
+    return channels;
+  }
+
+  @Override
+  public CompletableFuture<SnowflakeStreamingIngestChannel> openChannelAsync(
+      TablePartitionKey tableKey) {
+    return CompletableFuture.completedFuture(
+        channels.computeIfAbsent(
+            tableKey, t -> new TestChannel(throwSFExceptionOnInsert, returnResponseWithErrors)));
+  }
+
   /**
    * Gets or computes a channel instance.
    *
@@ -0,0 +1,101 @@
+package com.example.SnowpipeRest.buffer;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimestampParserTest {
+
+  @Test
+  public void testParsesIsoLikeJavaTime() {
+    List<String> instants =
+        List.of(
+            "2025-03-21T16:59:55Z",
+            "2025-03-21T16:59:55.1Z",
+            "2025-03-21T16:59:55.123Z",
+            "2025-03-21T16:59:55.123456789Z",
+            "1969-12-31T23:59:59.999Z",
+            "0001-01-01T00:00:00Z",
+            "2024-02-29T12:00:00Z",
+            "2016-12-31T23:59:60Z",
+            "2025-03-21t16:59:55z",
+            "2025-03-21t16:59:55.123Z");
+    for (String s : instants) {
+      assertEquals(Instant.parse(s).toEpochMilli(), TimestampParser.parseIso(s), s);
+    }
+    List<String> offsets =
+        List.of("2025-03-21T16:59:55+02:00", "2025-03-21T16:59:55.5-09:30", "2025-03-21T16:59+18:00");
+    for (String s : offsets) {
+      assertEquals(
+          OffsetDateTime.parse(s).toInstant().toEpochMilli(), TimestampParser.parseIso(s), s);
+    }
+    List<String> local =
+        List.of("2025-03-21T16:59:55", "2025-03-21T16:59", "2025-03-21T16:59:55.12", "2025-03-21t16:59");
+    for (String s : local) {
+      assertEquals(
+          LocalDateTime.parse(s).toInstant(ZoneOffset.UTC).toEpochMilli(),
+          TimestampParser.parseIso(s),
+          s);
+    }
+  }
+
+  @Test
+  public void testParsesRandomInstants() {
+    Random random = new Random(42);
+    for (int i = 0; i < 10_000; i++) {
+      Instant instant = Instant.ofEpochMilli(random.nextLong(-30_000_000_000_000L, 30_000_000_000_000L));
+      assertEquals(instant.toEpochMilli(), TimestampParser.parseIso(instant.toString()), instant.toString());
+    }
+  }
+
+  @Test
+  public void testRejectsMalformedIso() {
+    List<String> invalid =
+        List.of(
+            "",
+            "not a timestamp",
+            "2025-03-21",
+            "2025-03-21 16:59:55",
+            "2025-13-21T16:59:55Z",
+            "2025-02-29T16:59:55Z",
+            "2025-03-21T24:00:00Z",
+            "2025-03-21T16:59:55.Z",
+            "2025-03-21T16:59:55.1234567890Z",
+            "2025-03-21T16:59:55+2:00",
+            "2025-03-21T16:59:55+19:00",
+            "2025-03-21T16:59:55Zjunk",
+            "2025-03-21x16:59:55Z",
+            "2025-03-21T16:59:55y",
+            "2025-03-21T16:5a:55Z",
+            "2025-03-21T16:59:60Z");
+    for (String s : invalid) {
+      assertEquals(TimestampParser.INVALID, TimestampParser.parseIso(s), s);
+    }
+  }
+
+  @Test
+  public void testParsesEpochWithFormatHint() {
+    assertEquals(1742576395000L, TimestampParser.parseEpoch("1742576395", 1000));
+    assertEquals(-1000L, TimestampParser.parseEpoch("-1", 1000));
+    assertEquals(TimestampParser.INVALID, TimestampParser.parseEpoch("-", 1));
+    assertEquals(TimestampParser.INVALID, TimestampParser.parseEpoch("17425763950001234", 1));
+    assertEquals(TimestampParser.INVALID, TimestampParser.parseEpoch("12.5", 1));
+
+    assertEquals(
+        1742576395123L, TimestampParser.parse("1742576395123", TimestampParser.Format.EPOCH_MILLIS));
+    // ISO strings still parse for a table hinted as epoch
+    assertEquals(
+        1742576395000L,
+        TimestampParser.parse("2025-03-21T16:59:55Z", TimestampParser.Format.EPOCH_SECONDS));
+    // But digits are not read as epoch without the hint
+    assertEquals(
+        TimestampParser.INVALID, TimestampParser.parse("1742576395", TimestampParser.Format.ISO));
+  }
+}
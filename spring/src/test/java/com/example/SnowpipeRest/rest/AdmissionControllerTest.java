@@ -0,0 +1,157 @@
+package com.example.SnowpipeRest.rest;
+
+import com.example.SnowpipeRest.buffer.PartitionLag;
+import com.example.SnowpipeRest.utils.VirtualClock;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionControllerTest {
+
+  private final VirtualClock clock = new VirtualClock(0);
+
+  private final List<PartitionLag> lags = new ArrayList<>();
+
+  private int tableLagReads;
+
+  private final AdmissionController.TableLags tableLags =
+      (database, schema, table) -> {
+        tableLagReads++;
+        return lags;
+      };
+
+  private static PartitionLag lag(long partition, long committed, long unsent, long uncommitted) {
+    return new PartitionLag(
+        "db",
+        "sch",
+        "tbl",
+        partition,
+        committed + uncommitted + unsent,
+        committed + uncommitted,
+        committed,
+        unsent,
+        uncommitted,
+        0);
+  }
+
+  @Test
+  public void testTableQuota() {
+    AdmissionController controller = new AdmissionController(1000, 0, tableLags, clock);
+    assertTrue(controller.admit("db", "sch", "tbl", 600).admitted());
+    // Admitted into debt while the bucket still has tokens
+    assertTrue(controller.admit("db", "sch", "tbl", 600).admitted());
+    AdmissionController.Decision decision = controller.admit("db", "sch", "tbl", 600);
+    assertFalse(decision.admitted());
+    assertEquals("table_quota", decision.reason());
+    assertEquals(1, decision.retryAfterSeconds());
+    // Other tables have quotas of their own
+    assertTrue(controller.admit("db", "sch", "other", 600).admitted());
+
+    clock.sleep(200);
+    assertFalse(controller.admit("db", "sch", "tbl", 600).admitted());
+    clock.sleep(1);
+    assertTrue(controller.admit("db", "sch", "tbl", 5000).admitted());
+    assertEquals(5, controller.admit("db", "sch", "tbl", 1).retryAfterSeconds());
+  }
+
+  @Test
+  public void testDatabaseQuotaIsShared() {
+    AdmissionController controller = new AdmissionController(1000, 1000, tableLags, clock);
+    assertTrue(controller.admit("db", "sch", "a", 1000).admitted());
+    AdmissionController.Decision decision = controller.admit("db", "sch", "b", 100);
+    assertFalse(decision.admitted());
+    assertEquals("database_quota", decision.reason());
+    assertTrue(controller.admit("other_db", "sch", "b", 100).admitted());
+
+    // The rejected request did not take from the table's quota
+    clock.sleep(1000);
+    assertTrue(controller.admit("db", "sch", "b", 1000).admitted());
+  }
+
+  @Test
+  public void testNoQuota() {
+    AdmissionController controller = new AdmissionController(0, 0, tableLags, clock);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(controller.admit("db", "sch", "tbl", 1_000_000).admitted());
+    }
+  }
+
+  @Test
+  public void testRetryAfterFromDrainThroughput() {
+    AdmissionController controller = new AdmissionController(0, 0, tableLags, clock);
+    lags.add(lag(0, 99, 500, 500));
+    // Not measured yet
+    assertEquals(1, controller.getRetryAfterSeconds("db", "sch", "tbl"));
+
+    // 200 rows committed in 2 seconds, with 1000 rows left
+    clock.sleep(2000);
+    lags.set(0, lag(0, 299, 500, 500));
+    assertEquals(10, controller.getRetryAfterSeconds("db", "sch", "tbl"));
+
+    // Stalled
+    clock.sleep(2000);
+    assertEquals(
+        AdmissionController.MAX_RETRY_AFTER_SECONDS,
+        controller.getRetryAfterSeconds("db", "sch", "tbl"));
+  }
+
+  @Test
+  public void testRetryAfterReadsPartitionsOncePerSample() {
+    AdmissionController controller = new AdmissionController(0, 0, tableLags, clock);
+    lags.add(lag(0, 99, 500, 500));
+    controller.getRetryAfterSeconds("db", "sch", "tbl");
+    clock.sleep(2000);
+    lags.set(0, lag(0, 299, 500, 500));
+    assertEquals(10, controller.getRetryAfterSeconds("db", "sch", "tbl"));
+    assertEquals(2, tableLagReads);
+
+    // A burst of rejections within the second is answered from the last sample
+    lags.set(0, lag(0, 299, 5000, 500));
+    for (int i = 0; i < 100; i++) {
+      clock.sleep(5);
+      assertEquals(10, controller.getRetryAfterSeconds("db", "sch", "tbl"));
+    }
+    assertEquals(2, tableLagReads);
+
+    clock.sleep(500);
+    assertEquals(
+        AdmissionController.MAX_RETRY_AFTER_SECONDS,
+        controller.getRetryAfterSeconds("db", "sch", "tbl"));
+    assertEquals(3, tableLagReads);
+  }
+
+  @Test
+  public void testSweepsIdleTables() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    try {
+      AdmissionController controller = new AdmissionController(1000, 0, tableLags, clock);
+      for (int i = 0; i < 100; i++) {
+        assertTrue(controller.admit("db", "sch", "tbl_" + i, 10).admitted());
+      }
+      controller.getRetryAfterSeconds("db", "sch", "tbl_0");
+      // Over a minute of quota, the table is still in debt once the sweep is due
+      assertTrue(controller.admit("db", "sch", "busy", 61_500).admitted());
+      assertFalse(controller.admit("db", "sch", "busy", 1).admitted());
+      assertEquals(102, controller.getTrackedTableCount());
+
+      clock.sleep(AdmissionController.SWEEP_INTERVAL_SECONDS * 1000);
+      assertFalse(controller.admit("db", "sch", "busy", 1).admitted());
+      assertEquals(1, controller.getTrackedTableCount());
+      assertNotNull(registry.find("snowpipe.rest.admission.rejected").tag("table", "busy").counter());
+
+      // Paid back by the next sweep, its rejection counter goes along with its bucket
+      clock.sleep(AdmissionController.SWEEP_INTERVAL_SECONDS * 1000);
+      assertTrue(controller.admit("db", "sch", "tbl_0", 10).admitted());
+      assertEquals(1, controller.getTrackedTableCount());
+      assertNull(registry.find("snowpipe.rest.admission.rejected").tag("table", "busy").counter());
+    } finally {
+      Metrics.removeRegistry(registry);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.example.SnowpipeRest.rest;
+
+import com.example.SnowpipeRest.utils.InvalidPayloadResponse;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchRequestTest {
+
+  @Test
+  public void testParsesTargetsInOrder() {
+    List<BatchRequest.Target> targets =
+        BatchRequest.parse(
+            "{\"db.sch.tbl_a\": [{\"a\": 1}, {\"a\": {\"nested\": [2]}}],"
+                + " \"db.sch.tbl_b\": [{\"b\": \"one\"}], \"db.sch.tbl_c\": []}");
+    assertEquals(3, targets.size());
+
+    BatchRequest.Target a = targets.get(0);
+    assertEquals("db", a.database());
+    assertEquals("sch", a.schema());
+    assertEquals("tbl_a", a.table());
+    assertEquals("db.sch.tbl_a", a.name());
+    assertEquals(List.of(Map.of("a", 1), Map.of("a", Map.of("nested", List.of(2)))), a.rows());
+    assertTrue(a.bytes() > 0);
+
+    assertEquals(List.of(Map.of("b", "one")), targets.get(1).rows());
+    assertEquals(List.of(), targets.get(2).rows());
+  }
+
+  @Test
+  public void testMergesDuplicateTargets() {
+    List<BatchRequest.Target> targets =
+        BatchRequest.parse(
+            "{\"db.sch.tbl\": [{\"a\": 1}], \"db.sch.other\": [{\"b\": 1}], \"db.sch.tbl\": [{\"a\": 2}]}");
+    assertEquals(2, targets.size());
+    assertEquals("db.sch.tbl", targets.get(0).name());
+    assertEquals(List.of(Map.of("a", 1), Map.of("a", 2)), targets.get(0).rows());
+  }
+
+  @Test
+  public void testRejectsMalformedBodies() {
+    List<String> invalid =
+        List.of(
+            "",
+            "[{\"a\": 1}]",
+            "{\"db.tbl\": [{\"a\": 1}]}",
+            "{\"db..tbl\": [{\"a\": 1}]}",
+            "{\"db.sch.tbl\": {\"a\": 1}}",
+            "{\"db.sch.tbl\": [1, 2]}",
+            "{\"db.sch.tbl\": [{\"a\": 1}]",
+            "{\"db.sch.tbl\": [{\"a\": }]}");
+    for (String body : invalid) {
+      assertThrows(InvalidPayloadResponse.class, () -> BatchRequest.parse(body), body);
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package com.example.SnowpipeRest.rest;
+
+import com.example.SnowpipeRest.buffer.RocksDBManager;
+import com.example.SnowpipeRest.utils.EnqueueResponse;
+import com.example.SnowpipeRest.utils.InvalidPayloadResponse;
+import com.example.SnowpipeRest.utils.VirtualClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdempotencyCacheTest {
+
+  private final VirtualClock clock = new VirtualClock(0);
+
+  private final AtomicInteger enqueues = new AtomicInteger();
+
+  // Rows asked to be enqueued by the last call, null for every row
+  private BitSet lastRowsToEnqueue;
+
+  /**
+   * @param rejectedRows indexes of the rows of the request that were rejected
+   */
+  private IdempotencyCache.Attempt enqueue(
+      BitSet rowsToEnqueue, int rowsEnqueued, int... rejectedRows) {
+    enqueues.incrementAndGet();
+    lastRowsToEnqueue = rowsToEnqueue;
+    BitSet rejected = new BitSet();
+    for (int row : rejectedRows) {
+      rejected.set(row);
+    }
+    return new IdempotencyCache.Attempt(
+        new EnqueueResponse.EnqueueResponseBuilder()
+            .setRowsEnqueued(rowsEnqueued)
+            .setRowsRejected(rejectedRows.length)
+            .build(),
+        rejected);
+  }
+
+  @Test
+  public void testAnswersRetriesFromCache() {
+    IdempotencyCache cache = new IdempotencyCache(60_000, 100, null, clock);
+    EnqueueResponse first = cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 3));
+    EnqueueResponse retry = cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 3));
+    assertSame(first, retry);
+    assertEquals(1, enqueues.get());
+
+    // Keys are scoped to their table
+    cache.enqueueOnce("db.sch.other", "k1", rows -> enqueue(rows, 3));
+    assertEquals(2, enqueues.get());
+  }
+
+  @Test
+  public void testForgetsKeysAfterWindowAndOverflow() {
+    IdempotencyCache cache = new IdempotencyCache(60_000, 2, null, clock);
+    cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 1));
+    clock.sleep(60_000);
+    cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 1));
+    assertEquals(2, enqueues.get());
+
+    cache.enqueueOnce("db.sch.tbl", "k2", rows -> enqueue(rows, 1));
+    cache.enqueueOnce("db.sch.tbl", "k3", rows -> enqueue(rows, 1));
+    assertEquals(2, cache.size());
+    // k1 was the oldest
+    cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 1));
+    assertEquals(5, enqueues.get());
+  }
+
+  @Test
+  public void testRetryOfPartiallyRejectedRequestEnqueuesRejectedRowsOnly() {
+    IdempotencyCache cache = new IdempotencyCache(60_000, 100, null, clock);
+    // A 503 with the last two of five rows rejected
+    EnqueueResponse first = cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 3, 3, 4));
+    assertEquals(3, first.getRowsEnqueued());
+    assertEquals(2, first.getRowsRejected());
+    assertNull(lastRowsToEnqueue);
+
+    // The retry is still short of room for one of them
+    EnqueueResponse retry = cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 1, 4));
+    assertEquals(BitSet.valueOf(new long[] {0b11000}), lastRowsToEnqueue);
+    assertEquals(4, retry.getRowsEnqueued());
+    assertEquals(1, retry.getRowsRejected());
+
+    retry = cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 1));
+    assertEquals(BitSet.valueOf(new long[] {0b10000}), lastRowsToEnqueue);
+    assertEquals(5, retry.getRowsEnqueued());
+    assertEquals(0, retry.getRowsRejected());
+
+    // Every row is in, later retries are answered from the cache
+    assertSame(retry, cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 5)));
+    assertEquals(3, enqueues.get());
+  }
+
+  @Test
+  public void testForgetsOnlyFailedAttempts() {
+    IdempotencyCache cache = new IdempotencyCache(60_000, 100, null, clock);
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            cache.enqueueOnce(
+                "db.sch.tbl",
+                "k1",
+                rows -> {
+                  throw new IllegalStateException("boom");
+                }));
+    assertEquals(0, cache.size());
+    cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 1, 1));
+    assertNull(lastRowsToEnqueue);
+
+    // A failed retry keeps the rows enqueued by the first attempt remembered
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            cache.enqueueOnce(
+                "db.sch.tbl",
+                "k1",
+                rows -> {
+                  throw new IllegalStateException("boom");
+                }));
+    cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 1));
+    assertEquals(BitSet.valueOf(new long[] {0b10}), lastRowsToEnqueue);
+
+    assertThrows(
+        InvalidPayloadResponse.class,
+        () -> cache.enqueueOnce("db.sch.tbl", "", rows -> enqueue(rows, 1)));
+    assertThrows(
+        InvalidPayloadResponse.class,
+        () -> cache.enqueueOnce("db.sch.tbl", "k".repeat(256), rows -> enqueue(rows, 1)));
+  }
+
+  @Test
+  public void testRemembersKeysAcrossRestarts(@TempDir Path directory) {
+    RocksDBManager store = new RocksDBManager(directory);
+    try {
+      IdempotencyCache cache = new IdempotencyCache(60_000, 100, store, clock);
+      cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 2));
+      cache.enqueueOnce("db.sch.tbl", "k2", rows -> enqueue(rows, 2, 2, 70));
+      clock.sleep(30_000);
+      cache.enqueueOnce("db.sch.tbl", "k3", rows -> enqueue(rows, 2));
+      assertEquals(3, store.readPrefix(IdempotencyCache.KEY_PREFIX).size());
+
+      // Rows persisted alongside the keys are not mistaken for them, nor keys for partitions
+      store.writeToDB("db.sch.tbl.0.1", "[{\"a\": 1}]");
+      assertEquals(3, store.readPrefix(IdempotencyCache.KEY_PREFIX).size());
+      assertEquals(1, store.getPersistedPartitions().size());
+
+      // k1 and k2 are out of their window by the time the next instance loads them
+      clock.sleep(40_000);
+      IdempotencyCache restarted = new IdempotencyCache(60_000, 100, store, clock);
+      assertEquals(1, restarted.size());
+      assertEquals(1, store.readPrefix(IdempotencyCache.KEY_PREFIX).size());
+      EnqueueResponse retry =
+          restarted.enqueueOnce("db.sch.tbl", "k3", rows -> enqueue(rows, 2));
+      assertEquals(2, retry.getRowsEnqueued());
+      assertEquals(3, enqueues.get());
+    } finally {
+      store.tearDown();
+    }
+  }
+
+  @Test
+  public void testKeyEvictedWhileEnqueueingIsNotPersisted(@TempDir Path directory) {
+    RocksDBManager store = new RocksDBManager(directory);
+    try {
+      IdempotencyCache cache = new IdempotencyCache(60_000, 1, store, clock);
+      cache.enqueueOnce(
+          "db.sch.tbl",
+          "k1",
+          rows -> {
+            // A newer key evicts k1 while its rows are being enqueued
+            cache.enqueueOnce("db.sch.tbl", "k2", r -> enqueue(r, 1));
+            return enqueue(rows, 1);
+          });
+      assertEquals(
+          List.of(IdempotencyCache.KEY_PREFIX + "db.sch.tbl/k2"),
+          List.copyOf(store.readPrefix(IdempotencyCache.KEY_PREFIX).keySet()));
+
+      // k1 is not brought back by a restart
+      IdempotencyCache restarted = new IdempotencyCache(60_000, 1, store, clock);
+      assertEquals(1, restarted.size());
+      restarted.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 1));
+      assertEquals(3, enqueues.get());
+    } finally {
+      store.tearDown();
+    }
+  }
+
+  @Test
+  public void testRemembersRejectedRowsAcrossRestarts(@TempDir Path directory) {
+    RocksDBManager store = new RocksDBManager(directory);
+    try {
+      IdempotencyCache cache = new IdempotencyCache(60_000, 100, store, clock);
+      cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 2, 2, 70));
+
+      IdempotencyCache restarted = new IdempotencyCache(60_000, 100, store, clock);
+      EnqueueResponse retry = restarted.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 2));
+      BitSet rejected = new BitSet();
+      rejected.set(2);
+      rejected.set(70);
+      assertEquals(rejected, lastRowsToEnqueue);
+      assertEquals(4, retry.getRowsEnqueued());
+      assertEquals(0, retry.getRowsRejected());
+    } finally {
+      store.tearDown();
+    }
+  }
+
+  @Test
+  public void testConcurrentRetryWaitsForOriginal() throws Exception {
+    IdempotencyCache cache = new IdempotencyCache(60_000, 100, null, clock);
+    CountDownLatch enqueuing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread original =
+        new Thread(
+            () ->
+                cache.enqueueOnce(
+                    "db.sch.tbl",
+                    "k1",
+                    rows -> {
+                      enqueuing.countDown();
+                      try {
+                        release.await();
+                      } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                      }
+                      return enqueue(rows, 5);
+                    }));
+    original.start();
+    enqueuing.await();
+
+    Thread retry =
+        new Thread(
+            () -> assertEquals(5, cache.enqueueOnce("db.sch.tbl", "k1", rows -> enqueue(rows, 5)).getRowsEnqueued()));
+    retry.start();
+    release.countDown();
+    original.join();
+    retry.join();
+    assertEquals(1, enqueues.get());
+  }
+}
@@ -0,0 +1,209 @@
+package com.example.SnowpipeRest.rest;
+
+import com.example.SnowpipeRest.buffer.Buffer;
+import com.example.SnowpipeRest.buffer.TestChannelManager;
+import com.example.SnowpipeRest.snowflake.ChannelManager;
+import com.example.SnowpipeRest.utils.EnqueueResponse;
+import com.example.SnowpipeRest.utils.IngestEngineConfig;
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IngestEngineTest {
+
+  private IngestEngine engine;
+
+  /**
+   * An engine with a single in memory partition per table, remembering idempotency keys. Channels
+   * never open, so rows stay in their buffers rather than being drained under the test.
+   */
+  private IngestEngine newEngine(long maxBufferRowCount) {
+    return newEngine(maxBufferRowCount, 0);
+  }
+
+  /**
+   * @param admissionTableBytesPerSecond quota of each table, 0 for none
+   */
+  private IngestEngine newEngine(long maxBufferRowCount, long admissionTableBytesPerSecond) {
+    ChannelManager.setInstance(
+        new TestChannelManager(null, false, false) {
+          @Override
+          public CompletableFuture<SnowflakeStreamingIngestChannel> openChannelAsync(
+              TablePartitionKey tableKey) {
+            return new CompletableFuture<>();
+          }
+        });
+    engine =
+        new IngestEngine(
+            new IngestEngineConfig() {
+              @Override
+              public long getMaxBufferRowCount() {
+                return maxBufferRowCount;
+              }
+
+              @Override
+              public long getMaxShardsPerTable() {
+                return 1;
+              }
+
+              @Override
+              public boolean getUseWAL() {
+                return false;
+              }
+
+              @Override
+              public boolean getSplitLateArrivingRows() {
+                return false;
+              }
+
+              @Override
+              public long getNumThreads() {
+                return 1;
+              }
+
+              @Override
+              public long getMaxDurationToDrainMs() {
+                return 1000;
+              }
+
+              @Override
+              public long getMaxRecordsToDrain() {
+                return 100;
+              }
+
+              @Override
+              public int getMaxSecondsToWaitToDrain() {
+                return 120;
+              }
+
+              @Override
+              public long getIdempotencyWindowSeconds() {
+                return 60;
+              }
+
+              @Override
+              public int getIdempotencyMaxKeys() {
+                return 100;
+              }
+
+              @Override
+              public long getAdmissionTableBytesPerSecond() {
+                return admissionTableBytesPerSecond;
+              }
+            });
+    return engine;
+  }
+
+  @AfterEach
+  public void tearDown() {
+    Resource.ingestEngine = null;
+    if (engine != null) {
+      engine.shutDown();
+    }
+  }
+
+  @Test
+  public void testBatchEnqueuesEachTableOnItsOwn() {
+    IngestEngine engine = newEngine(2);
+    // tbl_b holds two rows at most, its third row is rejected without holding back the others
+    List<BatchRequest.Target> targets =
+        BatchRequest.parse(
+            "{\"db.sch.tbl_a\": [{\"a\": 1}],"
+                + " \"db.sch.tbl_b\": [{\"b\": 1}, {\"b\": 2}, {\"b\": 3}],"
+                + " \"db.sch.tbl_c\": [{\"c\": 1}],"
+                + " \"db.sch.tbl_a\": [{\"a\": 2}]}");
+    Map<String, EnqueueResponse> responses = engine.enqueueBatch(targets, System.nanoTime());
+
+    assertEquals(
+        List.of("db.sch.tbl_a", "db.sch.tbl_b", "db.sch.tbl_c"), List.copyOf(responses.keySet()));
+    // The two parts of tbl_a are merged into one target
+    assertEquals(2, responses.get("db.sch.tbl_a").getRowsEnqueued());
+    assertEquals(0, responses.get("db.sch.tbl_a").getRowsRejected());
+    assertEquals(2, responses.get("db.sch.tbl_b").getRowsEnqueued());
+    assertEquals(1, responses.get("db.sch.tbl_b").getRowsRejected());
+    assertEquals(1, responses.get("db.sch.tbl_c").getRowsEnqueued());
+    assertEquals(0, responses.get("db.sch.tbl_c").getRowsRejected());
+    assertEquals(
+        1, engine.getBufferManager().getBuffer("db", "sch", "tbl_a").getLastWrittenOffset());
+  }
+
+  @Test
+  public void testBatchStatusOfResource() {
+    Resource.ingestEngine = newEngine(2);
+    Resource resource = new Resource();
+
+    ResponseEntity<Map<String, EnqueueResponse>> accepted =
+        resource.insertBatch("{\"db.sch.tbl_a\": [{\"a\": 1}], \"db.sch.tbl_b\": [{\"b\": 1}]}");
+    assertEquals(HttpStatus.OK, accepted.getStatusCode());
+    assertNull(accepted.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+
+    // tbl_b fills up, tbl_a still has room for its row
+    ResponseEntity<Map<String, EnqueueResponse>> partial =
+        resource.insertBatch(
+            "{\"db.sch.tbl_a\": [{\"a\": 2}], \"db.sch.tbl_b\": [{\"b\": 2}, {\"b\": 3}]}");
+    assertEquals(HttpStatus.MULTI_STATUS, partial.getStatusCode());
+    assertNotNull(partial.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+    assertEquals(1, partial.getBody().get("db.sch.tbl_a").getRowsEnqueued());
+    assertEquals(1, partial.getBody().get("db.sch.tbl_b").getRowsEnqueued());
+    assertEquals(1, partial.getBody().get("db.sch.tbl_b").getRowsRejected());
+
+    // Both tables are full
+    ResponseEntity<Map<String, EnqueueResponse>> rejected =
+        resource.insertBatch("{\"db.sch.tbl_a\": [{\"a\": 3}], \"db.sch.tbl_b\": [{\"b\": 4}]}");
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE, rejected.getStatusCode());
+    assertNotNull(rejected.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+    assertEquals(1, rejected.getBody().get("db.sch.tbl_a").getRowsRejected());
+    assertEquals(1, rejected.getBody().get("db.sch.tbl_b").getRowsRejected());
+  }
+
+  @Test
+  public void testRetryOfPartialRejectionEnqueuesRejectedRowsOnly() {
+    IngestEngine engine = newEngine(2);
+    String body = "[{\"id\": 1}, {\"id\": 2}, {\"id\": 3}]";
+    EnqueueResponse first = engine.enqueueData("my_db", "my_sch", "my_table", body, "k1");
+    assertEquals(2, first.getRowsEnqueued());
+    assertEquals(1, first.getRowsRejected());
+
+    // Make room for the rejected row, as a drain would
+    Buffer buffer = engine.getBufferManager().getBuffer("my_db", "my_sch", "my_table");
+    buffer.getAndAdvanceLatestUncommittedRow();
+
+    EnqueueResponse retry = engine.enqueueData("my_db", "my_sch", "my_table", body, "k1");
+    assertEquals(3, retry.getRowsEnqueued());
+    assertEquals(0, retry.getRowsRejected());
+    // Only the third row was enqueued again, the first two are not duplicated
+    assertEquals(2, buffer.getLastWrittenOffset());
+  }
+
+  @Test
+  public void testInsertAdmitsUtf8BytesAndAnswersRetriesAheadOfAdmission() {
+    Resource.ingestEngine = newEngine(100, 1000);
+    Resource resource = new Resource();
+    // 900 characters of 3 bytes each, within a second of quota in characters but not in bytes
+    String body = "[{\"s\": \"" + "\u20ac".repeat(900) + "\"}]";
+
+    assertEquals(
+        HttpStatus.OK, resource.insert("db", "sch", "tbl", "k1", body).getStatusCode());
+    assertEquals(
+        HttpStatus.TOO_MANY_REQUESTS,
+        resource.insert("db", "sch", "tbl", "k2", body).getStatusCode());
+
+    // The retry is answered from the idempotency cache, even though the table is over its quota
+    ResponseEntity<EnqueueResponse> retry = resource.insert("db", "sch", "tbl", "k1", body);
+    assertEquals(HttpStatus.OK, retry.getStatusCode());
+    assertEquals(1, retry.getBody().getRowsEnqueued());
+    assertEquals(
+        0,
+        Resource.ingestEngine.getBufferManager().getBuffer("db", "sch", "tbl").getLastWrittenOffset());
+  }
+}
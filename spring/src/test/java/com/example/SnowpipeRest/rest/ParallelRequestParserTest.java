@@ -0,0 +1,84 @@
+package com.example.SnowpipeRest.rest;
+
+import com.example.SnowpipeRest.buffer.RowSplitter;
+import com.example.SnowpipeRest.utils.Utils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelRequestParserTest {
+
+  private final ParallelRequestParser parser = new ParallelRequestParser(1, 4);
+
+  @AfterEach
+  public void tearDown() {
+    parser.shutdown();
+  }
+
+  private static String body(int rows) {
+    Instant now = Instant.now();
+    StringBuilder body = new StringBuilder(" [");
+    for (int i = 0; i < rows; i++) {
+      Instant generatedTime = i % 3 == 0 ? now.minus(Duration.ofDays(2)) : now;
+      body.append(i == 0 ? "" : ",\n")
+          .append("{\"id\": ")
+          .append(i)
+          .append(", \"generatedTime\": \"")
+          .append(generatedTime)
+          .append("\", \"note\": \"a, [tricky] {value} \\\"")
+          .append(i)
+          .append("\\\"\", \"nested\": {\"list\": [1, {\"x\": \"]\"}], \"empty\": []}}");
+    }
+    return body.append("]\n").toString();
+  }
+
+  @Test
+  public void testParsesLikeSequentialParse() {
+    String body = body(1000);
+    assertTrue(parser.cut(body).size() > 1);
+    assertEquals(Utils.getRowsFromRequestBody(body), parser.parse(body));
+
+    RowSplitter.SplitResult expected =
+        RowSplitter.splitLateArrivingRows(Utils.getRowsFromRequestBody(body), "EDR_DATA");
+    RowSplitter.SplitResult split = parser.parseAndSplit(body, "my_db", "my_sch", "EDR_DATA");
+    assertEquals(expected.regularRows(), split.regularRows());
+    assertEquals(expected.lateRowsByTier(), split.lateRowsByTier());
+    assertEquals(334, split.lateRows().size());
+  }
+
+  @Test
+  public void testMalformedBodiesParseLikeSequentialParse() {
+    String valid = body(10);
+    List<String> bodies =
+        List.of(
+            "[]",
+            "",
+            "{\"id\": 1}",
+            valid.substring(0, valid.length() - 3),
+            valid.replaceFirst(",\n", ",,\n"),
+            valid.replace("]\n", ",]"),
+            valid.replace("]\n", "}"),
+            valid.replace("]\n", "] trailing"),
+            valid.replaceFirst("\"note\": \"a", "\"note\": a"));
+    for (String body : bodies) {
+      RuntimeException sequentialFailure = null;
+      Object sequential = null;
+      try {
+        sequential = Utils.getRowsFromRequestBody(body);
+      } catch (RuntimeException e) {
+        // e.g. a body that is not an array
+        sequentialFailure = e;
+      }
+      if (sequentialFailure != null) {
+        assertThrows(sequentialFailure.getClass(), () -> parser.parse(body), body);
+      } else {
+        assertEquals(sequential, parser.parse(body), body);
+      }
+    }
+  }
+}
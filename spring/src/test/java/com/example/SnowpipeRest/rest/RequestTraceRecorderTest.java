@@ -0,0 +1,36 @@
+package com.example.SnowpipeRest.rest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestTraceRecorderTest {
+
+  @Test
+  public void testRecordsUpToMaxRequests(@TempDir Path dir) throws Exception {
+    Path trace = dir.resolve("trace.jsonl");
+    RequestTraceRecorder recorder = new RequestTraceRecorder(trace, 2);
+    recorder.record("my_db", "my_sch", "my_table", "[{\"a\":1}]");
+    recorder.record("my_db", "my_sch", "my_table", "[{\"a\":2}]");
+    recorder.record("my_db", "my_sch", "my_table", "[{\"a\":3}]");
+
+    // The trace is closed by the writer thread once the second request is written
+    List<String> lines = List.of();
+    for (int i = 0; i < 100 && lines.size() < 2; i++) {
+      Thread.sleep(20);
+      lines = Files.readAllLines(trace);
+    }
+    assertEquals(2, lines.size());
+    JsonNode first = new ObjectMapper().readTree(lines.get(0));
+    assertEquals(0, first.get("at_ms").asLong());
+    assertEquals("my_table", first.get("table").asText());
+    assertEquals("[{\"a\":1}]", first.get("body").asText());
+  }
+}
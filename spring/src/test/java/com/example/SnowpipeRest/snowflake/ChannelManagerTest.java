@@ -0,0 +1,167 @@
+package com.example.SnowpipeRest.snowflake;
+
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChannelManagerTest {
+
+  private static final TablePartitionKey KEY =
+      new TablePartitionKey("my_db", "my_sch", "my_table", 0);
+
+  private final SimulatedSnowflake snowflake =
+      new SimulatedSnowflake(new SimulatedSnowflake.Settings(0, 0, true, 0, 0, 0, 0));
+
+  /** Client manager that hands out whichever Client is current */
+  private static ClientManager clientManager(AtomicReference<SnowflakeStreamingIngestClient> client) {
+    return new ClientManager() {
+      @Override
+      public SnowflakeStreamingIngestClient getClient(TablePartitionKey tableKey) {
+        return client.get();
+      }
+    };
+  }
+
+  /**
+   * Client manager whose Client is handed out once the gate opens, an open that follows fails
+   * while `fail` is set
+   */
+  private ClientManager gatedClientManager(
+      CountDownLatch gate, AtomicBoolean fail, AtomicInteger opens) {
+    SnowflakeStreamingIngestClient client = snowflake.newClient("gated");
+    return new ClientManager() {
+      @Override
+      public SnowflakeStreamingIngestClient getClient(TablePartitionKey tableKey) {
+        opens.incrementAndGet();
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        if (fail.get()) {
+          throw new IllegalStateException("Unable to reach Snowflake");
+        }
+        return client;
+      }
+    };
+  }
+
+  @Test
+  public void testConcurrentOpensSharePendingOpen() throws Exception {
+    CountDownLatch gate = new CountDownLatch(1);
+    AtomicInteger opens = new AtomicInteger();
+    ChannelManager channelManager =
+        new ChannelManager(gatedClientManager(gate, new AtomicBoolean(), opens), 2);
+
+    CompletableFuture<SnowflakeStreamingIngestChannel> first = channelManager.openChannelAsync(KEY);
+    CompletableFuture<SnowflakeStreamingIngestChannel> second =
+        channelManager.openChannelAsync(KEY);
+    assertSame(first, second);
+    assertFalse(first.isDone());
+    assertTrue(channelManager.getChannelIfReady(KEY).isEmpty());
+    assertFalse(channelManager.isChannelReady(KEY));
+
+    gate.countDown();
+    SnowflakeStreamingIngestChannel channel = first.get(5, TimeUnit.SECONDS);
+    assertEquals(1, opens.get());
+    assertTrue(channelManager.isChannelReady(KEY));
+    assertSame(channel, channelManager.getChannelIfReady(KEY).orElseThrow());
+    CompletableFuture<SnowflakeStreamingIngestChannel> open = channelManager.openChannelAsync(KEY);
+    assertTrue(open.isDone());
+    assertSame(channel, open.join());
+    assertEquals(1, opens.get());
+  }
+
+  @Test
+  public void testFailedOpenIsRetriedByNextCaller() throws Exception {
+    AtomicBoolean fail = new AtomicBoolean(true);
+    ChannelManager channelManager =
+        new ChannelManager(
+            gatedClientManager(new CountDownLatch(0), fail, new AtomicInteger()), 1);
+
+    CompletableFuture<SnowflakeStreamingIngestChannel> failed =
+        channelManager.openChannelAsync(KEY);
+    ExecutionException e =
+        assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+    assertInstanceOf(IllegalStateException.class, e.getCause());
+    assertFalse(channelManager.isChannelReady(KEY));
+    assertTrue(channelManager.getChannelIfReady(KEY).isEmpty());
+    // The blocking lookup surfaces the cause of the failure
+    assertThrows(
+        IllegalStateException.class,
+        () -> channelManager.getChannelForTable("my_db", "my_sch", "my_table", 0));
+
+    // A failed open is not cached, the next caller opens again
+    fail.set(false);
+    CompletableFuture<SnowflakeStreamingIngestChannel> retry = channelManager.openChannelAsync(KEY);
+    assertNotSame(failed, retry);
+    assertNotNull(retry.get(5, TimeUnit.SECONDS));
+    assertTrue(channelManager.isChannelReady(KEY));
+  }
+
+  @Test
+  public void testMoveWaitsForDrainToReleaseChannel() {
+    AtomicReference<SnowflakeStreamingIngestClient> client =
+        new AtomicReference<>(snowflake.newClient("first"));
+    ChannelManager channelManager = new ChannelManager(clientManager(client), 1);
+    SnowflakeStreamingIngestChannel first = channelManager.openChannelAsync(KEY).join();
+
+    Optional<SnowflakeStreamingIngestChannel> acquired = channelManager.acquireChannel(KEY);
+    assertSame(first, acquired.orElseThrow());
+    client.set(snowflake.newClient("second"));
+    channelManager.reassignChannel(KEY, client.get());
+
+    // The draining channel is left open, the drain is asked to give it back
+    assertTrue(channelManager.isMoveRequested(KEY));
+    assertSame(first, channelManager.getOpenChannels().get(KEY));
+    assertFalse(first.isClosed());
+
+    channelManager.releaseChannel(KEY);
+    SnowflakeStreamingIngestChannel second = channelManager.openChannelAsync(KEY).join();
+    assertNotSame(first, second);
+    assertTrue(first.isClosed());
+    assertFalse(channelManager.isMoveRequested(KEY));
+  }
+
+  @Test
+  public void testMoveOfIdleChannelStartsRightAway() {
+    AtomicReference<SnowflakeStreamingIngestClient> client =
+        new AtomicReference<>(snowflake.newClient("first"));
+    ChannelManager channelManager = new ChannelManager(clientManager(client), 1);
+    SnowflakeStreamingIngestChannel first = channelManager.openChannelAsync(KEY).join();
+    channelManager.acquireChannel(KEY);
+    channelManager.releaseChannel(KEY);
+
+    channelManager.reassignChannel(KEY, client.get());
+    assertFalse(channelManager.isMoveRequested(KEY));
+    assertNotSame(first, channelManager.openChannelAsync(KEY).join());
+  }
+
+  @Test
+  public void testInvalidateKeepsReopenedChannel() {
+    AtomicReference<SnowflakeStreamingIngestClient> client =
+        new AtomicReference<>(snowflake.newClient("first"));
+    ChannelManager channelManager = new ChannelManager(clientManager(client), 1);
+    SnowflakeStreamingIngestChannel first = channelManager.openChannelAsync(KEY).join();
+
+    channelManager.invalidateChannel(KEY, first);
+    assertFalse(channelManager.isChannelReady(KEY));
+    SnowflakeStreamingIngestChannel second = channelManager.openChannelAsync(KEY).join();
+
+    // A drain that failed on the previous channel does not evict the reopened one
+    channelManager.invalidateChannel(KEY, first);
+    assertSame(second, channelManager.getOpenChannels().get(KEY));
+  }
+}
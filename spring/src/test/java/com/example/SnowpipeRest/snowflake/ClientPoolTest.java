@@ -0,0 +1,161 @@
+package com.example.SnowpipeRest.snowflake;
+
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class ClientPoolTest {
+
+  private final List<SnowflakeStreamingIngestClient> clients = new ArrayList<>();
+
+  private ClientPool newPool(int size) {
+    for (int i = 0; i < size; i++) {
+      clients.add(mock(SnowflakeStreamingIngestClient.class));
+    }
+    return new ClientPool("test", size, clients::get, 2.0);
+  }
+
+  private static TablePartitionKey key(long partition) {
+    return new TablePartitionKey("my_db", "my_sch", "my_table", partition);
+  }
+
+  @Test
+  public void testAssignsToLeastLoadedClient() {
+    ClientPool pool = newPool(2);
+    assertSame(clients.get(0), pool.getClient(key(0)));
+    assertSame(clients.get(1), pool.getClient(key(1)));
+    // Assignments are sticky
+    assertSame(clients.get(0), pool.getClient(key(0)));
+
+    pool.recordBytes(key(0), 1_000_000);
+    pool.rebalance();
+    assertSame(clients.get(1), pool.getClient(key(2)));
+    assertSame(clients.get(1), pool.getClient(key(3)));
+
+    List<ClientPool.ClientLoad> loads = pool.getClientLoads();
+    assertEquals(2, loads.size());
+    assertEquals(1, loads.get(0).channelCount());
+    assertEquals(3, loads.get(1).channelCount());
+    assertTrue(loads.get(0).bytesPerSecond() > 0);
+  }
+
+  @Test
+  public void testPublishesClientLoadAsGauges() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    try {
+      clients.add(mock(SnowflakeStreamingIngestClient.class));
+      clients.add(mock(SnowflakeStreamingIngestClient.class));
+      // A pool name of its own, gauges of another test's pool would be found under the same tags
+      ClientPool pool = new ClientPool("gauges", 2, clients::get, 2.0);
+      pool.getClient(key(0));
+      pool.getClient(key(1));
+      pool.getClient(key(2));
+      pool.recordBytes(key(0), 1_000_000);
+      pool.recordCommitLatency(key(0), 1500);
+      pool.rebalance();
+
+      assertEquals(
+          2,
+          registry.get("snowpipe.rest.client.pool.channels").tags("pool", "gauges", "client", "0")
+              .gauge().value());
+      assertEquals(
+          1,
+          registry.get("snowpipe.rest.client.pool.channels").tags("pool", "gauges", "client", "1")
+              .gauge().value());
+      assertTrue(
+          registry.get("snowpipe.rest.client.pool.bytes").tags("pool", "gauges", "client", "0")
+                  .gauge().value()
+              > 0);
+      assertEquals(
+          1500,
+          registry.get("snowpipe.rest.client.pool.commit.latency")
+              .tags("pool", "gauges", "client", "0")
+              .timeGauge()
+              .value(TimeUnit.MILLISECONDS));
+      // No commit observed yet
+      assertTrue(
+          Double.isNaN(
+              registry.get("snowpipe.rest.client.pool.commit.latency")
+                  .tags("pool", "gauges", "client", "1")
+                  .timeGauge()
+                  .value(TimeUnit.MILLISECONDS)));
+    } finally {
+      Metrics.removeRegistry(registry);
+    }
+  }
+
+  @Test
+  public void testRebalancesLaggingClient() {
+    ClientPool pool = newPool(2);
+    List<TablePartitionKey> moved = new ArrayList<>();
+    pool.setReassignmentListener(
+        (tableKey, client) -> {
+          moved.add(tableKey);
+          assertSame(clients.get(1), client);
+        });
+
+    pool.getClient(key(0));
+    pool.getClient(key(1));
+    pool.getClient(key(2));
+    assertSame(clients.get(0), pool.getClient(key(2)));
+    pool.recordBytes(key(2), 1_000_000);
+
+    pool.recordCommitLatency(key(0), 1000);
+    pool.recordCommitLatency(key(1), 1000);
+    pool.rebalance();
+    assertTrue(moved.isEmpty());
+
+    // Client 0 now takes well over twice as long as its peer to commit
+    pool.recordCommitLatency(key(0), 20000);
+    pool.rebalance();
+    assertEquals(List.of(key(2)), moved);
+    assertSame(clients.get(1), pool.getClient(key(2)));
+    assertEquals(1, pool.getClientLoads().get(0).channelCount());
+    assertEquals(2, pool.getClientLoads().get(1).channelCount());
+  }
+
+  @Test
+  public void testLaggingClientMovesOnePartitionPerFreshLatency() {
+    ClientPool pool = newPool(2);
+    List<TablePartitionKey> moved = new ArrayList<>();
+    pool.setReassignmentListener((tableKey, client) -> moved.add(tableKey));
+
+    pool.getClient(key(0));
+    pool.getClient(key(1));
+    pool.recordBytes(key(1), 1_000_000);
+    pool.rebalance();
+    // Client 1 carries the bytes, so the next partitions go to client 0
+    assertSame(clients.get(0), pool.getClient(key(2)));
+    assertSame(clients.get(0), pool.getClient(key(3)));
+    pool.recordBytes(key(2), 1000);
+
+    pool.recordCommitLatency(key(0), 20000);
+    pool.recordCommitLatency(key(1), 1000);
+    pool.rebalance();
+    assertEquals(List.of(key(2)), moved);
+    assertEquals(2, pool.getClientLoads().get(0).channelCount());
+    assertEquals(-1, pool.getClientLoads().get(0).commitLatencyMs());
+
+    // Back to back ticks without new commits leave the Client's other partitions alone
+    pool.rebalance();
+    pool.rebalance();
+    assertEquals(List.of(key(2)), moved);
+    assertEquals(2, pool.getClientLoads().get(0).channelCount());
+
+    // Still lagging on fresh commits, so another partition is moved
+    pool.recordCommitLatency(key(0), 20000);
+    pool.rebalance();
+    assertEquals(2, moved.size());
+    assertEquals(1, pool.getClientLoads().get(0).channelCount());
+  }
+}
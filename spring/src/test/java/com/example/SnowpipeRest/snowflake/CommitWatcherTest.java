@@ -0,0 +1,112 @@
+package com.example.SnowpipeRest.snowflake;
+
+import com.example.SnowpipeRest.buffer.TestChannel;
+import com.example.SnowpipeRest.buffer.TestChannelManager;
+import com.example.SnowpipeRest.utils.TablePartitionKey;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommitWatcherTest {
+
+  private final TablePartitionKey tableKey =
+      new TablePartitionKey("my_db", "my_sch", "my_table", 0);
+
+  private TestChannel openTestChannel() {
+    TestChannelManager channelManager = new TestChannelManager(null, false, false);
+    ChannelManager.setInstance(channelManager);
+    return (TestChannel) channelManager.getChannelForTable("my_db", "my_sch", "my_table", 0);
+  }
+
+  @Test
+  public void testAwaitCommitCompletesOnPoll() throws Exception {
+    TestChannel channel = openTestChannel();
+    CommitWatcher watcher = new CommitWatcher();
+
+    CompletableFuture<Long> future = watcher.awaitCommit(tableKey, 1234, 3);
+    watcher.poll();
+    assertFalse(future.isDone());
+
+    channel.setLatestCommittedOffsetToken("2-1234");
+    watcher.poll();
+    assertFalse(future.isDone());
+    assertEquals(2, watcher.getLatestCommittedOffset(tableKey, 1234));
+
+    channel.setLatestCommittedOffsetToken("5-1234");
+    watcher.poll();
+    assertTrue(future.isDone());
+    assertEquals(5, future.get());
+  }
+
+  @Test
+  public void testAwaitCommitAlreadyCommitted() throws Exception {
+    TestChannel channel = openTestChannel();
+    CommitWatcher watcher = new CommitWatcher();
+
+    channel.setLatestCommittedOffsetToken("7-1234");
+    watcher.poll();
+    CompletableFuture<Long> future = watcher.awaitCommit(tableKey, 1234, 7);
+    assertTrue(future.isDone());
+    assertEquals(7, future.get());
+  }
+
+  @Test
+  public void testAwaitCommitNewerEpoch() {
+    TestChannel channel = openTestChannel();
+    CommitWatcher watcher = new CommitWatcher();
+
+    CompletableFuture<Long> future = watcher.awaitCommit(tableKey, 1234, 3);
+    channel.setLatestCommittedOffsetToken("0-4567");
+    watcher.poll();
+    assertTrue(future.isCompletedExceptionally());
+    assertThrows(ExecutionException.class, future::get);
+    assertEquals(-1, watcher.getLatestCommittedOffset(tableKey, 1234));
+  }
+
+  @Test
+  public void testOlderEpochIgnored() {
+    TestChannel channel = openTestChannel();
+    CommitWatcher watcher = new CommitWatcher();
+
+    CompletableFuture<Long> future = watcher.awaitCommit(tableKey, 1234, 0);
+    channel.setLatestCommittedOffsetToken("10-1000");
+    watcher.poll();
+    assertFalse(future.isDone());
+    assertEquals(-1, watcher.getLatestCommittedOffset(tableKey, 1234));
+  }
+
+  @Test
+  public void testTimedOutSubscriptionIsRemoved() throws Exception {
+    openTestChannel();
+    CommitWatcher watcher = new CommitWatcher();
+
+    CompletableFuture<Long> future =
+        watcher.awaitCommit(tableKey, 1234, 3).orTimeout(1, TimeUnit.MILLISECONDS);
+    assertThrows(ExecutionException.class, future::get);
+    assertTrue(watcher.partitions.get(tableKey).subscriptions.isEmpty());
+  }
+
+  @Test
+  public void testPrunesPartitionsWithoutBuffer() {
+    TestChannel channel = openTestChannel();
+    CommitWatcher watcher = new CommitWatcher();
+    channel.setLatestCommittedOffsetToken("2-1234");
+    watcher.poll();
+    assertEquals(2, watcher.getLatestCommittedOffset(tableKey, 1234));
+
+    // Kept while a subscription is outstanding
+    CompletableFuture<Long> future = watcher.awaitCommit(tableKey, 1234, 3);
+    watcher.setBufferedPartitions(key -> false);
+    watcher.poll();
+    assertTrue(watcher.partitions.containsKey(tableKey));
+
+    future.cancel(false);
+    watcher.poll();
+    assertFalse(watcher.partitions.containsKey(tableKey));
+    assertEquals(-1, watcher.getLatestCommittedOffset(tableKey, 1234));
+  }
+}
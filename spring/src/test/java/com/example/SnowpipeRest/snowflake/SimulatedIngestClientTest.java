@@ -0,0 +1,90 @@
+package com.example.SnowpipeRest.snowflake;
+
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.OpenChannelRequest;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.utils.SFException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SimulatedIngestClientTest {
+
+  private static final Map<String, Object> ROW = Map.of("id", 1);
+
+  private static SimulatedSnowflake.Settings settings(
+      long flushLagMs, boolean commitOffsets, double insertErrorRate, double channelErrorRate) {
+    return new SimulatedSnowflake.Settings(
+        0, flushLagMs, commitOffsets, insertErrorRate, channelErrorRate, 0, 0);
+  }
+
+  private static SnowflakeStreamingIngestChannel open(SimulatedIngestClient client) {
+    return client.openChannel(
+        OpenChannelRequest.builder("host-0")
+            .setDBName("my_db")
+            .setSchemaName("my_sch")
+            .setTableName("my_table")
+            .setOnErrorOption(OpenChannelRequest.OnErrorOption.CONTINUE)
+            .build());
+  }
+
+  @Test
+  public void testCommitsAfterFlushLag() {
+    SimulatedIngestClient client =
+        new SimulatedSnowflake(settings(0, true, 0, 0)).newClient("test");
+    SnowflakeStreamingIngestChannel channel = open(client);
+    assertNull(channel.getLatestCommittedOffsetToken());
+
+    assertFalse(channel.insertRow(ROW, "0-1").hasErrors());
+    assertFalse(channel.insertRow(ROW, "1-1").hasErrors());
+    assertEquals("1-1", channel.getLatestCommittedOffsetToken());
+    assertEquals(
+        Map.of("my_db.my_sch.my_table.host-0", "1-1"),
+        client.getLatestCommittedOffsetTokens(List.of(channel)));
+  }
+
+  @Test
+  public void testNeverCommits() {
+    SnowflakeStreamingIngestChannel channel =
+        open(new SimulatedSnowflake(settings(0, false, 0, 0)).newClient("test"));
+    channel.insertRow(ROW, "0-1");
+    assertNull(channel.getLatestCommittedOffsetToken());
+  }
+
+  @Test
+  public void testReopenKeepsCommittedOffsetAndInvalidatesChannel() {
+    SimulatedSnowflake snowflake = new SimulatedSnowflake(settings(60_000, true, 0, 0));
+    SnowflakeStreamingIngestChannel first = open(snowflake.newClient("test"));
+    first.insertRow(ROW, "0-1");
+    // Closing flushes
+    first.close().join();
+
+    SnowflakeStreamingIngestChannel second = open(snowflake.newClient("test"));
+    assertEquals("0-1", second.getLatestCommittedOffsetToken());
+    second.insertRow(ROW, "1-1");
+
+    // Rows within the flush lag are lost on reopen
+    SnowflakeStreamingIngestChannel third = open(snowflake.newClient("test"));
+    assertFalse(second.isValid());
+    assertThrows(SFException.class, () -> second.insertRow(ROW, "2-1"));
+    assertEquals("0-1", third.getLatestCommittedOffsetToken());
+  }
+
+  @Test
+  public void testInjectsErrors() {
+    SnowflakeStreamingIngestChannel rowErrors =
+        open(new SimulatedSnowflake(settings(0, true, 1.0, 0)).newClient("test"));
+    InsertValidationResponse response = rowErrors.insertRow(ROW, "0-1");
+    assertTrue(response.hasErrors());
+    assertEquals(ROW, response.getInsertErrors().get(0).getRowContent());
+
+    SnowflakeStreamingIngestChannel channelErrors =
+        open(new SimulatedSnowflake(settings(0, true, 0, 1.0)).newClient("test"));
+    assertThrows(SFException.class, () -> channelErrors.insertRow(ROW, "0-1"));
+    assertFalse(channelErrors.isValid());
+    assertNull(channelErrors.getLatestCommittedOffsetToken());
+  }
+}
@@ -0,0 +1,56 @@
+package com.example.SnowpipeRest.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HotPathLogTest {
+
+  @AfterEach
+  public void tearDown() {
+    HotPathLog.configure("sampled", 30);
+  }
+
+  @Test
+  public void testSampleOncePerInterval() {
+    HotPathLog.configure("sampled", 30);
+    HotPathLog log = HotPathLog.create(LoggerFactory.getLogger(HotPathLogTest.class), "test");
+    HotPathLog.Tally tally = log.tally("db.schema.table.0");
+    assertSame(tally, log.tally("db.schema.table.0"));
+    assertTrue(tally.trySample());
+    assertFalse(tally.trySample());
+    // Keys are sampled independently
+    assertTrue(log.tally("db.schema.table.1").trySample());
+  }
+
+  @Test
+  public void testFlushResetsCounts() {
+    HotPathLog log = HotPathLog.create(LoggerFactory.getLogger(HotPathLogTest.class), "test");
+    HotPathLog.Tally tally = log.tally("db.schema.table.0");
+    tally.record(10);
+    tally.record(5);
+    assertEquals(2, tally.getCount());
+    log.flush();
+    assertEquals(0, tally.getCount());
+  }
+
+  @Test
+  public void testMode() {
+    assertFalse(HotPathLog.isVerbose());
+    HotPathLog.configure("VERBOSE", 30);
+    assertTrue(HotPathLog.isVerbose());
+  }
+
+  @Test
+  public void testUnknownModeFallsBackToSampled() {
+    HotPathLog.configure("VERBOSE", 30);
+    HotPathLog.configure("chatty", 30);
+    assertFalse(HotPathLog.isVerbose());
+    HotPathLog.configure(" verbose ", 30);
+    assertTrue(HotPathLog.isVerbose());
+    HotPathLog.configure(null, 30);
+    assertFalse(HotPathLog.isVerbose());
+  }
+}
@@ -0,0 +1,55 @@
+package com.example.SnowpipeRest.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IsolationGroupsTest {
+
+  @Test
+  public void testMatchesDatabasesAndPatternsInOrder(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("groups.json");
+    Files.writeString(
+        file,
+        "[{\"name\": \"alerting\", \"tables\": [\"*.*.auth_*\"], \"drain_threads\": 2},"
+            + " {\"name\": \"tenant_a\", \"databases\": [\"tenant_a\"], \"max_buffer_rows\": 1000,"
+            + " \"client_pool_size\": 2}]");
+    IsolationGroups groups = IsolationGroups.load(file);
+
+    assertEquals(2, groups.getGroups().size());
+    IsolationGroup tenant = groups.groupOf("TENANT_A", "PUBLIC", "EVENTS");
+    assertEquals("tenant_a", tenant.name());
+    assertEquals(1000, tenant.maxBufferRowsOrNone());
+    assertEquals(0, tenant.drainThreadsOrNone());
+    assertEquals(2, tenant.clientPoolSizeOrNone());
+    // The first group that matches wins
+    assertEquals("alerting", groups.groupOf("tenant_a", "public", "AUTH_LOGS").name());
+    assertEquals("alerting", groups.groupOf("OTHER", "S", "AUTH_").name());
+    assertSame(IsolationGroup.DEFAULT, groups.groupOf("OTHER", "S", "EVENTS"));
+    assertSame(IsolationGroup.DEFAULT, groups.groupOf("TENANT_AB", "S", "EVENTS"));
+  }
+
+  @Test
+  public void testInvalidFileSharesDefaultGroup(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("groups.json");
+    Files.writeString(file, "[{\"name\": \"a\", \"tables\": [\"DB.TABLE\"]}]");
+    assertTrue(IsolationGroups.load(file).isEmpty());
+    Files.writeString(file, "[{\"name\": \"a\", \"databases\": [\"DB\"], \"drain_threads\": 0}]");
+    assertTrue(IsolationGroups.load(file).isEmpty());
+    assertTrue(IsolationGroups.load(dir.resolve("missing.json")).isEmpty());
+    assertTrue(IsolationGroups.load(null).isEmpty());
+
+    IsolationGroup a = new IsolationGroup("a", List.of("DB"), null, null, null, null);
+    assertThrows(IllegalArgumentException.class, () -> new IsolationGroups(List.of(a, a)));
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new IsolationGroups(
+                List.of(new IsolationGroup("default", List.of("DB"), null, null, null, null))));
+  }
+}
@@ -0,0 +1,215 @@
+package com.example.SnowpipeRest.utils;
+
+import com.example.SnowpipeRest.buffer.Buffer;
+import com.example.SnowpipeRest.buffer.BufferManager;
+import com.example.SnowpipeRest.buffer.RowSplitter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TableOverridesTest {
+
+  @AfterEach
+  public void tearDown() {
+    TableOverrides.setInstance(null);
+  }
+
+  @Test
+  public void testLoadsOverridesCaseInsensitively(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("overrides.json");
+    Files.writeString(
+        file,
+        "{\"edr_data\": {\"shards\": 8, \"max_client_lag\": \"2 seconds\", \"late_arriving_column\": \"\"},"
+            + " \"AUDIT\": {\"late_arriving_threshold_minutes\": 90, \"priority_class\": \"High\"}}");
+    TableOverrides overrides = new TableOverrides(file);
+
+    TableOverride edr = overrides.get("EDR_DATA");
+    assertEquals(8, edr.shardsOr(1));
+    assertEquals(100, edr.maxBufferRowCountOr(100));
+    assertEquals("2 seconds", edr.maxClientLagOr("10000"));
+    assertNull(edr.lateArrivingColumnOr("generatedTime"));
+    assertEquals(
+        Duration.ofMinutes(90), overrides.get("audit").lateArrivingThresholdOr(Duration.ZERO));
+    assertSame(TableOverride.NONE, overrides.get("OTHER"));
+    // Parsed once as the file is loaded, not on every lookup
+    assertSame(PriorityClass.HIGH, overrides.get("AUDIT").priorityClass());
+    assertEquals(PriorityClass.HIGH, overrides.get("AUDIT").priorityClassOrDefault());
+    assertEquals(PriorityClass.NORMAL, edr.priorityClassOrDefault());
+  }
+
+  @Test
+  public void testQualifiedOverrideTakesPrecedenceOverBareName(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("overrides.json");
+    Files.writeString(
+        file,
+        "{\"MY_TABLE\": {\"shards\": 2, \"priority_class\": \"low\"},"
+            + " \"db1.sch.my_table\": {\"shards\": 4}}");
+    TableOverrides overrides = new TableOverrides(file);
+    TableOverrides.setInstance(overrides);
+
+    assertEquals(4, overrides.get("DB1", "SCH", "MY_TABLE").shardsOr(1));
+    // The qualified override replaces the bare one as a whole, it is not merged with it
+    assertEquals(PriorityClass.NORMAL, overrides.get("db1", "sch", "my_table").priorityClassOrDefault());
+    // A bare name applies to the table of that name in every other database and schema
+    assertEquals(2, overrides.get("db2", "sch", "my_table").shardsOr(1));
+    assertEquals(2, overrides.get("db1", "other", "my_table").shardsOr(1));
+    assertSame(TableOverride.NONE, overrides.get("db1", "sch", "other_table"));
+    assertEquals(2, overrides.get("my_table").shardsOr(1));
+
+    BufferManager bufferManager = new BufferManager(10, 5, false);
+    assertEquals(4, bufferManager.getPartitionKeys("db1", "sch", "my_table", false).size());
+    assertEquals(2, bufferManager.getPartitionKeys("db2", "sch", "my_table", false).size());
+    bufferManager.shutdown();
+
+    // A name that is neither bare nor fully qualified is rejected
+    Files.writeString(file, "{\"sch.my_table\": {\"shards\": 8}}");
+    assertFalse(overrides.reload());
+    assertEquals(4, overrides.get("db1", "sch", "my_table").shardsOr(1));
+  }
+
+  @Test
+  public void testShutDownBufferManagerStopsApplyingOverrides(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("overrides.json");
+    Files.writeString(file, "{}");
+    TableOverrides overrides = new TableOverrides(file);
+    TableOverrides.setInstance(overrides);
+    BufferManager bufferManager = new BufferManager(10, 1, false);
+    Buffer buffer = bufferManager.getBuffer("my_db", "my_sch", "my_table");
+    bufferManager.shutdown();
+
+    Files.writeString(file, "{\"MY_TABLE\": {\"max_buffer_row_count\": 1}}");
+    assertTrue(overrides.reload());
+    Optional<List<Map<String, Object>>> rows = Optional.of(List.of(Map.of("a", 1), Map.of("a", 2)));
+    assertEquals(2, buffer.expandRowsEnqueueData(rows).getRowsEnqueued());
+  }
+
+  @Test
+  public void testReloadKeepsPreviousOverridesOnInvalidFile(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("overrides.json");
+    Files.writeString(file, "{\"EDR_DATA\": {\"max_records_to_drain\": 500}}");
+    TableOverrides overrides = new TableOverrides(file);
+    AtomicInteger changes = new AtomicInteger();
+    overrides.addChangeListener(changes::incrementAndGet);
+
+    assertFalse(overrides.reload());
+
+    Files.writeString(file, "{\"EDR_DATA\": {\"max_records_to_drain\": 2000}}");
+    assertTrue(overrides.reload());
+    assertEquals(2000, overrides.get("EDR_DATA").maxRecordsToDrainOr(0));
+    assertEquals(1, changes.get());
+
+    Files.writeString(file, "{\"EDR_DATA\": {\"max_records_to_drain\": -1}}");
+    assertFalse(overrides.reload());
+    Files.writeString(file, "{\"EDR_DATA\": {\"max_recods_to_drain\": 10}}");
+    assertFalse(overrides.reload());
+    Files.writeString(file, "{\"EDR_DATA\": {\"priority_class\": \"urgent\"}}");
+    assertFalse(overrides.reload());
+    Files.delete(file);
+    assertFalse(overrides.reload());
+    assertEquals(2000, overrides.get("EDR_DATA").maxRecordsToDrainOr(0));
+    assertEquals(1, changes.get());
+  }
+
+  @Test
+  public void testBufferManagerAppliesOverrides(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("overrides.json");
+    Files.writeString(file, "{}");
+    TableOverrides overrides = new TableOverrides(file);
+    TableOverrides.setInstance(overrides);
+    BufferManager bufferManager = new BufferManager(10, 5, false);
+    Buffer buffer = bufferManager.getBuffer("my_db", "my_sch", "my_table");
+    assertEquals(1, bufferManager.getPartitionKeys("my_db", "my_sch", "my_table", true).size());
+
+    Files.writeString(
+        file,
+        "{\"MY_TABLE\": {\"shards\": 3, \"max_buffer_row_count\": 1, \"late_arriving_column\": \"ts\"}}");
+    assertTrue(overrides.reload());
+
+    assertEquals("ts", RowSplitter.getTimestampColumn("my_table"));
+    // Three shards and the late arriving partition
+    assertEquals(4, bufferManager.getPartitionKeys("my_db", "my_sch", "my_table", true).size());
+    // The existing buffer picked up the lower row cap
+    Optional<List<Map<String, Object>>> rows = Optional.of(List.of(Map.of("a", 1), Map.of("a", 2)));
+    assertEquals(1, buffer.expandRowsEnqueueData(rows).getRowsEnqueued());
+  }
+
+  @Test
+  public void testLatenessTiersRouteRowsByAge(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("overrides.json");
+    Files.writeString(
+        file,
+        "{\"MY_TABLE\": {\"late_arriving_column\": \"ts\", \"lateness_tiers\": ["
+            + "{\"min_age_minutes\": 60},"
+            + " {\"min_age_minutes\": 720, \"drain_priority\": -1},"
+            + " {\"min_age_minutes\": 10080, \"drain_priority\": -2, \"max_client_lag\": \"5 minutes\"}]}}");
+    TableOverrides overrides = new TableOverrides(file);
+    TableOverrides.setInstance(overrides);
+
+    TableOverride override = overrides.get("my_table");
+    assertEquals(3, override.latenessTierCount());
+    assertEquals(-2, override.latenessTierDrainPriority(3));
+    assertEquals("5 minutes", override.latenessTierMaxClientLagOr(3, "60 seconds"));
+    assertEquals("60 seconds", override.latenessTierMaxClientLagOr(1, "60 seconds"));
+    // One regular partition and one partition per tier
+    BufferManager bufferManager = new BufferManager(10, 5, false);
+    assertEquals(4, bufferManager.getPartitionKeys("my_db", "my_sch", "my_table", true).size());
+
+    Instant now = Instant.now();
+    List<Map<String, Object>> rows =
+        List.of(
+            Map.of("ts", now.minus(Duration.ofMinutes(10)).toString()),
+            Map.of("ts", now.minus(Duration.ofHours(2)).toString()),
+            Map.of("ts", now.minus(Duration.ofDays(2)).toString()),
+            Map.of("ts", now.minus(Duration.ofDays(30)).toString()));
+    RowSplitter.SplitResult result = RowSplitter.splitLateArrivingRows(Optional.of(rows), "my_table");
+    assertEquals(List.of(rows.get(0)), result.regularRows());
+    assertEquals(
+        List.of(List.of(rows.get(1)), List.of(rows.get(2)), List.of(rows.get(3))),
+        result.lateRowsByTier());
+
+    // Tiers must be in ascending age
+    Files.writeString(
+        file,
+        "{\"MY_TABLE\": {\"lateness_tiers\": [{\"min_age_minutes\": 720}, {\"min_age_minutes\": 60}]}}");
+    assertFalse(overrides.reload());
+    assertEquals(3, overrides.get("my_table").latenessTierCount());
+  }
+
+  @Test
+  public void testLateArrivingRowsShardedWithinTier(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("overrides.json");
+    Files.writeString(
+        file,
+        "{\"MY_TABLE\": {\"late_arriving_column\": \"ts\", \"late_arriving_shards\": 3,"
+            + " \"lateness_tiers\": [{\"min_age_minutes\": 60}, {\"min_age_minutes\": 720}]}}");
+    TableOverrides.setInstance(new TableOverrides(file));
+    BufferManager bufferManager = new BufferManager(10, 5, false);
+
+    Set<Long> partitions = new HashSet<>();
+    for (int i = 0; i < 6; i++) {
+      partitions.add(
+          bufferManager.getLateArrivingRowsBuffer("my_db", "my_sch", "my_table", 2).getPartitionIndex());
+    }
+    // The shards of the second tier, apart from regular partitions and from the first tier
+    assertEquals(Set.of(-2L, -102L, -202L), partitions);
+    TablePartitionKey shard = new TablePartitionKey("my_db", "my_sch", "my_table", -202);
+    assertEquals(2, shard.getLatenessTier());
+    assertEquals(2, shard.getLateArrivingShard());
+    assertEquals(shard, TablePartitionKey.lateArriving("my_db", "my_sch", "my_table", 2, 2));
+    // One regular partition and three shards per tier
+    assertEquals(7, bufferManager.getPartitionKeys("my_db", "my_sch", "my_table", true).size());
+  }
+}
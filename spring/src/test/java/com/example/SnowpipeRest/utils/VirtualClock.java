@@ -0,0 +1,127 @@
+package com.example.SnowpipeRest.utils;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock whose time only moves when every thread running on it is waiting. Threads started with
+ * {@link #start(String, Runnable)} and the thread that built the clock take turns: exactly one of
+ * them runs at a time, until it sleeps, parks or ends, and the next turn goes to the thread with the
+ * earliest wake up time, ties broken by the order in which they went to sleep. Time jumps straight
+ * to that wake up time. Runs are thus deterministic and take as long as the code under test needs,
+ * not as long as it sleeps.
+ *
+ * <p>Code running on the clock must not block on anything but the clock, e.g. on a lock held by a
+ * thread that is waiting for its turn.
+ */
+public class VirtualClock implements Clock {
+
+  private static final class Turn {
+    private final Semaphore granted = new Semaphore(0);
+    private long wakeAtNanos;
+    private long order;
+  }
+
+  private final long startMillis;
+  private final PriorityQueue<Turn> waiting =
+      new PriorityQueue<>(
+          Comparator.<Turn>comparingLong(t -> t.wakeAtNanos).thenComparingLong(t -> t.order));
+  private final Map<Thread, Turn> parked = new HashMap<>();
+  private volatile long nowNanos;
+  private long order;
+
+  /** @param startMillis wall clock time at which the clock starts */
+  public VirtualClock(long startMillis) {
+    this.startMillis = startMillis;
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    return startMillis + TimeUnit.NANOSECONDS.toMillis(nowNanos);
+  }
+
+  @Override
+  public long nanoTime() {
+    return nowNanos;
+  }
+
+  @Override
+  public void sleep(long millis) {
+    sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /** Gives up the turn until the clock has advanced by the given time */
+  public void sleepNanos(long nanos) {
+    Turn turn;
+    synchronized (this) {
+      turn = schedule(new Turn(), nowNanos + Math.max(nanos, 0));
+      handOff();
+    }
+    turn.granted.acquireUninterruptibly();
+  }
+
+  /** Gives up the turn until another thread calls {@link #unpark(Thread)} */
+  public void park() {
+    Turn turn = new Turn();
+    synchronized (this) {
+      parked.put(Thread.currentThread(), turn);
+      handOff();
+    }
+    turn.granted.acquireUninterruptibly();
+  }
+
+  /** Lets a parked thread take a turn at the current time, does nothing if it is not parked */
+  public synchronized void unpark(Thread thread) {
+    Turn turn = parked.remove(thread);
+    if (turn != null) {
+      schedule(turn, nowNanos);
+    }
+  }
+
+  /**
+   * Starts a daemon thread on the clock. It first runs once the caller gives up its turn. Threads
+   * still waiting for a turn when the run is over are simply left blocked.
+   */
+  public Thread start(String name, Runnable task) {
+    Turn turn;
+    synchronized (this) {
+      turn = schedule(new Turn(), nowNanos);
+    }
+    Thread thread =
+        new Thread(
+            () -> {
+              turn.granted.acquireUninterruptibly();
+              try {
+                task.run();
+              } finally {
+                synchronized (this) {
+                  handOff();
+                }
+              }
+            },
+            name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  private Turn schedule(Turn turn, long wakeAtNanos) {
+    turn.wakeAtNanos = wakeAtNanos;
+    turn.order = order++;
+    waiting.add(turn);
+    return turn;
+  }
+
+  private void handOff() {
+    Turn next = waiting.poll();
+    if (next == null) {
+      throw new IllegalStateException("Every thread on the virtual clock is parked");
+    }
+    nowNanos = Math.max(nowNanos, next.wakeAtNanos);
+    next.granted.release();
+  }
+}
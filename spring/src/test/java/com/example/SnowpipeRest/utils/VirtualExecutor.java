@@ -0,0 +1,88 @@
+package com.example.SnowpipeRest.utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Fixed size pool of threads running on a {@link VirtualClock}, with a bounded queue like the
+ * ThreadPoolExecutor it stands in for: tasks beyond the idle threads and the queue capacity are
+ * rejected. Keeps track of how long each thread spent running tasks.
+ */
+public class VirtualExecutor implements Executor {
+
+  private final VirtualClock clock;
+  private final int queueCapacity;
+  private final Deque<Runnable> queue = new ArrayDeque<>();
+  private final Deque<Thread> idleThreads = new ArrayDeque<>();
+  // Idle threads woken up for a queued task that have not run yet
+  private int wokenThreads;
+  private final long[] busyNanos;
+
+  public VirtualExecutor(VirtualClock clock, int threads, int queueCapacity) {
+    this.clock = clock;
+    this.queueCapacity = queueCapacity;
+    this.busyNanos = new long[threads];
+    for (int i = 0; i < threads; i++) {
+      int index = i;
+      clock.start("virtual-executor-" + i, () -> work(index));
+    }
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    Thread idle;
+    synchronized (this) {
+      if (queue.size() - wokenThreads >= queueCapacity + idleThreads.size()) {
+        throw new RejectedExecutionException("Virtual executor full");
+      }
+      queue.addLast(task);
+      idle = idleThreads.pollFirst();
+      if (idle != null) {
+        wokenThreads++;
+      }
+    }
+    if (idle != null) {
+      clock.unpark(idle);
+    }
+  }
+
+  private void work(int index) {
+    while (true) {
+      Runnable task;
+      synchronized (this) {
+        task = queue.pollFirst();
+        if (task == null) {
+          idleThreads.addLast(Thread.currentThread());
+        }
+      }
+      if (task == null) {
+        clock.park();
+        synchronized (this) {
+          wokenThreads--;
+        }
+        continue;
+      }
+      long startNanos = clock.nanoTime();
+      try {
+        task.run();
+      } finally {
+        busyNanos[index] += clock.nanoTime() - startNanos;
+      }
+    }
+  }
+
+  public int getThreadCount() {
+    return busyNanos.length;
+  }
+
+  /** Time spent running tasks, summed over threads. Only stable while the caller has the turn. */
+  public long getBusyNanos() {
+    long total = 0;
+    for (long nanos : busyNanos) {
+      total += nanos;
+    }
+    return total;
+  }
+}